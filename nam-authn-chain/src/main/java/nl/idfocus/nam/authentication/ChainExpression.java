@@ -0,0 +1,321 @@
+package nl.idfocus.nam.authentication;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A boolean expression over the members of a chain, compiled into a state machine. <br/>
+ * <p>
+ * An expression such as <code>(1 AND 2) OR 3</code> refers to members by their number, or by their name such as
+ * <code>Class_1</code>. <i>AND</i> binds stronger than <i>OR</i>; parentheses may be nested to any depth. <br/>
+ * Each occurrence of a member in the expression becomes one state. A state names the member to run and the state
+ * to go to when it succeeds or fails, so evaluation short-circuits like the expression would: in the example, when
+ * member 1 fails, member 2 is skipped and member 3 is tried. The final states are {@link #ACCEPT} and {@link #REJECT}.
+ * </p><p>
+ * When a member fails and the machine moves on to an alternative, the principal is reset to the one that was known
+ * when the failed alternative started, so a user identified by half of a failed <i>AND</i> is not passed on. The
+ * state to take that principal from is the <i>scope</i> of a state.
+ * </p><p>
+ * Instances are immutable and are shared by all logins of a {@link ChainPlan}; a login only keeps its current state.
+ * </p>
+ */
+final class ChainExpression
+{
+	/** Final state: the expression is true */
+	static final int ACCEPT = -1;
+	/** Final state: the expression is false */
+	static final int REJECT = -2;
+
+	private static final String OP_AND = "AND";
+	private static final String OP_OR  = "OR";
+
+	private final String text;
+	private final int[] members;
+	private final int[] onSuccess;
+	private final int[] onFailure;
+	private final int[] scopes;
+
+	private ChainExpression( String text, Node root )
+	{
+		this.text = text;
+		int states = root == null ? 0 : root.leaves;
+		members = new int[states];
+		onSuccess = new int[states];
+		onFailure = new int[states];
+		scopes = new int[states];
+		if ( root != null )
+			compile( root, ACCEPT, REJECT, root.first );
+	}
+
+	/**
+	 * Parse and compile an expression.
+	 * @param expression the expression text
+	 * @param plan the plan whose members the expression refers to
+	 * @return the compiled expression
+	 * @throws IllegalArgumentException when the expression is invalid or refers to an unknown member
+	 */
+	static ChainExpression parse( String expression, ChainPlan plan )
+	{
+		Parser parser = new Parser( expression, plan );
+		Node root = parser.parseOr();
+		if ( parser.token != null )
+			throw parser.error( "Unexpected '"+parser.token+"'" );
+		return new ChainExpression( expression.trim(), root );
+	}
+
+	/**
+	 * @param size the number of members
+	 * @return an expression that requires all members to succeed, in order
+	 */
+	static ChainExpression allOf( int size )
+	{
+		Node root = null;
+		for ( int i = 0; i < size; i++ )
+		{
+			Node leaf = new Node( i, i );
+			root = root == null ? leaf : new Node( OP_AND, root, leaf );
+		}
+		return new ChainExpression( OP_AND, root );
+	}
+
+	/**
+	 * @return an expression that is always false, used when the configured expression is invalid
+	 */
+	static ChainExpression rejectAll()
+	{
+		return new ChainExpression( "", null );
+	}
+
+	/**
+	 * @return the state to start in, which is final when there are no states
+	 */
+	int getStart()
+	{
+		return members.length == 0 ? REJECT : 0;
+	}
+
+	/**
+	 * @return the number of states
+	 */
+	int size()
+	{
+		return members.length;
+	}
+
+	/**
+	 * @param state a state that is not final
+	 * @return the plan index of the member to run in that state
+	 */
+	int getMember( int state )
+	{
+		return members[state];
+	}
+
+	/**
+	 * @param state a state that is not final
+	 * @return the next state when the member succeeds
+	 */
+	int onSuccess( int state )
+	{
+		return onSuccess[state];
+	}
+
+	/**
+	 * @param state a state that is not final
+	 * @return the next state when the member fails
+	 */
+	int onFailure( int state )
+	{
+		return onFailure[state];
+	}
+
+	/**
+	 * @param state a state that is not final
+	 * @return the state whose starting principal is restored when the member fails
+	 */
+	int getScope( int state )
+	{
+		return scopes[state];
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder result = new StringBuilder( text ).append( " {" );
+		for ( int i = 0; i < members.length; i++ )
+		{
+			if ( i > 0 )
+				result.append( ", " );
+			result.append( i ).append( ": " ).append( members[i] ).append( " ? " )
+				.append( name( onSuccess[i] ) ).append( " : " ).append( name( onFailure[i] ) );
+		}
+		return result.append( '}' ).toString();
+	}
+
+	private static String name( int state )
+	{
+		return state == ACCEPT ? "ACCEPT" : state == REJECT ? "REJECT" : Integer.toString( state );
+	}
+
+	/**
+	 * Fill in the states of a node, last operand first so the next states are known.
+	 * @return the state to enter the node in
+	 */
+	private int compile( Node node, int whenTrue, int whenFalse, int scope )
+	{
+		if ( node.operator == null )
+		{
+			members[node.first] = node.member;
+			onSuccess[node.first] = whenTrue;
+			onFailure[node.first] = whenFalse;
+			scopes[node.first] = scope;
+			return node.first;
+		}
+		int right = compile( node.right, whenTrue, whenFalse, scope );
+		if ( OP_AND.equals( node.operator ) )
+			return compile( node.left, right, whenFalse, scope );
+		// The right operand is an alternative to the left one, started with the principal the left one started with
+		return compile( node.left, whenTrue, right, node.left.first );
+	}
+
+	/**
+	 * A node of the parsed expression. States are numbered by the position of their member in the text.
+	 */
+	private static final class Node
+	{
+		private final String operator;
+		private final Node left;
+		private final Node right;
+		private final int member;
+		/** State of the first member in the node */
+		private final int first;
+		/** Number of members in the node */
+		private final int leaves;
+
+		Node( int member, int state )
+		{
+			this.operator = null;
+			this.left = null;
+			this.right = null;
+			this.member = member;
+			this.first = state;
+			this.leaves = 1;
+		}
+
+		Node( String operator, Node left, Node right )
+		{
+			this.operator = operator;
+			this.left = left;
+			this.right = right;
+			this.member = -1;
+			this.first = left.first;
+			this.leaves = left.leaves + right.leaves;
+		}
+	}
+
+	/**
+	 * Recursive descent parser for <pre>expr := term (OR term)*, term := factor (AND factor)*, factor := ( expr ) | member</pre>
+	 */
+	private static final class Parser
+	{
+		private final String text;
+		private final ChainPlan plan;
+		private final List<String> tokens = new ArrayList<>();
+		private final List<Integer> offsets = new ArrayList<>();
+		private int next;
+		private String token;
+		private int states;
+
+		Parser( String text, ChainPlan plan )
+		{
+			this.text = text;
+			this.plan = plan;
+			int i = 0;
+			while ( i < text.length() )
+			{
+				char c = text.charAt( i );
+				if ( Character.isWhitespace( c ) )
+				{
+					i++;
+				}
+				else if ( c == '(' || c == ')' )
+				{
+					offsets.add( i );
+					tokens.add( String.valueOf( c ) );
+					i++;
+				}
+				else if ( Character.isLetterOrDigit( c ) || c == '_' )
+				{
+					int start = i;
+					while ( i < text.length() && ( Character.isLetterOrDigit( text.charAt( i ) ) || text.charAt( i ) == '_' ) )
+						i++;
+					offsets.add( start );
+					tokens.add( text.substring( start, i ) );
+				}
+				else
+				{
+					offsets.add( i );
+					tokens.add( String.valueOf( c ) );
+					i++;
+				}
+			}
+			advance();
+		}
+
+		private void advance()
+		{
+			token = next < tokens.size() ? tokens.get( next ) : null;
+			next++;
+		}
+
+		Node parseOr()
+		{
+			Node node = parseAnd();
+			while ( OP_OR.equalsIgnoreCase( token ) )
+			{
+				advance();
+				node = new Node( OP_OR, node, parseAnd() );
+			}
+			return node;
+		}
+
+		private Node parseAnd()
+		{
+			Node node = parseFactor();
+			while ( OP_AND.equalsIgnoreCase( token ) )
+			{
+				advance();
+				node = new Node( OP_AND, node, parseFactor() );
+			}
+			return node;
+		}
+
+		private Node parseFactor()
+		{
+			if ( token == null )
+				throw error( "Missing class" );
+			if ( "(".equals( token ) )
+			{
+				advance();
+				Node node = parseOr();
+				if ( !")".equals( token ) )
+					throw error( "Missing ')'" );
+				advance();
+				return node;
+			}
+			if ( ")".equals( token ) || OP_AND.equalsIgnoreCase( token ) || OP_OR.equalsIgnoreCase( token ) )
+				throw error( "Unexpected '"+token+"'" );
+			int member = plan.findMember( token );
+			if ( member < 0 )
+				throw error( "Unknown class '"+token+"'" );
+			advance();
+			return new Node( member, states++ );
+		}
+
+		IllegalArgumentException error( String message )
+		{
+			int position = next - 1 < offsets.size() ? offsets.get( next - 1 ) : text.length();
+			return new IllegalArgumentException( message+" at position "+position+" of expression '"+text+"'" );
+		}
+	}
+}
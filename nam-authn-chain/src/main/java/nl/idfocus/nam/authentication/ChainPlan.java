@@ -0,0 +1,464 @@
+package nl.idfocus.nam.authentication;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nl.idfocus.nam.util.LogFormatter;
+
+import com.novell.nidp.NIDPException;
+import com.novell.nidp.authentication.local.LocalAuthenticationClass;
+import com.novell.nidp.common.authority.UserAuthority;
+
+/**
+ * The compiled form of a {@link ChainedAuth} configuration. <br/>
+ * <p>
+ * A plan is built once per distinct configuration and shared by all logins that use it. Each member holds its
+ * resolved class name, its constructor and its own properties, so starting a member costs a copy of those properties
+ * and one constructor call. The configuration is made up of the chain's own properties and the <code>Class_</code>
+ * properties only; general properties, such as <code>DEBUG</code> and NAM internals, and other values, such as the
+ * <code>Principal</code>, may change per login and are added when a member is created, see
+ * {@link #getDynamicProperties(Properties, String...)}. At most {@link #MAX_PLANS} plans are kept, the least
+ * recently used plan is dropped first. <br/>
+ * Members are numbered without limit and run in numeric order, so <code>Class_10</code> follows <code>Class_9</code>.
+ * </p>
+ */
+final class ChainPlan
+{
+	private static final Logger logger   = LogFormatter.getConsoleLogger( ChainPlan.class.getName() );
+	private static final Level  dbglevel = Level.FINE;
+	private static final Level  errlevel = Level.SEVERE;
+
+	/** The prefix of class names and class-specific properties, followed by the number of the class. */
+	static final String CLASS_PREFIX = "Class_";
+	/**
+	 * Member property that marks a class as non-interactive, meaning it decides from the request alone, never
+	 * shows a page and has no side effects on the response or the session. Such members may be evaluated in parallel 
+	 * with a guarded request and response, see {@link ChainedAuth} and {@link MemberExchange}. It is not passed on to the class.
+	 */
+	static final String MEMBER_NON_INTERACTIVE = "NonInteractive";
+
+	/** Orders numbers without leading zeroes by value */
+	private static final Comparator<String> NUMERIC = Comparator.comparingInt( String::length ).thenComparing( Comparator.naturalOrder() );
+
+	/** The maximum number of distinct configurations kept compiled */
+	static final int MAX_PLANS = 64;
+
+	private static final Map<Map<String,String>, ChainPlan> plans = new LinkedHashMap<Map<String,String>, ChainPlan>( 16, 0.75f, true )
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<Map<String,String>, ChainPlan> eldest )
+		{
+			return size() > MAX_PLANS;
+		}
+	};
+
+	private final List<Member> members;
+	private final ChainExpression allOf;
+	private final ConcurrentMap<String, ChainExpression> expressions = new ConcurrentHashMap<>();
+	private SuccessHistory history;
+
+	private ChainPlan( List<Member> members )
+	{
+		this.members = Collections.unmodifiableList( members );
+		this.allOf = ChainExpression.allOf( members.size() );
+	}
+
+	/**
+	 * Return the plan for the given configuration, compiling it the first time it is seen.
+	 * @param props the properties of the chain
+	 * @param excluded names of the chain's own properties, which are not passed on to members
+	 * @return the shared plan
+	 */
+	static ChainPlan getPlan( Properties props, String... excluded )
+	{
+		Map<String,String> config = getConfiguration( props, excluded );
+		ChainPlan plan;
+		synchronized ( plans )
+		{
+			plan = plans.get( config );
+		}
+		if ( plan == null )
+		{
+			// Compiled outside the lock, a concurrent compile of the same configuration is discarded
+			plan = compile( config );
+			synchronized ( plans )
+			{
+				ChainPlan existing = plans.putIfAbsent( config, plan );
+				if ( existing != null )
+					plan = existing;
+			}
+		}
+		return plan;
+	}
+
+	/**
+	 * Collect the properties that are not part of the configuration. String values are general properties, such as 
+	 * <code>DEBUG</code>, which each member gets unless it has its own value; other values, such as the 
+	 * <code>Principal</code>, change per login and take precedence.
+	 * @param props the properties of the chain
+	 * @param excluded names of the chain's own properties, which are not passed on to members
+	 * @return properties for {@link Member#newInstance(ArrayList, Properties)}
+	 */
+	static Properties getDynamicProperties( Properties props, String... excluded )
+	{
+		List<String> skipped = Arrays.asList( excluded );
+		Properties result = new Properties();
+		for ( Map.Entry<Object,Object> entry : props.entrySet() )
+		{
+			if ( !( entry.getKey() instanceof String && entry.getValue() instanceof String ) )
+				result.put( entry.getKey(), entry.getValue() );
+			else if ( !isClassProperty( (String)entry.getKey() ) && !skipped.contains( entry.getKey() ) )
+			{
+				logger.log(dbglevel, "[DBG] Recognized general property "+entry.getKey()+".");
+				result.put( entry.getKey(), entry.getValue() );
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the number of plans kept
+	 */
+	static int getPlanCount()
+	{
+		synchronized ( plans )
+		{
+			return plans.size();
+		}
+	}
+
+	/**
+	 * Return the success history of this plan, so it is dropped together with the plan.
+	 * @param factory creates the history the first time
+	 * @return the shared history
+	 */
+	synchronized SuccessHistory getHistory( Supplier<SuccessHistory> factory )
+	{
+		if ( history == null )
+			history = factory.get();
+		return history;
+	}
+
+	/**
+	 * @return the number of members
+	 */
+	int size()
+	{
+		return members.size();
+	}
+
+	/**
+	 * @param index position in the chain
+	 * @return the member at that position
+	 */
+	Member getMember( int index )
+	{
+		return members.get( index );
+	}
+
+	/**
+	 * Find a member by its number or name.
+	 * @param reference a number such as <code>1</code>, or a name such as <code>Class_1</code>
+	 * @return the position of the member in the chain, or -1 when there is no such member
+	 */
+	int findMember( String reference )
+	{
+		String digits = reference.regionMatches( true, 0, CLASS_PREFIX, 0, CLASS_PREFIX.length() ) ? reference.substring( CLASS_PREFIX.length() ) : reference;
+		if ( digits.isEmpty() || getDigitsEnd( digits, 0 ) != digits.length() )
+			return -1;
+		String number = normalizeNumber( digits );
+		for ( int i = 0; i < members.size(); i++ )
+		{
+			if ( members.get(i).number.equals( number ) )
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the expression that requires all members to succeed in order, as in 'AND' mode
+	 */
+	ChainExpression getAllOf()
+	{
+		return allOf;
+	}
+
+	/**
+	 * Return the compiled form of an expression over the members of this plan, compiling it the first time it is seen.
+	 * An invalid expression is logged once and compiled into one that always fails.
+	 * @param expression the expression text
+	 * @return the shared compiled expression
+	 */
+	ChainExpression getExpression( String expression )
+	{
+		ChainExpression result = expressions.get( expression );
+		if ( result == null )
+		{
+			try
+			{
+				result = ChainExpression.parse( expression, this );
+				logger.log(dbglevel, "[DBG] Compiled expression "+result+".");
+			}
+			catch ( IllegalArgumentException e )
+			{
+				logger.log(errlevel, "Error in chain expression: "+e.getMessage()+"; all logins will fail." );
+				result = ChainExpression.rejectAll();
+			}
+			ChainExpression existing = expressions.putIfAbsent( expression, result );
+			if ( existing != null )
+				result = existing;
+		}
+		return result;
+	}
+
+	/**
+	 * @return the chain's own properties and the <code>Class_</code> properties, which make up the configuration
+	 */
+	private static Map<String,String> getConfiguration( Properties props, String... excluded )
+	{
+		List<String> own = Arrays.asList( excluded );
+		Map<String,String> config = new HashMap<>();
+		for ( Map.Entry<Object,Object> entry : props.entrySet() )
+		{
+			if ( entry.getKey() instanceof String && entry.getValue() instanceof String
+					&& ( isClassProperty( (String)entry.getKey() ) || own.contains( entry.getKey() ) ) )
+				config.put( (String)entry.getKey(), (String)entry.getValue() );
+		}
+		return config;
+	}
+
+	private static boolean isClassProperty( String key )
+	{
+		return key.startsWith( CLASS_PREFIX ) && getDigitsEnd( key, CLASS_PREFIX.length() ) > 0;
+	}
+
+	private static ChainPlan compile( Map<String,String> config )
+	{
+		List<String> authNames = new ArrayList<>();
+		Map<String,List<String>> propNames = new HashMap<>();
+		for ( String key : config.keySet() )
+		{
+			int end = key.startsWith( CLASS_PREFIX ) ? getDigitsEnd( key, CLASS_PREFIX.length() ) : -1;
+			if ( end == key.length() )
+			{
+				logger.log(dbglevel, "[DBG] Recognized class parameter "+key+".");
+				authNames.add( key );
+			}
+			else if ( end > 0 && key.charAt(end) == '_' && end + 1 < key.length() )
+			{
+				logger.log(dbglevel, "[DBG] Recognized class property "+key+".");
+				String classPrefix = key.substring(0, end);
+				if ( ! propNames.containsKey(classPrefix) )
+					propNames.put( classPrefix, new ArrayList<String>() );
+				propNames.get( classPrefix ).add(key);
+			}
+		}
+		// Numeric order of the class numbers, the name decides between Class_1 and Class_01
+		Collections.sort( authNames, Comparator.comparing( (String name) -> normalizeNumber( name.substring( CLASS_PREFIX.length() ) ), NUMERIC ).thenComparing( Comparator.naturalOrder() ) );
+		logger.log(Level.INFO, "Compiling "+authNames.size()+" authentication classes.");
+		List<Member> members = new ArrayList<>();
+		for ( String name : authNames )
+		{
+			String className = resolveClassName( config.get(name) );
+			try
+			{
+				boolean nonInteractive = Boolean.parseBoolean( config.get( name+"_"+MEMBER_NON_INTERACTIVE ) );
+				members.add( new Member( name, normalizeNumber( name.substring( CLASS_PREFIX.length() ) ), className, findConstructor( className ),
+						getMemberProperties( config, name, propNames.get(name) ), nonInteractive ) );
+				logger.log(dbglevel, "[DBG] Compiled "+name+" as "+className+".");
+			}
+			catch ( ReflectiveOperationException | ClassCastException e )
+			{
+				logger.log(errlevel, "Error "+e.getClass().getSimpleName()+": "+e.getMessage()+" for class "+className+"." );
+			}
+		}
+		return new ChainPlan( members );
+	}
+
+	/**
+	 * @return the position after the digits that start at the given position, or -1 when there are none
+	 */
+	private static int getDigitsEnd( String value, int start )
+	{
+		int end = start;
+		while ( end < value.length() && value.charAt(end) >= '0' && value.charAt(end) <= '9' )
+			end++;
+		return end == start ? -1 : end;
+	}
+
+	/**
+	 * @return the digits without leading zeroes, so numbers of any length compare by length first
+	 */
+	private static String normalizeNumber( String digits )
+	{
+		int start = 0;
+		while ( start < digits.length() - 1 && digits.charAt(start) == '0' )
+			start++;
+		return digits.substring( start );
+	}
+
+	private static String resolveClassName( String className )
+	{
+		try {
+			ChainedAuth.KnownClasses builtin = ChainedAuth.KnownClasses.valueOf(className);
+			logger.log(dbglevel, "[DBG] Recognized "+className+" as builtin.");
+			return builtin.getClassName();
+		}
+		catch(IllegalArgumentException e) {
+			return className;
+		}
+	}
+
+	private static Constructor<? extends LocalAuthenticationClass> findConstructor( String className ) throws ReflectiveOperationException
+	{
+		Class<?> clazz;
+		try
+		{
+			clazz = Class.forName( className, true, ChainPlan.class.getClassLoader() );
+		}
+		catch ( ClassNotFoundException e )
+		{
+			ClassLoader context = Thread.currentThread().getContextClassLoader();
+			if ( context == null )
+				throw e;
+			clazz = Class.forName( className, true, context );
+		}
+		return clazz.asSubclass( LocalAuthenticationClass.class ).getConstructor( Properties.class, ArrayList.class );
+	}
+
+	/**
+	 * Create a new Properties object which contains a subset of keys from allProps, where the key is trimmed to 
+	 * reflect the real name. General properties are added per login, see {@link Member#newInstance(ArrayList, Properties)}.
+	 */
+	private static Properties getMemberProperties( Map<String,String> allProps, String className, List<String> propNames )
+	{
+		Properties result = new Properties();
+		if ( propNames != null )
+		{
+			for ( String name : propNames )
+			{
+				String shortName = name.substring( className.length() + 1 );
+				if ( MEMBER_NON_INTERACTIVE.equals( shortName ) )
+					continue;
+				logger.log(dbglevel, String.format( "[DBG] Adding %s as specific property.", shortName ) );
+				result.put( shortName, allProps.get(name) );
+			}
+		}
+		logger.log(dbglevel, String.format( "[DBG] Created a set of %s properties.", result.size() ) );
+		return result;
+	}
+
+	/**
+	 * One authentication class in the chain.
+	 */
+	static final class Member
+	{
+		private final String name;
+		private final String number;
+		private final String className;
+		private final Constructor<? extends LocalAuthenticationClass> constructor;
+		private final Properties properties;
+		private final boolean nonInteractive;
+
+		private Member( String name, String number, String className, Constructor<? extends LocalAuthenticationClass> constructor, Properties properties, boolean nonInteractive )
+		{
+			this.name = name;
+			this.number = number;
+			this.className = className;
+			this.constructor = constructor;
+			this.properties = properties;
+			this.nonInteractive = nonInteractive;
+		}
+
+		/**
+		 * @return the name of the member in the configuration, such as <code>Class_0</code>
+		 */
+		String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * @return the full class name
+		 */
+		String getClassName()
+		{
+			return className;
+		}
+
+		/**
+		 * @return true when the member is marked with {@link ChainPlan#MEMBER_NON_INTERACTIVE}
+		 */
+		boolean isNonInteractive()
+		{
+			return nonInteractive;
+		}
+
+		/**
+		 * @return a copy of the member's own properties, without the general ones
+		 */
+		Properties getProperties()
+		{
+			return (Properties)properties.clone();
+		}
+
+		/**
+		 * Create a new instance of this member.
+		 * @param stores the user stores of the chain
+		 * @param dynamic properties from {@link ChainPlan#getDynamicProperties(Properties, String...)}; general 
+		 * properties are replaced by the member's own, other values take precedence
+		 * @return the new authentication class object
+		 * @throws NIDPException when the class could not be created
+		 */
+		LocalAuthenticationClass newInstance( ArrayList<UserAuthority> stores, Properties dynamic ) throws NIDPException
+		{
+			Properties props = new Properties();
+			for ( Map.Entry<Object,Object> entry : dynamic.entrySet() )
+			{
+				if ( entry.getValue() instanceof String )
+					props.put( entry.getKey(), entry.getValue() );
+			}
+			for ( Map.Entry<Object,Object> entry : properties.entrySet() )
+			{
+				Object old = props.put( entry.getKey(), entry.getValue() );
+				if ( old != null )
+					logger.log(dbglevel, String.format( "[DBG] Replaced existing value %s of property %s with value %s.", old.toString(), entry.getKey(), entry.getValue() ) );
+			}
+			for ( Map.Entry<Object,Object> entry : dynamic.entrySet() )
+			{
+				if ( !( entry.getValue() instanceof String ) )
+					props.put( entry.getKey(), entry.getValue() );
+			}
+			try
+			{
+				return constructor.newInstance( props, stores );
+			}
+			catch ( InvocationTargetException e )
+			{
+				if ( e.getCause() instanceof NIDPException )
+					throw (NIDPException)e.getCause();
+				throw new NIDPException( e.getCause() );
+			}
+			catch ( ReflectiveOperationException e )
+			{
+				throw new NIDPException( e );
+			}
+		}
+	}
+}
@@ -1,19 +1,24 @@
 package nl.idfocus.nam.authentication;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.Locale;
 import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.servlet.http.Cookie;
+
+import nl.idfocus.nam.authentication.ParallelEvaluator.Batch;
+import nl.idfocus.nam.authentication.ParallelEvaluator.Outcome;
+import nl.idfocus.nam.util.CookieUtils;
 import nl.idfocus.nam.util.LogFormatter;
 
 import com.novell.nidp.NIDPException;
 import com.novell.nidp.NIDPPrincipal;
-import com.novell.nidp.authentication.AuthClassDefinition;
 import com.novell.nidp.authentication.local.LocalAuthenticationClass;
 import com.novell.nidp.common.authority.UserAuthority;
 
@@ -60,6 +65,10 @@ import com.novell.nidp.common.authority.UserAuthority;
  * <b>NOTE</b> Unprefixed properties are passed on to <i>all</i> classes. 
  * </p><p>
  * After initialization of the configured classes and passing properties to them, the list of classes is executed at login time until one succeeds, or until all have failed. <br/>
+ * </p><p>
+ * Instead of a mode, classes may be combined in a nested expression using their numbers, for instance
+ * <pre>EXPRESSION  (1 AND 2) OR 3</pre>
+ * The expression is compiled once and evaluated left to right, skipping classes whose outcome no longer matters. <br/>
  * </p>
  * @author IDFocus B.V. (mvreijn@idfocus.nl)
  * @version Tested on NetIQ Access Manager 4.0.x, 4.1.x and 4.2
@@ -90,17 +99,94 @@ public class ChainedAuth extends LocalAuthenticationClass
 	private static final String PROP_MODE_AND = "AND";
 	/** Constant to specify <i>OR</i> mode, implying that the first class that succeeds triggers a successful authentication. */
 	private static final String PROP_MODE_OR  = "OR";
-	/** The regular expression that matches the prefix <i>Class_</i> for class-specific properties. */
-	private static final String CLASS_REGEX  = "Class_\\d";
-	private static final int    CLASS_SUBSTR = 7;
-	private static final int    PROP_SUBSTR  = 8;
+	/**
+	 * By setting this property name on the class or method, the classes are combined in a boolean expression 
+	 * instead of the MODE. <br/>
+	 * Classes are referred to by their number or their full name, such as <i>1</i> or <i>Class_1</i>, and combined with 
+	 * <i>AND</i>, <i>OR</i> and parentheses; <i>AND</i> takes precedence. 
+	 * For example, <pre>(1 AND 2) OR 3</pre> tries class 3 only when class 1 or 2 fails. <br/>
+	 * An invalid expression causes all logins to fail. 
+	 */
+	private static final String PROP_EXPRESSION = "EXPRESSION";
+	/** The mode that is logged when an expression is used */
+	private static final String MODE_EXPRESSION = "EXPRESSION";
+	/**
+	 * By setting this property name on the class or method to 'true', consecutive classes marked with 
+	 * <pre>Class_#_NonInteractive  true</pre> 
+	 * are tried at the same time in 'OR' mode. The first one that succeeds wins and the others are cancelled. <br/>
+	 * When one of them needs to show a page, the chain continues one by one from that class. <br/>
+	 * Only mark classes that decide from the request alone, such as certificate or contract checks, and that have no 
+	 * side effects on the response or the NAM session. While they run, cookies, headers and request attributes they set 
+	 * are held back and only those of the winning class are applied; reading or writing the body is refused, and 
+	 * classes that lose or run late can no longer reach the request once the batch is over. The session is shared as 
+	 * is, so a class that changes it must not be marked. 
+	 * The default value is 'false'.
+	 */
+	private static final String PROP_PARALLEL          = "PARALLEL";
+	/**
+	 * By setting this property name on the class or method, the time in milliseconds that classes tried at the same time
+	 * may take may be altered from the default of 3000. Classes that take longer are cancelled and count as failed.
+	 */
+	private static final String PROP_PARALLEL_TIMEOUT  = "PARALLEL_TIMEOUT";
+	/**
+	 * By setting this property name on the class or method, the maximum number of classes tried at the same time
+	 * over all logins may be altered from the default of 16.
+	 */
+	private static final String PROP_PARALLEL_THREADS  = "PARALLEL_THREADS";
+	private static final String DEF_PARALLEL_TIMEOUT   = "3000";
+	private static final String DEF_PARALLEL_THREADS   = "16";
+	/**
+	 * By setting this property name on the class or method, 'OR' mode tries the classes that succeeded before for the
+	 * same user or device first. <br/>
+	 * Valid values are:
+	 * <ul>
+	 * <li>OFF (Always use the configured order)</li>
+	 * <li>FIRST (Try the class that succeeded most often first, then the others in the configured order)</li>
+	 * <li>RANK (Try all classes that succeeded often enough first, most successful first)</li>
+	 * </ul>
+	 * The user is known from a principal set by an earlier method, or from a device cookie.
+	 * The default value is "OFF".
+	 */
+	private static final String PROP_ADAPTIVE          = "ADAPTIVE";
+	/**
+	 * By setting this property name on the class or method, the number of successes a class needs before it is tried
+	 * earlier may be altered from the default of 2.
+	 */
+	private static final String PROP_ADAPTIVE_MIN      = "ADAPTIVE_MIN";
+	/**
+	 * By setting this property name on the class or method, the maximum number of users and devices remembered
+	 * may be altered from the default of 50000.
+	 */
+	private static final String PROP_ADAPTIVE_SIZE     = "ADAPTIVE_SIZE";
+	/**
+	 * By setting this property name on the class or method, the name of the device cookie may be altered from the
+	 * default 'idfchain'. An empty value disables the cookie, so only a principal from an earlier method is used.
+	 */
+	private static final String PROP_ADAPTIVE_COOKIE   = "ADAPTIVE_COOKIE";
+	private static final String DEF_ADAPTIVE_MIN       = "2";
+	private static final String DEF_ADAPTIVE_SIZE      = Integer.toString( SuccessHistory.DEF_MAX_KEYS );
+	private static final String DEF_ADAPTIVE_COOKIE    = "idfchain";
+	/** The device cookie is kept for a year */
+	private static final int    ADAPTIVE_COOKIE_AGE    = 365 * 24 * 3600;
 
 	private int authCount;
 	private final boolean debugMode;
 	private final String authMode;
-	private final Map<String,List<String>> propNames;
-	private final Properties genProps;
-	private final List<String> classProps;
+	private final ChainPlan plan;
+	private final Properties dynProps;
+	private final ParallelEvaluator parallel;
+	private final long parallelTimeout;
+	private final SuccessHistory.Policy adaptivePolicy;
+	private final SuccessHistory history;
+	private final int adaptiveMin;
+	private final String adaptiveCookie;
+	private int[] order;
+	private boolean reordered;
+	private List<String> historyKeys;
+	private final ChainExpression expression;
+	private int state;
+	/** The principal each state started with, restored when an alternative fails */
+	private final Object[] startPrincipals;
 	private LocalAuthenticationClass currentClass;
 	private boolean callNewClass;
 	private boolean firstCall;
@@ -117,46 +203,46 @@ public class ChainedAuth extends LocalAuthenticationClass
 		{
 			LogFormatter.setLoggerDebugMode(logger);
 		}
-		// Process settings
-		List<String> authNames = new ArrayList<>();
-		propNames = new HashMap<>();
-		genProps  = new Properties();
-		// Read properties
-		for ( Object oKey : props.keySet() )
+		// Initialize the MODE parameter, an expression takes its place
+		String expressionText = props.getProperty( PROP_EXPRESSION, "" ).trim();
+		authMode = expressionText.isEmpty() ? props.getProperty( PROP_MODE, PROP_MODE_OR ) : MODE_EXPRESSION;
+		// The compiled plan is shared by all logins with the same configuration
+		String[] ownProps = { PROP_MODE, PROP_EXPRESSION, PROP_PARALLEL, PROP_PARALLEL_TIMEOUT, PROP_PARALLEL_THREADS,
+				PROP_ADAPTIVE, PROP_ADAPTIVE_MIN, PROP_ADAPTIVE_SIZE, PROP_ADAPTIVE_COOKIE };
+		plan = ChainPlan.getPlan( props, ownProps );
+		dynProps = ChainPlan.getDynamicProperties( props, ownProps );
+		logger.log( dbglevel, "[DBG] Using "+plan.size()+" authentication classes." );
+		if ( MODE_EXPRESSION.equals( authMode ) )
+			expression = plan.getExpression( expressionText );
+		else if ( PROP_MODE_AND.equalsIgnoreCase( authMode ) )
+			expression = plan.getAllOf();
+		else
+			expression = null;
+		startPrincipals = expression == null ? null : new Object[expression.size()];
+		if ( Boolean.parseBoolean( props.getProperty( PROP_PARALLEL, "false" ) ) && PROP_MODE_OR.equalsIgnoreCase( authMode ) )
 		{
-			String key = (String)oKey;
-			if ( key.matches( CLASS_REGEX ) )
-			{
-				logger.log(dbglevel, "[DBG] Recognized class parameter "+key+".");
-				authNames.add( key );
-			}
-			else if ( key.matches( CLASS_REGEX+"_.+") )
-			{
-				logger.log(dbglevel, "[DBG] Recognized class property "+key+".");
-				String classPrefix = key.substring(0, CLASS_SUBSTR);
-				if ( ! propNames.containsKey(classPrefix) )
-					propNames.put( classPrefix, new ArrayList<String>() );
-				propNames.get( classPrefix ).add(key);
-			}
-			// allow debug (and NAM internals) to be passed down
-			else if ( ! key.equals( PROP_MODE ) )
-			{
-				logger.log(dbglevel, "[DBG] Recognized general property "+key+".");
-				try
-				{
-					genProps.put( key, props.get(key) );
-				}
-				catch (NullPointerException e) 
-				{
-					logger.log( errlevel, "NPE for key; "+key );
-				}
-			}
+			parallel = ParallelEvaluator.getShared( (int)getPositiveValue( props, PROP_PARALLEL_THREADS, DEF_PARALLEL_THREADS ) );
+			parallelTimeout = getPositiveValue( props, PROP_PARALLEL_TIMEOUT, DEF_PARALLEL_TIMEOUT );
 		}
-		// Initialize the MODE parameter
-		authMode = props.getProperty( PROP_MODE, PROP_MODE_OR );
-		// Sorting results in numeric sort of last digit
-		Collections.sort( authNames );
-		classProps = validateClasses( authNames, propNames, genProps );
+		else
+		{
+			parallel = null;
+			parallelTimeout = 0;
+		}
+		adaptivePolicy = PROP_MODE_OR.equalsIgnoreCase( authMode ) ? getPolicy( props.getProperty( PROP_ADAPTIVE, SuccessHistory.Policy.OFF.name() ) ) : SuccessHistory.Policy.OFF;
+		if ( adaptivePolicy != SuccessHistory.Policy.OFF )
+		{
+			history = SuccessHistory.forPlan( plan, (int)getPositiveValue( props, PROP_ADAPTIVE_SIZE, DEF_ADAPTIVE_SIZE ) );
+			adaptiveMin = (int)getPositiveValue( props, PROP_ADAPTIVE_MIN, DEF_ADAPTIVE_MIN );
+			adaptiveCookie = props.getProperty( PROP_ADAPTIVE_COOKIE, DEF_ADAPTIVE_COOKIE );
+		}
+		else
+		{
+			history = null;
+			adaptiveMin = 0;
+			adaptiveCookie = "";
+		}
+		order = getConfiguredOrder();
 		// Defaults
 		firstCall = true;
 		callNewClass = false;
@@ -172,6 +258,10 @@ public class ChainedAuth extends LocalAuthenticationClass
 		{
 			firstCall = false;
 			authCount = 0;
+			if ( expression != null )
+				state = expression.getStart();
+			if ( history != null )
+				loadOrder();
 			callNewClass = true;
 			logger.log( loglevel, String.format( "Starting Chained Authentication in %s mode.", authMode ) );
 		}
@@ -181,9 +271,9 @@ public class ChainedAuth extends LocalAuthenticationClass
 		}
 		try
 		{
-			if ( PROP_MODE_AND.equalsIgnoreCase( authMode ) )
+			if ( expression != null )
 			{
-				authStatus = authenticateAndMode();
+				authStatus = authenticateExpression();
 			}
 			else if ( PROP_MODE_OR.equalsIgnoreCase( authMode ) )
 			{
@@ -198,63 +288,52 @@ public class ChainedAuth extends LocalAuthenticationClass
 	}
 
 	/**
-	 * Try all classes in order, return if one fails or all succeed
-	 * @return authentication status of the current class in the stack.
+	 * Walk the states of the expression, return when a class needs interaction or a final state is reached. <br/>
+	 * 'AND' mode is the expression that requires all classes in order.
+	 * @return authentication status of the last class that was tried.
 	 */
-	private int authenticateAndMode() throws NIDPException
+	private int authenticateExpression() throws NIDPException
 	{
 		int authStatus = NOT_AUTHENTICATED;
-		while( authCount < classProps.size() )
+		while( state >= 0 )
 		{
 			/* 
 			 * add new principal information to subsequent children
 			 * initialize new children with the correct setting for first call
 			 */ 
+			ChainPlan.Member member = plan.getMember( expression.getMember(state) );
 			if ( callNewClass || currentClass == null )
 			{
-				String classProp = classProps.get(authCount);
-				logger.log( loglevel, String.format( "Trying class %s.", authCount ) );
+				logger.log( loglevel, String.format( "Trying class %s.", member.getName() ) );
+				startPrincipals[state] = dynProps.get( "Principal" );
 				// Instantiate new class
-				currentClass = createClass( classProp, propNames.get(classProp), genProps );
+				currentClass = createClass( member );
 			}
 			// Initialize the request and authenticate
 			currentClass.initializeRequest( m_Request, m_Response, m_Session, m_SessionData, callNewClass, getReturnURL() );
 			authStatus = currentClass.authenticate();
-			if ( authStatus == NOT_AUTHENTICATED )
+			if ( authStatus == SHOW_JSP )
 			{
-				logger.log( dbglevel, String.format( "Class %s authentication failed.", authCount ) );
-				callNewClass = true;
-				return authStatus;
-			}
-			else if ( authStatus == AUTHENTICATED )
-			{
-				logger.log( dbglevel, String.format( "Class %s authentication succeeded.", authCount ) );
-				updatePrincipal( currentClass, false );
-				callNewClass = true;
-				authCount++;
-			}
-			else if ( authStatus == SHOW_JSP )
-			{
-				logger.log( dbglevel, String.format( "Class %s requires interaction.", authCount ) );
+				logger.log( dbglevel, String.format( "Class %s requires interaction.", member.getName() ) );
 				m_PageToShow = currentClass.getPageToShow();
 				callNewClass = false;
 				return authStatus;
 			}
+			callNewClass = true;
+			if ( authStatus == AUTHENTICATED || authStatus == PWD_EXPIRING )
+			{
+				logger.log( dbglevel, String.format( authStatus == AUTHENTICATED ? "Class %s authentication succeeded." 
+						: "Class %s authentication succeeded conditionally (password expired).", member.getName() ) );
+				updatePrincipal( currentClass, authStatus == PWD_EXPIRING );
+				state = expression.onSuccess(state);
+			}
 			else
 			{
-				if ( authStatus == PWD_EXPIRING )
-				{
-					logger.log( dbglevel,  String.format( "Class %s authentication succeeded conditionally (password expired).", authCount ) );
-					updatePrincipal( currentClass, true );
-					callNewClass = true;
-					authCount++;
-				}
-				else
-				{
-					logger.log( dbglevel, String.format( "Class %s authentication failed with status %s.", authCount, authStatus ) );
-					callNewClass = true;
-					return authStatus;
-				}
+				logger.log( dbglevel, String.format( "Class %s authentication failed with status %s.", member.getName(), authStatus ) );
+				int next = expression.onFailure(state);
+				if ( next >= 0 )
+					restorePrincipal( startPrincipals[expression.getScope(state)] );
+				state = next;
 			}
 		}
 		return authStatus;		
@@ -267,14 +346,20 @@ public class ChainedAuth extends LocalAuthenticationClass
 	private int authenticateOrMode() throws NIDPException
 	{
 		int authStatus = NOT_AUTHENTICATED;
-		while( authCount < classProps.size() )
+		while( authCount < plan.size() )
 		{
+			if ( parallel != null && callNewClass && getBatchEnd() - authCount > 1 )
+			{
+				Integer batchStatus = authenticateBatch( authCount, getBatchEnd() );
+				if ( batchStatus != null )
+					return batchStatus;
+				continue;
+			}
 			if ( callNewClass || currentClass == null )
 			{
-				String classProp = classProps.get(authCount);
 				logger.log( loglevel, String.format( "Trying class %s.", authCount ) );
 				// Instantiate new class
-				currentClass = createClass( classProp, propNames.get(classProp), genProps );
+				currentClass = createClass( memberAt(authCount) );
 			}
 			currentClass.initializeRequest( m_Request, m_Response, m_Session, m_SessionData, callNewClass, getReturnURL() );
 			authStatus = currentClass.authenticate();
@@ -288,6 +373,7 @@ public class ChainedAuth extends LocalAuthenticationClass
 			{
 				logger.log( dbglevel, String.format( "Class %s authentication succeeded.", authCount ) );
 				updatePrincipal( currentClass, false );
+				recordSuccess();
 				callNewClass = true;
 				return authStatus;
 			}
@@ -304,6 +390,7 @@ public class ChainedAuth extends LocalAuthenticationClass
 				{
 					logger.log( dbglevel, String.format( "Class %s authentication succeeded conditionally (password expired).", authCount ) );
 					updatePrincipal( currentClass, true );
+					recordSuccess();
 					callNewClass = true;
 					return authStatus;
 				}
@@ -318,6 +405,198 @@ public class ChainedAuth extends LocalAuthenticationClass
 		return authStatus;		
 	}
 
+	/**
+	 * @param position position in the order of this login
+	 * @return the member to try at that position
+	 */
+	private ChainPlan.Member memberAt( int position )
+	{
+		return plan.getMember( order[position] );
+	}
+
+	private int[] getConfiguredOrder()
+	{
+		int[] result = new int[plan.size()];
+		for ( int i = 0; i < result.length; i++ )
+			result[i] = i;
+		return result;
+	}
+
+	/**
+	 * Look up the user or device in the success history and determine the order for this login.
+	 */
+	private void loadOrder()
+	{
+		historyKeys = new ArrayList<>();
+		Object principal = dynProps.get( "Principal" );
+		if ( principal instanceof NIDPPrincipal && ((NIDPPrincipal)principal).getUserIdentifier() != null )
+			historyKeys.add( SuccessHistory.principalKey( ((NIDPPrincipal)principal).getUserIdentifier() ) );
+		if ( !adaptiveCookie.isEmpty() && m_Request != null )
+		{
+			Cookie cookie = CookieUtils.getCookie( m_Request, adaptiveCookie );
+			if ( cookie != null && cookie.getValue() != null && !cookie.getValue().isEmpty() )
+				historyKeys.add( SuccessHistory.deviceKey( cookie.getValue() ) );
+		}
+		order = history.getOrder( historyKeys, adaptivePolicy, adaptiveMin );
+		reordered = !Arrays.equals( order, getConfiguredOrder() );
+		if ( reordered )
+			logger.log( dbglevel, "[DBG] Trying classes in order "+Arrays.toString( order )+" from success history." );
+	}
+
+	/**
+	 * Remember the class that succeeded for the principal and device of this login.
+	 */
+	private void recordSuccess()
+	{
+		if ( history == null )
+			return;
+		List<String> keys = new ArrayList<>( historyKeys );
+		NIDPPrincipal pr = currentClass.getPrincipal();
+		if ( pr != null && pr.getUserIdentifier() != null )
+		{
+			String key = SuccessHistory.principalKey( pr.getUserIdentifier() );
+			if ( !keys.contains( key ) )
+				keys.add( key );
+		}
+		if ( !adaptiveCookie.isEmpty() && m_Request != null && CookieUtils.getCookie( m_Request, adaptiveCookie ) == null )
+		{
+			String deviceId = UUID.randomUUID().toString();
+			keys.add( SuccessHistory.deviceKey( deviceId ) );
+			CookieUtils.addCookie( m_Response, CookieUtils.createCookie( adaptiveCookie, deviceId, null, null ), ADAPTIVE_COOKIE_AGE, Boolean.TRUE, Boolean.TRUE, null, null );
+		}
+		history.recordSuccess( keys, order[authCount], authCount, reordered );
+	}
+
+	private static SuccessHistory.Policy getPolicy( String value )
+	{
+		try
+		{
+			return SuccessHistory.Policy.valueOf( value.trim().toUpperCase( Locale.ROOT ) );
+		}
+		catch ( IllegalArgumentException e )
+		{
+			logger.log( errlevel, "Invalid value for "+PROP_ADAPTIVE+": "+value+", using OFF" );
+			return SuccessHistory.Policy.OFF;
+		}
+	}
+
+	private static long getPositiveValue( Properties props, String property, String defaultValue )
+	{
+		try
+		{
+			long value = Long.parseLong( props.getProperty( property, defaultValue ) );
+			if ( value > 0 )
+				return value;
+		}
+		catch ( NumberFormatException e ) {}
+		logger.log( errlevel, "Invalid value for "+property+", using "+defaultValue );
+		return Long.parseLong( defaultValue );
+	}
+
+	/**
+	 * @return the position after the run of non-interactive classes that starts at the current class
+	 */
+	private int getBatchEnd()
+	{
+		int end = authCount;
+		while ( end < plan.size() && memberAt(end).isNonInteractive() )
+			end++;
+		return end;
+	}
+
+	/**
+	 * Try a run of non-interactive classes at the same time. <br/>
+	 * The batch ends when one succeeds, or when one needs interaction and all classes before it have failed; 
+	 * that class then continues on its own, as it would have one by one.
+	 * @param first position of the first class
+	 * @param end position after the last class
+	 * @return authentication status when the batch decided the chain, or null to continue after the batch
+	 */
+	private Integer authenticateBatch( int first, int end )
+	{
+		logger.log( loglevel, String.format( "Trying classes %s to %s at the same time.", first, end - 1 ) );
+		List<Callable<Outcome>> tasks = new ArrayList<>();
+		List<MemberExchange> exchanges = new ArrayList<>();
+		String returnUrl = getReturnURL();
+		for ( int i = first; i < end; i++ )
+		{
+			final int index = i;
+			final ChainPlan.Member member = memberAt(i);
+			// Each class gets its own view of the request, so classes that lose or run late can not change the response
+			final MemberExchange exchange = new MemberExchange( m_Request, m_Response );
+			exchanges.add( exchange );
+			tasks.add( () -> {
+				LocalAuthenticationClass clazz = createClass( member );
+				clazz.initializeRequest( exchange.getRequest(), exchange.getResponse(), m_Session, m_SessionData, true, returnUrl );
+				return new Outcome( index, clazz, clazz.authenticate() );
+			});
+		}
+		Batch batch = parallel.evaluate( first, tasks, parallelTimeout, outcomes -> decideBatch( first, outcomes ) );
+		Outcome decided = batch.getWinner();
+		if ( decided == null )
+		{
+			// Deadline passed or all finished; classes that did not finish count as failed
+			for ( Outcome outcome : batch.getCompleted() )
+			{
+				if ( outcome.getStatus() == SHOW_JSP )
+				{
+					decided = outcome;
+					break;
+				}
+			}
+		}
+		for ( int i = 0; i < exchanges.size(); i++ )
+		{
+			if ( decided != null && decided.getIndex() == first + i )
+				exchanges.get(i).apply();
+			else
+				exchanges.get(i).close();
+		}
+		if ( decided == null )
+		{
+			logger.log( dbglevel, String.format( "Classes %s to %s failed.", first, first + batch.getStarted() - 1 ) );
+			authCount = first + batch.getStarted();
+			callNewClass = true;
+			return null;
+		}
+		currentClass = decided.getInstance();
+		authCount = decided.getIndex();
+		if ( decided.getStatus() == SHOW_JSP )
+		{
+			logger.log( dbglevel, String.format( "Class %s requires interaction.", authCount ) );
+			m_PageToShow = currentClass.getPageToShow();
+			callNewClass = false;
+		}
+		else
+		{
+			logger.log( dbglevel, String.format( "Class %s authentication succeeded.", authCount ) );
+			updatePrincipal( currentClass, decided.getStatus() == PWD_EXPIRING );
+			recordSuccess();
+			callNewClass = true;
+		}
+		return decided.getStatus();
+	}
+
+	private Outcome decideBatch( int first, List<Outcome> outcomes )
+	{
+		for ( Outcome outcome : outcomes )
+		{
+			if ( outcome.getStatus() == AUTHENTICATED || outcome.getStatus() == PWD_EXPIRING )
+				return outcome;
+		}
+		// Interaction is only needed when every class before it has failed
+		int expected = first;
+		for ( Outcome outcome : outcomes )
+		{
+			if ( outcome.getIndex() != expected )
+				break;
+			if ( outcome.getStatus() == SHOW_JSP )
+				return outcome;
+			expected++;
+		}
+		return null;
+	}
+
 	/**
 	 * Update the various principal settings.
 	 * @param clazz the authentication class object to retrieve the Principal from
@@ -338,103 +617,56 @@ public class ChainedAuth extends LocalAuthenticationClass
 		logger.log( dbglevel, String.format( "Class %s identified principal %s.", clazz.getClass().getName(), pr == null ? "*none*" : pr.getUserIdentifier() ) );
 		setPrincipal( pr );
 		m_Properties.put( "Principal", pr );
-		genProps.put( "Principal", pr );
+		dynProps.put( "Principal", pr );
 	}
 
-	private List<String> validateClasses( List<String> authNames, Map<String,List<String>> authProps, Properties genProps ) 
+	/**
+	 * Go back to the principal that was known before a failed alternative started.
+	 * @param principal the principal to restore, may be null
+	 */
+	private void restorePrincipal( Object principal )
 	{
-		logger.log(loglevel, "Checking "+authNames.size()+" authentication classes.");
-		List<String> results = new ArrayList<>();
-		for ( String name : authNames )
+		if ( principal == dynProps.get( "Principal" ) )
+			return;
+		logger.log( dbglevel, "[DBG] Restoring the principal of the failed alternative." );
+		setPrincipal( (NIDPPrincipal)principal );
+		if ( principal == null )
 		{
-			String className = m_Properties.getProperty(name);
-			Properties localClassProps = mergeProperties(m_Properties, authProps.get(name), genProps);
-			try {
-				KnownClasses builtin = KnownClasses.valueOf(className);
-				logger.log(dbglevel, "[DBG] Recognized "+className+" as builtin.");
-				className = builtin.getClassName();
-			}
-			catch(IllegalArgumentException e) {}
-			try {
-				logger.log(dbglevel, "[DBG] Instantiating authentication class "+className+"...");
-				AuthClassDefinition rawDefinition = new AuthClassDefinition( "ChainedAuth", className, localClassProps );
-		        LocalAuthenticationClass newClass = rawDefinition.getInstance(m_UserStores, localClassProps);
-		        // Succeeded instantiating the class, add to valid classes
-		        if ( newClass != null )
-		        	results.add( name );
-				logger.log(dbglevel, "[DBG] Done.");
-			} catch (NIDPException e) {
-				logger.log(errlevel, "Error "+e.getErrorID()+": "+e.getMessage()+" for class "+className+"." );
-			}
+			m_Properties.remove( "Principal" );
+			dynProps.remove( "Principal" );
+		}
+		else
+		{
+			m_Properties.put( "Principal", principal );
+			dynProps.put( "Principal", principal );
 		}
-		return results;
 	}
 
 	/**
-	 * Instantiate a new authentication class object with a set of generic and specific properties. 
-	 * @param classProp
-	 * @param authProps
-	 * @param genProps
-	 * @return
+	 * Instantiate a new authentication class object from its compiled plan member. 
+	 * @param member the member of the chain
+	 * @return the new authentication class object
 	 */
-	private LocalAuthenticationClass createClass( String classProp, List<String> authProps, Properties genProps ) throws NIDPException
+	private LocalAuthenticationClass createClass( ChainPlan.Member member ) throws NIDPException
 	{
-		String className = m_Properties.getProperty(classProp);
-		logger.log(loglevel, String.format( "Creating authentication class %s.", className ) );
-		Properties localClassProps = mergeProperties( m_Properties, authProps, genProps );
-		try {
-			KnownClasses builtin = KnownClasses.valueOf(className);
-			logger.log(dbglevel, "[DBG] Recognized "+className+" as builtin.");
-			className = builtin.getClassName();
-		}
-		catch(IllegalArgumentException e) {}
+		logger.log(loglevel, String.format( "Creating authentication class %s.", member.getClassName() ) );
 		try {
-			logger.log(dbglevel, "[DBG] Instantiating authentication class "+className+"...");
-			AuthClassDefinition rawDefinition = new AuthClassDefinition( "ChainedAuth", className, localClassProps );
-	        LocalAuthenticationClass newClass = rawDefinition.getInstance(m_UserStores, localClassProps);
+			LocalAuthenticationClass newClass = member.newInstance( m_UserStores, dynProps );
 			logger.log(dbglevel, "[DBG] Done.");
 			return newClass;
 		} catch (NIDPException e) {
-			logger.log(errlevel, "Error "+e.getErrorID()+": "+e.getMessage()+" for class "+className+"." );
+			logger.log(errlevel, "Error "+e.getErrorID()+": "+e.getMessage()+" for class "+member.getClassName()+"." );
 			throw e;
 		}
 	}
 
-	/**
-	 * Create a new Properties object which contains all keys from genProps, 
-	 * and a subset of keys from allProps, where the key is trimmed to reflect the real name. 
-	 * @param allProps
-	 * @param propNames
-	 * @param genProps
-	 * @return
-	 */
-	private Properties mergeProperties( Properties allProps, List<String> propNames, Properties genProps )
-	{
-		Properties result = new Properties();
-		logger.log(dbglevel, String.format( "[DBG] Adding %s general properties.", genProps.size() ) );
-		result.putAll( genProps );
-		if ( propNames != null )
-		{
-			for ( String name : propNames )
-			{
-				String shortName = name.substring(PROP_SUBSTR);
-				logger.log(dbglevel, String.format( "[DBG] Adding %s as specific property.", shortName ) );
-				Object old = result.put( shortName, allProps.get(name) );
-				if ( old != null )
-					logger.log(dbglevel, String.format( "[DBG] Replaced existing value %s of property %s with value %s.", old.toString(), shortName, allProps.get(name) ) );
-			}
-		}
-		logger.log(dbglevel, String.format( "[DBG] Created a set of %s properties.", result.size() ) );
-		return result;
-	}
-
 	/**
 	 * These are the known classes from a vanilla NAM 4.1 installation. <br/>
 	 * Also contains 'self', that is: ChainedAuth is a shortcut for this class. 
 	 * @author mvreijn
 	 *
 	 */
-	private enum KnownClasses
+	enum KnownClasses
 	{
 		AliasUserPasswordClass    ("com.novell.nidp.authentication.local.AliasUserPasswordClass"),
 		BasicClass                ("com.novell.nidp.authentication.local.BasicClass"),
@@ -0,0 +1,166 @@
+package nl.idfocus.nam.authentication;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import nl.idfocus.nam.util.LogFormatter;
+
+/**
+ * The request and response one member of a parallel batch works with, see {@link ParallelEvaluator}. <br/>
+ * <p>
+ * Members of a batch run on pool threads, at the same time as each other, and may still be running after the batch
+ * has ended and the login has moved on. They therefore never change the real request or response: cookies, headers,
+ * status and request attributes are recorded, and only the changes of the member that decided the batch are applied,
+ * once the batch is over, by {@link #apply()}. The changes of all other members are dropped by {@link #close()}.
+ * The body can not be read or written at all. Reads see the real request and response, without the recorded changes.
+ * </p><p>
+ * Once the exchange is applied or closed, every call fails with an {@link IllegalStateException}, so a member that
+ * runs late can not reach a request that the container may already have recycled for another client.
+ * </p>
+ */
+final class MemberExchange
+{
+	private static final Logger logger = LogFormatter.getConsoleLogger( MemberExchange.class.getName() );
+
+	/** Calls that change the response, recorded while the batch runs */
+	private static final Set<String> RESPONSE_WRITES = new HashSet<>( Arrays.asList( "addCookie", "addHeader", "setHeader",
+			"addDateHeader", "setDateHeader", "addIntHeader", "setIntHeader", "setStatus", "sendError", "sendRedirect",
+			"setContentType", "setCharacterEncoding", "setContentLength", "setContentLengthLong", "setLocale" ) );
+	/** Calls that change the request, recorded while the batch runs */
+	private static final Set<String> REQUEST_WRITES = new HashSet<>( Arrays.asList( "setAttribute", "removeAttribute" ) );
+	/** Calls that reach the body, or change the response at once */
+	private static final Set<String> REJECTED = new HashSet<>( Arrays.asList( "getInputStream", "getReader", "getOutputStream",
+			"getWriter", "flushBuffer", "reset", "resetBuffer", "setBufferSize" ) );
+
+	private final HttpServletRequest requestView;
+	private final HttpServletResponse responseView;
+	private final List<Call> calls = new ArrayList<>();
+	private boolean ended;
+
+	/**
+	 * @param request the real request, may be null
+	 * @param response the real response, may be null
+	 */
+	MemberExchange( HttpServletRequest request, HttpServletResponse response )
+	{
+		this.requestView = request == null ? null : view( HttpServletRequest.class, request, REQUEST_WRITES );
+		this.responseView = response == null ? null : view( HttpServletResponse.class, response, RESPONSE_WRITES );
+	}
+
+	/**
+	 * @return the request the member is given, or null when there is no request
+	 */
+	HttpServletRequest getRequest()
+	{
+		return requestView;
+	}
+
+	/**
+	 * @return the response the member is given, or null when there is no response
+	 */
+	HttpServletResponse getResponse()
+	{
+		return responseView;
+	}
+
+	/**
+	 * Apply the recorded changes of the member that decided the batch to the real request and response, and end the
+	 * exchange. Must only be called when the member has finished.
+	 */
+	synchronized void apply()
+	{
+		ended = true;
+		for ( Call call : calls )
+		{
+			try
+			{
+				call.method.invoke( call.target, call.args );
+			}
+			catch ( IllegalAccessException | InvocationTargetException e )
+			{
+				Throwable cause = e instanceof InvocationTargetException ? e.getCause() : e;
+				logger.log( Level.WARNING, "Could not apply "+call.method.getName()+" of a chain member: "+cause, cause );
+			}
+		}
+		calls.clear();
+	}
+
+	/**
+	 * Drop the recorded changes and end the exchange.
+	 */
+	synchronized void close()
+	{
+		ended = true;
+		calls.clear();
+	}
+
+	private synchronized Object invoke( Object proxy, Object target, Set<String> writes, Method method, Object[] args ) throws Throwable
+	{
+		if ( method.getDeclaringClass() == Object.class )
+			return invokeObjectMethod( proxy, method, args );
+		if ( ended )
+			throw new IllegalStateException( "The parallel batch has ended, "+method.getName()+" is no longer allowed" );
+		if ( REJECTED.contains( method.getName() ) )
+			throw new IllegalStateException( "Classes tried at the same time may not call "+method.getName() );
+		if ( writes.contains( method.getName() ) )
+		{
+			calls.add( new Call( target, method, args ) );
+			return null;
+		}
+		try
+		{
+			return method.invoke( target, args );
+		}
+		catch ( InvocationTargetException e )
+		{
+			throw e.getCause();
+		}
+	}
+
+	private Object invokeObjectMethod( Object proxy, Method method, Object[] args )
+	{
+		switch ( method.getName() )
+		{
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode( proxy );
+			default:
+				return "MemberExchange[ended=" + ended + "]";
+		}
+	}
+
+	private <T> T view( Class<T> type, T target, Set<String> writes )
+	{
+		return type.cast( Proxy.newProxyInstance( type.getClassLoader(), new Class<?>[] { type },
+				( proxy, method, args ) -> invoke( proxy, target, writes, method, args ) ) );
+	}
+
+	/**
+	 * A recorded change.
+	 */
+	private static final class Call
+	{
+		private final Object target;
+		private final Method method;
+		private final Object[] args;
+
+		private Call( Object target, Method method, Object[] args )
+		{
+			this.target = target;
+			this.method = method;
+			this.args = args;
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package nl.idfocus.nam.authentication;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nl.idfocus.nam.util.LogFormatter;
+
+import com.novell.nidp.authentication.local.LocalAuthenticationClass;
+
+/**
+ * Runs a batch of chain members at the same time on a bounded pool of threads. <br/>
+ * <p>
+ * After each member finishes, the caller decides from the outcomes so far whether the batch is over; the members still
+ * running are then cancelled. Members that have not finished by the deadline are cancelled as well. A member that
+ * throws an exception counts as {@link LocalAuthenticationClass#NOT_AUTHENTICATED}. When all threads are busy and the
+ * queue is full, the remaining members of the batch are not started; the caller evaluates them one by one instead.
+ * </p>
+ */
+final class ParallelEvaluator
+{
+	private static final Logger logger = LogFormatter.getConsoleLogger( ParallelEvaluator.class.getName() );
+
+	private static final ConcurrentMap<Integer, ParallelEvaluator> shared = new ConcurrentHashMap<>();
+
+	private final ThreadPoolExecutor executor;
+
+	private ParallelEvaluator( int threads )
+	{
+		AtomicInteger counter = new AtomicInteger();
+		ThreadFactory factory = task -> {
+			Thread thread = new Thread( task, "chain-member-" + counter.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		};
+		executor = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>( threads * 4 ), factory, new ThreadPoolExecutor.AbortPolicy() );
+		executor.allowCoreThreadTimeOut( true );
+	}
+
+	/**
+	 * Return the evaluator shared by all chains with the same number of threads.
+	 * @param threads maximum number of members evaluated at the same time
+	 * @return the evaluator
+	 */
+	static ParallelEvaluator getShared( int threads )
+	{
+		if ( threads < 1 )
+			throw new IllegalArgumentException( "Threads must be positive" );
+		return shared.computeIfAbsent( threads, key -> new ParallelEvaluator( threads ) );
+	}
+
+	/**
+	 * Evaluate the members of a batch.
+	 * @param first chain position of the first member
+	 * @param members one task per member in chain order, each returning its outcome
+	 * @param timeoutMillis time allowed for the whole batch
+	 * @param decider given the outcomes so far in chain order, returns the outcome that ends the batch, or null
+	 * @return the result of the batch
+	 */
+	Batch evaluate( int first, List<Callable<Outcome>> members, long timeoutMillis, Function<List<Outcome>, Outcome> decider )
+	{
+		CompletionService<Outcome> completion = new ExecutorCompletionService<>( executor );
+		List<Future<Outcome>> futures = new ArrayList<>();
+		Map<Future<Outcome>, Integer> positions = new HashMap<>();
+		for ( Callable<Outcome> member : members )
+		{
+			try
+			{
+				Future<Outcome> future = completion.submit( member );
+				positions.put( future, first + futures.size() );
+				futures.add( future );
+			}
+			catch ( RejectedExecutionException e )
+			{
+				logger.log( Level.WARNING, "Chain member pool is full, evaluating {0} members one by one", members.size() - futures.size() );
+				break;
+			}
+		}
+		List<Outcome> completed = new ArrayList<>();
+		Outcome winner = null;
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+		try
+		{
+			for ( int done = 0; done < futures.size() && winner == null; done++ )
+			{
+				Future<Outcome> future = completion.poll( deadline - System.nanoTime(), TimeUnit.NANOSECONDS );
+				if ( future == null )
+				{
+					logger.log( Level.FINE, "Deadline of {0} ms passed with {1} members running", new Object[] { timeoutMillis, futures.size() - done } );
+					break;
+				}
+				completed.add( getOutcome( future, positions.get( future ) ) );
+				completed.sort( Comparator.comparingInt( Outcome::getIndex ) );
+				winner = decider.apply( completed );
+			}
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		for ( Future<Outcome> future : futures )
+			future.cancel( true );
+		return new Batch( winner, completed, futures.size() );
+	}
+
+	private static Outcome getOutcome( Future<Outcome> future, int index )
+	{
+		try
+		{
+			return future.get();
+		}
+		catch ( ExecutionException e )
+		{
+			logger.log( Level.WARNING, "Chain member "+index+" failed: " + e.getCause(), e.getCause() );
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		return new Outcome( index, null, LocalAuthenticationClass.NOT_AUTHENTICATED );
+	}
+
+	/**
+	 * The status a member ended with, and the member object itself.
+	 */
+	static final class Outcome
+	{
+		private final int index;
+		private final LocalAuthenticationClass instance;
+		private final int status;
+
+		Outcome( int index, LocalAuthenticationClass instance, int status )
+		{
+			this.index = index;
+			this.instance = instance;
+			this.status = status;
+		}
+
+		/**
+		 * @return position of the member in the chain
+		 */
+		int getIndex()
+		{
+			return index;
+		}
+
+		/**
+		 * @return the member object, or null when it failed with an exception
+		 */
+		LocalAuthenticationClass getInstance()
+		{
+			return instance;
+		}
+
+		int getStatus()
+		{
+			return status;
+		}
+	}
+
+	/**
+	 * The result of a batch.
+	 */
+	static final class Batch
+	{
+		private final Outcome winner;
+		private final List<Outcome> completed;
+		private final int started;
+
+		private Batch( Outcome winner, List<Outcome> completed, int started )
+		{
+			this.winner = winner;
+			this.completed = Collections.unmodifiableList( completed );
+			this.started = started;
+		}
+
+		/**
+		 * @return the outcome that ended the batch, or null when all members finished or the deadline passed
+		 */
+		Outcome getWinner()
+		{
+			return winner;
+		}
+
+		/**
+		 * @return the members that finished in time, in chain order
+		 */
+		List<Outcome> getCompleted()
+		{
+			return completed;
+		}
+
+		/**
+		 * @return the number of members that were started; the others were not evaluated
+		 */
+		int getStarted()
+		{
+			return started;
+		}
+	}
+}
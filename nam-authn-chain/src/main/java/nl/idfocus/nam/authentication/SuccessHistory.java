@@ -0,0 +1,301 @@
+package nl.idfocus.nam.authentication;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nl.idfocus.nam.util.LogFormatter;
+import nl.idfocus.nam.util.Sha256;
+
+/**
+ * Remembers which members of a chain succeed for a user or device, so an 'OR' chain can try those first. <br/>
+ * <p>
+ * Users and devices are known by a hash of their principal DN or device cookie. For each of them the number of
+ * successes per member and the time of the last success are kept. Counts are halved once one of them reaches
+ * {@link #MAX_COUNT}, so old habits fade. The number of users and devices is bounded; when it is reached, the tenth
+ * of them not seen for the longest time is removed.
+ * </p><p>
+ * Counters show how well the history works: how many logins were reordered, how many reordered logins succeeded
+ * on the first member tried, and how many attempts were saved against the configured order.
+ * </p>
+ */
+final class SuccessHistory
+{
+	private static final Logger logger = LogFormatter.getConsoleLogger( SuccessHistory.class.getName() );
+
+	/** How members are reordered */
+	enum Policy
+	{
+		/** Always use the configured order */
+		OFF,
+		/** Move the member that succeeded most often to the front, keep the others in the configured order */
+		FIRST,
+		/** Try all members with enough successes first, most successful first, then the others in the configured order */
+		RANK
+	}
+
+	static final int DEF_MAX_KEYS = 50000;
+	static final int MAX_COUNT = 255;
+	/** Log the counters once per this many successes */
+	private static final int REPORT_INTERVAL = 1000;
+
+	private final int members;
+	private final int maxKeys;
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+	private final AtomicBoolean evicting = new AtomicBoolean();
+	private final AtomicLong logins = new AtomicLong();
+	private final AtomicLong reordered = new AtomicLong();
+	private final AtomicLong successes = new AtomicLong();
+	private final AtomicLong reorderedSuccesses = new AtomicLong();
+	private final AtomicLong firstTry = new AtomicLong();
+	private final AtomicLong saved = new AtomicLong();
+
+	SuccessHistory( int members, int maxKeys )
+	{
+		if ( members < 1 || maxKeys < 1 )
+			throw new IllegalArgumentException( "Members and size must be positive" );
+		this.members = members;
+		this.maxKeys = maxKeys;
+	}
+
+	/**
+	 * Return the history of a plan, shared by all logins that use it.
+	 * @param plan the compiled chain
+	 * @param maxKeys maximum number of users and devices, used when the history is created
+	 * @return the history
+	 */
+	static SuccessHistory forPlan( ChainPlan plan, int maxKeys )
+	{
+		return plan.getHistory( () -> new SuccessHistory( Math.max( 1, plan.size() ), maxKeys ) );
+	}
+
+	/**
+	 * @param userIdentifier the DN of a principal
+	 * @return the history key for the principal
+	 */
+	static String principalKey( String userIdentifier )
+	{
+		return "p:" + Sha256.toHashString( userIdentifier.toLowerCase( Locale.ROOT ) );
+	}
+
+	/**
+	 * @param deviceId the value of the device cookie
+	 * @return the history key for the device
+	 */
+	static String deviceKey( String deviceId )
+	{
+		return "d:" + Sha256.toHashString( deviceId );
+	}
+
+	/**
+	 * Return the order in which to try the members for a login.
+	 * @param keys history keys of the login, most specific first
+	 * @param policy how to reorder
+	 * @param minSuccesses the number of successes a member needs before it is moved forward
+	 * @return member indexes in the order to try them
+	 */
+	int[] getOrder( List<String> keys, Policy policy, int minSuccesses )
+	{
+		logins.incrementAndGet();
+		int[] order = new int[members];
+		for ( int i = 0; i < members; i++ )
+			order[i] = i;
+		Entry entry = find( keys );
+		if ( entry == null || policy == Policy.OFF )
+			return order;
+		entry.touched = System.currentTimeMillis();
+		List<Integer> ranked = new ArrayList<>();
+		for ( int i = 0; i < members; i++ )
+		{
+			if ( entry.counts.get( i ) >= minSuccesses )
+				ranked.add( i );
+		}
+		if ( ranked.isEmpty() )
+			return order;
+		// Most successes first, the most recent success breaks a tie
+		Collections.sort( ranked, Comparator.<Integer>comparingInt( i -> entry.counts.get( i ) ).reversed()
+				.thenComparing( Comparator.<Integer>comparingLong( i -> entry.last.get( i ) ).reversed() ) );
+		if ( policy == Policy.FIRST )
+			ranked = ranked.subList( 0, 1 );
+		int position = 0;
+		boolean[] placed = new boolean[members];
+		for ( int member : ranked )
+		{
+			order[position++] = member;
+			placed[member] = true;
+		}
+		for ( int i = 0; i < members; i++ )
+		{
+			if ( !placed[i] )
+				order[position++] = i;
+		}
+		if ( order[0] != 0 || ranked.size() > 1 )
+			reordered.incrementAndGet();
+		return order;
+	}
+
+	/**
+	 * Record that a member succeeded.
+	 * @param keys all history keys of the login
+	 * @param member index of the member in the configuration
+	 * @param position the position at which it was tried, starting at 0
+	 * @param wasReordered whether the login used an order other than the configured one
+	 */
+	void recordSuccess( List<String> keys, int member, int position, boolean wasReordered )
+	{
+		long now = System.currentTimeMillis();
+		for ( String key : keys )
+		{
+			Entry entry = entries.get( key );
+			if ( entry == null )
+			{
+				if ( entries.size() >= maxKeys )
+					evict();
+				entry = entries.computeIfAbsent( key, k -> new Entry( members ) );
+			}
+			entry.add( member, now );
+		}
+		long count = successes.incrementAndGet();
+		if ( wasReordered )
+		{
+			reorderedSuccesses.incrementAndGet();
+			if ( position == 0 )
+				firstTry.incrementAndGet();
+			saved.addAndGet( member - position );
+		}
+		if ( count % REPORT_INTERVAL == 0 )
+			logger.log( Level.INFO, toString() );
+	}
+
+	/**
+	 * @return number of logins that asked for an order
+	 */
+	long getLogins()
+	{
+		return logins.get();
+	}
+
+	/**
+	 * @return number of logins that were given an order other than the configured one
+	 */
+	long getReordered()
+	{
+		return reordered.get();
+	}
+
+	/**
+	 * @return share of reordered logins that succeeded on the first member tried, between 0 and 1
+	 */
+	double getHitRate()
+	{
+		long total = reorderedSuccesses.get();
+		return total == 0 ? 0 : (double)firstTry.get() / total;
+	}
+
+	/**
+	 * @return attempts saved by reordering against the configured order; negative when reordering cost attempts
+	 */
+	long getSavedAttempts()
+	{
+		return saved.get();
+	}
+
+	/**
+	 * @return number of users and devices tracked
+	 */
+	int size()
+	{
+		return entries.size();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "Chain success history: %d logins, %d reordered, %.1f%% first try hits, %d attempts saved, %d users and devices",
+				getLogins(), getReordered(), getHitRate() * 100, getSavedAttempts(), size() );
+	}
+
+	private Entry find( List<String> keys )
+	{
+		for ( String key : keys )
+		{
+			Entry entry = entries.get( key );
+			if ( entry != null )
+				return entry;
+		}
+		return null;
+	}
+
+	/**
+	 * Remove the tenth of the entries that were not seen for the longest time. Only one thread evicts at a time;
+	 * the others go on and may briefly exceed the maximum.
+	 */
+	private void evict()
+	{
+		if ( !evicting.compareAndSet( false, true ) )
+			return;
+		try
+		{
+			long[] touched = new long[entries.size()];
+			int count = 0;
+			for ( Entry entry : entries.values() )
+			{
+				if ( count == touched.length )
+					break;
+				touched[count++] = entry.touched;
+			}
+			if ( count == 0 )
+				return;
+			Arrays.sort( touched, 0, count );
+			long threshold = touched[Math.max( 0, count / 10 - 1 )];
+			entries.values().removeIf( entry -> entry.touched <= threshold );
+		}
+		finally
+		{
+			evicting.set( false );
+		}
+	}
+
+	private static final class Entry
+	{
+		private final AtomicIntegerArray counts;
+		private final AtomicLongArray last;
+		private volatile long touched;
+
+		Entry( int members )
+		{
+			counts = new AtomicIntegerArray( members );
+			last = new AtomicLongArray( members );
+			touched = System.currentTimeMillis();
+		}
+
+		void add( int member, long now )
+		{
+			touched = now;
+			last.set( member, now );
+			if ( counts.incrementAndGet( member ) >= MAX_COUNT )
+			{
+				for ( int i = 0; i < counts.length(); i++ )
+				{
+					int value;
+					do
+					{
+						value = counts.get( i );
+					}
+					while ( !counts.compareAndSet( i, value, value / 2 ) );
+				}
+			}
+		}
+	}
+}
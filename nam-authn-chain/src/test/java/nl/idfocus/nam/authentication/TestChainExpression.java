@@ -0,0 +1,112 @@
+package nl.idfocus.nam.authentication;
+
+import static org.junit.Assert.*;
+
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestChainExpression
+{
+	private static final int ACCEPT = ChainExpression.ACCEPT;
+	private static final int REJECT = ChainExpression.REJECT;
+
+	private ChainPlan plan;
+
+	@Before
+	public void setUp()
+	{
+		Properties props = new Properties();
+		props.setProperty("Class_1", Allow.class.getName());
+		props.setProperty("Class_2", Deny.class.getName());
+		props.setProperty("Class_3", Allow.class.getName());
+		props.setProperty("Class_12", Deny.class.getName());
+		plan = ChainPlan.getPlan(props);
+	}
+
+	private void assertState(ChainExpression expression, int state, int member, int success, int failure)
+	{
+		assertEquals(member, expression.getMember(state));
+		assertEquals(success, expression.onSuccess(state));
+		assertEquals(failure, expression.onFailure(state));
+	}
+
+	@Test
+	public void testAndThenOr()
+	{
+		ChainExpression expression = ChainExpression.parse("(1 AND 2) OR 3", plan);
+		assertEquals(3, expression.size());
+		assertEquals(0, expression.getStart());
+		assertState(expression, 0, 0, 1, 2);
+		assertState(expression, 1, 1, ACCEPT, 2);
+		assertState(expression, 2, 2, ACCEPT, REJECT);
+		// Failing either half of the AND starts the alternative with the principal the AND started with
+		assertEquals(0, expression.getScope(1));
+	}
+
+	@Test
+	public void testAndBindsStronger()
+	{
+		ChainExpression expression = ChainExpression.parse("1 or 2 and 3", plan);
+		assertState(expression, 0, 0, ACCEPT, 1);
+		assertState(expression, 1, 1, 2, REJECT);
+		assertState(expression, 2, 2, ACCEPT, REJECT);
+	}
+
+	@Test
+	public void testNested()
+	{
+		ChainExpression expression = ChainExpression.parse("1 AND ((2 OR 3) AND (12 OR Class_1))", plan);
+		assertEquals(5, expression.size());
+		assertState(expression, 0, 0, 1, REJECT);
+		assertState(expression, 1, 1, 3, 2);
+		assertState(expression, 2, 2, 3, REJECT);
+		assertState(expression, 3, 3, ACCEPT, 4);
+		assertState(expression, 4, 0, ACCEPT, REJECT);
+		assertEquals(1, expression.getScope(1));
+		assertEquals(3, expression.getScope(3));
+	}
+
+	@Test
+	public void testAllOf()
+	{
+		ChainExpression expression = plan.getAllOf();
+		assertEquals(4, expression.size());
+		for (int i = 0; i < 3; i++)
+			assertState(expression, i, i, i + 1, REJECT);
+		assertState(expression, 3, 3, ACCEPT, REJECT);
+	}
+
+	@Test
+	public void testInvalidExpressions()
+	{
+		String[] invalid = { "", "1 AND", "(1 OR 2", "1 OR 2)", "1 2", "1 AND OR 2", "4", "Class_x", "1 & 2" };
+		for (String text : invalid)
+		{
+			try
+			{
+				ChainExpression.parse(text, plan);
+				fail("Accepted '" + text + "'");
+			}
+			catch (IllegalArgumentException e)
+			{
+				assertTrue(e.getMessage().contains("position"));
+			}
+		}
+	}
+
+	@Test
+	public void testInvalidExpressionRejectsAll()
+	{
+		ChainExpression expression = plan.getExpression("1 OR");
+		assertEquals(0, expression.size());
+		assertEquals(REJECT, expression.getStart());
+	}
+
+	@Test
+	public void testCompiledOnce()
+	{
+		assertSame(plan.getExpression("1 OR 3"), plan.getExpression("1 OR 3"));
+	}
+}
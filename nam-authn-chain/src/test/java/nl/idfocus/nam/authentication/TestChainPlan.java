@@ -0,0 +1,157 @@
+package nl.idfocus.nam.authentication;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.novell.nidp.NIDPPrincipal;
+import com.novell.nidp.authentication.local.LocalAuthenticationClass;
+import com.novell.nidp.common.authority.UserAuthority;
+
+import nl.idfocus.nam.util.MockNIDP;
+
+public class TestChainPlan
+{
+	private ArrayList<UserAuthority> stores;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		MockNIDP.initiateIDP();
+		stores = MockNIDP.getAuthorities();
+	}
+
+	private Properties getProperties()
+	{
+		Properties props = new Properties();
+		props.setProperty("DEBUG", "true");
+		props.setProperty("MODE", "OR");
+		props.setProperty("Class_1", Allow.class.getName());
+		props.setProperty("Class_1_AnonymousUserDn", "cn=mockito,ou=users,o=org");
+		props.setProperty("Class_0", Deny.class.getName());
+		return props;
+	}
+
+	@Test
+	public void testCompiledOncePerConfiguration() throws Exception
+	{
+		Properties props = getProperties();
+		ChainPlan plan = ChainPlan.getPlan(props, "MODE");
+		// The principal changes per login and is not part of the configuration
+		Properties other = getProperties();
+		other.put("Principal", MockNIDP.getPrincipal());
+		assertSame(plan, ChainPlan.getPlan(other, "MODE"));
+		other.setProperty("Class_1_AnonymousUserDn", "cn=other,ou=users,o=org");
+		assertNotSame(plan, ChainPlan.getPlan(other, "MODE"));
+	}
+
+	@Test
+	public void testGeneralPropertiesAreNotPartOfConfiguration() throws Exception
+	{
+		Properties props = getProperties();
+		ChainPlan plan = ChainPlan.getPlan(props, "MODE");
+		Properties other = getProperties();
+		other.setProperty("DEBUG", "false");
+		other.setProperty("RequestedUrl", "https://idp.example.org/nidp/app");
+		assertSame(plan, ChainPlan.getPlan(other, "MODE"));
+		// The chain's own properties are
+		other.setProperty("MODE", "AND");
+		assertNotSame(plan, ChainPlan.getPlan(other, "MODE"));
+	}
+
+	@Test
+	public void testPlansAreBounded() throws Exception
+	{
+		for (int i = 0; i <= ChainPlan.MAX_PLANS; i++)
+		{
+			Properties props = getProperties();
+			props.setProperty("Class_1_AnonymousUserDn", "cn=user" + i + ",ou=users,o=org");
+			ChainPlan.getPlan(props, "MODE");
+		}
+		assertEquals(ChainPlan.MAX_PLANS, ChainPlan.getPlanCount());
+	}
+
+	@Test
+	public void testMembersInOrder() throws Exception
+	{
+		ChainPlan plan = ChainPlan.getPlan(getProperties(), "MODE");
+		assertEquals(2, plan.size());
+		assertEquals("Class_0", plan.getMember(0).getName());
+		assertEquals(Deny.class.getName(), plan.getMember(0).getClassName());
+		assertEquals(Allow.class.getName(), plan.getMember(1).getClassName());
+	}
+
+	@Test
+	public void testMemberProperties() throws Exception
+	{
+		ChainPlan plan = ChainPlan.getPlan(getProperties(), "MODE");
+		Properties props = plan.getMember(1).getProperties();
+		assertEquals("cn=mockito,ou=users,o=org", props.getProperty("AnonymousUserDn"));
+		// General properties are added per login
+		assertNull(props.getProperty("DEBUG"));
+		assertNull(props.getProperty("MODE"));
+		assertNull(props.getProperty("Class_1"));
+		assertNull(plan.getMember(0).getProperties().getProperty("AnonymousUserDn"));
+		// Copies do not change the plan
+		props.setProperty("AnonymousUserDn", "cn=other");
+		assertEquals("cn=mockito,ou=users,o=org", plan.getMember(1).getProperties().getProperty("AnonymousUserDn"));
+	}
+
+	@Test
+	public void testMembersInNumericOrder() throws Exception
+	{
+		Properties props = getProperties();
+		props.setProperty("Class_10", Allow.class.getName());
+		props.setProperty("Class_10_AnonymousUserDn", "cn=ten,ou=users,o=org");
+		props.setProperty("Class_2", Deny.class.getName());
+		ChainPlan plan = ChainPlan.getPlan(props, "MODE");
+		assertEquals(4, plan.size());
+		assertEquals("Class_2", plan.getMember(2).getName());
+		assertEquals("Class_10", plan.getMember(3).getName());
+		assertEquals("cn=ten,ou=users,o=org", plan.getMember(3).getProperties().getProperty("AnonymousUserDn"));
+		assertEquals(3, plan.findMember("10"));
+		assertEquals(3, plan.findMember("Class_10"));
+		assertEquals(0, plan.findMember("00"));
+		assertEquals(-1, plan.findMember("11"));
+		assertEquals(-1, plan.findMember("Class_"));
+	}
+
+	@Test
+	public void testInvalidMembersAreDropped() throws Exception
+	{
+		Properties props = getProperties();
+		props.setProperty("Class_2", "nl.idfocus.nam.authentication.DoesNotExist");
+		props.setProperty("Class_3", String.class.getName());
+		ChainPlan plan = ChainPlan.getPlan(props, "MODE");
+		assertEquals(2, plan.size());
+	}
+
+	@Test
+	public void testNewInstance() throws Exception
+	{
+		ChainPlan plan = ChainPlan.getPlan(getProperties(), "MODE");
+		Properties dynamic = new Properties();
+		NIDPPrincipal principal = MockNIDP.getPrincipal();
+		dynamic.put("Principal", principal);
+		LocalAuthenticationClass first = plan.getMember(1).newInstance(stores, dynamic);
+		LocalAuthenticationClass second = plan.getMember(1).newInstance(stores, dynamic);
+		assertTrue(first instanceof Allow);
+		assertNotSame(first, second);
+	}
+
+	@Test
+	public void testDynamicProperties() throws Exception
+	{
+		Properties props = getProperties();
+		NIDPPrincipal principal = MockNIDP.getPrincipal();
+		props.put("Principal", principal);
+		Properties dynamic = ChainPlan.getDynamicProperties(props, "MODE");
+		assertEquals(2, dynamic.size());
+		assertSame(principal, dynamic.get("Principal"));
+		assertEquals("true", dynamic.getProperty("DEBUG"));
+	}
+}
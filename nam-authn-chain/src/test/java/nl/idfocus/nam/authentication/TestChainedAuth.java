@@ -112,6 +112,70 @@ public class TestChainedAuth
         assertEquals( LocalAuthenticationClass.NOT_AUTHENTICATED, newClass.authenticate() );
 	}
 
+	@Test
+	public void testDoAuthenticateOrModeParallel() throws Exception
+	{
+		ArrayList<UserAuthority> m_UserStores = MockNIDP.getAuthorities();
+		Properties classProps = getOrModeProperties();
+		classProps.setProperty("PARALLEL", "true");
+		classProps.setProperty("Class_0_NonInteractive", "true");
+		classProps.setProperty("Class_1_NonInteractive", "true");
+		AuthClassDefinition rawDefinition = new AuthClassDefinition( "ChainedAuth", "nl.idfocus.nam.authentication.ChainedAuth", classProps );
+        LocalAuthenticationClass newClass = rawDefinition.getInstance(m_UserStores, classProps);
+        newClass.initializeRequest(MockNIDP.getRequest(), MockNIDP.getResponse(), MockNIDP.getIdpSession(), MockNIDP.getSessionData(), false, "whatever");
+        assertEquals( LocalAuthenticationClass.AUTHENTICATED, newClass.authenticate() );
+	}
+
+	@Test
+	public void testDoAuthenticateOrModeParallelFail() throws Exception
+	{
+		ArrayList<UserAuthority> m_UserStores = MockNIDP.getAuthorities();
+		Properties classProps = getOrModeFailProperties();
+		classProps.setProperty("PARALLEL", "true");
+		classProps.setProperty("Class_0_NonInteractive", "true");
+		classProps.setProperty("Class_1_NonInteractive", "true");
+		AuthClassDefinition rawDefinition = new AuthClassDefinition( "ChainedAuth", "nl.idfocus.nam.authentication.ChainedAuth", classProps );
+        LocalAuthenticationClass newClass = rawDefinition.getInstance(m_UserStores, classProps);
+        newClass.initializeRequest(MockNIDP.getRequest(), MockNIDP.getResponse(), MockNIDP.getIdpSession(), MockNIDP.getSessionData(), false, "whatever");
+        assertEquals( LocalAuthenticationClass.NOT_AUTHENTICATED, newClass.authenticate() );
+	}
+
+	@Test
+	public void testDoAuthenticateExpressionSuccess() throws Exception
+	{
+		ArrayList<UserAuthority> m_UserStores = MockNIDP.getAuthorities();
+		Properties classProps = getExpressionProperties();
+		classProps.setProperty("EXPRESSION", "(0 AND 1) OR 10");
+		AuthClassDefinition rawDefinition = new AuthClassDefinition( "ChainedAuth", "nl.idfocus.nam.authentication.ChainedAuth", classProps );
+        LocalAuthenticationClass newClass = rawDefinition.getInstance(m_UserStores, classProps);
+        newClass.initializeRequest(MockNIDP.getRequest(), MockNIDP.getResponse(), MockNIDP.getIdpSession(), MockNIDP.getSessionData(), false, "whatever");
+        assertEquals( LocalAuthenticationClass.AUTHENTICATED, newClass.authenticate() );
+	}
+
+	@Test
+	public void testDoAuthenticateExpressionFail() throws Exception
+	{
+		ArrayList<UserAuthority> m_UserStores = MockNIDP.getAuthorities();
+		Properties classProps = getExpressionProperties();
+		classProps.setProperty("EXPRESSION", "0 AND (1 OR 10)");
+		AuthClassDefinition rawDefinition = new AuthClassDefinition( "ChainedAuth", "nl.idfocus.nam.authentication.ChainedAuth", classProps );
+        LocalAuthenticationClass newClass = rawDefinition.getInstance(m_UserStores, classProps);
+        newClass.initializeRequest(MockNIDP.getRequest(), MockNIDP.getResponse(), MockNIDP.getIdpSession(), MockNIDP.getSessionData(), false, "whatever");
+        assertEquals( LocalAuthenticationClass.NOT_AUTHENTICATED, newClass.authenticate() );
+	}
+
+	@Test
+	public void testDoAuthenticateInvalidExpression() throws Exception
+	{
+		ArrayList<UserAuthority> m_UserStores = MockNIDP.getAuthorities();
+		Properties classProps = getExpressionProperties();
+		classProps.setProperty("EXPRESSION", "10 OR");
+		AuthClassDefinition rawDefinition = new AuthClassDefinition( "ChainedAuth", "nl.idfocus.nam.authentication.ChainedAuth", classProps );
+        LocalAuthenticationClass newClass = rawDefinition.getInstance(m_UserStores, classProps);
+        newClass.initializeRequest(MockNIDP.getRequest(), MockNIDP.getResponse(), MockNIDP.getIdpSession(), MockNIDP.getSessionData(), false, "whatever");
+        assertEquals( LocalAuthenticationClass.NOT_AUTHENTICATED, newClass.authenticate() );
+	}
+
 	private Properties getOrModeProperties()
 	{
 		Properties props = new Properties();
@@ -145,6 +209,18 @@ public class TestChainedAuth
 		return props;
 	}
 
+	private Properties getExpressionProperties()
+	{
+		Properties props = new Properties();
+		props.setProperty("DEBUG", "true");
+		props.setProperty("Class_0", Allow.class.getName());
+		props.setProperty("Class_0_AnonymousUserDn", "cn=mockito,ou=users,o=org");
+		props.setProperty("Class_1", Deny.class.getName());
+		props.setProperty("Class_10", Allow.class.getName());
+		props.setProperty("Class_10_AnonymousUserDn", "cn=mockito,ou=users,o=org");
+		return props;
+	}
+
 	private Properties getAndModeFailProperties()
 	{
 		Properties props = new Properties();
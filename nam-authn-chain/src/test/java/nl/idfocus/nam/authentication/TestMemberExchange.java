@@ -0,0 +1,120 @@
+package nl.idfocus.nam.authentication;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMemberExchange
+{
+	private List<String> requestCalls;
+	private List<String> responseCalls;
+	private HttpServletRequest request;
+	private HttpServletResponse response;
+
+	@Before
+	public void setUp()
+	{
+		requestCalls = new ArrayList<>();
+		responseCalls = new ArrayList<>();
+		request = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { HttpServletRequest.class },
+				(proxy, method, args) -> {
+					requestCalls.add(method.getName());
+					return "getRemoteAddr".equals(method.getName()) ? "192.0.2.1" : null;
+				});
+		response = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { HttpServletResponse.class },
+				(proxy, method, args) -> {
+					responseCalls.add(method.getName());
+					return null;
+				});
+	}
+
+	@Test
+	public void testChangesAreAppliedForTheWinner() throws Exception
+	{
+		MemberExchange exchange = new MemberExchange(request, response);
+		exchange.getResponse().addCookie(new Cookie("device", "1"));
+		exchange.getResponse().setHeader("X-Chain", "1");
+		exchange.getRequest().setAttribute("member", "1");
+		assertTrue(responseCalls.isEmpty());
+		assertTrue(requestCalls.isEmpty());
+		exchange.apply();
+		assertEquals(2, responseCalls.size());
+		assertEquals("addCookie", responseCalls.get(0));
+		assertEquals("setHeader", responseCalls.get(1));
+		assertEquals(1, requestCalls.size());
+	}
+
+	@Test
+	public void testChangesAreDroppedForOthers() throws Exception
+	{
+		MemberExchange exchange = new MemberExchange(request, response);
+		exchange.getResponse().addCookie(new Cookie("device", "1"));
+		exchange.close();
+		assertTrue(responseCalls.isEmpty());
+	}
+
+	@Test
+	public void testReadsReachTheRequest() throws Exception
+	{
+		MemberExchange exchange = new MemberExchange(request, response);
+		assertEquals("192.0.2.1", exchange.getRequest().getRemoteAddr());
+	}
+
+	@Test
+	public void testBodyIsRefused() throws Exception
+	{
+		MemberExchange exchange = new MemberExchange(request, response);
+		try
+		{
+			exchange.getResponse().getWriter();
+			fail("The body may not be written");
+		}
+		catch (IllegalStateException e)
+		{
+			assertTrue(responseCalls.isEmpty());
+		}
+	}
+
+	@Test
+	public void testLateMembersAreRejected() throws Exception
+	{
+		MemberExchange exchange = new MemberExchange(request, response);
+		exchange.close();
+		try
+		{
+			exchange.getRequest().getRemoteAddr();
+			fail("The request may not be used after the batch");
+		}
+		catch (IllegalStateException e)
+		{
+			assertTrue(requestCalls.isEmpty());
+		}
+		try
+		{
+			exchange.getResponse().addCookie(new Cookie("device", "1"));
+			fail("The response may not be changed after the batch");
+		}
+		catch (IllegalStateException e)
+		{
+			assertTrue(responseCalls.isEmpty());
+		}
+	}
+
+	@Test
+	public void testMissingRequest()
+	{
+		MemberExchange exchange = new MemberExchange(null, null);
+		assertNull(exchange.getRequest());
+		assertNull(exchange.getResponse());
+		exchange.apply();
+	}
+}
@@ -0,0 +1,130 @@
+package nl.idfocus.nam.authentication;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+import com.novell.nidp.authentication.local.LocalAuthenticationClass;
+
+import nl.idfocus.nam.authentication.ParallelEvaluator.Batch;
+import nl.idfocus.nam.authentication.ParallelEvaluator.Outcome;
+
+public class TestParallelEvaluator
+{
+	private static final int OK = LocalAuthenticationClass.AUTHENTICATED;
+	private static final int FAIL = LocalAuthenticationClass.NOT_AUTHENTICATED;
+	private static final int PAGE = LocalAuthenticationClass.SHOW_JSP;
+
+	private final ParallelEvaluator evaluator = ParallelEvaluator.getShared(8);
+
+	private static Callable<Outcome> member(int index, int status, long delayMillis)
+	{
+		return () -> {
+			Thread.sleep(delayMillis);
+			return new Outcome(index, null, status);
+		};
+	}
+
+	private static final Function<List<Outcome>, Outcome> FIRST_OK = outcomes -> {
+		for (Outcome outcome : outcomes)
+			if (outcome.getStatus() == OK)
+				return outcome;
+		return null;
+	};
+
+	@Test
+	public void testFirstSuccessWins()
+	{
+		List<Callable<Outcome>> members = new ArrayList<>();
+		members.add(member(0, FAIL, 200));
+		members.add(member(1, OK, 10));
+		members.add(member(2, FAIL, 5000));
+		long start = System.currentTimeMillis();
+		Batch batch = evaluator.evaluate(0, members, 3000, FIRST_OK);
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		assertEquals(1, batch.getWinner().getIndex());
+		assertEquals(3, batch.getStarted());
+	}
+
+	@Test
+	public void testSlowestSetsTheTimeWhenAllFail()
+	{
+		List<Callable<Outcome>> members = new ArrayList<>();
+		for (int i = 0; i < 4; i++)
+			members.add(member(i, FAIL, 100));
+		long start = System.currentTimeMillis();
+		Batch batch = evaluator.evaluate(0, members, 3000, FIRST_OK);
+		// Run side by side, so far less than the 400 ms one by one
+		assertTrue(System.currentTimeMillis() - start < 350);
+		assertNull(batch.getWinner());
+		assertEquals(4, batch.getCompleted().size());
+		for (int i = 0; i < 4; i++)
+			assertEquals(i, batch.getCompleted().get(i).getIndex());
+	}
+
+	@Test
+	public void testDeadlineCancelsMembers() throws Exception
+	{
+		CountDownLatch interrupted = new CountDownLatch(1);
+		List<Callable<Outcome>> members = new ArrayList<>();
+		members.add(member(3, FAIL, 10));
+		members.add(() -> {
+			try
+			{
+				Thread.sleep(10000);
+			}
+			catch (InterruptedException e)
+			{
+				interrupted.countDown();
+				throw e;
+			}
+			return new Outcome(4, null, OK);
+		});
+		long start = System.currentTimeMillis();
+		Batch batch = evaluator.evaluate(3, members, 200, FIRST_OK);
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		assertNull(batch.getWinner());
+		assertEquals(1, batch.getCompleted().size());
+		assertEquals(3, batch.getCompleted().get(0).getIndex());
+		assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testExceptionCountsAsFailure()
+	{
+		List<Callable<Outcome>> members = new ArrayList<>();
+		members.add(() -> {
+			throw new IllegalStateException("broken member");
+		});
+		members.add(member(1, PAGE, 10));
+		Batch batch = evaluator.evaluate(0, members, 3000, FIRST_OK);
+		assertNull(batch.getWinner());
+		assertEquals(2, batch.getCompleted().size());
+		assertEquals(FAIL, batch.getCompleted().get(0).getStatus());
+		assertEquals(PAGE, batch.getCompleted().get(1).getStatus());
+	}
+
+	@Test
+	public void testDeciderSeesOutcomesInChainOrder()
+	{
+		List<Callable<Outcome>> members = new ArrayList<>();
+		members.add(member(0, FAIL, 100));
+		members.add(member(1, PAGE, 10));
+		members.add(member(2, FAIL, 5000));
+		// End as soon as the page is the first class that has not failed
+		Batch batch = evaluator.evaluate(0, members, 3000, outcomes -> {
+			if (outcomes.get(0).getIndex() == 0 && outcomes.size() > 1 && outcomes.get(1).getStatus() == PAGE)
+				return outcomes.get(1);
+			return null;
+		});
+		assertEquals(1, batch.getWinner().getIndex());
+		assertEquals(PAGE, batch.getWinner().getStatus());
+	}
+}
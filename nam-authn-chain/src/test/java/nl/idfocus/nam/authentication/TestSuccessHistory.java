@@ -0,0 +1,143 @@
+package nl.idfocus.nam.authentication;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import nl.idfocus.nam.authentication.SuccessHistory.Policy;
+
+public class TestSuccessHistory
+{
+	private static final String USER = SuccessHistory.principalKey("cn=user,ou=users,o=org");
+	private static final String DEVICE = SuccessHistory.deviceKey("b1946ac9-2e0c-4b7e-9c43-5f5d1e5f6a1b");
+
+	private static void succeed(SuccessHistory history, List<String> keys, int member, int times)
+	{
+		for (int i = 0; i < times; i++)
+			history.recordSuccess(keys, member, member, false);
+	}
+
+	@Test
+	public void testConfiguredOrderForUnknownKeys()
+	{
+		SuccessHistory history = new SuccessHistory(3, 10);
+		assertArrayEquals(new int[] { 0, 1, 2 }, history.getOrder(Collections.singletonList(USER), Policy.RANK, 1));
+		assertEquals(1, history.getLogins());
+		assertEquals(0, history.getReordered());
+	}
+
+	@Test
+	public void testPolicyOff()
+	{
+		SuccessHistory history = new SuccessHistory(3, 10);
+		succeed(history, Collections.singletonList(USER), 2, 5);
+		assertArrayEquals(new int[] { 0, 1, 2 }, history.getOrder(Collections.singletonList(USER), Policy.OFF, 1));
+	}
+
+	@Test
+	public void testFirstMovesOnlyTheBestMember()
+	{
+		SuccessHistory history = new SuccessHistory(4, 10);
+		List<String> keys = Collections.singletonList(USER);
+		succeed(history, keys, 3, 3);
+		succeed(history, keys, 2, 2);
+		assertArrayEquals(new int[] { 3, 0, 1, 2 }, history.getOrder(keys, Policy.FIRST, 1));
+		assertEquals(1, history.getReordered());
+	}
+
+	@Test
+	public void testRankOrdersBySuccesses()
+	{
+		SuccessHistory history = new SuccessHistory(4, 10);
+		List<String> keys = Collections.singletonList(USER);
+		succeed(history, keys, 1, 2);
+		succeed(history, keys, 3, 3);
+		assertArrayEquals(new int[] { 3, 1, 0, 2 }, history.getOrder(keys, Policy.RANK, 1));
+	}
+
+	@Test
+	public void testMostRecentSuccessBreaksTie() throws Exception
+	{
+		SuccessHistory history = new SuccessHistory(3, 10);
+		List<String> keys = Collections.singletonList(USER);
+		succeed(history, keys, 1, 2);
+		Thread.sleep(5);
+		succeed(history, keys, 2, 2);
+		assertArrayEquals(new int[] { 2, 1, 0 }, history.getOrder(keys, Policy.RANK, 1));
+	}
+
+	@Test
+	public void testMinimumSuccesses()
+	{
+		SuccessHistory history = new SuccessHistory(3, 10);
+		List<String> keys = Collections.singletonList(USER);
+		succeed(history, keys, 2, 1);
+		assertArrayEquals(new int[] { 0, 1, 2 }, history.getOrder(keys, Policy.RANK, 2));
+		succeed(history, keys, 2, 1);
+		assertArrayEquals(new int[] { 2, 0, 1 }, history.getOrder(keys, Policy.RANK, 2));
+	}
+
+	@Test
+	public void testDeviceKeyUsedWithoutPrincipal()
+	{
+		SuccessHistory history = new SuccessHistory(3, 10);
+		succeed(history, Arrays.asList(DEVICE, USER), 1, 2);
+		// Before the user is known, only the device cookie is available
+		assertArrayEquals(new int[] { 1, 0, 2 }, history.getOrder(Collections.singletonList(DEVICE), Policy.FIRST, 1));
+		assertEquals(2, history.size());
+	}
+
+	@Test
+	public void testKeysAreHashed()
+	{
+		assertTrue(USER.startsWith("p:"));
+		assertFalse(USER.contains("cn=user"));
+		assertEquals(USER, SuccessHistory.principalKey("CN=User,OU=Users,O=org"));
+		assertFalse(USER.equals(SuccessHistory.principalKey("cn=other,ou=users,o=org")));
+	}
+
+	@Test
+	public void testMetrics()
+	{
+		SuccessHistory history = new SuccessHistory(3, 10);
+		List<String> keys = Collections.singletonList(USER);
+		// The third member succeeded on the first try, saving two attempts
+		history.recordSuccess(keys, 2, 0, true);
+		// The first member succeeded on the second try, costing one attempt
+		history.recordSuccess(keys, 0, 1, true);
+		// Not reordered, does not count
+		history.recordSuccess(keys, 1, 1, false);
+		assertEquals(0.5, history.getHitRate(), 0.001);
+		assertEquals(1, history.getSavedAttempts());
+		assertTrue(history.toString().contains("50.0% first try hits"));
+	}
+
+	@Test
+	public void testCountsAreHalved()
+	{
+		SuccessHistory history = new SuccessHistory(2, 10);
+		List<String> keys = Collections.singletonList(USER);
+		succeed(history, keys, 0, SuccessHistory.MAX_COUNT);
+		assertArrayEquals(new int[] { 0, 1 }, history.getOrder(keys, Policy.FIRST, 1));
+		// A change of habit wins after half the maximum instead of the full count
+		succeed(history, keys, 1, SuccessHistory.MAX_COUNT / 2 + 1);
+		assertArrayEquals(new int[] { 1, 0 }, history.getOrder(keys, Policy.FIRST, 1));
+	}
+
+	@Test
+	public void testSizeIsBounded() throws Exception
+	{
+		SuccessHistory history = new SuccessHistory(2, 20);
+		succeed(history, Collections.singletonList(USER), 1, 1);
+		Thread.sleep(5);
+		for (int i = 0; i < 100; i++)
+			succeed(history, Collections.singletonList(SuccessHistory.deviceKey("device" + i)), 0, 1);
+		assertTrue(history.size() <= 20);
+		// The oldest entry was removed first
+		assertArrayEquals(new int[] { 0, 1 }, history.getOrder(Collections.singletonList(USER), Policy.FIRST, 1));
+	}
+}
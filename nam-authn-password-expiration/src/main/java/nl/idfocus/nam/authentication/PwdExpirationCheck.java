@@ -10,7 +10,6 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Hashtable;
 import java.util.List;
 import java.util.Locale;
 import java.util.Properties;
@@ -18,20 +17,19 @@ import java.util.TimeZone;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.naming.CommunicationException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
-import javax.naming.directory.DirContext;
-import javax.naming.directory.InitialDirContext;
 import javax.naming.ldap.LdapContext;
 
 import nl.idfocus.nam.password.PwdConstants;
 import nl.idfocus.nam.password.PwdPolicy;
+import nl.idfocus.nam.util.LdapContextPool;
 import nl.idfocus.nam.util.LogFormatter;
 
 import com.novell.nam.common.ldap.jndi.JNDIUserStore;
-import com.novell.nam.common.ldap.jndi.JNDIUserStoreReplica;
 import com.novell.nidp.NIDPConstants;
 import com.novell.nidp.NIDPPrincipal;
 import com.novell.nidp.NIDPSession;
@@ -41,7 +39,6 @@ import com.novell.nidp.authentication.local.LocalAuthenticationClass;
 import com.novell.nidp.authentication.local.PageToShow;
 import com.novell.nidp.common.authority.UserAuthority;
 import com.novell.nidp.common.authority.ldap.LDAPUserAuthority;
-import com.novell.nidp.common.util.net.client.NIDP_SSLSocketFactory;
 import com.novell.nidp.liberty.wsc.cache.WSCCacheEntry;
 import com.novell.nidp.liberty.wsc.cache.pushed.WSCCachePushed;
 import com.novell.nidp.liberty.wsc.cache.pushed.WSCCachePushedCache;
@@ -376,9 +373,14 @@ public class PwdExpirationCheck extends LocalAuthenticationClass
     private boolean changeNmasPassword( NIDPPrincipal princ, String password )
     {
     	boolean result = false;
-    	LdapContext ctx = getLdapContextForPrincipalUserstore( princ );
+    	LdapContextPool.Lease lease = borrowLdapContext( princ );
+    	if ( lease == null )
+    	{
+    		nmasError = PwdConstants.PASSWORD_ERROR_UNKNOWN.getMessage();
+    		return result;
+    	}
 		try {
-			NMASPwdMgr passwordMgr = new NMASPwdMgr( ctx );
+			NMASPwdMgr passwordMgr = new NMASPwdMgr( lease.getContext() );
 			String oldPwd = passwordMgr.getPwd( "", princ.getUserIdentifier() );
 			passwordMgr.changePwd( "", princ.getUserIdentifier() , oldPwd, password );
 			logger.log( loglevel, "NMAS Password change successful" );
@@ -435,11 +437,11 @@ public class PwdExpirationCheck extends LocalAuthenticationClass
 			{
 				nmasError = PwdConstants.PASSWORD_ERROR_UNKNOWN.getMessage() + " ("+e.getNmasRetCode()+")";
 				logger.log( logerror, "Unknown NMAS return code: " + e.getNmasRetCode());
+				// Not a policy violation, the connection may be at fault
+				lease.invalidate();
 			}
 		} finally {
-			try {
-				ctx.close();
-			} catch (NamingException e) {}
+			lease.close();
 		}
 		return result;
     }
@@ -510,9 +512,14 @@ public class PwdExpirationCheck extends LocalAuthenticationClass
 	private String[] getNMASPolicy( NIDPPrincipal princ ) 
 	{
 		List<PwdPolicy> attributes = new ArrayList<>();
-    	LdapContext ctx = getLdapContextForPrincipalUserstore( princ );
+		// support for multiple browser locales
+		Locale loc = this.m_Request.getLocale();
+    	LdapContextPool.Lease lease = borrowLdapContext( princ );
+    	if ( lease == null )
+    		return PwdPolicy.getMessageList( attributes, loc );
 		try 
 		{
+			LdapContext ctx = lease.getContext();
 			NMASPwdMgr passwordMgr = new NMASPwdMgr( ctx );
 			String policyDn = passwordMgr.getPwdPolicyDN( "", princ.getUserIdentifier() );
 			Attributes rawAttrs = ctx.getAttributes( policyDn, PwdPolicy.getAttributeNames() );
@@ -536,10 +543,13 @@ public class PwdExpirationCheck extends LocalAuthenticationClass
 		catch (NMASPwdException e) 
 		{
 			logger.log(logerror, "Resolving policy settings encountered "+e.getClass().getName()+": "+e.getMessage()+" code: "+e.getNmasRetCode() );
+			lease.invalidate();
 		} 
 		catch (NamingException e) 
 		{
 			logger.log(logerror, "Resolving policy settings encountered "+e.getClass().getName()+": "+e.getExplanation() );
+			if ( e instanceof CommunicationException )
+				lease.invalidate();
 		} 
 		catch (UnsupportedEncodingException e) 
 		{
@@ -548,14 +558,10 @@ public class PwdExpirationCheck extends LocalAuthenticationClass
 		}
 		finally
 		{
-			try {
-				ctx.close();
-			} catch (NamingException e) {}
+			lease.close();
 		}
 		// Using sort without Comparator on enum sorts in the enum order
 		Collections.sort( attributes );
-		// support for multiple browser locales
-		Locale loc = this.m_Request.getLocale();
 		return PwdPolicy.getMessageList( attributes, loc );
 	}
 
@@ -635,62 +641,29 @@ public class PwdExpirationCheck extends LocalAuthenticationClass
 		return -1;
 	}
 
-	private LdapContext getLdapContextForPrincipalUserstore(NIDPPrincipal principal)
+	/**
+	 * Borrow a pooled admin connection to the user store of a principal, failing over between its replicas.
+	 * @param principal the principal whose user store to connect to
+	 * @return the lease of the connection, to be closed after use, or <i>null</i> if the store is not eDirectory or cannot be reached
+	 */
+	private LdapContextPool.Lease borrowLdapContext( NIDPPrincipal principal )
 	{
 		LDAPUserAuthority la = (LDAPUserAuthority) principal.getAuthority();
 		JNDIUserStore userStore = la.getStore();
-		return getLdapContextForUserstore(userStore);
-	}
-
-	private LdapContext getLdapContextForUserstore(JNDIUserStore userStore)
-	{
-		if ((userStore == null) || (!userStore.isEDir())) return null;
-
-		JNDIUserStoreReplica[] userStoreReplicas = userStore.getUserStoreReplicas();
-		int replicaCount = userStoreReplicas.length;
-
-		String bindpw = userStore.getAdminPassword();
-		String bindname = userStore.getAdminUsername();
-
-		for (int rCount = 0; rCount < replicaCount; rCount++)
-		{
-			LdapContext lc = getLdapContextForReplica(userStoreReplicas[rCount], bindname, bindpw);
-			if (lc != null) return lc;
-		}
-		return null;
-	}
-
-	private LdapContext getLdapContextForReplica(JNDIUserStoreReplica replica, String bindName, String bindPwd)
-	{
-		String host = replica.getHost();
-		int port = replica.getPort();
-		String url = host + ":" + port + "/";
-		Hashtable<String,String> env = new Hashtable<String,String>();
-		env.put("java.naming.factory.initial", "com.sun.jndi.ldap.LdapCtxFactory");
-		env.put("java.naming.provider.url", url);
-		env.put("java.naming.security.protocol", "ssl");
-		env.put("java.naming.security.authentication", "simple");
-		env.put("java.naming.security.principal", bindName);
-		env.put("java.naming.security.credentials", bindPwd);
-		env.put("java.naming.ldap.factory.socket", NIDP_SSLSocketFactory.class.getName());
-		DirContext ctx = null;
-		DirContext jndiCtx = null;
-		try {
-			ctx = new InitialDirContext(env);
-		} catch (NamingException e) {
-			e.printStackTrace();
+		if ( userStore == null || !userStore.isEDir() )
+			return null;
+		LdapContextPool pool = LdapContextPool.forStore( userStore );
+		if ( pool == null )
 			return null;
-		}
 		try
 		{
-			jndiCtx = (DirContext)ctx.lookup("");
-		} catch (NamingException e1) {
-			e1.printStackTrace();
+			return pool.borrow();
+		}
+		catch ( NamingException e )
+		{
+			logger.log( logerror, "Could not connect to the user store: "+e.getExplanation() );
 			return null;
 		}
-
-		LdapContext ldapCtx = (LdapContext)jndiCtx;
-		return ldapCtx;
 	}
 
 }
@@ -1,11 +1,13 @@
 package nl.idfocus.nam.authentication;
 
+import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -14,6 +16,8 @@ import java.util.Set;
 import java.util.SortedMap;
 import java.util.TimeZone;
 import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,18 +37,26 @@ import com.novell.nidp.authentication.local.LocalAuthenticationClass;
 import com.novell.nidp.authentication.local.PageToShow;
 import com.novell.nidp.common.authority.UserAuthority;
 
+import nl.idfocus.nam.sms.LdapScratchCodes;
 import nl.idfocus.nam.sms.MessageBird;
 import nl.idfocus.nam.sms.SmsConfig;
 import nl.idfocus.nam.sms.SmsConstants;
+import nl.idfocus.nam.sms.SmsDispatcher;
 import nl.idfocus.nam.sms.SmsMessage;
+import nl.idfocus.nam.sms.SmsOutbox;
 import nl.idfocus.nam.sms.SmsParameterDesc;
 import nl.idfocus.nam.sms.SmsParameterDesc.SmsParameterType;
 import nl.idfocus.nam.sms.SmsProvider;
+import nl.idfocus.nam.sms.SmsProviders;
+import nl.idfocus.nam.sms.SmsSendContext;
+import nl.idfocus.nam.sms.code.CodePool;
 import nl.idfocus.nam.sms.code.RandomCode;
 import nl.idfocus.nam.totp.Authenticator;
 import nl.idfocus.nam.totp.TOTPConstants;
 import nl.idfocus.nam.totp.TOTPException;
+import nl.idfocus.nam.util.HttpTransport;
 import nl.idfocus.nam.util.LogFormatter;
+import nl.idfocus.nam.util.RateLimiter;
 import nl.idfocus.nam.util.Sha256;
 
 /**
@@ -114,7 +126,8 @@ public class SmsToken extends LocalAuthenticationClass
 	private static final String PROP_TOKEN_CHARSET  = "tokenCharacters";
 	/**
 	 * By setting this property name on the class or method, the class of the <br/>
-	 * sms authentication provider may be altered from the default specified in {@link #DEF_SMS_PROVIDER}
+	 * sms authentication provider may be altered from the default specified in {@link #DEF_SMS_PROVIDER}. <br/>
+	 * A comma separated list of classes routes messages over several providers, see {@link nl.idfocus.nam.sms.RoutingSmsProvider}.
 	 */
 	private static final String PROP_SMS_PROVIDER   = "smsProvider";
 	/**
@@ -147,6 +160,80 @@ public class SmsToken extends LocalAuthenticationClass
 	 * may be altered from the default specified in {@link #DEF_EXP_ATTRIBUTE}
 	 */
 	private static final String		PROP_SMS_TIMEOUT	= "smsSendTimeout";
+	/**
+	 * By setting this property name on the class or method to 'true', SMS messages are sent in the background <br/>
+	 * and the verification page is shown immediately. A failed send is reported when the user submits the page. <br/>
+	 * The default is specified in {@link #DEF_SMS_ASYNC}
+	 */
+	private static final String		PROP_SMS_ASYNC		= "smsSendAsync";
+	/**
+	 * By setting this property name on the class or method, the time allowed to connect to the SMS gateway <br/>
+	 * may be altered from the default specified in {@link #DEF_SMS_CONNECT}
+	 */
+	private static final String		PROP_SMS_CONNECT	= "smsConnectTimeout";
+	/**
+	 * By setting this property name on the class or method, the maximum number of concurrent requests to the SMS gateway <br/>
+	 * may be altered from the default specified in {@link #DEF_SMS_PER_HOST}. Connections are kept open and reused.
+	 */
+	private static final String		PROP_SMS_PER_HOST	= "smsMaxConnections";
+	/**
+	 * By setting this property name on the class or method to a positive number, tokens are taken from a pool of <br/>
+	 * codes generated in the background, holding at most this many codes. The default {@link #DEF_CODE_POOL} disables the pool.
+	 */
+	private static final String		PROP_CODE_POOL		= "smsCodePool";
+	/**
+	 * By setting this property name on the class or method, the pool depth below which the pool is filled up again <br/>
+	 * may be altered from the default of one quarter of the pool size.
+	 */
+	private static final String		PROP_CODE_POOL_LOW	= "smsCodePoolLowWater";
+	/**
+	 * By setting this property name on the class or method, the maximum time in seconds a code may wait in the pool <br/>
+	 * may be altered from the default specified in {@link #DEF_CODE_POOL_AGE}
+	 */
+	private static final String		PROP_CODE_POOL_AGE	= "smsCodePoolMaxAge";
+	/**
+	 * By setting this property name on the class or method, the maximum number of concurrent background sends <br/>
+	 * may be altered from the default specified in {@link #DEF_SMS_THREADS}
+	 */
+	private static final String		PROP_SMS_THREADS	= "smsSendThreads";
+	/**
+	 * By setting this property name on the class or method, the maximum number of messages waiting for a background <br/>
+	 * send may be altered from the default specified in {@link #DEF_SMS_QUEUE}. Messages beyond this fail immediately.
+	 */
+	private static final String		PROP_SMS_QUEUE		= "smsSendQueue";
+	/**
+	 * By setting this property name on the class or method to a directory, each message is written to a journal <br/>
+	 * in that directory before it is sent, and retried in the background until it is sent or expires, also after <br/>
+	 * a restart. A failed send is then not reported to the user. The default {@link #DEF_SMS_OUTBOX} disables the outbox.
+	 */
+	private static final String		PROP_SMS_OUTBOX		= "smsOutbox";
+	/**
+	 * By setting this property name on the class or method, the time in seconds after which an unsent message is <br/>
+	 * dropped from the outbox may be altered from the default specified in {@link #DEF_SMS_OUTBOX_EXPIRY}
+	 */
+	private static final String		PROP_SMS_OUTBOX_EXPIRY	= "smsOutboxExpiry";
+	/**
+	 * By setting this property name on the class or method, the interval in milliseconds at which outbox writes are <br/>
+	 * forced to disk may be altered from the default specified in {@link #DEF_SMS_OUTBOX_SYNC}. 0 forces every write.
+	 */
+	private static final String		PROP_SMS_OUTBOX_SYNC	= "smsOutboxSync";
+	/**
+	 * By setting this property name on the class or method, the number of SMS messages per user within a number of <br/>
+	 * seconds, as <code>count/seconds</code>, may be altered from the default specified in {@link #DEF_LIMIT_USER}. <br/>
+	 * Requests over the limit are refused before any LDAP or gateway call, except that a request carrying a valid <br/>
+	 * remember cookie first reads the delay attribute to see whether it may skip the code. An empty value disables the limit.
+	 */
+	private static final String		PROP_LIMIT_USER		= "smsRateLimitUser";
+	/**
+	 * By setting this property name on the class or method, the number of SMS messages per destination number <br/>
+	 * may be altered from the default specified in {@link #DEF_LIMIT_NUMBER}. The format is as for {@link #PROP_LIMIT_USER}.
+	 */
+	private static final String		PROP_LIMIT_NUMBER	= "smsRateLimitNumber";
+	/**
+	 * By setting this property name on the class or method, the number of SMS messages per client IP address <br/>
+	 * may be set. The format is as for {@link #PROP_LIMIT_USER}. The default {@link #DEF_LIMIT_ADDRESS} disables the limit.
+	 */
+	private static final String		PROP_LIMIT_ADDRESS	= "smsRateLimitAddress";
 	/**
 	 * By setting this property name on the class or method, the type of scratch codes to be used <br/>
 	 * may be altered from the default specified in {@link #DEF_SCRATCH_TYPE}. Valid values: 'none', 'totp', 'ldap'.
@@ -170,6 +257,19 @@ public class SmsToken extends LocalAuthenticationClass
 	private static final String		DEF_SMS_ATTRIBUTE		= "mobile";
 	private static final String		DEF_SMS_ALTATTR			= "";
 	private static final String		DEF_SMS_TIMEOUT			= "10000";
+	private static final String		DEF_SMS_ASYNC			= "false";
+	private static final String		DEF_SMS_CONNECT			= "5000";
+	private static final String		DEF_SMS_PER_HOST		= "5";
+	private static final String		DEF_CODE_POOL			= "0";
+	private static final String		DEF_CODE_POOL_AGE		= "300";
+	private static final String		DEF_SMS_THREADS			= "8";
+	private static final String		DEF_SMS_QUEUE			= "100";
+	private static final String		DEF_SMS_OUTBOX			= "";
+	private static final String		DEF_SMS_OUTBOX_EXPIRY	= "300";
+	private static final String		DEF_SMS_OUTBOX_SYNC		= "100";
+	private static final String		DEF_LIMIT_USER			= "5/300";
+	private static final String		DEF_LIMIT_NUMBER		= "5/300";
+	private static final String		DEF_LIMIT_ADDRESS		= "";
 	private static final String		DEF_EXP_COOKIE			= "idfsmsauth";
 	private static final String		DEF_EXP_TIME			= "0";
 	private static final String		DEF_EXP_ATTRIBUTE		= "description";
@@ -188,6 +288,11 @@ public class SmsToken extends LocalAuthenticationClass
 	private final String valSmsATTRIBUTE;
 	private final String valSmsALTATTR;
 	private final int    valSmsTIMEOUT;
+	private final SmsDispatcher dispatcher;
+	private final CodePool codePool;
+	private final RateLimiter userLimiter;
+	private final RateLimiter numberLimiter;
+	private final RateLimiter addressLimiter;
 	private final String valExpCOOKIE;
 	private final String valExpATTRIBUTE;
 	private final int    valExpTIME;
@@ -198,6 +303,7 @@ public class SmsToken extends LocalAuthenticationClass
 	private final String sessionUser;
 	private SmsConfig conf;
 	private SmsProvider provider;
+	private SmsOutbox outbox;
 	private SortedMap<String,String> attrNames;
 	private final boolean debugMode;
 
@@ -245,19 +351,42 @@ public class SmsToken extends LocalAuthenticationClass
 		valInputLENGTH = getSafeIntegerValue( PROP_TOKEN_LENGTH, props.getProperty( PROP_TOKEN_LENGTH, DEF_TOKEN_LENGTH ) ); 		
 		valExpTIME     = getSafeIntegerValue( PROP_EXP_TIME,     props.getProperty( PROP_EXP_TIME,     DEF_EXP_TIME ) );
 		valSmsTIMEOUT  = getSafeIntegerValue( PROP_SMS_TIMEOUT,  props.getProperty( PROP_SMS_TIMEOUT,  DEF_SMS_TIMEOUT ) );
+		if ( Boolean.parseBoolean( props.getProperty( PROP_SMS_ASYNC, DEF_SMS_ASYNC ) ) )
+			dispatcher = SmsDispatcher.getShared( 
+					getSafeIntegerValue( PROP_SMS_THREADS, props.getProperty( PROP_SMS_THREADS, DEF_SMS_THREADS ) ),
+					getSafeIntegerValue( PROP_SMS_QUEUE,   props.getProperty( PROP_SMS_QUEUE,   DEF_SMS_QUEUE ) ) );
+		else
+			dispatcher = null;
+		int poolSize = getSafeIntegerValue( PROP_CODE_POOL, props.getProperty( PROP_CODE_POOL, DEF_CODE_POOL ) );
+		if ( poolSize > 0 )
+			codePool = CodePool.getShared( valInputCHARSET.toCharArray(), valInputLENGTH, poolSize,
+					getSafeIntegerValue( PROP_CODE_POOL_LOW, props.getProperty( PROP_CODE_POOL_LOW, Integer.toString( poolSize / 4 ) ) ),
+					TimeUnit.SECONDS.toMillis( getSafeIntegerValue( PROP_CODE_POOL_AGE, props.getProperty( PROP_CODE_POOL_AGE, DEF_CODE_POOL_AGE ) ) ) );
+		else
+			codePool = null;
+		try
+		{
+			userLimiter    = RateLimiter.getShared( "sms-user",    props.getProperty( PROP_LIMIT_USER,    DEF_LIMIT_USER ) );
+			numberLimiter  = RateLimiter.getShared( "sms-number",  props.getProperty( PROP_LIMIT_NUMBER,  DEF_LIMIT_NUMBER ) );
+			addressLimiter = RateLimiter.getShared( "sms-address", props.getProperty( PROP_LIMIT_ADDRESS, DEF_LIMIT_ADDRESS ) );
+		}
+		catch ( IllegalArgumentException e )
+		{
+			throw new NIDPException( e.getMessage() );
+		}
 		try 
 		{
-			provider = getProvider( valSmsPROVIDER );
-			logger.log( Level.FINE, "Created SMS Provider: "+provider.getName() );
+			SmsParameterDesc[] params = SmsProviders.getParameters( valSmsPROVIDER );
 			// validate config from provider paramdesc
 			List<String> missing = new ArrayList<>();
 			attrNames = new TreeMap<>();
-			for ( SmsParameterDesc param : provider.getParameters() )
+			for ( SmsParameterDesc param : params )
 			{
 				logger.log( Level.FINEST, "Provider param: "+param.getName() );
 				if ( ! props.containsKey( param.getName() ) )
 				{
-					missing.add( param.getName() );
+					if ( param.isRequired() )
+						missing.add( param.getName() );
 				}
 				else if ( param.getType().equals( SmsParameterType.ATTRIBUTE ) )
 				{
@@ -267,10 +396,24 @@ public class SmsToken extends LocalAuthenticationClass
 			if ( ! missing.isEmpty() )
 			{
 				String missed = Arrays.toString( missing.toArray( new String[missing.size()] ) );
-				throw new NIDPException( "Missing parameter"+(missing.size()>1 ?"s":"")+" for SMS Provider "+provider.getName()+": "+missed );
+				throw new NIDPException( "Missing parameter"+(missing.size()>1 ?"s":"")+" for SMS Provider "+valSmsPROVIDER+": "+missed );
+			}
+			conf = new SmsConfig(props, params);
+			conf.setHttpTransport( HttpTransport.getShared( 
+					getSafeIntegerValue( PROP_SMS_CONNECT,  props.getProperty( PROP_SMS_CONNECT,  DEF_SMS_CONNECT ) ),
+					valSmsTIMEOUT > 0 ? valSmsTIMEOUT : Integer.parseInt( DEF_SMS_TIMEOUT ),
+					getSafeIntegerValue( PROP_SMS_PER_HOST, props.getProperty( PROP_SMS_PER_HOST, DEF_SMS_PER_HOST ) ) ) );
+			provider = SmsProviders.getShared( valSmsPROVIDER, conf, debugMode );
+			logger.log( Level.FINE, "Using SMS Provider: "+provider.getName() );
+			String outboxDir = props.getProperty( PROP_SMS_OUTBOX, DEF_SMS_OUTBOX );
+			if ( ! outboxDir.isEmpty() )
+			{
+				outbox = SmsOutbox.getShared( outboxDir,
+						getSafeIntegerValue( PROP_SMS_OUTBOX_SYNC, props.getProperty( PROP_SMS_OUTBOX_SYNC, DEF_SMS_OUTBOX_SYNC ) ),
+						TimeUnit.SECONDS.toMillis( getSafeIntegerValue( PROP_SMS_OUTBOX_EXPIRY, props.getProperty( PROP_SMS_OUTBOX_EXPIRY, DEF_SMS_OUTBOX_EXPIRY ) ) ) );
+				outbox.start( provider, conf, valSmsTIMEOUT );
+				logger.log( Level.FINE, "Using SMS outbox: "+outboxDir );
 			}
-			conf = new SmsConfig(props, provider.getParameters());
-			provider.init( conf, debugMode );
 		} catch (Exception e) {
 			logger.log( Level.SEVERE, "Exception: "+e.getMessage() );
 			throw new NIDPException(e);
@@ -279,22 +422,6 @@ public class SmsToken extends LocalAuthenticationClass
 		logger.log( Level.FINE, "Done." );
 	}
 
-	/**
-	 * Try to instantiate a SmsProvider object from the given classname
-	 * @param classname
-	 * @return
-	 * @throws Exception
-	 */
-	private SmsProvider getProvider( String classname ) throws Exception
-	{
-		// Load the configured SMS provider
-		if ( SmsProvider.class.isAssignableFrom( Class.forName( classname ) ) )
-		{
-			return (SmsProvider) Class.forName( classname ).newInstance();
-		}
-		throw new Exception("Class "+classname+" does not implement "+SmsProvider.class.getName() );
-	}
-
 	@Override
 	public String getType()
 	{
@@ -311,26 +438,28 @@ public class SmsToken extends LocalAuthenticationClass
 			return NOT_AUTHENTICATED;
 		}
 		logger.log( Level.INFO, "Logging in: "+localPrincipal.getUserIdentifier() );
-		completeProviderConfigurationData();
 		// Start authentication flow
 		if ( isFirstCallAfterPrevMethod() )
 		{
-			SmsMessage smsMsgObject = createMessageObjectFromPrincipal();
-			// If a delay value is present and cookie is present, return
 			String cookieName = getCookieName( valExpCOOKIE, localPrincipal.getUserIdentifier() );
 			Cookie ck = getCookie( m_Request.getCookies(), cookieName );
-			if ( smsMsgObject.hasDelay() && ck != null && checkCookieValidity( ck ) )
+			boolean remembered = ck != null && checkCookieValidity( ck );
+			// Without a cookie that may skip the code, a refused send is known before any attribute is read
+			if ( !remembered && !acquireSend() )
+				return showRateLimited( new SmsMessage( "", "" ) );
+			SmsMessage smsMsgObject = createMessageObjectFromPrincipal();
+			// If a delay value is present and cookie is present, return
+			if ( remembered && smsMsgObject.hasDelay() )
 			{
 				logger.log(Level.FINE, "Cookie "+cookieName+" is present and valid, skipping authentication");
 				setPrincipal(localPrincipal);
 				return AUTHENTICATED;
 			}
-			else
-			{
-				// Clear the cookie and continue
-				logger.log(Level.FINER, "Cookie "+cookieName+" is not present or not valid, clearing");
-				clearCookie( ck );
-			}
+			// Clear the cookie and continue
+			logger.log(Level.FINER, "Cookie "+cookieName+" is not present or not valid, clearing");
+			clearCookie( ck );
+			if ( remembered && !acquireSend() )
+				return showRateLimited( smsMsgObject );
 			return sendTokenAndPromptForVerification(smsMsgObject);
 		}
 		else
@@ -343,12 +472,16 @@ public class SmsToken extends LocalAuthenticationClass
 			{
 				smsMsgObject.setSelectedNumber( m_Request.getParameter( valInputNumber ) );
 				logger.log( Level.INFO, "Retry was selected, sending a new code to "+smsMsgObject.getSelectedNumber() );
+				if ( !acquireSend() )
+					return showRateLimited( smsMsgObject );
 				return sendTokenAndPromptForVerification(smsMsgObject);
 			}
 			// Check code that was sent
 			logger.log(Level.FINE, String.format("Checking sent code '%s' against received code '%s'.", smsMsgObject.getToken(), token));
 			if( smsMsgObject.validateToken( token ) )
 			{
+				SmsDispatcher.forget( (String) m_Request.getSession().getAttribute( SmsConstants.ATTR_SEND_ID ) );
+				cancelOutboxEntry();
 				placeCookieIfDelayRequested( m_Request.getParameter( valInputPostpone ), smsMsgObject.getDelay() );
 				setPrincipal(localPrincipal);
 				return AUTHENTICATED;
@@ -359,6 +492,13 @@ public class SmsToken extends LocalAuthenticationClass
 				setPrincipal(localPrincipal);
 				return AUTHENTICATED;				
 			}
+			else if ( hasBackgroundSendFailed() )
+			{
+				logger.log( Level.WARNING, "background send failed!" );
+				prepareTokenVerificationPage(smsMsgObject);
+				m_PageToShow.addAttribute( SmsConstants.ATTR_ERROR, SmsConstants.ERR_SEND_FAILED );
+				return SHOW_JSP;
+			}
 			else
 			{
 				logger.log( Level.WARNING, "codes did not match!" );
@@ -369,6 +509,59 @@ public class SmsToken extends LocalAuthenticationClass
 		}
 	}
 
+	/**
+	 * @return true when the code of this session was sent in the background and the send failed
+	 */
+	private boolean hasBackgroundSendFailed()
+	{
+		if ( dispatcher == null )
+			return false;
+		String sendId = (String) m_Request.getSession().getAttribute( SmsConstants.ATTR_SEND_ID );
+		return SmsDispatcher.getStatus( sendId ) == SmsDispatcher.Status.FAILED && !isInOutbox();
+	}
+
+	/**
+	 * @return true when the code of this session is still being retried from the outbox
+	 */
+	private boolean isInOutbox()
+	{
+		Long outboxId = (Long) m_Request.getSession().getAttribute( SmsConstants.ATTR_OUTBOX_ID );
+		return outbox != null && outboxId != null && outbox.isPending( outboxId );
+	}
+
+	/**
+	 * Stop retrying the previous code of this session, after it was used or replaced.
+	 */
+	private void cancelOutboxEntry()
+	{
+		Long outboxId = (Long) m_Request.getSession().getAttribute( SmsConstants.ATTR_OUTBOX_ID );
+		m_Request.getSession().removeAttribute( SmsConstants.ATTR_OUTBOX_ID );
+		if ( outbox != null && outboxId != null )
+			outbox.acknowledge( outboxId );
+	}
+
+	/**
+	 * Write the message to the outbox before it is sent.
+	 * @return the outbox identifier, or null when there is no outbox or the message could not be written
+	 */
+	private Long writeToOutbox( String message, String number, SmsSendContext context )
+	{
+		cancelOutboxEntry();
+		if ( outbox == null || number == null )
+			return null;
+		try
+		{
+			Long outboxId = outbox.append( message, number, context );
+			m_Request.getSession().setAttribute( SmsConstants.ATTR_OUTBOX_ID, outboxId );
+			return outboxId;
+		}
+		catch ( IOException e )
+		{
+			logger.log( Level.WARNING, "Could not write message to outbox, sending without it: "+e.getMessage() );
+			return null;
+		}
+	}
+
 	private boolean isValidScratchCode( String token )
 	{
 		logger.log(Level.FINE, "Trying {0} as a scratch code", token);
@@ -386,7 +579,7 @@ public class SmsToken extends LocalAuthenticationClass
 		totpProperties.putAll(m_Properties);
 		try
 		{
-			Authenticator authenticator = new Authenticator(m_Properties, localPrincipal);
+			Authenticator authenticator = new Authenticator(totpProperties, localPrincipal);
 			if ( token.matches("\\d+" ) && authenticator.validateScratchCode( Integer.parseInt( token ) ) )
 			{
 				authenticator.persist();
@@ -400,53 +593,56 @@ public class SmsToken extends LocalAuthenticationClass
 		return false;		
 	}
 
+	/**
+	 * Use up an LDAP scratch code with a single delete of its value, see {@link LdapScratchCodes}. <br/>
+	 * Only when the user store cannot be reached directly, all values are read and written back without the code.
+	 */
 	private boolean validateLDAPScratchCode(String token)
 	{
+		Boolean consumed = LdapScratchCodes.consume(localPrincipal, valScratchAttribute, token);
+		if (consumed != null)
+			return consumed;
 		List<String> values = getStringAttributeValues(localPrincipal, valScratchAttribute);
-		if (values.remove(token))
+		Iterator<String> it = values.iterator();
+		while (it.hasNext())
 		{
-			putStringAttributeValues(localPrincipal, valScratchAttribute, values.toArray(new String[values.size()]));
-			return true;
+			if (LdapScratchCodes.matches(it.next(), localPrincipal.getUserIdentifier(), token))
+			{
+				it.remove();
+				putStringAttributeValues(localPrincipal, valScratchAttribute, values.toArray(new String[values.size()]));
+				return true;
+			}
 		}
 		return false;
 	}
 
-	private void completeProviderConfigurationData()
+	/**
+	 * Collect the user data for the provider. The provider configuration itself is shared and never changed.
+	 */
+	private SmsSendContext createSendContext()
 	{
-		if ( provider.needPrincipal() )
-		{
-			conf.addParam( SmsConfig.PRINCIPAL_DN, localPrincipal.getUserIdentifier() );
-		}
+		Map<String, Object> attributes = new HashMap<>();
 		if ( attrNames.size() > 0 )
 		{
-			updateAttributeDataInConfig();
-		}
-		provider.update(conf);
-	}
-
-	private void updateAttributeDataInConfig()
-	{
-		logger.log( Level.FINER, "updating Principal attribute data" );
-		// Empty all attributes first (prevent fake data)
-		for ( Map.Entry<String, String> attrName : attrNames.entrySet() )
-			conf.addParam( attrName.getValue(), null );
-		// Fill information from LDAP
-		Attributes attrs = getLdapAttributes( localPrincipal, attrNames.keySet() );
-		if ( attrs != null )
-		{
-			NamingEnumeration<?> returnedAttrs = attrs.getAll();
-			try {
-				while ( returnedAttrs.hasMore() )
-				{
-					Attribute attr = (Attribute) returnedAttrs.next();
-					conf.addParam( attrNames.get( attr.getID() ), attr.get() );
+			logger.log( Level.FINER, "reading Principal attribute data" );
+			Attributes attrs = getLdapAttributes( localPrincipal, attrNames.keySet() );
+			if ( attrs != null )
+			{
+				NamingEnumeration<?> returnedAttrs = attrs.getAll();
+				try {
+					while ( returnedAttrs.hasMore() )
+					{
+						Attribute attr = (Attribute) returnedAttrs.next();
+						attributes.put( attrNames.get( attr.getID() ), attr.get() );
+					}
+				} catch (NamingException e) {
+					logger.log( Level.WARNING, "error retrieving principal attributes: "+e.getExplanation() );
 				}
-			} catch (NamingException e) {
-				logger.log( Level.WARNING, "error retrieving principal attributes: "+e.getExplanation() );
 			}
+			else
+				logger.log( Level.FINER, "no attributes returned!" );
 		}
-		else
-			logger.log( Level.FINER, "no attributes returned!" );
+		return new SmsSendContext( conf, localPrincipal.getUserIdentifier(), attributes );
 	}
 
 	private SmsMessage createMessageObjectFromPrincipal()
@@ -472,6 +668,9 @@ public class SmsToken extends LocalAuthenticationClass
 		return new SmsMessage(phoneNumber, altPhoneNumber).setDelay(delay).setToken(sentAuthToken);
 	}
 
+	/**
+	 * Send a new code, after {@link #acquireSend()} allowed it.
+	 */
 	private int sendTokenAndPromptForVerification(SmsMessage messageObject)
 	{
 		// Prepare the actual JSP page
@@ -479,13 +678,65 @@ public class SmsToken extends LocalAuthenticationClass
 		if ( ! messageObject.hasValidNumber() )
 		{
 			logger.log( Level.WARNING, "principal has no number!" );
+			releaseSend();
 			m_PageToShow.addAttribute( SmsConstants.ATTR_ERROR, SmsConstants.ERR_NO_NUMBER );
 			return SHOW_JSP;
 		}
+		String number = messageObject.getSelectedNumber();
+		if ( numberLimiter != null && number != null && !numberLimiter.tryAcquire( number ) )
+		{
+			logger.log( Level.WARNING, "SMS rate limit reached for number {0}, not sending to {1}", new Object[] { number, localPrincipal.getUserIdentifier() } );
+			releaseSend();
+			m_PageToShow.addAttribute( SmsConstants.ATTR_ERROR, SmsConstants.ERR_RATE_LIMITED );
+			return SHOW_JSP;
+		}
 		sendNewRandomCode(messageObject);
 		return SHOW_JSP;
 	}
 
+	/**
+	 * Count a send against the limits of the user and the client address. <br/>
+	 * This only needs the principal and the request, so it is checked before the attributes of the user are read and 
+	 * a refused request causes no LDAP or gateway traffic. A send is only counted when both limits allow it; the 
+	 * limit of the destination number is checked once the number is known, and gives these back when it refuses.
+	 * @return true when the message may be sent
+	 */
+	private boolean acquireSend()
+	{
+		String address = m_Request.getRemoteAddr();
+		String limited = null;
+		if ( userLimiter != null && !userLimiter.tryAcquire( localPrincipal.getUserIdentifier() ) )
+			limited = "user";
+		else if ( addressLimiter != null && address != null && !addressLimiter.tryAcquire( address ) )
+		{
+			limited = "client address "+address;
+			if ( userLimiter != null )
+				userLimiter.release( localPrincipal.getUserIdentifier() );
+		}
+		if ( limited == null )
+			return true;
+		logger.log( Level.WARNING, "SMS rate limit reached for {0}, not sending to {1}", new Object[] { limited, localPrincipal.getUserIdentifier() } );
+		return false;
+	}
+
+	/**
+	 * Give back a send counted by {@link #acquireSend()} that did not happen.
+	 */
+	private void releaseSend()
+	{
+		if ( userLimiter != null )
+			userLimiter.release( localPrincipal.getUserIdentifier() );
+		if ( addressLimiter != null && m_Request.getRemoteAddr() != null )
+			addressLimiter.release( m_Request.getRemoteAddr() );
+	}
+
+	private int showRateLimited( SmsMessage messageObject )
+	{
+		prepareTokenVerificationPage( messageObject );
+		m_PageToShow.addAttribute( SmsConstants.ATTR_ERROR, SmsConstants.ERR_RATE_LIMITED );
+		return SHOW_JSP;
+	}
+
 	private void prepareTokenVerificationPage( SmsMessage messageObject )
 	{
 		m_PageToShow = new PageToShow( valInputJSP );
@@ -500,22 +751,27 @@ public class SmsToken extends LocalAuthenticationClass
 	private void sendNewRandomCode( SmsMessage messageObject )
 	{
 		// create token with settings from params
-		RandomCode authToken = new RandomCode( valInputCHARSET.toCharArray(), valInputLENGTH );
+		RandomCode authToken = codePool != null ? codePool.take() : new RandomCode( valInputCHARSET.toCharArray(), valInputLENGTH );
 		messageObject.setToken( authToken );
 		logger.log( Level.FINE, "Sending token: "+authToken.getCode() );
-		if ( sendViaProvider( authToken.getCode(), messageObject.getSelectedNumber() ) )
+		SmsSendContext context = createSendContext();
+		Long outboxId = writeToOutbox( authToken.getCode(), messageObject.getSelectedNumber(), context );
+		if ( dispatcher != null )
+		{
+			dispatchViaProvider( authToken, messageObject, context, outboxId );
+		}
+		else if ( sendViaProvider( authToken.getCode(), messageObject.getSelectedNumber(), context ) )
 		{
 			logger.log( Level.FINE, "send success!" );
-			m_Request.getSession().setAttribute( SmsConstants.ATTR_TOKEN, authToken );
-			m_Request.getSession().setAttribute( SmsConstants.ATTR_NUMBER, messageObject.getSelectedNumber() );
-			if ( messageObject.hasSecondaryPhone() )
-			{
-				m_Request.getSession().setAttribute( SmsConstants.ATTR_NUMBER_ALT, messageObject.getSecondaryPhone() );
-			}
-			if ( messageObject.hasDelay() )
-			{
-				m_Request.getSession().setAttribute( SmsConstants.ATTR_DELAY, messageObject.getDelay() );
-			}
+			if ( outboxId != null )
+				outbox.acknowledge( outboxId );
+			saveMessageInSession( authToken, messageObject );
+		}
+		else if ( outboxId != null )
+		{
+			logger.log( Level.WARNING, "send failed, retrying from outbox" );
+			outbox.release( outboxId );
+			saveMessageInSession( authToken, messageObject );
 		}
 		else
 		{
@@ -524,16 +780,69 @@ public class SmsToken extends LocalAuthenticationClass
 		}
 	}
 
+	/**
+	 * Queue the message for a background send and save the token right away, so the verification page is shown 
+	 * without waiting for the gateway. The outcome is checked when the page is submitted.
+	 */
+	private void dispatchViaProvider( RandomCode authToken, SmsMessage messageObject, SmsSendContext context, Long outboxId )
+	{
+		if ( outboxId == null && ( !provider.ready() || messageObject.getSelectedNumber() == null ) )
+		{
+			logger.log( Level.WARNING, "send failed!" );
+			m_PageToShow.addAttribute( SmsConstants.ATTR_ERROR, SmsConstants.ERR_SEND_FAILED );
+			return;
+		}
+		SmsDispatcher.forget( (String) m_Request.getSession().getAttribute( SmsConstants.ATTR_SEND_ID ) );
+		Consumer<SmsDispatcher.Status> listener = null;
+		if ( outboxId != null )
+		{
+			SmsOutbox journal = outbox;
+			listener = status -> {
+				if ( status == SmsDispatcher.Status.SENT )
+					journal.acknowledge( outboxId );
+				else
+					journal.release( outboxId );
+			};
+		}
+		String sendId = dispatcher.dispatch( provider, authToken.getCode(), messageObject.getSelectedNumber(), valSmsTIMEOUT, context, listener );
+		m_Request.getSession().setAttribute( SmsConstants.ATTR_SEND_ID, sendId );
+		saveMessageInSession( authToken, messageObject );
+		if ( SmsDispatcher.getStatus( sendId ) == SmsDispatcher.Status.FAILED && outboxId == null )
+		{
+			logger.log( Level.WARNING, "send queue full, send failed!" );
+			m_PageToShow.addAttribute( SmsConstants.ATTR_ERROR, SmsConstants.ERR_SEND_FAILED );
+		}
+		else
+		{
+			logger.log( Level.FINE, "send queued, {0} waiting", dispatcher.getQueueDepth() );
+		}
+	}
+
+	private void saveMessageInSession( RandomCode authToken, SmsMessage messageObject )
+	{
+		m_Request.getSession().setAttribute( SmsConstants.ATTR_TOKEN, authToken );
+		m_Request.getSession().setAttribute( SmsConstants.ATTR_NUMBER, messageObject.getSelectedNumber() );
+		if ( messageObject.hasSecondaryPhone() )
+		{
+			m_Request.getSession().setAttribute( SmsConstants.ATTR_NUMBER_ALT, messageObject.getSecondaryPhone() );
+		}
+		if ( messageObject.hasDelay() )
+		{
+			m_Request.getSession().setAttribute( SmsConstants.ATTR_DELAY, messageObject.getDelay() );
+		}
+	}
+
 	/** 
 	 * Send the message string to the given number string, using the configured {@link nl.idfocus.nam.sms.SmsProvider#send} method. 
 	 * @param message
 	 * @param number
+	 * @param context
 	 * @return
 	 */
-	private boolean sendViaProvider( String message, String number )
+	private boolean sendViaProvider( String message, String number, SmsSendContext context )
 	{
 		if ( provider.ready() && number != null )
-			return provider.send( message, number, valSmsTIMEOUT );
+			return provider.send( message, number, valSmsTIMEOUT, context );
 		return false;
 	}
 
@@ -0,0 +1,147 @@
+package nl.idfocus.nam.sms;
+
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import javax.naming.directory.NoSuchAttributeException;
+
+import com.novell.nidp.NIDPPrincipal;
+import com.novell.nidp.common.authority.ldap.LDAPUserAuthority;
+
+import nl.idfocus.nam.util.LogFormatter;
+import nl.idfocus.nam.util.Sha256;
+
+/**
+ * Scratch codes kept as values of an LDAP attribute of the user, one code per value. <br/>
+ * <p>
+ * A code is used up with a single modify that deletes exactly that value. The directory applies the delete
+ * atomically and fails it when the value is not present, so the same code can never be used by two concurrent
+ * logins, and no read of the other values is needed. Values are stored as {@link #hash(String, String)}, so they
+ * can be matched without ever being read back; plain values written before are still accepted and deleted the same way.
+ * </p><p>
+ * The hash is salted with the DN of the user, so equal codes of different users do not share a value and a table of
+ * precomputed hashes covers one user at most. The stored value is exactly the lowercase string returned by
+ * {@link #hash(String, String)}, which {@link #matches(String, String, String)} and the delete both compare as is.
+ * </p>
+ */
+public final class LdapScratchCodes
+{
+	private static final Logger logger = LogFormatter.getConsoleLogger( LdapScratchCodes.class.getName() );
+
+	/** Prefix of a hashed scratch code value */
+	public static final String HASH_PREFIX = "{SHA256}";
+
+	private LdapScratchCodes() {}
+
+	/**
+	 * Return the value to store for a scratch code.
+	 * @param dn name of the user entry, compared without case
+	 * @param code the scratch code as entered by the user
+	 * @return {@link #HASH_PREFIX} followed by the lowercase hex SHA-256 of <code>dn:code</code>
+	 */
+	public static String hash( String dn, String code )
+	{
+		return HASH_PREFIX + Sha256.toHashString( dn.toLowerCase( Locale.ROOT ) + ":" + code ).toLowerCase( Locale.ROOT );
+	}
+
+	/**
+	 * @param value a stored value
+	 * @param dn name of the user entry
+	 * @param code the code entered by the user
+	 * @return true when the value is the code, hashed or plain
+	 */
+	public static boolean matches( String value, String dn, String code )
+	{
+		if ( value == null || dn == null || code == null )
+			return false;
+		if ( value.startsWith( HASH_PREFIX ) )
+			return value.equals( hash( dn, code ) );
+		return value.equals( code );
+	}
+
+	/**
+	 * Use up a scratch code by deleting its value from the given entry.
+	 * @param ctx directory context the entry name is relative to
+	 * @param dn name of the user entry
+	 * @param attribute the scratch code attribute
+	 * @param code the code entered by the user
+	 * @return true when the code was present and has been deleted
+	 * @throws NamingException when the directory could not be updated for another reason
+	 */
+	public static boolean consume( DirContext ctx, String dn, String attribute, String code ) throws NamingException
+	{
+		if ( code == null || code.isEmpty() )
+			return false;
+		if ( deleteValue( ctx, dn, attribute, hash( dn, code ) ) )
+			return true;
+		// Plain values from before hashing
+		if ( deleteValue( ctx, dn, attribute, code ) )
+		{
+			logger.log( Level.FINE, "Used a plain scratch code of {0}, store hashed values with LdapScratchCodes.hash(dn, code)", dn );
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Use up a scratch code of the principal directly on its LDAP user store.
+	 * @param princ the principal
+	 * @param attribute the scratch code attribute
+	 * @param code the code entered by the user
+	 * @return true when the code was present and has been deleted, false when it was not present,
+	 * or null when the user store of the principal cannot be reached this way
+	 */
+	public static Boolean consume( NIDPPrincipal princ, String attribute, String code )
+	{
+		DirContext ctx = getDirContext( princ );
+		if ( ctx == null )
+			return null;
+		try
+		{
+			return consume( ctx, princ.getUserIdentifier(), attribute, code );
+		}
+		catch ( NamingException e )
+		{
+			logger.log( Level.WARNING, "Could not delete scratch code of {0}: {1}", new Object[] { princ.getUserIdentifier(), e.getExplanation() } );
+			return null;
+		}
+	}
+
+	private static boolean deleteValue( DirContext ctx, String dn, String attribute, String value ) throws NamingException
+	{
+		try
+		{
+			ctx.modifyAttributes( dn, new ModificationItem[] {
+					new ModificationItem( DirContext.REMOVE_ATTRIBUTE, new BasicAttribute( attribute, value ) ) } );
+			return true;
+		}
+		catch ( NoSuchAttributeException e )
+		{
+			// The value is not (or no longer) present
+			return false;
+		}
+	}
+
+	private static DirContext getDirContext( NIDPPrincipal princ )
+	{
+		if ( !( princ.getAuthority() instanceof LDAPUserAuthority ) )
+			return null;
+		try
+		{
+			LDAPUserAuthority lua = (LDAPUserAuthority) princ.getAuthority();
+			if ( lua.getStore() == null || lua.getStore().getUserStoreReplicas() == null || lua.getStore().getUserStoreReplicas().length == 0 )
+				return null;
+			return lua.getStore().getUserStoreReplicas()[0].getAdminConnection().getDirContext();
+		}
+		catch ( Exception e )
+		{
+			logger.log( Level.FINE, "No LDAP connection for {0}: {1}", new Object[] { princ.getUserIdentifier(), e.getMessage() } );
+			return null;
+		}
+	}
+}
@@ -6,16 +6,13 @@
 package nl.idfocus.nam.sms;
 
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLEncoder;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import nl.idfocus.nam.sms.SmsParameterDesc.SmsParameterType;
+import nl.idfocus.nam.util.HttpTransport;
 import nl.idfocus.nam.util.LogFormatter;
 
 public class MessageBird implements SmsProvider
@@ -38,6 +35,7 @@ public class MessageBird implements SmsProvider
 	private String sender;
 	private String reference;
 	private String responseType;
+	private HttpTransport transport;
 	
 	private boolean development = false;
 	private boolean initialized = false;
@@ -62,6 +60,7 @@ public class MessageBird implements SmsProvider
 		sender			= config.getStringValue( PARAM_APP );
 		development		= Boolean.parseBoolean(config.getStringValue( PARAM_DEV ));
 		reference		= config.getStringValue( PARAM_REF );
+		transport		= config.getHttpTransport();
 		initialized		= true;
 		logger.log( loglevel, "Done." );
 	}
@@ -69,55 +68,26 @@ public class MessageBird implements SmsProvider
 	@Override
 	public boolean send( String message, String number, int timeout ) 
 	{
-		StringBuffer postData = new StringBuffer();
+		HttpTransport.Form postData = new HttpTransport.Form()
+				.add( "username", userName )
+				.add( "password", password )
+				.add( "destination", number )
+				.add( "body", message )
+				.add( "sender", sender )
+				.add( "reference", reference )
+				.add( "responsetype", responseType );
+		if (development)
+			postData.add( "test", "1" );
+		logger.log( dbglevel, String.format( "Assembled POST data %s.", postData ) ); 
 
 		try {
-			postData.append( "username"  + "=" + URLEncoder.encode( userName, "UTF-8" ) );
-			postData.append( "&" );
-			postData.append( "password"  + "=" + URLEncoder.encode( password, "UTF-8" ) );
-			postData.append( "&" );
-			postData.append( "destination"  + "=" + URLEncoder.encode( number, "UTF-8" ) );
-			postData.append( "&" );
-			postData.append( "body"  + "=" + URLEncoder.encode( message, "UTF-8" ) );
-			postData.append( "&" );
-			postData.append( "sender"  + "=" + URLEncoder.encode( sender, "UTF-8" ) );
-			if (reference != null ){
-				postData.append( "&" );
-				postData.append( "reference"  + "=" + URLEncoder.encode( reference, "UTF-8" ) );
-			}	
-			postData.append( "&" );
-			postData.append( "responsetype"  + "=" + URLEncoder.encode( responseType, "UTF-8" ) );
-			if (development){
-				postData.append( "&" );
-				postData.append( "test=1" );
-			}
-			logger.log( dbglevel, String.format( "Assembled POST data %s.", postData ) ); 
-		}
-		catch (UnsupportedEncodingException e)
-		{
-			return false;
-		}
+			logger.log( dbglevel, String.format( "Connecting to %s for sending message.", this.url ) );
+			HttpTransport.Response response = transport.post( this.url, postData, timeout );
 
-		try {
-			URL url = new URL( this.url );
-			HttpURLConnection conn = (HttpURLConnection)url.openConnection();
-
-			logger.log( dbglevel, String.format( "Connecting to %s for sending message.", conn.toString() ) );
-			if ( timeout > 0 )
-				conn.setReadTimeout( timeout );
-			conn.setDoOutput(true);
-			OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
-			wr.write(postData.toString());
-			wr.flush();
-
-			// Get the response
-			int response = conn.getResponseCode();
-			conn.disconnect();
-
-			if ( response == HttpURLConnection.HTTP_OK )
+			if ( response.getStatus() == HttpURLConnection.HTTP_OK )
 				return true;
 			else
-				logger.log( errlevel, String.format( "Received response code %s from Messagebird service.", response ) ); 
+				logger.log( errlevel, String.format( "Received response code %s from Messagebird service.", response.getStatus() ) ); 
 		}
 		catch (IOException e)
 		{
@@ -126,6 +96,15 @@ public class MessageBird implements SmsProvider
 		return false;
 	}
 
+	/**
+	 * The gateway settings do not change after {@link #init(SmsConfig, boolean)}, so no locking is needed.
+	 */
+	@Override
+	public boolean send( String message, String number, int timeout, SmsSendContext context ) 
+	{
+		return send( message, number, timeout );
+	}
+
 	@Override
 	public boolean ready() 
 	{
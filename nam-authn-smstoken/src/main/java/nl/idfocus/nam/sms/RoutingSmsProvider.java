@@ -0,0 +1,515 @@
+package nl.idfocus.nam.sms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nl.idfocus.nam.sms.SmsParameterDesc.SmsParameterType;
+import nl.idfocus.nam.util.HttpTransport;
+import nl.idfocus.nam.util.LogFormatter;
+
+/**
+ * Sends messages through one of several SMS providers, failing over to the next one when a send fails. <br/>
+ * <p>
+ * The providers are configured as a comma separated list of classes. The parameters of the n-th provider are
+ * prefixed with <code>route</code><i>n</i><code>.</code>, for example <code>route1.userName</code>, and its optional
+ * cost with <code>route</code><i>n</i><code>.cost</code> (default: its position in the list). The routing settings
+ * are optional parameters of this provider.
+ * </p><p>
+ * For every provider the latency and outcome of the last {@value #WINDOW} sends are kept, for at most
+ * {@value #SAMPLE_MINUTES} minutes. In <code>health</code> mode the provider with the lowest expected send time is
+ * tried first: the average latency of its successful sends, plus its failure rate times the send timeout, as a failure
+ * costs the time to fail over. A provider without recent sends counts as untried and is tried first, so a provider
+ * that was passed over after failures gets a new chance once those have aged out. In <code>cost</code> mode the
+ * cheapest provider is tried first. After a number of consecutive failures the circuit of a provider
+ * opens and it is skipped. When the open time has passed, a single send is let through as a probe: success closes the
+ * circuit, failure opens it again. A send that failed because the shared {@link nl.idfocus.nam.util.HttpTransport}
+ * had no free connection slot never reached the gateway, so it counts as neither a success nor a failure.
+ * </p><p>
+ * With a hedge delay, a send that has not completed within the delay is also started on the next provider. The first
+ * success wins; the user may then receive the same code twice.
+ * </p>
+ */
+public class RoutingSmsProvider implements SmsProvider
+{
+	private static final Logger logger = LogFormatter.getConsoleLogger( RoutingSmsProvider.class.getName() );
+
+	/** Prefix of the parameters of each provider, followed by its position in the list (starting at 1) and a dot */
+	public static final String ROUTE_PREFIX   = "route";
+	public static final String PARAM_COST     = "cost";
+	/**
+	 * Routing mode: 'health' (default) or 'cost'
+	 */
+	public static final String PROP_ROUTING      = "smsRouting";
+	/**
+	 * Time in milliseconds after which a send is also started on the next provider, 0 (default) to disable
+	 */
+	public static final String PROP_HEDGE_DELAY  = "smsHedgeDelay";
+	/**
+	 * Number of consecutive failures that opens the circuit of a provider
+	 */
+	public static final String PROP_BREAKER_FAILURES = "smsBreakerFailures";
+	/**
+	 * Time in milliseconds a provider is skipped after its circuit opened
+	 */
+	public static final String PROP_BREAKER_OPEN = "smsBreakerOpenTime";
+
+	public static final String ROUTING_HEALTH = "health";
+	public static final String ROUTING_COST   = "cost";
+
+	private static final String DEF_ROUTING          = ROUTING_HEALTH;
+	private static final String DEF_HEDGE_DELAY      = "0";
+	private static final String DEF_BREAKER_FAILURES = "5";
+	private static final String DEF_BREAKER_OPEN     = "30000";
+
+	static final int WINDOW = 32;
+	/** Age after which a send no longer counts towards the health of a provider */
+	static final int SAMPLE_MINUTES = 5;
+	private static final long MAX_SAMPLE_AGE = TimeUnit.MINUTES.toNanos( SAMPLE_MINUTES );
+	/** Cost of a failed send in milliseconds until a send with a timeout was made */
+	private static final int DEF_FAILURE_PENALTY = 10000;
+
+	private static final ThreadPoolExecutor hedgeExecutor = createHedgeExecutor();
+
+	public enum State
+	{
+		CLOSED,
+		OPEN,
+		HALF_OPEN
+	}
+
+	private final List<Route> routes;
+	private boolean costRouting;
+	private long hedgeDelay;
+	private int breakerFailures;
+	private long breakerOpen;
+	/** The last send timeout, used as the cost of a failed send */
+	private volatile int failurePenalty = DEF_FAILURE_PENALTY;
+
+	/**
+	 * @param providers the providers in configured order, not yet initialized
+	 */
+	public RoutingSmsProvider( List<SmsProvider> providers )
+	{
+		if ( providers.isEmpty() )
+			throw new IllegalArgumentException( "No SMS providers to route to" );
+		List<Route> list = new ArrayList<>();
+		for ( int i = 0; i < providers.size(); i++ )
+			list.add( new Route( providers.get( i ), ROUTE_PREFIX + ( i + 1 ) + ".", i ) );
+		routes = Collections.unmodifiableList( list );
+	}
+
+	private static ThreadPoolExecutor createHedgeExecutor()
+	{
+		AtomicInteger counter = new AtomicInteger();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor( 0, 64, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), task -> {
+			Thread thread = new Thread( task, "sms-route-" + counter.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		return executor;
+	}
+
+	@Override
+	public void init( SmsConfig config, boolean dbg )
+	{
+		logger.log( Level.INFO, "Initializing "+getName() );
+		if ( dbg )
+			LogFormatter.setLoggerDebugMode( logger );
+		String routing = getValue( config, PROP_ROUTING, DEF_ROUTING );
+		if ( !ROUTING_HEALTH.equals( routing ) && !ROUTING_COST.equals( routing ) )
+			throw new IllegalArgumentException( "Invalid value for "+PROP_ROUTING+": "+routing );
+		costRouting = ROUTING_COST.equals( routing );
+		hedgeDelay = Long.parseLong( getValue( config, PROP_HEDGE_DELAY, DEF_HEDGE_DELAY ) );
+		breakerFailures = Integer.parseInt( getValue( config, PROP_BREAKER_FAILURES, DEF_BREAKER_FAILURES ) );
+		breakerOpen = TimeUnit.MILLISECONDS.toNanos( Long.parseLong( getValue( config, PROP_BREAKER_OPEN, DEF_BREAKER_OPEN ) ) );
+		for ( Route route : routes )
+		{
+			String cost = config.getStringValue( route.prefix + PARAM_COST );
+			if ( cost != null )
+				route.cost = Double.parseDouble( cost );
+			route.provider.init( config.forPrefix( route.prefix ), dbg );
+		}
+	}
+
+	/**
+	 * @return true when all providers may be shared, see {@link SmsProviders#isShareable(SmsProvider)}
+	 */
+	boolean isShareable()
+	{
+		for ( Route route : routes )
+		{
+			if ( !SmsProviders.isShareable( route.provider ) )
+				return false;
+		}
+		return true;
+	}
+
+	private static String getValue( SmsConfig config, String name, String defaultValue )
+	{
+		String value = config.getStringValue( name );
+		return value == null ? defaultValue : value;
+	}
+
+	@Override
+	public boolean send( String message, String number, int timeout )
+	{
+		return send( message, number, timeout, null );
+	}
+
+	@Override
+	public boolean send( String message, String number, int timeout, SmsSendContext context )
+	{
+		long start = System.nanoTime();
+		long deadline = timeout > 0 ? start + TimeUnit.MILLISECONDS.toNanos( timeout ) : Long.MAX_VALUE;
+		if ( timeout > 0 )
+			failurePenalty = timeout;
+		List<Route> order = order( start );
+		if ( order.isEmpty() )
+		{
+			logger.log( Level.SEVERE, "No SMS provider available, all circuits are open" );
+			return false;
+		}
+		if ( hedgeDelay > 0 && order.size() > 1 )
+			return sendHedged( order, message, number, deadline, context );
+		for ( Route route : order )
+		{
+			int remaining = remaining( deadline );
+			if ( remaining == 0 )
+				break;
+			if ( route.attempt( message, number, timeout > 0 ? remaining : timeout, context ) )
+				return true;
+		}
+		logger.log( Level.SEVERE, "Message could not be sent by any provider" );
+		return false;
+	}
+
+	/**
+	 * Start on the first provider; start the next one when a send fails or takes longer than the hedge delay.
+	 */
+	private boolean sendHedged( List<Route> order, String message, String number, long deadline, SmsSendContext context )
+	{
+		CompletionService<Boolean> sends = new ExecutorCompletionService<>( hedgeExecutor );
+		Iterator<Route> next = order.iterator();
+		try
+		{
+			int inFlight = startNext( sends, next, message, number, deadline, context );
+			while ( inFlight > 0 )
+			{
+				int remaining = remaining( deadline );
+				if ( remaining == 0 )
+					break;
+				long wait = next.hasNext() ? Math.min( hedgeDelay, remaining ) : remaining;
+				Future<Boolean> done = sends.poll( wait, TimeUnit.MILLISECONDS );
+				if ( done == null )
+				{
+					if ( next.hasNext() )
+					{
+						logger.log( Level.FINE, "No result within {0} ms, hedging", hedgeDelay );
+						inFlight += startNext( sends, next, message, number, deadline, context );
+					}
+					continue;
+				}
+				inFlight--;
+				if ( Boolean.TRUE.equals( done.get() ) )
+					return true;
+				inFlight += startNext( sends, next, message, number, deadline, context );
+			}
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch ( ExecutionException e )
+		{
+			logger.log( Level.SEVERE, "Unexpected exception sending SMS: "+e.getCause(), e.getCause() );
+		}
+		logger.log( Level.SEVERE, "Message could not be sent by any provider" );
+		return false;
+	}
+
+	/**
+	 * @return the number of sends started, 0 or 1
+	 */
+	private static int startNext( CompletionService<Boolean> sends, Iterator<Route> next, String message, String number, long deadline,
+			SmsSendContext context )
+	{
+		while ( next.hasNext() )
+		{
+			Route route = next.next();
+			try
+			{
+				sends.submit( () -> route.attempt( message, number, deadline == Long.MAX_VALUE ? 0 : remaining( deadline ), context ) );
+				return 1;
+			}
+			catch ( RejectedExecutionException e )
+			{
+				logger.log( Level.WARNING, "No thread available to send with {0}", route.provider.getName() );
+			}
+		}
+		return 0;
+	}
+
+	private static int remaining( long deadline )
+	{
+		if ( deadline == Long.MAX_VALUE )
+			return Integer.MAX_VALUE;
+		long left = TimeUnit.NANOSECONDS.toMillis( deadline - System.nanoTime() );
+		return (int) Math.max( 0, Math.min( left, Integer.MAX_VALUE ) );
+	}
+
+	/**
+	 * @return the routes that may be used now, best first
+	 */
+	List<Route> order( long now )
+	{
+		List<Route> available = new ArrayList<>( routes.size() );
+		for ( Route route : routes )
+			if ( route.isAvailable( now ) )
+				available.add( route );
+		Comparator<Route> health = Comparator.comparingDouble( ( Route route ) -> route.getScore( now ) );
+		available.sort( costRouting ? Comparator.comparingDouble( ( Route route ) -> route.cost ).thenComparing( health ) : health );
+		return available;
+	}
+
+	@Override
+	public boolean ready()
+	{
+		for ( Route route : routes )
+			if ( route.provider.ready() )
+				return true;
+		return false;
+	}
+
+	@Override
+	public String getName()
+	{
+		StringBuilder name = new StringBuilder( "Routing Provider (" );
+		for ( Route route : routes )
+		{
+			if ( route != routes.get( 0 ) )
+				name.append( ", " );
+			name.append( route.provider.getName() );
+		}
+		return name.append( ')' ).toString();
+	}
+
+	/**
+	 * @return the routing settings and the parameters of all providers, each with the prefix of its route
+	 */
+	@Override
+	public SmsParameterDesc[] getParameters()
+	{
+		List<SmsParameterDesc> params = new ArrayList<>();
+		params.add( new SmsParameterDesc( PROP_ROUTING, SmsParameterType.STRING, false ) );
+		params.add( new SmsParameterDesc( PROP_HEDGE_DELAY, SmsParameterType.INTEGER, false ) );
+		params.add( new SmsParameterDesc( PROP_BREAKER_FAILURES, SmsParameterType.INTEGER, false ) );
+		params.add( new SmsParameterDesc( PROP_BREAKER_OPEN, SmsParameterType.INTEGER, false ) );
+		for ( Route route : routes )
+		{
+			params.add( new SmsParameterDesc( route.prefix + PARAM_COST, SmsParameterType.STRING, false ) );
+			for ( SmsParameterDesc param : route.provider.getParameters() )
+				params.add( new SmsParameterDesc( route.prefix + param.getName(), param.getType(), param.isRequired() ) );
+		}
+		return params.toArray( new SmsParameterDesc[params.size()] );
+	}
+
+	@Override
+	public boolean needPrincipal()
+	{
+		for ( Route route : routes )
+			if ( route.provider.needPrincipal() )
+				return true;
+		return false;
+	}
+
+	@Override
+	public void update( SmsConfig config )
+	{
+		for ( Route route : routes )
+		{
+			synchronized ( route.provider )
+			{
+				route.provider.update( config.forPrefix( route.prefix ) );
+			}
+		}
+	}
+
+	/**
+	 * @return the circuit state of the provider at the given position
+	 */
+	State getState( int index )
+	{
+		return routes.get( index ).state;
+	}
+
+	/**
+	 * @return fraction of failed sends in the window of the provider at the given position
+	 */
+	double getErrorRate( int index )
+	{
+		return routes.get( index ).getErrorRate( System.nanoTime() );
+	}
+
+	/**
+	 * One provider with its rolling statistics and circuit breaker.
+	 */
+	final class Route
+	{
+		private final SmsProvider provider;
+		private final String prefix;
+		private double cost;
+		private final long[] latencies = new long[WINDOW];
+		private final boolean[] failures = new boolean[WINDOW];
+		private final long[] times = new long[WINDOW];
+		private final AtomicBoolean probing = new AtomicBoolean();
+		private int samples;
+		private int next;
+		private int consecutiveFailures;
+		private volatile State state = State.CLOSED;
+		private volatile long openedAt;
+
+		Route( SmsProvider provider, String prefix, double cost )
+		{
+			this.provider = provider;
+			this.prefix = prefix;
+			this.cost = cost;
+		}
+
+		SmsProvider getProvider()
+		{
+			return provider;
+		}
+
+		boolean isAvailable( long now )
+		{
+			switch ( state )
+			{
+				case CLOSED:
+					return true;
+				case OPEN:
+					return now - openedAt >= breakerOpen;
+				default:
+					return !probing.get();
+			}
+		}
+
+		/**
+		 * Send with this provider unless its circuit is open, and record the outcome.
+		 */
+		boolean attempt( String message, String number, int timeout, SmsSendContext context )
+		{
+			boolean probe = false;
+			if ( state != State.CLOSED )
+			{
+				if ( !isAvailable( System.nanoTime() ) || !probing.compareAndSet( false, true ) )
+					return false;
+				probe = true;
+				state = State.HALF_OPEN;
+				logger.log( Level.INFO, "Probing {0}", provider.getName() );
+			}
+			long start = System.nanoTime();
+			int localFailures = HttpTransport.getLocalFailures();
+			boolean sent = false;
+			try
+			{
+				sent = provider.ready() && provider.send( message, number, timeout, context == null ? null : context.forPrefix( prefix ) );
+			}
+			catch ( RuntimeException e )
+			{
+				logger.log( Level.SEVERE, "Exception sending SMS with "+provider.getName()+": "+e.getMessage(), e );
+			}
+			finally
+			{
+				long end = System.nanoTime();
+				// Without a connection slot the gateway was never asked, which says nothing about its health
+				if ( !sent && HttpTransport.getLocalFailures() != localFailures )
+					logger.log( Level.FINE, "No connection available for {0}, not counted as a failure", provider.getName() );
+				else
+					record( TimeUnit.NANOSECONDS.toMillis( end - start ), sent, end );
+				if ( probe )
+					probing.set( false );
+			}
+			return sent;
+		}
+
+		private synchronized void record( long latency, boolean sent, long now )
+		{
+			latencies[next] = latency;
+			failures[next] = !sent;
+			times[next] = now;
+			next = ( next + 1 ) % WINDOW;
+			samples = Math.min( samples + 1, WINDOW );
+			if ( sent )
+			{
+				consecutiveFailures = 0;
+				if ( state != State.CLOSED )
+					logger.log( Level.INFO, "Closing circuit of {0}", provider.getName() );
+				state = State.CLOSED;
+			}
+			else if ( ++consecutiveFailures >= breakerFailures || state == State.HALF_OPEN )
+			{
+				if ( state != State.OPEN )
+					logger.log( Level.WARNING, "Opening circuit of {0} after {1} consecutive failures",
+							new Object[] { provider.getName(), consecutiveFailures } );
+				openedAt = System.nanoTime();
+				state = State.OPEN;
+			}
+		}
+
+		/**
+		 * @return expected time of a send in milliseconds; 0 without recent samples, so new providers are tried
+		 */
+		synchronized double getScore( long now )
+		{
+			long total = 0;
+			int recent = 0;
+			int failed = 0;
+			for ( int i = 0; i < samples; i++ )
+			{
+				if ( now - times[i] > MAX_SAMPLE_AGE )
+					continue;
+				recent++;
+				if ( failures[i] )
+					failed++;
+				else
+					total += latencies[i];
+			}
+			if ( recent == 0 )
+				return 0;
+			// A provider that fails fast is not fast, so failures count as a fixed penalty instead of latency
+			int succeeded = recent - failed;
+			double average = succeeded == 0 ? failurePenalty : Math.max( 1, (double) total / succeeded );
+			return average + failurePenalty * (double) failed / recent;
+		}
+
+		synchronized double getErrorRate( long now )
+		{
+			int recent = 0;
+			int failed = 0;
+			for ( int i = 0; i < samples; i++ )
+			{
+				if ( now - times[i] > MAX_SAMPLE_AGE )
+					continue;
+				recent++;
+				if ( failures[i] )
+					failed++;
+			}
+			return recent == 0 ? 0 : (double) failed / recent;
+		}
+	}
+}
@@ -1,12 +1,7 @@
 package nl.idfocus.nam.sms;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
-import java.net.URL;
-import java.net.URLConnection;
-import java.net.URLEncoder;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -17,6 +12,7 @@ import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
 
 import nl.idfocus.nam.sms.SmsParameterDesc.SmsParameterType;
+import nl.idfocus.nam.util.HttpTransport;
 import nl.idfocus.nam.util.LogFormatter;
 
 public class SMSCity implements SmsProvider 
@@ -29,16 +25,15 @@ public class SMSCity implements SmsProvider
 	public static final String PARAM_USR = "username";
 	public static final String PARAM_PWD = "password";
 	public static final String PARAM_SND = "sender";
+	public static final String PARAM_URL = "url";
 
-	private final String postUrl;
 	private final String responseType;
+	private String postUrl;
 	private String username;
 	private String password;
 	private String sender;
 	private boolean initialized;
-	private String responseCode;
-	private String responseMessage;
-	private String creditBalance;
+	private HttpTransport transport;
 
 	public SMSCity() 
 	{
@@ -60,6 +55,9 @@ public class SMSCity implements SmsProvider
 		this.username = config.getStringValue( PARAM_USR );
 		this.password = config.getStringValue( PARAM_PWD );
 		this.sender   = config.getPasswordValue( PARAM_SND );
+		if ( config.getStringValue( PARAM_URL ) != null )
+			this.postUrl = config.getStringValue( PARAM_URL );
+		this.transport = config.getHttpTransport();
 		this.initialized = true;
 	}
 
@@ -67,56 +65,42 @@ public class SMSCity implements SmsProvider
 	public boolean send( String message, String number, int timeout ) 
 	{
 		logger.log( dbglevel, "Sending "+message+" to "+number );
-		StringBuffer postData = new StringBuffer();
-
 		// Create default request parameters
+		HttpTransport.Form postData = new HttpTransport.Form()
+				.add( "username", this.username )
+				.add( "password", this.password )
+				.add( "sender", this.sender )
+				.add( "responsetype", this.responseType )
+				// Add message body
+				.add( "body", message )
+				// Add destination number
+				.add( "destination", number )
+				// Set the code as the message reference
+				.add( "reference", message );
+
+		String responseCode = null;
 		try {
-			postData.append("username=" + URLEncoder.encode(this.username, "UTF-8"));
-			postData.append("&password=" + URLEncoder.encode(this.password, "UTF-8"));
-			postData.append("&sender=" + URLEncoder.encode(this.sender, "UTF-8"));
-			postData.append("&responsetype=" + URLEncoder.encode(this.responseType, "UTF-8"));
-			// Add message body
-			postData.append("&body=" + URLEncoder.encode(message, "UTF-8"));
-			// Add destination number
-			postData.append("&destination=" + URLEncoder.encode(number, "UTF-8") );
-			// Set the code as the message reference
-			postData.append("&reference=" + URLEncoder.encode(message, "UTF-8") );
-		} catch (UnsupportedEncodingException e) {
-			logger.log( errlevel, "Exception: "+e.getMessage() );
-			return false;
-		}
-
-		try {
-			URL url = new URL( this.postUrl );
-			URLConnection conn = url.openConnection();
-			if ( timeout > 0 )
-				conn.setReadTimeout( timeout );
-			conn.setDoOutput(true);
-			OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
-			wr.write(postData.toString());
-			wr.flush();
-
-			// Get the response
-			BufferedReader rd = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-
+			HttpTransport.Response response = transport.post( this.postUrl, postData, timeout );
+			String responseMessage = null;
+			String creditBalance = null;
 			try {
 				XMLInputFactory inputFactory = XMLInputFactory.newInstance();
-				XMLEventReader reader = inputFactory.createXMLEventReader(rd);
+				XMLEventReader reader = inputFactory.createXMLEventReader( new ByteArrayInputStream( response.getBody() ) );
 				while (reader.hasNext()) {
 					XMLEvent event = reader.nextEvent();
 					if (event.isStartElement()) {
 						StartElement element = (StartElement) event;
 						if (element.getName().toString().equals("responseCode")) {
 							event = reader.nextEvent();
-							this.responseCode = event.asCharacters().getData();
+							responseCode = event.asCharacters().getData();
 							continue;
 						} else if (element.getName().toString().equals("responseMessage")) {
 							event = reader.nextEvent();
-							this.responseMessage = event.asCharacters().getData();
+							responseMessage = event.asCharacters().getData();
 							continue;
 						} else if (element.getName().toString().equals("credits")) {
 							event = reader.nextEvent();
-							this.creditBalance = event.asCharacters().getData();
+							creditBalance = event.asCharacters().getData();
 							continue;
 						}
 					}
@@ -126,10 +110,10 @@ public class SMSCity implements SmsProvider
 			}
 			logger.log( dbglevel, "Response message: "+responseMessage );
 			logger.log( loglevel, "New credit balance: "+creditBalance );
-			wr.close();
-			rd.close();
-		} catch (Exception e) {}
-		if ( this.responseCode == "01" )
+		} catch (IOException e) {
+			logger.log( errlevel, "Exception contacting SMSCity service: "+e.getMessage() );
+		}
+		if ( "01".equals( responseCode ) )
 		{
 			logger.log( loglevel, "message sent successfully!" );
 			return true;
@@ -138,6 +122,15 @@ public class SMSCity implements SmsProvider
 		return false;
 	}
 
+	/**
+	 * The gateway settings do not change after {@link #init(SmsConfig, boolean)}, so no locking is needed.
+	 */
+	@Override
+	public boolean send( String message, String number, int timeout, SmsSendContext context ) 
+	{
+		return send( message, number, timeout );
+	}
+
 	@Override
 	public boolean ready() 
 	{
@@ -158,7 +151,9 @@ public class SMSCity implements SmsProvider
 		SmsParameterDesc param1 = new SmsParameterDesc( PARAM_USR, SmsParameterType.STRING );
 		SmsParameterDesc param2 = new SmsParameterDesc( PARAM_PWD, SmsParameterType.STRING );
 		SmsParameterDesc param3 = new SmsParameterDesc( PARAM_SND, SmsParameterType.STRING );
-		return new SmsParameterDesc[]{ param1, param2, param3, }; 
+		// Optional, the public gateway is used when not set
+		SmsParameterDesc param4 = new SmsParameterDesc( PARAM_URL, SmsParameterType.STRING, false );
+		return new SmsParameterDesc[]{ param1, param2, param3, param4, }; 
 	}
 
 	@Override
@@ -4,14 +4,23 @@ import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 
 import nl.idfocus.nam.util.Base64;
+import nl.idfocus.nam.util.HttpTransport;
+import nl.idfocus.nam.util.Sha256;
 
 public class SmsConfig
 {
 	public static final String	PRINCIPAL_DN	= "principalDn";
 
+	/** Used when the authentication class does not supply a transport */
+	private static final int	DEF_CONNECT_TIMEOUT	= 5000;
+	private static final int	DEF_READ_TIMEOUT	= 10000;
+	private static final int	DEF_MAX_PER_HOST	= 5;
+
 	private Map<String, Object>	params;
+	private HttpTransport		httpTransport;
 
 	public SmsConfig()
 	{
@@ -74,4 +83,71 @@ public class SmsConfig
 		}
 		return null;
 	}
+
+	/**
+	 * Create the configuration for one provider of a group, whose parameters all start with the given prefix. <br/>
+	 * Parameters with the prefix are copied without it. Parameters without a dot, such as {@link #PRINCIPAL_DN}, are
+	 * shared by all providers and copied as they are.
+	 * @param prefix the provider prefix, including the trailing dot
+	 * @return a new configuration using the same HTTP transport
+	 */
+	public SmsConfig forPrefix(String prefix)
+	{
+		SmsConfig config = new SmsConfig();
+		for (Map.Entry<String, Object> param : params.entrySet())
+		{
+			String key = param.getKey();
+			if (key.startsWith(prefix))
+				config.params.put(key.substring(prefix.length()), param.getValue());
+			else if (key.indexOf('.') < 0 && !config.params.containsKey(key))
+				config.params.put(key, param.getValue());
+		}
+		config.httpTransport = getHttpTransport();
+		return config;
+	}
+
+	/**
+	 * @param extra parameters to add or replace
+	 * @return a copy of this configuration with the extra parameters
+	 */
+	public SmsConfig withParams(Map<String, Object> extra)
+	{
+		SmsConfig config = new SmsConfig();
+		config.params.putAll(params);
+		config.params.putAll(extra);
+		config.httpTransport = httpTransport;
+		return config;
+	}
+
+	/**
+	 * @return a key that is equal for configurations with the same parameters and transport; a digest, so the
+	 * credentials in the parameters are not kept in the key
+	 */
+	String getCacheKey()
+	{
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, Object> param : new TreeMap<>(params).entrySet())
+		{
+			// Length prefixes keep the text unambiguous whatever the values contain
+			String value = String.valueOf(param.getValue());
+			text.append(param.getKey().length()).append(':').append(param.getKey())
+				.append(value.length()).append(':').append(value);
+		}
+		return Sha256.toHashString(text.toString()) + "@" + System.identityHashCode(getHttpTransport());
+	}
+
+	public void setHttpTransport(HttpTransport httpTransport)
+	{
+		this.httpTransport = httpTransport;
+	}
+
+	/**
+	 * @return the shared HTTP transport providers should use to reach their gateway
+	 */
+	public HttpTransport getHttpTransport()
+	{
+		if (httpTransport == null)
+			httpTransport = HttpTransport.getShared(DEF_CONNECT_TIMEOUT, DEF_READ_TIMEOUT, DEF_MAX_PER_HOST);
+		return httpTransport;
+	}
 }
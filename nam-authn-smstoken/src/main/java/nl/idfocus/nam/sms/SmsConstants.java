@@ -13,6 +13,10 @@ public class SmsConstants
 	public static final String ATTR_ERROR 		= "error";
 	public static final String ATTR_TOKEN 		= "token";
 	public static final String ATTR_DELAY 		= "delay";
+	/** Identifier of a background send, see {@link SmsDispatcher} */
+	public static final String ATTR_SEND_ID 	= "sendid";
+	/** Identifier of the message in the outbox, see {@link SmsOutbox} */
+	public static final String ATTR_OUTBOX_ID 	= "outboxid";
 
 	/** Error message string indicating an incorrect token was received */
 	public static final String ERR_CODE_INVALID = "smsToken.code.wrong";
@@ -20,6 +24,8 @@ public class SmsConstants
 	public static final String ERR_NO_NUMBER    = "smsToken.number.missing";
 	/** Error message string indicating the sending of the SMS message failed */
 	public static final String ERR_SEND_FAILED  = "smsToken.send.failed";
+	/** Error message string indicating too many messages were requested in a short time */
+	public static final String ERR_RATE_LIMITED = "smsToken.send.limited";
 
 	private SmsConstants() {}
 }
@@ -0,0 +1,244 @@
+package nl.idfocus.nam.sms;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nl.idfocus.nam.util.LogFormatter;
+
+/**
+ * Sends SMS messages on a bounded pool of background threads, so a slow gateway does not hold servlet threads. <br/>
+ * <p>
+ * {@link #dispatch(SmsProvider, String, String, int)} returns immediately with an identifier. The outcome of the send
+ * can be looked up with {@link #getStatus(String)} until it expires. When all threads are busy and the queue is full,
+ * the message is not queued but marked {@link Status#FAILED} right away, so the user sees the error and can retry
+ * instead of waiting on a backlog.
+ * </p><p>
+ * Providers are called with the same arguments as in synchronous mode, through
+ * {@link SmsProvider#send(String, String, int, SmsSendContext)}.
+ * </p><p>
+ * When too many results are kept, the oldest finished ones are dropped first. Results of messages that are still
+ * pending are only dropped once they expire.
+ * </p>
+ */
+public final class SmsDispatcher
+{
+	private static final Logger logger = LogFormatter.getConsoleLogger( SmsDispatcher.class.getName() );
+
+	public enum Status
+	{
+		PENDING,
+		SENT,
+		FAILED
+	}
+
+	/** Results are kept this long after dispatch, long enough for the user to enter the code */
+	private static final long RESULT_TTL = TimeUnit.MINUTES.toNanos( 15 );
+	static final int MAX_RESULTS = 10000;
+	private static final int  ID_BYTES = 12;
+
+	private static final SecureRandom random = new SecureRandom();
+	private static final ConcurrentMap<String, SmsDispatcher> shared = new ConcurrentHashMap<>();
+	private static final ConcurrentMap<String, Result> results = new ConcurrentHashMap<>();
+	/** Result identifiers in dispatch order, so the oldest are found first */
+	private static final ConcurrentLinkedQueue<String> order = new ConcurrentLinkedQueue<>();
+
+	private final ThreadPoolExecutor executor;
+
+	private SmsDispatcher( int threads, int queueSize )
+	{
+		AtomicInteger counter = new AtomicInteger();
+		ThreadFactory factory = task -> {
+			Thread thread = new Thread( task, "sms-sender-" + counter.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		};
+		executor = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>( queueSize ), factory, new ThreadPoolExecutor.AbortPolicy() );
+		executor.allowCoreThreadTimeOut( true );
+	}
+
+	/**
+	 * Return the dispatcher shared by all modules with the same pool settings.
+	 * @param threads maximum number of concurrent sends
+	 * @param queueSize maximum number of messages waiting for a thread
+	 * @return the dispatcher
+	 */
+	public static SmsDispatcher getShared( int threads, int queueSize )
+	{
+		if ( threads < 1 || queueSize < 1 )
+			throw new IllegalArgumentException( "Threads and queue size must be positive" );
+		return shared.computeIfAbsent( threads + ":" + queueSize, key -> new SmsDispatcher( threads, queueSize ) );
+	}
+
+	/**
+	 * Queue a message for sending without user data.
+	 * @see #dispatch(SmsProvider, String, String, int, SmsSendContext)
+	 */
+	public String dispatch( SmsProvider provider, String message, String number, int timeout )
+	{
+		return dispatch( provider, message, number, timeout, null );
+	}
+
+	/**
+	 * Queue a message for sending.
+	 * @see #dispatch(SmsProvider, String, String, int, SmsSendContext, Consumer)
+	 */
+	public String dispatch( SmsProvider provider, String message, String number, int timeout, SmsSendContext context )
+	{
+		return dispatch( provider, message, number, timeout, context, null );
+	}
+
+	/**
+	 * Queue a message for sending.
+	 * @param provider the initialized provider to send with
+	 * @param message the message text
+	 * @param number the destination number
+	 * @param timeout the send timeout passed to the provider
+	 * @param context the user data for the provider, or null
+	 * @param listener called with the final status on the sending thread, or on the calling thread when the queue is
+	 * full; may be null
+	 * @return identifier for {@link #getStatus(String)}
+	 */
+	public String dispatch( SmsProvider provider, String message, String number, int timeout, SmsSendContext context,
+			Consumer<Status> listener )
+	{
+		String id = newId();
+		Result result = new Result();
+		evict();
+		results.put( id, result );
+		order.add( id );
+		try
+		{
+			executor.execute( () -> complete( result, send( provider, message, number, timeout, context ), listener ) );
+		}
+		catch ( RejectedExecutionException e )
+		{
+			logger.log( Level.WARNING, "SMS send queue is full ({0} waiting), message not sent", executor.getQueue().size() );
+			complete( result, Status.FAILED, listener );
+		}
+		return id;
+	}
+
+	private static void complete( Result result, Status status, Consumer<Status> listener )
+	{
+		result.status = status;
+		if ( listener == null )
+			return;
+		try
+		{
+			listener.accept( status );
+		}
+		catch ( RuntimeException e )
+		{
+			logger.log( Level.SEVERE, "Exception in send listener: "+e.getMessage(), e );
+		}
+	}
+
+	private static Status send( SmsProvider provider, String message, String number, int timeout, SmsSendContext context )
+	{
+		try
+		{
+			boolean sent = provider.ready() && provider.send( message, number, timeout, context );
+			logger.log( Level.FINE, "Background send {0}", sent ? "succeeded" : "failed" );
+			return sent ? Status.SENT : Status.FAILED;
+		}
+		catch ( RuntimeException e )
+		{
+			logger.log( Level.SEVERE, "Exception sending SMS with "+provider.getName()+": "+e.getMessage(), e );
+			return Status.FAILED;
+		}
+	}
+
+	/**
+	 * @param id identifier returned by {@link #dispatch(SmsProvider, String, String, int, SmsSendContext)}
+	 * @return the send status, or null when the identifier is unknown or expired
+	 */
+	public static Status getStatus( String id )
+	{
+		Result result = id == null ? null : results.get( id );
+		if ( result == null )
+			return null;
+		if ( result.isExpired( System.nanoTime() ) )
+		{
+			results.remove( id, result );
+			return null;
+		}
+		return result.status;
+	}
+
+	/**
+	 * Drop a result that is no longer needed.
+	 */
+	public static void forget( String id )
+	{
+		if ( id != null )
+			results.remove( id );
+	}
+
+	/**
+	 * @return number of messages waiting for a sender thread
+	 */
+	public int getQueueDepth()
+	{
+		return executor.getQueue().size();
+	}
+
+	private static String newId()
+	{
+		byte[] bytes = new byte[ID_BYTES];
+		random.nextBytes( bytes );
+		return Base64.getUrlEncoder().withoutPadding().encodeToString( bytes );
+	}
+
+	/**
+	 * Drop expired and forgotten results from the head of the dispatch order, and at capacity the oldest finished
+	 * results. Pending results stay until they expire, even when that leaves the map over capacity.
+	 */
+	private static synchronized void evict()
+	{
+		long now = System.nanoTime();
+		Iterator<String> ids = order.iterator();
+		while ( ids.hasNext() )
+		{
+			String id = ids.next();
+			Result result = results.get( id );
+			if ( result == null || result.isExpired( now ) )
+			{
+				if ( result != null )
+					results.remove( id, result );
+				ids.remove();
+			}
+			else if ( results.size() < MAX_RESULTS )
+				break;
+			else if ( result.status != Status.PENDING )
+			{
+				results.remove( id, result );
+				ids.remove();
+			}
+		}
+	}
+
+	private static final class Result
+	{
+		private final long created = System.nanoTime();
+		private volatile Status status = Status.PENDING;
+
+		boolean isExpired( long now )
+		{
+			return now - created > RESULT_TTL;
+		}
+	}
+}
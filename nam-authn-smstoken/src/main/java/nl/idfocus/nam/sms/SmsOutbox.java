@@ -0,0 +1,679 @@
+package nl.idfocus.nam.sms;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import nl.idfocus.nam.util.LogFormatter;
+
+/**
+ * Durable journal of SMS messages that have not been confirmed as sent, so a message survives a restart of the IdP
+ * or a gateway timeout without the user having to ask for a new code. <br/>
+ * <p>
+ * A message is appended with {@link #append(String, String, SmsSendContext)} before it is handed to the provider and
+ * marked done with {@link #acknowledge(long)} when the provider accepts it. When the send fails, {@link #release(long)}
+ * hands the message to a background retry with increasing delays. Messages left in the journal by a
+ * previous run are retried the same way once {@link #start(SmsProvider, SmsConfig, int)} is called. A message that
+ * has not been sent before its expiry is dropped, as the code in it is no longer useful.
+ * </p><p>
+ * The journal is a directory of fixed size segment files that are memory-mapped and only appended to. Acknowledging
+ * a message flips its state byte in place. When all messages in a segment are done, the file is deleted. Writes reach
+ * the page cache immediately and survive a crash of the process; they are forced to disk on every append when the
+ * sync interval is 0, or in batches every sync interval otherwise, trading the last few messages on a power failure
+ * for throughput. A torn record at the end of a segment fails its checksum and is ignored on recovery.
+ * </p><p>
+ * One scheduler thread, shared by all outboxes, syncs the segments and picks the messages that are due for a retry.
+ * The retries themselves are sent on a separate, bounded pool, so a slow gateway neither holds up the syncs nor the
+ * retries of other messages. When that pool is full, a due message waits for a later retry.
+ * </p><p>
+ * The journal holds codes in clear text for at most the expiry time. The segment files are created readable by their
+ * owner only, and the directory should not be shared with other applications.
+ * </p>
+ */
+public final class SmsOutbox
+{
+	private static final Logger logger = LogFormatter.getConsoleLogger( SmsOutbox.class.getName() );
+
+	/** Segment file layout: magic and version, followed by records */
+	private static final int    MAGIC = 0x534d534f;
+	private static final int    VERSION = 1;
+	private static final int    SEGMENT_HEADER = 8;
+	/** Record layout: length, state, id, expiry, checksum, payload. The length is written last. */
+	private static final int    RECORD_HEADER = 25;
+	private static final int    STATE_OFFSET = 4;
+	private static final byte   STATE_PENDING = 0;
+	private static final byte   STATE_DONE = 1;
+
+	private static final String SEGMENT_PREFIX = "outbox-";
+	private static final String SEGMENT_SUFFIX = ".seg";
+	static final int            DEF_SEGMENT_SIZE = 1024 * 1024;
+	private static final int    MIN_SEGMENT_SIZE = 4096;
+
+	private static final long   RETRY_INTERVAL = TimeUnit.SECONDS.toMillis( 1 );
+	private static final long   RETRY_MIN_DELAY = TimeUnit.SECONDS.toNanos( 2 );
+	private static final long   RETRY_MAX_DELAY = TimeUnit.SECONDS.toNanos( 60 );
+	private static final int    RETRY_THREADS = 4;
+	private static final int    RETRY_QUEUE_SIZE = 256;
+
+	private static final ConcurrentMap<String, SmsOutbox> shared = new ConcurrentHashMap<>();
+	private static final ScheduledThreadPoolExecutor scheduler = createScheduler();
+	private static final ThreadPoolExecutor retryPool = createRetryPool();
+
+	private final File directory;
+	private final int segmentSize;
+	private final long syncMillis;
+	private final long expiryMillis;
+	private final Executor retries;
+	private final Map<Long, Entry> pending = new LinkedHashMap<>();
+	private final List<Segment> segments = new ArrayList<>();
+	private final List<ScheduledFuture<?>> tasks = new ArrayList<>();
+	private Segment active;
+	private long nextId = 1;
+	private long nextSegment;
+	private volatile Sender sender;
+
+	SmsOutbox( File directory, int segmentSize, long syncMillis, long expiryMillis ) throws IOException
+	{
+		this( directory, segmentSize, syncMillis, expiryMillis, retryPool );
+	}
+
+	SmsOutbox( File directory, int segmentSize, long syncMillis, long expiryMillis, Executor retries ) throws IOException
+	{
+		if ( segmentSize < MIN_SEGMENT_SIZE || syncMillis < 0 || expiryMillis < 1 )
+			throw new IllegalArgumentException( "Invalid outbox settings" );
+		if ( !directory.isDirectory() && !directory.mkdirs() )
+			throw new IOException( "Could not create outbox directory "+directory );
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.syncMillis = syncMillis;
+		this.expiryMillis = expiryMillis;
+		this.retries = retries;
+		recover();
+		active = createSegment();
+		tasks.add( scheduler.scheduleWithFixedDelay( this::retryDue, RETRY_INTERVAL, RETRY_INTERVAL, TimeUnit.MILLISECONDS ) );
+		if ( syncMillis > 0 )
+			tasks.add( scheduler.scheduleWithFixedDelay( this::sync, syncMillis, syncMillis, TimeUnit.MILLISECONDS ) );
+	}
+
+	/**
+	 * Return the outbox for the given directory, recovering the messages in it on first use. <br/>
+	 * The other settings are taken from the first caller.
+	 * @param directory the journal directory
+	 * @param syncMillis interval between forcing writes to disk, or 0 to force every append
+	 * @param expiryMillis time after which an unsent message is dropped
+	 * @return the outbox
+	 * @throws IOException when the journal cannot be opened
+	 */
+	public static SmsOutbox getShared( String directory, long syncMillis, long expiryMillis ) throws IOException
+	{
+		File dir = new File( directory ).getAbsoluteFile();
+		try
+		{
+			return shared.computeIfAbsent( dir.getPath(), key -> {
+				try
+				{
+					return new SmsOutbox( dir, DEF_SEGMENT_SIZE, syncMillis, expiryMillis );
+				}
+				catch ( IOException e )
+				{
+					throw new IllegalStateException( e );
+				}
+			} );
+		}
+		catch ( IllegalStateException e )
+		{
+			if ( e.getCause() instanceof IOException )
+				throw (IOException) e.getCause();
+			throw e;
+		}
+	}
+
+	private static ScheduledThreadPoolExecutor createScheduler()
+	{
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor( 1, task -> {
+			Thread thread = new Thread( task, "sms-outbox" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		executor.setRemoveOnCancelPolicy( true );
+		return executor;
+	}
+
+	private static ThreadPoolExecutor createRetryPool()
+	{
+		AtomicInteger count = new AtomicInteger();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor( RETRY_THREADS, RETRY_THREADS, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>( RETRY_QUEUE_SIZE ), task -> {
+					Thread thread = new Thread( task, "sms-outbox-retry-"+count.incrementAndGet() );
+					thread.setDaemon( true );
+					return thread;
+				}, new ThreadPoolExecutor.AbortPolicy() );
+		executor.allowCoreThreadTimeOut( true );
+		return executor;
+	}
+
+	/**
+	 * Set the provider used to retry messages, and start retrying. Only the first call has effect, so all modules
+	 * using the same directory should use the same provider.
+	 * @param provider the initialized provider
+	 * @param config the configuration the provider was initialized with
+	 * @param timeout the send timeout passed to the provider
+	 */
+	public void start( SmsProvider provider, SmsConfig config, int timeout )
+	{
+		synchronized ( this )
+		{
+			if ( sender == null )
+				sender = new Sender( provider, config, timeout );
+		}
+	}
+
+	/**
+	 * Write a message to the journal before sending it. The message is not retried until it is released.
+	 * @param message the message text
+	 * @param number the destination number
+	 * @param context the user data for the provider, or null
+	 * @return identifier for {@link #acknowledge(long)} and {@link #release(long)}
+	 * @throws IOException when the message cannot be written
+	 */
+	public long append( String message, String number, SmsSendContext context ) throws IOException
+	{
+		byte[] payload = encode( message, number, context );
+		if ( SEGMENT_HEADER + RECORD_HEADER + payload.length > segmentSize )
+			throw new IOException( "Message too large for outbox segment" );
+		Segment segment;
+		long id;
+		synchronized ( this )
+		{
+			if ( active.position + RECORD_HEADER + payload.length > segmentSize )
+				active = createSegment();
+			segment = active;
+			id = nextId++;
+			long expires = System.currentTimeMillis() + expiryMillis;
+			int offset = segment.write( id, expires, payload );
+			Entry entry = new Entry( id, expires, segment, offset, message, number, context );
+			entry.inFlight = true;
+			pending.put( id, entry );
+			segment.live++;
+			if ( syncMillis == 0 )
+				segment.buffer.force();
+			else
+				segment.dirty = true;
+		}
+		return id;
+	}
+
+	/**
+	 * Mark a message as sent, or cancel it. Unknown identifiers are ignored.
+	 */
+	public void acknowledge( long id )
+	{
+		synchronized ( this )
+		{
+			Entry entry = pending.remove( id );
+			if ( entry != null )
+				complete( entry );
+		}
+	}
+
+	/**
+	 * Hand a message whose send failed to the background retry.
+	 */
+	public void release( long id )
+	{
+		synchronized ( this )
+		{
+			Entry entry = pending.get( id );
+			if ( entry != null )
+				entry.retryLater( System.nanoTime() );
+		}
+	}
+
+	/**
+	 * @return true when the message has not been sent, cancelled or dropped yet
+	 */
+	public boolean isPending( long id )
+	{
+		synchronized ( this )
+		{
+			return pending.containsKey( id );
+		}
+	}
+
+	/**
+	 * @return number of messages that have not been sent yet
+	 */
+	public int getPendingCount()
+	{
+		synchronized ( this )
+		{
+			return pending.size();
+		}
+	}
+
+	/**
+	 * @return number of segment files in use, including the one being appended to
+	 */
+	public int getSegmentCount()
+	{
+		synchronized ( this )
+		{
+			return segments.size();
+		}
+	}
+
+	/**
+	 * Hand the released messages that are due to the retry pool, and drop the expired ones.
+	 */
+	void retryDue()
+	{
+		Sender current = sender;
+		List<Entry> due = new ArrayList<>();
+		long now = System.nanoTime();
+		long wallClock = System.currentTimeMillis();
+		synchronized ( this )
+		{
+			Iterator<Entry> entries = pending.values().iterator();
+			while ( entries.hasNext() )
+			{
+				Entry entry = entries.next();
+				if ( entry.expires <= wallClock )
+				{
+					logger.log( Level.WARNING, "Dropping expired SMS message {0} from outbox", entry.id );
+					entries.remove();
+					complete( entry );
+				}
+				else if ( current != null && !entry.inFlight && now - entry.nextAttempt >= 0 )
+				{
+					entry.inFlight = true;
+					due.add( entry );
+				}
+			}
+		}
+		for ( Entry entry : due )
+		{
+			try
+			{
+				retries.execute( () -> retry( current, entry ) );
+			}
+			catch ( RejectedExecutionException e )
+			{
+				logger.log( Level.FINE, "Outbox retry pool is full, postponing message {0}", entry.id );
+				release( entry.id );
+			}
+		}
+	}
+
+	private void retry( Sender current, Entry entry )
+	{
+		boolean sent = current.send( entry );
+		logger.log( Level.FINE, "Outbox retry of message {0} {1}", new Object[] { entry.id, sent ? "succeeded" : "failed" } );
+		if ( sent )
+			acknowledge( entry.id );
+		else
+			release( entry.id );
+	}
+
+	/**
+	 * Force the segments written since the last sync to disk.
+	 */
+	private void sync()
+	{
+		List<Segment> dirty = new ArrayList<>();
+		synchronized ( this )
+		{
+			for ( Segment segment : segments )
+			{
+				if ( segment.dirty )
+				{
+					segment.dirty = false;
+					dirty.add( segment );
+				}
+			}
+		}
+		for ( Segment segment : dirty )
+			segment.buffer.force();
+	}
+
+	/**
+	 * Stop the background tasks and force all writes to disk. The journal can be opened again afterwards.
+	 */
+	public void close()
+	{
+		synchronized ( this )
+		{
+			for ( ScheduledFuture<?> task : tasks )
+				task.cancel( false );
+			for ( Segment segment : segments )
+				segment.buffer.force();
+			shared.remove( directory.getPath(), this );
+		}
+	}
+
+	private void complete( Entry entry )
+	{
+		Segment segment = entry.segment;
+		segment.buffer.put( entry.offset + STATE_OFFSET, STATE_DONE );
+		if ( syncMillis == 0 )
+			segment.buffer.force();
+		else
+			segment.dirty = true;
+		if ( --segment.live == 0 && segment != active )
+			delete( segment );
+	}
+
+	private void delete( Segment segment )
+	{
+		segments.remove( segment );
+		if ( !segment.file.delete() )
+			logger.log( Level.FINE, "Could not delete outbox segment {0}, it is removed on the next start", segment.file );
+	}
+
+	private Segment createSegment() throws IOException
+	{
+		File file = new File( directory, String.format( "%s%016x%s", SEGMENT_PREFIX, nextSegment++, SEGMENT_SUFFIX ) );
+		if ( !file.createNewFile() )
+			throw new IOException( "Outbox segment "+file+" already exists" );
+		file.setReadable( false, false );
+		file.setWritable( false, false );
+		file.setReadable( true, true );
+		file.setWritable( true, true );
+		Segment segment = new Segment( file, map( file, segmentSize ) );
+		segment.buffer.putInt( 0, MAGIC );
+		segment.buffer.putInt( 4, VERSION );
+		if ( active != null && active.live == 0 )
+			delete( active );
+		segments.add( segment );
+		return segment;
+	}
+
+	private static MappedByteBuffer map( File file, long size ) throws IOException
+	{
+		try ( RandomAccessFile raf = new RandomAccessFile( file, "rw" ); FileChannel channel = raf.getChannel() )
+		{
+			// The mapping stays valid after the channel is closed
+			return channel.map( FileChannel.MapMode.READ_WRITE, 0, size );
+		}
+	}
+
+	/**
+	 * Load the pending messages of a previous run. Segments without pending messages are deleted.
+	 */
+	private void recover() throws IOException
+	{
+		File[] files = directory.listFiles( ( dir, name ) -> name.startsWith( SEGMENT_PREFIX ) && name.endsWith( SEGMENT_SUFFIX ) );
+		if ( files == null )
+			throw new IOException( "Could not list outbox directory "+directory );
+		Arrays.sort( files );
+		long now = System.currentTimeMillis();
+		for ( File file : files )
+		{
+			nextSegment = Math.max( nextSegment, parseSequence( file.getName() ) + 1 );
+			if ( file.length() < SEGMENT_HEADER + RECORD_HEADER )
+			{
+				file.delete();
+				continue;
+			}
+			Segment segment = new Segment( file, map( file, file.length() ) );
+			if ( segment.buffer.getInt( 0 ) != MAGIC || segment.buffer.getInt( 4 ) != VERSION )
+			{
+				logger.log( Level.WARNING, "Ignoring unknown file {0} in outbox", file );
+				continue;
+			}
+			segment.scan( now );
+			if ( segment.live > 0 )
+				segments.add( segment );
+			else
+				file.delete();
+		}
+		if ( !pending.isEmpty() )
+			logger.log( Level.INFO, "Recovered {0} unsent SMS messages from outbox", pending.size() );
+	}
+
+	private static long parseSequence( String name )
+	{
+		try
+		{
+			return Long.parseLong( name.substring( SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length() ), 16 );
+		}
+		catch ( NumberFormatException e )
+		{
+			return 0;
+		}
+	}
+
+	private void recovered( Entry entry )
+	{
+		pending.put( entry.id, entry );
+		entry.segment.live++;
+		nextId = Math.max( nextId, entry.id + 1 );
+	}
+
+	private static byte[] encode( String message, String number, SmsSendContext context ) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream( 128 );
+		try ( DataOutputStream out = new DataOutputStream( bytes ) )
+		{
+			out.writeUTF( message );
+			out.writeUTF( number );
+			String principalDn = context == null ? null : context.getPrincipalDn();
+			out.writeBoolean( principalDn != null );
+			if ( principalDn != null )
+				out.writeUTF( principalDn );
+			Map<String, Object> attributes = context == null ? new HashMap<>() : context.getAttributes();
+			out.writeInt( attributes.size() );
+			for ( Map.Entry<String, Object> attribute : attributes.entrySet() )
+			{
+				out.writeUTF( attribute.getKey() );
+				out.writeUTF( String.valueOf( attribute.getValue() ) );
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	private static int checksum( ByteBuffer buffer, int offset, int length )
+	{
+		CRC32 crc = new CRC32();
+		ByteBuffer view = buffer.duplicate();
+		view.position( offset );
+		view.limit( offset + length );
+		crc.update( view );
+		return (int) crc.getValue();
+	}
+
+	private final class Segment
+	{
+		private final File file;
+		private final MappedByteBuffer buffer;
+		private int position = SEGMENT_HEADER;
+		private int live;
+		private boolean dirty;
+
+		Segment( File file, MappedByteBuffer buffer )
+		{
+			this.file = file;
+			this.buffer = buffer;
+		}
+
+		int write( long id, long expires, byte[] payload )
+		{
+			int offset = position;
+			buffer.put( offset + STATE_OFFSET, STATE_PENDING );
+			buffer.putLong( offset + 5, id );
+			buffer.putLong( offset + 13, expires );
+			ByteBuffer view = buffer.duplicate();
+			view.position( offset + RECORD_HEADER );
+			view.put( payload );
+			buffer.putInt( offset + 21, checksum( buffer, offset + RECORD_HEADER, payload.length ) );
+			// The length marks the record complete
+			buffer.putInt( offset, RECORD_HEADER + payload.length );
+			position += RECORD_HEADER + payload.length;
+			return offset;
+		}
+
+		void scan( long now ) throws IOException
+		{
+			int limit = buffer.capacity();
+			while ( position + RECORD_HEADER <= limit )
+			{
+				int offset = position;
+				int length = buffer.getInt( offset );
+				if ( length < RECORD_HEADER || offset + length > limit )
+					break;
+				int payloadLength = length - RECORD_HEADER;
+				if ( buffer.getInt( offset + 21 ) != checksum( buffer, offset + RECORD_HEADER, payloadLength ) )
+				{
+					logger.log( Level.WARNING, "Ignoring damaged record at {0} in outbox segment {1}", new Object[] { offset, file } );
+					break;
+				}
+				position += length;
+				long expires = buffer.getLong( offset + 13 );
+				if ( buffer.get( offset + STATE_OFFSET ) != STATE_PENDING || expires <= now )
+					continue;
+				byte[] payload = new byte[payloadLength];
+				ByteBuffer view = buffer.duplicate();
+				view.position( offset + RECORD_HEADER );
+				view.get( payload );
+				recovered( decode( buffer.getLong( offset + 5 ), expires, this, offset, payload ) );
+			}
+		}
+	}
+
+	private Entry decode( long id, long expires, Segment segment, int offset, byte[] payload ) throws IOException
+	{
+		try ( DataInputStream in = new DataInputStream( new ByteArrayInputStream( payload ) ) )
+		{
+			String message = in.readUTF();
+			String number = in.readUTF();
+			String principalDn = in.readBoolean() ? in.readUTF() : null;
+			Map<String, Object> attributes = new HashMap<>();
+			int count = in.readInt();
+			for ( int i = 0; i < count; i++ )
+				attributes.put( in.readUTF(), in.readUTF() );
+			return new Entry( id, expires, segment, offset, message, number, new RecoveredContext( principalDn, attributes ) );
+		}
+	}
+
+	/**
+	 * User data of a recovered message, turned into a send context once the provider configuration is known.
+	 */
+	private static final class RecoveredContext
+	{
+		private final String principalDn;
+		private final Map<String, Object> attributes;
+
+		RecoveredContext( String principalDn, Map<String, Object> attributes )
+		{
+			this.principalDn = principalDn;
+			this.attributes = attributes;
+		}
+	}
+
+	private static final class Entry
+	{
+		private final long id;
+		private final long expires;
+		private final Segment segment;
+		private final int offset;
+		private final String message;
+		private final String number;
+		private final SmsSendContext context;
+		private final RecoveredContext recovered;
+		private boolean inFlight;
+		private long nextAttempt = System.nanoTime();
+		private int attempts;
+
+		Entry( long id, long expires, Segment segment, int offset, String message, String number, SmsSendContext context )
+		{
+			this( id, expires, segment, offset, message, number, context, null );
+		}
+
+		Entry( long id, long expires, Segment segment, int offset, String message, String number, RecoveredContext recovered )
+		{
+			this( id, expires, segment, offset, message, number, null, recovered );
+		}
+
+		private Entry( long id, long expires, Segment segment, int offset, String message, String number,
+				SmsSendContext context, RecoveredContext recovered )
+		{
+			this.id = id;
+			this.expires = expires;
+			this.segment = segment;
+			this.offset = offset;
+			this.message = message;
+			this.number = number;
+			this.context = context;
+			this.recovered = recovered;
+		}
+
+		/**
+		 * The first retry is done on the next pass, later ones back off exponentially.
+		 */
+		void retryLater( long now )
+		{
+			inFlight = false;
+			if ( attempts > 0 )
+				nextAttempt = now + Math.min( RETRY_MAX_DELAY, RETRY_MIN_DELAY << Math.min( attempts - 1, 16 ) );
+			else
+				nextAttempt = now;
+			attempts++;
+		}
+	}
+
+	private static final class Sender
+	{
+		private final SmsProvider provider;
+		private final SmsConfig config;
+		private final int timeout;
+
+		Sender( SmsProvider provider, SmsConfig config, int timeout )
+		{
+			this.provider = provider;
+			this.config = config;
+			this.timeout = timeout;
+		}
+
+		boolean send( Entry entry )
+		{
+			SmsSendContext context = entry.context;
+			if ( context == null && entry.recovered != null )
+				context = new SmsSendContext( config, entry.recovered.principalDn, entry.recovered.attributes );
+			try
+			{
+				return provider.ready() && provider.send( entry.message, entry.number, timeout, context );
+			}
+			catch ( RuntimeException e )
+			{
+				logger.log( Level.SEVERE, "Exception sending SMS with "+provider.getName()+": "+e.getMessage(), e );
+				return false;
+			}
+		}
+	}
+}
@@ -5,11 +5,23 @@ public class SmsParameterDesc
 
 	private final String paramName;
 	private final SmsParameterType type;
+	private final boolean required;
 
 	public SmsParameterDesc( String name, SmsParameterType type ) 
+	{
+		this( name, type, true );
+	}
+
+	/**
+	 * @param name the parameter name
+	 * @param type the parameter type
+	 * @param required false when the provider has a default, so the module does not fail when it is not configured
+	 */
+	public SmsParameterDesc( String name, SmsParameterType type, boolean required ) 
 	{
 		this.paramName = name;
 		this.type = type;
+		this.required = required;
 	}
 
 	public String getName()
@@ -22,6 +34,11 @@ public class SmsParameterDesc
 		return type;
 	}
 
+	public boolean isRequired()
+	{
+		return required;
+	}
+
 	public enum SmsParameterType
 	{
 		STRING,
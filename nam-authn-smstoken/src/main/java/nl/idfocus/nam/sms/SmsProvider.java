@@ -19,6 +19,29 @@ public interface SmsProvider
 	 */
 	boolean send( String message, String number, int timeout );
 
+	/**
+	 * Send the text message with the data of the user logging in. <br/>
+	 * Providers that override this method must be thread safe and take user data from the context only; one instance
+	 * of them then serves all requests with the same configuration, see {@link SmsProviders}. The default 
+	 * implementation supports providers that keep user data in fields: it passes the context to 
+	 * {@link #update(SmsConfig)} and calls {@link #send(String, String, int)} while holding the lock of the provider. 
+	 * Such providers are not shared, each module gets its own instance.
+	 * @param message
+	 * @param number
+	 * @param timeout
+	 * @param context the user data for this send, or null
+	 * @return
+	 */
+	default boolean send( String message, String number, int timeout, SmsSendContext context )
+	{
+		synchronized ( this )
+		{
+			if ( context != null )
+				update( context.toConfig() );
+			return send( message, number, timeout );
+		}
+	}
+
 	/**
 	 * Indication whether or not the provider is correctly initialized and ready to send. 
 	 * @return
@@ -40,11 +63,17 @@ public interface SmsProvider
 
 	/**
 	 * Indication whether or not this module needs the actual Principal object of the user logging in. 
-	 * If this is the case, the module calls the {@link #update(SmsConfig)} method to pass the configuration updated with the Principal information. 
+	 * The principal DN is available from the {@link SmsSendContext}, and passed to {@link #update(SmsConfig)} for
+	 * providers that do not override {@link #send(String, String, int, SmsSendContext)}.
 	 * @return
 	 */
 	boolean needPrincipal();
 
+	/**
+	 * Receive the configuration with the data of the user logging in, right before {@link #send(String, String, int)}.
+	 * Only called by the default implementation of {@link #send(String, String, int, SmsSendContext)}.
+	 * @param config
+	 */
 	void update( SmsConfig config );
 	
 }
@@ -0,0 +1,163 @@
+package nl.idfocus.nam.sms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nl.idfocus.nam.util.LogFormatter;
+
+/**
+ * Finds and caches SMS providers. <br/>
+ * <p>
+ * Providers are discovered once with {@link ServiceLoader} from <code>META-INF/services/nl.idfocus.nam.sms.SmsProvider</code>
+ * and can be configured by class name or simple name. Classes that are not registered are still loaded by name.
+ * </p><p>
+ * {@link #getShared(String, SmsConfig, boolean)} keeps one initialized instance per provider and configuration,
+ * which all modules and threads use; per user data is passed in a {@link SmsSendContext}. This only applies to
+ * providers that override {@link SmsProvider#send(String, String, int, SmsSendContext)}. Other providers keep user
+ * data in fields and send one message at a time, so every module still gets its own instance of them. The parameters of a
+ * provider are read once per class name with {@link #getParameters(String)}, so configuring a module does not create
+ * a provider unless a new configuration needs one.
+ * </p>
+ */
+public final class SmsProviders
+{
+	private static final Logger logger = LogFormatter.getConsoleLogger( SmsProviders.class.getName() );
+
+	private static final Map<String, Class<? extends SmsProvider>> registered = discover();
+	private static final ConcurrentMap<String, SmsProvider> shared = new ConcurrentHashMap<>();
+	private static final ConcurrentMap<String, SmsParameterDesc[]> parameters = new ConcurrentHashMap<>();
+
+	private SmsProviders()
+	{
+	}
+
+	private static Map<String, Class<? extends SmsProvider>> discover()
+	{
+		Map<String, Class<? extends SmsProvider>> classes = new HashMap<>();
+		try
+		{
+			for ( SmsProvider provider : ServiceLoader.load( SmsProvider.class, SmsProviders.class.getClassLoader() ) )
+			{
+				classes.put( provider.getClass().getName(), provider.getClass() );
+				classes.putIfAbsent( provider.getClass().getSimpleName(), provider.getClass() );
+			}
+		}
+		catch ( ServiceConfigurationError e )
+		{
+			logger.log( Level.SEVERE, "Error loading SMS providers: "+e.getMessage(), e );
+		}
+		logger.log( Level.FINE, "Registered SMS providers: {0}", classes.keySet() );
+		return Collections.unmodifiableMap( classes );
+	}
+
+	/**
+	 * Create an uninitialized provider, used to read its parameters before the configuration is built.
+	 * @param names a provider class name, or a comma separated list for a {@link RoutingSmsProvider}
+	 * @return the new provider
+	 * @throws ReflectiveOperationException when a class cannot be loaded or instantiated
+	 */
+	public static SmsProvider newInstance( String names ) throws ReflectiveOperationException
+	{
+		if ( names.indexOf( ',' ) >= 0 )
+		{
+			List<SmsProvider> providers = new ArrayList<>();
+			for ( String name : names.split( "," ) )
+				providers.add( newInstance( name.trim() ) );
+			return new RoutingSmsProvider( providers );
+		}
+		Class<?> type = registered.get( names );
+		if ( type == null )
+			type = Class.forName( names );
+		if ( !SmsProvider.class.isAssignableFrom( type ) )
+			throw new ClassCastException( "Class "+names+" does not implement "+SmsProvider.class.getName() );
+		return (SmsProvider) type.newInstance();
+	}
+
+	/**
+	 * Return the parameters of a provider, reading them from a new instance the first time.
+	 * @param names a provider class name, or a comma separated list for a {@link RoutingSmsProvider}
+	 * @return the parameter descriptions
+	 * @throws ReflectiveOperationException when a class cannot be loaded or instantiated
+	 */
+	public static SmsParameterDesc[] getParameters( String names ) throws ReflectiveOperationException
+	{
+		SmsParameterDesc[] result = parameters.get( names );
+		if ( result == null )
+		{
+			result = newInstance( names ).getParameters();
+			parameters.putIfAbsent( names, result );
+		}
+		return result.clone();
+	}
+
+	/**
+	 * @param provider a provider
+	 * @return true when the provider takes user data from the send context only, so one instance may serve all threads
+	 */
+	static boolean isShareable( SmsProvider provider )
+	{
+		if ( provider instanceof RoutingSmsProvider )
+			return ( (RoutingSmsProvider) provider ).isShareable();
+		try
+		{
+			return provider.getClass().getMethod( "send", String.class, String.class, int.class, SmsSendContext.class )
+					.getDeclaringClass() != SmsProvider.class;
+		}
+		catch ( NoSuchMethodException e )
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Return the provider shared by all modules with the same provider names and configuration. <br/>
+	 * A new instance is created and initialized only when there is no such provider yet. A provider that is not
+	 * {@link #isShareable(SmsProvider) shareable} is created and initialized for every call.
+	 * @param names the configured provider names
+	 * @param config the static provider configuration
+	 * @param dbg debug logging
+	 * @return the initialized provider
+	 * @throws ReflectiveOperationException when a class cannot be loaded or instantiated
+	 */
+	public static SmsProvider getShared( String names, SmsConfig config, boolean dbg ) throws ReflectiveOperationException
+	{
+		String key = names + "|" + dbg + "|" + config.getCacheKey();
+		SmsProvider provider = shared.get( key );
+		if ( provider != null )
+			return provider;
+		return getShared( names, newInstance( names ), config, dbg );
+	}
+
+	/**
+	 * Return the provider shared by all modules with the same provider names and configuration. <br/>
+	 * The candidate is initialized and kept when there is no such provider yet, and discarded otherwise. A candidate
+	 * that is not {@link #isShareable(SmsProvider) shareable} is initialized and returned without being kept.
+	 * @param names the configured provider names
+	 * @param candidate a new instance from {@link #newInstance(String)}
+	 * @param config the static provider configuration
+	 * @param dbg debug logging
+	 * @return the initialized provider
+	 */
+	public static SmsProvider getShared( String names, SmsProvider candidate, SmsConfig config, boolean dbg )
+	{
+		if ( !isShareable( candidate ) )
+		{
+			logger.log( Level.FINE, "SMS provider {0} keeps user data in fields, using an instance per module", names );
+			candidate.init( config, dbg );
+			return candidate;
+		}
+		return shared.computeIfAbsent( names + "|" + dbg + "|" + config.getCacheKey(), key -> {
+			candidate.init( config, dbg );
+			return candidate;
+		} );
+	}
+}
@@ -0,0 +1,77 @@
+package nl.idfocus.nam.sms;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The data of one send: the user logging in and the values of the provider's attribute parameters. <br/>
+ * Contexts are immutable, so a provider that is shared between threads can read them without locking.
+ */
+public final class SmsSendContext
+{
+	private final SmsConfig config;
+	private final String principalDn;
+	private final Map<String, Object> attributes;
+
+	/**
+	 * @param config the configuration the provider was initialized with
+	 * @param principalDn the DN of the user, or null
+	 * @param attributes values of the attribute parameters, by parameter name
+	 */
+	public SmsSendContext( SmsConfig config, String principalDn, Map<String, Object> attributes )
+	{
+		this.config = config;
+		this.principalDn = principalDn;
+		this.attributes = Collections.unmodifiableMap( new HashMap<>( attributes ) );
+	}
+
+	public String getPrincipalDn()
+	{
+		return principalDn;
+	}
+
+	/**
+	 * @param name the name of an {@link SmsParameterDesc.SmsParameterType#ATTRIBUTE} parameter
+	 * @return the value of the attribute for this user, or null
+	 */
+	public Object getAttribute( String name )
+	{
+		return attributes.get( name );
+	}
+
+	public String getStringAttribute( String name )
+	{
+		Object value = attributes.get( name );
+		return value == null ? null : value.toString();
+	}
+
+	public Map<String, Object> getAttributes()
+	{
+		return attributes;
+	}
+
+	/**
+	 * @return the context for one provider of a group, see {@link SmsConfig#forPrefix(String)}
+	 */
+	public SmsSendContext forPrefix( String prefix )
+	{
+		Map<String, Object> own = new HashMap<>();
+		for ( Map.Entry<String, Object> attribute : attributes.entrySet() )
+			if ( attribute.getKey().startsWith( prefix ) )
+				own.put( attribute.getKey().substring( prefix.length() ), attribute.getValue() );
+		return new SmsSendContext( config.forPrefix( prefix ), principalDn, own );
+	}
+
+	/**
+	 * @return the provider configuration with the principal DN and attribute values added, as passed to
+	 * {@link SmsProvider#update(SmsConfig)}
+	 */
+	public SmsConfig toConfig()
+	{
+		Map<String, Object> values = new HashMap<>( attributes );
+		if ( principalDn != null )
+			values.put( SmsConfig.PRINCIPAL_DN, principalDn );
+		return config.withParams( values );
+	}
+}
@@ -0,0 +1,48 @@
+package nl.idfocus.nam.sms;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Reports the status of the last SMS sent in the background for the caller's session, as 
+ * <code>{"status":"pending"}</code>, <code>"sent"</code> or <code>"failed"</code>. <br/>
+ * The verification page can poll this to show the send error and the retry option without a form post. 
+ * Returns 404 when there is no background send for the session. <br/>
+ * Register the servlet in the IdP web.xml:
+ * <pre>
+ *     &lt;servlet>
+ *         &lt;servlet-name>SmsSendStatus&lt;/servlet-name>
+ *         &lt;servlet-class>nl.idfocus.nam.sms.SmsSendStatusServlet&lt;/servlet-class>
+ *     &lt;/servlet>
+ *     &lt;servlet-mapping>
+ *         &lt;servlet-name>SmsSendStatus&lt;/servlet-name>
+ *         &lt;url-pattern>/smsstatus&lt;/url-pattern>
+ *     &lt;/servlet-mapping>
+ * </pre>
+ */
+public class SmsSendStatusServlet extends HttpServlet
+{
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected void doGet( HttpServletRequest request, HttpServletResponse response ) throws ServletException, IOException
+	{
+		HttpSession session = request.getSession( false );
+		SmsDispatcher.Status status = session == null ? null 
+				: SmsDispatcher.getStatus( (String) session.getAttribute( SmsConstants.ATTR_SEND_ID ) );
+		if ( status == null )
+		{
+			response.sendError( HttpServletResponse.SC_NOT_FOUND );
+			return;
+		}
+		response.setHeader( "Cache-Control", "no-store" );
+		response.setContentType( "application/json" );
+		response.getWriter().write( "{\"status\":\"" + status.name().toLowerCase( Locale.ROOT ) + "\"}" );
+	}
+}
@@ -6,8 +6,14 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Serializable;
 import java.net.URL;
-import java.util.LinkedList;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Rejects codes that contain a word from the internal word list, ignoring case. <br/>
+ * The list is read and compiled once when the class is loaded.
+ */
 public class BadWords implements Serializable
 {
 
@@ -15,40 +21,38 @@ public class BadWords implements Serializable
 	 * 
 	 */
 	private static final long serialVersionUID = 894369293980773307L;
-	private final LinkedList<String> words;
+	private static final WordMatcher matcher = new WordMatcher( loadDict() );
 
 	public BadWords()
 	{
-		this.words = loadDict();
 	}
 
 	public boolean validate(String uid) 
 	{
-			for ( String word : words )
-			{
-				if ( uid.contains( word ) )
-					return false;
-			}
-			return true;
+		return isClean( uid );
+	}
+
+	/**
+	 * @return true when the candidate contains none of the words
+	 */
+	public static boolean isClean(CharSequence candidate)
+	{
+		return !matcher.find( candidate );
 	}
 
-	private LinkedList<String> loadDict()
+	private static List<String> loadDict()
 	{
-		LinkedList<String> words = new LinkedList<String>();
+		List<String> words = new ArrayList<String>();
 		// Load the internal wordlist
 		URL url = BadWords.class.getResource( "BadWords.list" );
-		try {
-			InputStream in = url.openStream();
-			BufferedReader rd = new BufferedReader( new InputStreamReader( in ) );
+		try ( BufferedReader rd = new BufferedReader( new InputStreamReader( url.openStream(), StandardCharsets.UTF_8 ) ) ) {
 			String line;
 			while( (line = rd.readLine() ) != null )
 			{
 				words.add( line.trim() );
 			}
-			in.close();
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			throw new IllegalStateException( "Unable to read word list", e );
 		}
 		return words;
 	}
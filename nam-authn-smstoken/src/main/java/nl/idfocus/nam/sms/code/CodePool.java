@@ -0,0 +1,201 @@
+package nl.idfocus.nam.sms.code;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nl.idfocus.nam.util.LogFormatter;
+
+/**
+ * Pool of vetted {@link RandomCode} values generated in the background, so request threads do not pay for random
+ * draws and word filtering. <br/>
+ * <p>
+ * There is one pool per character set and length. {@link #take()} removes the oldest code without locking. When the
+ * pool is empty, the code is generated on the calling thread and counted as a miss. When the depth drops below the
+ * low-water mark, a background thread fills the pool up to its capacity. Codes older than the maximum age are
+ * discarded and never handed out, so a code is not kept in memory long before it is used.
+ * </p>
+ */
+public final class CodePool
+{
+	private static final Logger logger = LogFormatter.getConsoleLogger( CodePool.class.getName() );
+
+	private static final ConcurrentMap<String, CodePool> shared = new ConcurrentHashMap<>();
+	private static final ScheduledThreadPoolExecutor filler = createFiller();
+
+	private final char[] chars;
+	private final int length;
+	private final int capacity;
+	private final int lowWater;
+	private final long maxAge;
+	private final ConcurrentLinkedQueue<Entry> codes = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger depth = new AtomicInteger();
+	private final AtomicBoolean filling = new AtomicBoolean();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+
+	CodePool( char[] chars, int length, int capacity, int lowWater, long maxAgeMillis )
+	{
+		if ( capacity < 1 || lowWater < 0 || lowWater > capacity || maxAgeMillis < 1 )
+			throw new IllegalArgumentException( "Invalid code pool settings" );
+		this.chars = chars.clone();
+		this.length = length;
+		this.capacity = capacity;
+		this.lowWater = lowWater;
+		this.maxAge = TimeUnit.MILLISECONDS.toNanos( maxAgeMillis );
+		scheduleFill();
+		// Replace codes that age out while the pool is idle
+		long sweep = Math.max( 1, maxAgeMillis / 2 );
+		filler.scheduleWithFixedDelay( this::sweep, sweep, sweep, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Return the pool for the given character set and length, creating and filling it on first use. <br/>
+	 * The other settings are taken from the first caller.
+	 * @param chars the token character set
+	 * @param length the token length
+	 * @param capacity maximum number of codes in the pool
+	 * @param lowWater depth below which the pool is filled up again
+	 * @param maxAgeMillis maximum time a code may wait in the pool
+	 * @return the pool
+	 */
+	public static CodePool getShared( char[] chars, int length, int capacity, int lowWater, long maxAgeMillis )
+	{
+		return shared.computeIfAbsent( new String( chars ) + ":" + length,
+				key -> new CodePool( chars, length, capacity, lowWater, maxAgeMillis ) );
+	}
+
+	private static ScheduledThreadPoolExecutor createFiller()
+	{
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor( 1, task -> {
+			Thread thread = new Thread( task, "sms-code-pool" );
+			thread.setDaemon( true );
+			thread.setPriority( Thread.MIN_PRIORITY );
+			return thread;
+		} );
+		executor.setRemoveOnCancelPolicy( true );
+		return executor;
+	}
+
+	/**
+	 * @return a fresh code, from the pool when available
+	 */
+	public RandomCode take()
+	{
+		long now = System.nanoTime();
+		Entry entry;
+		while ( ( entry = codes.poll() ) != null )
+		{
+			int left = depth.decrementAndGet();
+			if ( left < lowWater )
+				scheduleFill();
+			if ( now - entry.created <= maxAge )
+			{
+				hits.incrementAndGet();
+				return entry.code;
+			}
+			expired.incrementAndGet();
+		}
+		misses.incrementAndGet();
+		scheduleFill();
+		return new RandomCode( chars, length );
+	}
+
+	private void scheduleFill()
+	{
+		if ( filling.compareAndSet( false, true ) )
+			filler.execute( this::fill );
+	}
+
+	private void fill()
+	{
+		try
+		{
+			sweep();
+			while ( depth.get() < capacity )
+			{
+				codes.offer( new Entry( new RandomCode( chars, length ), System.nanoTime() ) );
+				depth.incrementAndGet();
+			}
+		}
+		catch ( RuntimeException e )
+		{
+			logger.log( Level.SEVERE, "Could not fill code pool: "+e.getMessage(), e );
+		}
+		finally
+		{
+			filling.set( false );
+		}
+	}
+
+	/**
+	 * Drop expired codes from the head of the queue, which holds the oldest, and refill when below the low-water mark.
+	 */
+	private void sweep()
+	{
+		long now = System.nanoTime();
+		Entry head;
+		while ( ( head = codes.peek() ) != null && now - head.created > maxAge )
+		{
+			if ( codes.remove( head ) )
+			{
+				depth.decrementAndGet();
+				expired.incrementAndGet();
+			}
+		}
+		if ( depth.get() < lowWater )
+			scheduleFill();
+	}
+
+	/**
+	 * @return number of codes in the pool
+	 */
+	public int getDepth()
+	{
+		return depth.get();
+	}
+
+	/**
+	 * @return number of codes taken from the pool
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return number of codes generated on the calling thread because the pool was empty
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * @return number of codes discarded because they were too old
+	 */
+	public long getExpired()
+	{
+		return expired.get();
+	}
+
+	private static final class Entry
+	{
+		private final RandomCode code;
+		private final long created;
+
+		Entry( RandomCode code, long created )
+		{
+			this.code = code;
+			this.created = created;
+		}
+	}
+}
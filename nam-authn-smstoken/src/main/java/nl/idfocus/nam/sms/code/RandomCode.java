@@ -10,6 +10,12 @@ public class RandomCode implements Serializable
 	 * 
 	 */
 	private static final long serialVersionUID = 5764822800743457381L;
+	/**
+	 * Number of candidates tried before giving up. With the default character set and length almost every
+	 * candidate is accepted; running out means the character set cannot form clean codes.
+	 */
+	static final int MAX_ATTEMPTS = 100;
+	private static final SecureRandom random = new SecureRandom();
 	private char[] chars = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
 	private int length   = 8;
 	private final String code;
@@ -37,22 +43,19 @@ public class RandomCode implements Serializable
 		return this.code;
 	}
 
-	private String generateCode( char[] chars, int length )
+	private static String generateCode( char[] chars, int length )
 	{
-		BadWords checker = new BadWords();
-		// FIXME this needs a timeout
-		while( true )
+		char[] candidate = new char[length];
+		for ( int attempt = 0; attempt < MAX_ATTEMPTS; attempt++ )
 		{
-			StringBuilder sb = new StringBuilder();
-			SecureRandom random = new SecureRandom();
 			for (int i = 0; i < length; i++) {
-			    char c = chars[random.nextInt(chars.length)];
-			    sb.append(c);
+			    candidate[i] = chars[random.nextInt(chars.length)];
 			}
-			String output = sb.toString();
-			if ( checker.validate(output) )
+			String output = new String( candidate );
+			if ( BadWords.isClean( output ) )
 				return output;
 		}
+		throw new IllegalStateException( "No acceptable code in "+MAX_ATTEMPTS+" attempts, check the token character set" );
 	}
 
 	@Override
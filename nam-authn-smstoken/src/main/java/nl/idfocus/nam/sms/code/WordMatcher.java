@@ -0,0 +1,142 @@
+package nl.idfocus.nam.sms.code;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+
+/**
+ * Finds any of a fixed set of words in a text in a single pass, ignoring case. <br/>
+ * The words are compiled into an Aho-Corasick automaton whose failure links are resolved ahead of time, so matching
+ * is one table lookup per character. Instances are immutable and safe to share between threads.
+ */
+final class WordMatcher
+{
+	/** Character class of characters that do not occur in any word */
+	private static final int OTHER = 0;
+
+	private final char[] alphabet;
+	private final byte[] asciiClasses = new byte[128];
+	private final int width;
+	private final int[] transitions;
+	private final boolean[] accepting;
+
+	/**
+	 * @param words the words to find; empty entries are ignored
+	 */
+	WordMatcher(Collection<String> words)
+	{
+		TreeSet<Character> chars = new TreeSet<>();
+		List<String> folded = new ArrayList<>(words.size());
+		for (String word : words)
+		{
+			String lower = word.trim().toLowerCase(Locale.ROOT);
+			if (lower.isEmpty())
+				continue;
+			folded.add(lower);
+			for (char c : lower.toCharArray())
+				chars.add(c);
+		}
+		alphabet = new char[chars.size()];
+		int index = 0;
+		for (char c : chars)
+			alphabet[index++] = c;
+		if (alphabet.length > Byte.MAX_VALUE)
+			throw new IllegalArgumentException("Too many distinct characters in word list");
+		for (char c = 0; c < asciiClasses.length; c++)
+			asciiClasses[c] = (byte) lookup(c);
+		width = alphabet.length + 1;
+
+		// Build the trie
+		List<int[]> nodes = new ArrayList<>();
+		List<Boolean> ends = new ArrayList<>();
+		nodes.add(new int[width]);
+		ends.add(Boolean.FALSE);
+		for (String word : folded)
+		{
+			int state = 0;
+			for (char c : word.toCharArray())
+			{
+				int cls = lookup(c);
+				if (nodes.get(state)[cls] == 0)
+				{
+					nodes.get(state)[cls] = nodes.size();
+					nodes.add(new int[width]);
+					ends.add(Boolean.FALSE);
+				}
+				state = nodes.get(state)[cls];
+			}
+			ends.set(state, Boolean.TRUE);
+		}
+
+		// Resolve failure links breadth first into complete transitions
+		transitions = new int[nodes.size() * width];
+		accepting = new boolean[nodes.size()];
+		int[] failure = new int[nodes.size()];
+		Deque<Integer> queue = new ArrayDeque<>();
+		for (int cls = 0; cls < width; cls++)
+		{
+			int child = nodes.get(0)[cls];
+			transitions[cls] = child;
+			if (child != 0)
+				queue.add(child);
+		}
+		for (int state = 0; state < nodes.size(); state++)
+			accepting[state] = ends.get(state);
+		while (!queue.isEmpty())
+		{
+			int state = queue.poll();
+			accepting[state] |= accepting[failure[state]];
+			for (int cls = 0; cls < width; cls++)
+			{
+				int child = nodes.get(state)[cls];
+				int fallback = transitions[failure[state] * width + cls];
+				if (child == 0)
+				{
+					transitions[state * width + cls] = fallback;
+				}
+				else
+				{
+					failure[child] = fallback;
+					transitions[state * width + cls] = child;
+					queue.add(child);
+				}
+			}
+		}
+	}
+
+	private int lookup(char c)
+	{
+		int index = Arrays.binarySearch(alphabet, Character.toLowerCase(c));
+		return index < 0 ? OTHER : index + 1;
+	}
+
+	/**
+	 * @return true when the text contains at least one of the words
+	 */
+	boolean find(CharSequence text)
+	{
+		int state = 0;
+		for (int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			int cls = c < asciiClasses.length ? asciiClasses[c] : lookup(c);
+			state = transitions[state * width + cls];
+			if (accepting[state])
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return number of states in the automaton
+	 */
+	int size()
+	{
+		return accepting.length;
+	}
+}
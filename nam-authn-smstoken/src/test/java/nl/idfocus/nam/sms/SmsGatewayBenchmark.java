@@ -0,0 +1,98 @@
+package nl.idfocus.nam.sms;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import nl.idfocus.nam.sms.SmsGatewaySimulator.Format;
+import nl.idfocus.nam.sms.SmsGatewaySimulator.Latency;
+
+/**
+ * Measures sends per second against two {@link SmsGatewaySimulator} gateways with long tailed latency. <br/>
+ * <code>direct</code> sends through MessageBird only. <code>routed</code> sends through a {@link RoutingSmsProvider}
+ * whose first route fails at the given error rate, so the cost of failover shows. Use the sample time mode to see the
+ * latency percentiles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class SmsGatewayBenchmark
+{
+	@Param({ "0.0", "0.2" })
+	public double errorRate;
+
+	private SmsGatewaySimulator primary;
+	private SmsGatewaySimulator backup;
+	private SmsProvider direct;
+	private SmsProvider routed;
+
+	@Setup(Level.Trial)
+	public void start() throws IOException
+	{
+		primary = SmsGatewaySimulator.start(1);
+		primary.setLatency(Latency.logNormal(20, 0.5));
+		primary.setErrorRate(errorRate);
+		backup = SmsGatewaySimulator.start(2);
+		backup.setLatency(Latency.logNormal(20, 0.5));
+
+		SmsConfig conf = new SmsConfig();
+		conf.addParam(MessageBird.PARAM_URL, primary.getUrl(Format.MESSAGEBIRD));
+		direct = new MessageBird();
+		direct.init(conf, false);
+
+		SmsConfig routes = new SmsConfig();
+		routes.addParam("route1." + MessageBird.PARAM_URL, primary.getUrl(Format.MESSAGEBIRD));
+		routes.addParam("route2." + SMSCity.PARAM_URL, backup.getUrl(Format.SMSCITY));
+		routed = new RoutingSmsProvider(Arrays.<SmsProvider>asList(new MessageBird(), new SMSCity()));
+		routed.init(routes, false);
+	}
+
+	@TearDown(Level.Trial)
+	public void stop()
+	{
+		primary.close();
+		backup.close();
+	}
+
+	@Benchmark
+	public boolean direct()
+	{
+		return direct.send("X7K2QW9P", "31612345678", 2000);
+	}
+
+	@Benchmark
+	public boolean routed()
+	{
+		return routed.send("X7K2QW9P", "31612345678", 2000);
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Options opt = new OptionsBuilder()
+				.include(SmsGatewayBenchmark.class.getSimpleName())
+				.build();
+		new Runner(opt).run();
+	}
+}
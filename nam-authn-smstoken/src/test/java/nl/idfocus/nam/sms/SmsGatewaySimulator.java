@@ -0,0 +1,464 @@
+package nl.idfocus.nam.sms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import nl.idfocus.nam.util.LogFormatter;
+
+/**
+ * Local SMS gateway that speaks the MessageBird and SMSCity request formats, for load tests and failover tests
+ * without a gateway account. <br/>
+ * <p>
+ * MessageBird requests are accepted on {@link #MESSAGEBIRD_PATH} and SMSCity requests on {@link #SMSCITY_PATH}.
+ * Each request can be delayed by a {@link Latency}, failed with a given probability, or held until the client times
+ * out. Above the configured rate, requests are throttled the way the gateways do it. Accepted messages are captured
+ * and can be inspected with {@link #getMessages()}.
+ * </p><p>
+ * Faults and latencies are drawn from one random generator with a fixed seed, so a run with one client thread
+ * is repeatable. Run {@link #main(String[])} to start a simulator for manual tests.
+ * </p>
+ */
+public class SmsGatewaySimulator implements AutoCloseable
+{
+	private static final Logger logger = LogFormatter.getConsoleLogger(SmsGatewaySimulator.class.getName());
+
+	public static final String MESSAGEBIRD_PATH = "/api/sms";
+	public static final String SMSCITY_PATH = "/gateway/sms.php";
+
+	/** SMSCity response codes */
+	static final String SMSCITY_OK = "01";
+	static final String SMSCITY_AUTH_FAILED = "02";
+	static final String SMSCITY_THROTTLED = "05";
+	static final String SMSCITY_ERROR = "99";
+
+	public enum Format
+	{
+		MESSAGEBIRD,
+		SMSCITY
+	}
+
+	/**
+	 * Distribution of the time the gateway takes to answer.
+	 */
+	public interface Latency
+	{
+		/**
+		 * @return the delay for one request in milliseconds
+		 */
+		long next(Random random);
+
+		static Latency none()
+		{
+			return random -> 0;
+		}
+
+		static Latency fixed(long millis)
+		{
+			return random -> millis;
+		}
+
+		static Latency uniform(long minMillis, long maxMillis)
+		{
+			return random -> minMillis + (long) (random.nextDouble() * (maxMillis - minMillis));
+		}
+
+		/**
+		 * Long tailed latency, typical for gateways under load.
+		 * @param medianMillis the median delay
+		 * @param sigma the spread; 0.5 gives a 99th percentile of about 3 times the median
+		 */
+		static Latency logNormal(long medianMillis, double sigma)
+		{
+			return random -> Math.round(medianMillis * Math.exp(sigma * random.nextGaussian()));
+		}
+	}
+
+	/**
+	 * A message accepted by the simulator.
+	 */
+	public static final class Message
+	{
+		private final Format format;
+		private final Map<String, String> params;
+		private final long received;
+
+		Message(Format format, Map<String, String> params)
+		{
+			this.format = format;
+			this.params = Collections.unmodifiableMap(params);
+			this.received = System.currentTimeMillis();
+		}
+
+		public Format getFormat()
+		{
+			return format;
+		}
+
+		public String getDestination()
+		{
+			return params.get("destination");
+		}
+
+		public String getBody()
+		{
+			return params.get("body");
+		}
+
+		public String getSender()
+		{
+			return params.get("sender");
+		}
+
+		/**
+		 * @return all form parameters of the request
+		 */
+		public Map<String, String> getParams()
+		{
+			return params;
+		}
+
+		/**
+		 * @return the time the message was accepted, in milliseconds since the epoch
+		 */
+		public long getReceived()
+		{
+			return received;
+		}
+
+		@Override
+		public String toString()
+		{
+			return format + " " + getDestination() + ": " + getBody();
+		}
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Random random;
+	private final List<Message> messages = new ArrayList<>();
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicInteger throttled = new AtomicInteger();
+	private final AtomicInteger timedOut = new AtomicInteger();
+
+	private volatile Latency latency = Latency.none();
+	private volatile double errorRate;
+	private volatile double timeoutRate;
+	private volatile long hangMillis = 30000;
+	private volatile String userName;
+	private volatile String password;
+	private double ratePerSecond;
+	private double tokens;
+	private long lastRefill;
+
+	private SmsGatewaySimulator(int port, long seed) throws IOException
+	{
+		random = new Random(seed);
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 200);
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.createContext(MESSAGEBIRD_PATH, exchange -> handle(exchange, Format.MESSAGEBIRD));
+		server.createContext(SMSCITY_PATH, exchange -> handle(exchange, Format.SMSCITY));
+		server.start();
+	}
+
+	/**
+	 * Start a simulator on a free port of the loopback interface.
+	 * @param seed seed for latencies and faults
+	 */
+	public static SmsGatewaySimulator start(long seed) throws IOException
+	{
+		return new SmsGatewaySimulator(0, seed);
+	}
+
+	/**
+	 * Start a simulator on the given port of the loopback interface.
+	 */
+	public static SmsGatewaySimulator start(int port, long seed) throws IOException
+	{
+		return new SmsGatewaySimulator(port, seed);
+	}
+
+	/**
+	 * @return the URL to configure as the provider's <code>url</code> parameter
+	 */
+	public String getUrl(Format format)
+	{
+		return "http://127.0.0.1:" + server.getAddress().getPort()
+				+ (format == Format.MESSAGEBIRD ? MESSAGEBIRD_PATH : SMSCITY_PATH);
+	}
+
+	public void setLatency(Latency latency)
+	{
+		this.latency = latency;
+	}
+
+	/**
+	 * @param errorRate fraction of requests answered with a server error
+	 */
+	public void setErrorRate(double errorRate)
+	{
+		this.errorRate = errorRate;
+	}
+
+	/**
+	 * @param timeoutRate fraction of requests that are held for the hang time before they fail
+	 * @param hangMillis how long such requests are held, longer than the client timeout
+	 */
+	public void setTimeoutRate(double timeoutRate, long hangMillis)
+	{
+		this.timeoutRate = timeoutRate;
+		this.hangMillis = hangMillis;
+	}
+
+	/**
+	 * Throttle requests above the given rate. Up to one second of requests may arrive in a burst.
+	 * @param ratePerSecond the accepted rate, or 0 for no limit
+	 */
+	public synchronized void setRateLimit(double ratePerSecond)
+	{
+		this.ratePerSecond = ratePerSecond;
+		this.tokens = ratePerSecond;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Require the given credentials. By default any credentials are accepted.
+	 */
+	public void setCredentials(String userName, String password)
+	{
+		this.userName = userName;
+		this.password = password;
+	}
+
+	/**
+	 * @return the accepted messages, oldest first
+	 */
+	public List<Message> getMessages()
+	{
+		synchronized (messages)
+		{
+			return new ArrayList<>(messages);
+		}
+	}
+
+	/**
+	 * Wait until at least the given number of messages is accepted.
+	 * @return the accepted messages, or fewer when the timeout expires first
+	 */
+	public List<Message> awaitMessages(int count, long timeoutMillis) throws InterruptedException
+	{
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		synchronized (messages)
+		{
+			long left;
+			while (messages.size() < count && (left = deadline - System.nanoTime()) > 0)
+				TimeUnit.NANOSECONDS.timedWait(messages, left);
+			return new ArrayList<>(messages);
+		}
+	}
+
+	public void clear()
+	{
+		synchronized (messages)
+		{
+			messages.clear();
+		}
+		requests.set(0);
+		failed.set(0);
+		throttled.set(0);
+		timedOut.set(0);
+	}
+
+	public int getRequests()
+	{
+		return requests.get();
+	}
+
+	/**
+	 * @return number of requests failed by the error rate or the credentials
+	 */
+	public int getFailed()
+	{
+		return failed.get();
+	}
+
+	public int getThrottled()
+	{
+		return throttled.get();
+	}
+
+	/**
+	 * @return number of requests held until the client timed out
+	 */
+	public int getTimedOut()
+	{
+		return timedOut.get();
+	}
+
+	private void handle(HttpExchange exchange, Format format) throws IOException
+	{
+		try
+		{
+			requests.incrementAndGet();
+			Map<String, String> params = parseForm(readBody(exchange.getRequestBody()));
+			long delay;
+			double draw;
+			synchronized (random)
+			{
+				delay = latency.next(random);
+				draw = random.nextDouble();
+			}
+			if (!acquire())
+			{
+				throttled.incrementAndGet();
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				respond(exchange, format, 429, SMSCITY_THROTTLED, "Too many requests");
+				return;
+			}
+			if (draw < timeoutRate)
+			{
+				timedOut.incrementAndGet();
+				Thread.sleep(hangMillis);
+				respond(exchange, format, 504, SMSCITY_ERROR, "Timeout");
+				return;
+			}
+			if (delay > 0)
+				Thread.sleep(delay);
+			if (userName != null && !(userName.equals(params.get("username")) && password.equals(params.get("password"))))
+			{
+				failed.incrementAndGet();
+				respond(exchange, format, 401, SMSCITY_AUTH_FAILED, "Authentication failed");
+			}
+			else if (draw < timeoutRate + errorRate)
+			{
+				failed.incrementAndGet();
+				respond(exchange, format, 500, SMSCITY_ERROR, "Internal error");
+			}
+			else
+			{
+				capture(new Message(format, params));
+				respond(exchange, format, 200, SMSCITY_OK, "Message sent");
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			exchange.close();
+		}
+	}
+
+	private synchronized boolean acquire()
+	{
+		if (ratePerSecond <= 0)
+			return true;
+		long now = System.nanoTime();
+		tokens = Math.min(ratePerSecond, tokens + (now - lastRefill) / 1e9 * ratePerSecond);
+		lastRefill = now;
+		if (tokens < 1)
+			return false;
+		tokens--;
+		return true;
+	}
+
+	private void capture(Message message)
+	{
+		synchronized (messages)
+		{
+			messages.add(message);
+			messages.notifyAll();
+		}
+	}
+
+	/**
+	 * MessageBird signals the result with the HTTP status. SMSCity always answers 200 with an XML response code.
+	 */
+	private static void respond(HttpExchange exchange, Format format, int status, String code, String text) throws IOException
+	{
+		String body;
+		if (format == Format.MESSAGEBIRD)
+		{
+			exchange.getResponseHeaders().set("Content-Type", "text/plain");
+			body = text;
+		}
+		else
+		{
+			exchange.getResponseHeaders().set("Content-Type", "text/xml");
+			body = "<response><responseCode>" + code + "</responseCode><responseMessage>" + text
+					+ "</responseMessage><credits>1000</credits></response>";
+			status = 200;
+		}
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody())
+		{
+			out.write(bytes);
+		}
+	}
+
+	private static String readBody(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+		while ((read = in.read(buffer)) != -1)
+			content.write(buffer, 0, read);
+		return new String(content.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static Map<String, String> parseForm(String form) throws UnsupportedEncodingException
+	{
+		Map<String, String> params = new HashMap<>();
+		for (String pair : form.split("&"))
+		{
+			int eq = pair.indexOf('=');
+			if (eq > 0)
+				params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+		}
+		return params;
+	}
+
+	@Override
+	public void close()
+	{
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Start a simulator on port 8082, or the port given as the first argument, with 200 ms median latency and
+	 * 5% errors.
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		SmsGatewaySimulator simulator = start(args.length > 0 ? Integer.parseInt(args[0]) : 8082, 1);
+		simulator.setLatency(Latency.logNormal(200, 0.5));
+		simulator.setErrorRate(0.05);
+		logger.info("SMS gateway simulator listening on " + simulator.getUrl(Format.MESSAGEBIRD) + " and "
+				+ simulator.getUrl(Format.SMSCITY));
+	}
+}
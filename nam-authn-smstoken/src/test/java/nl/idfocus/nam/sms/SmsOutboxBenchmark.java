@@ -0,0 +1,142 @@
+package nl.idfocus.nam.sms;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures sends per second with and without the outbox, using a provider that returns at once so only the cost of
+ * the journal is measured. <br/>
+ * <code>direct</code> is the send path without an outbox. <code>journaled</code> appends, sends and acknowledges;
+ * with <code>sync</code> 0 every write is forced to disk, otherwise writes are forced in batches every
+ * <code>sync</code> milliseconds. All runs use 4 threads, like concurrent logins.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class SmsOutboxBenchmark
+{
+	private final SmsProvider provider = new NullProvider();
+	private final SmsSendContext context = new SmsSendContext(new SmsConfig(), "cn=user,o=idfocus",
+			Collections.<String, Object>emptyMap());
+
+	@State(Scope.Benchmark)
+	public static class Journal
+	{
+		@Param({ "0", "10", "100" })
+		public long sync;
+
+		File dir;
+		SmsOutbox outbox;
+
+		@Setup(Level.Trial)
+		public void open() throws IOException
+		{
+			dir = Files.createTempDirectory("outbox").toFile();
+			outbox = new SmsOutbox(dir, SmsOutbox.DEF_SEGMENT_SIZE, sync, 60000);
+		}
+
+		@TearDown(Level.Trial)
+		public void close()
+		{
+			outbox.close();
+			File[] files = dir.listFiles();
+			if (files != null)
+				for (File file : files)
+					file.delete();
+			dir.delete();
+		}
+	}
+
+	@Benchmark
+	public boolean direct()
+	{
+		return provider.send("X7K2QW9P", "+31612345678", 1000, context);
+	}
+
+	@Benchmark
+	public boolean journaled(Journal journal) throws IOException
+	{
+		long id = journal.outbox.append("X7K2QW9P", "+31612345678", context);
+		boolean sent = provider.send("X7K2QW9P", "+31612345678", 1000, context);
+		journal.outbox.acknowledge(id);
+		return sent;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Options opt = new OptionsBuilder()
+				.include(SmsOutboxBenchmark.class.getSimpleName())
+				.build();
+		new Runner(opt).run();
+	}
+
+	private static class NullProvider implements SmsProvider
+	{
+		@Override
+		public void init(SmsConfig config, boolean dbg) {}
+
+		@Override
+		public boolean send(String message, String number, int timeout)
+		{
+			return true;
+		}
+
+		@Override
+		public boolean send(String message, String number, int timeout, SmsSendContext context)
+		{
+			return true;
+		}
+
+		@Override
+		public boolean ready()
+		{
+			return true;
+		}
+
+		@Override
+		public String getName()
+		{
+			return "null";
+		}
+
+		@Override
+		public SmsParameterDesc[] getParameters()
+		{
+			return new SmsParameterDesc[0];
+		}
+
+		@Override
+		public boolean needPrincipal()
+		{
+			return false;
+		}
+
+		@Override
+		public void update(SmsConfig config) {}
+	}
+}
@@ -0,0 +1,158 @@
+package nl.idfocus.nam.sms;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import javax.naming.directory.NoSuchAttributeException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestLdapScratchCodes
+{
+	private static final String DN = "cn=mockito,ou=users,o=org";
+	private static final String ATTR = "ldapScratchCode";
+
+	private Set<String> values;
+	private AtomicInteger modifications;
+	private DirContext ctx;
+
+	@Before
+	public void setUp()
+	{
+		values = Collections.synchronizedSet(new HashSet<String>());
+		modifications = new AtomicInteger();
+		ctx = directory(null);
+	}
+
+	/**
+	 * A directory holding the values of one attribute, which only supports deleting a single value.
+	 */
+	private DirContext directory(NamingException failure)
+	{
+		return (DirContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { DirContext.class },
+				(proxy, method, args) -> {
+					if (!"modifyAttributes".equals(method.getName()) || !(args[1] instanceof ModificationItem[]))
+						throw new UnsupportedOperationException(method.getName());
+					modifications.incrementAndGet();
+					if (failure != null)
+						throw failure;
+					assertEquals(DN, args[0]);
+					ModificationItem item = ((ModificationItem[]) args[1])[0];
+					assertEquals(DirContext.REMOVE_ATTRIBUTE, item.getModificationOp());
+					assertEquals(ATTR, item.getAttribute().getID());
+					if (!values.remove(item.getAttribute().get()))
+						throw new NoSuchAttributeException("[LDAP: error code 16 - No Such Attribute]");
+					return null;
+				});
+	}
+
+	@Test
+	public void testHash()
+	{
+		String hash = LdapScratchCodes.hash(DN, "81915571");
+		assertTrue(hash.startsWith(LdapScratchCodes.HASH_PREFIX));
+		assertEquals(LdapScratchCodes.HASH_PREFIX.length() + 64, hash.length());
+		assertFalse(hash.equals(LdapScratchCodes.hash(DN, "81915572")));
+		assertTrue(LdapScratchCodes.matches(hash, DN, "81915571"));
+		assertFalse(LdapScratchCodes.matches(hash, DN, "81915572"));
+		assertTrue(LdapScratchCodes.matches("81915571", DN, "81915571"));
+		assertFalse(LdapScratchCodes.matches(null, DN, "81915571"));
+	}
+
+	@Test
+	public void testHashIsSaltedWithDn()
+	{
+		String hash = LdapScratchCodes.hash(DN, "81915571");
+		assertFalse(hash.equals(LdapScratchCodes.hash("cn=other,ou=users,o=org", "81915571")));
+		assertEquals(hash, LdapScratchCodes.hash(DN.toUpperCase(), "81915571"));
+		assertFalse(LdapScratchCodes.matches(hash, "cn=other,ou=users,o=org", "81915571"));
+	}
+
+	@Test
+	public void testStoredFormatMatchesDelete() throws Exception
+	{
+		String hash = LdapScratchCodes.hash(DN, "81915571");
+		String hex = hash.substring(LdapScratchCodes.HASH_PREFIX.length());
+		assertEquals(hex.toLowerCase(), hex);
+		// A value in another case is not what the delete sends, so it does not match either
+		String upper = LdapScratchCodes.HASH_PREFIX + hex.toUpperCase();
+		assertFalse(LdapScratchCodes.matches(upper, DN, "81915571"));
+		values.add(hash);
+		assertTrue(LdapScratchCodes.matches(hash, DN, "81915571"));
+		assertTrue(LdapScratchCodes.consume(ctx, DN, ATTR, "81915571"));
+	}
+
+	@Test
+	public void testConsumeHashedWithOneModify() throws Exception
+	{
+		values.add(LdapScratchCodes.hash(DN, "81915571"));
+		values.add(LdapScratchCodes.hash(DN, "52984984"));
+		assertTrue(LdapScratchCodes.consume(ctx, DN, ATTR, "81915571"));
+		assertEquals(1, modifications.get());
+		assertEquals(Collections.singleton(LdapScratchCodes.hash(DN, "52984984")), values);
+	}
+
+	@Test
+	public void testConsumePlain() throws Exception
+	{
+		values.add("81915571");
+		assertTrue(LdapScratchCodes.consume(ctx, DN, ATTR, "81915571"));
+		assertTrue(values.isEmpty());
+	}
+
+	@Test
+	public void testCodeIsUsedOnce() throws Exception
+	{
+		values.add(LdapScratchCodes.hash(DN, "81915571"));
+		assertTrue(LdapScratchCodes.consume(ctx, DN, ATTR, "81915571"));
+		assertFalse(LdapScratchCodes.consume(ctx, DN, ATTR, "81915571"));
+		assertFalse(LdapScratchCodes.consume(ctx, DN, ATTR, ""));
+		assertFalse(LdapScratchCodes.consume(ctx, DN, ATTR, null));
+	}
+
+	@Test
+	public void testConcurrentLoginsShareNoCode() throws Exception
+	{
+		values.add(LdapScratchCodes.hash(DN, "81915571"));
+		CountDownLatch start = new CountDownLatch(1);
+		AtomicInteger accepted = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++)
+		{
+			threads[i] = new Thread(() -> {
+				try
+				{
+					start.await();
+					if (LdapScratchCodes.consume(ctx, DN, ATTR, "81915571"))
+						accepted.incrementAndGet();
+				}
+				catch (Exception e)
+				{
+					fail(e.getMessage());
+				}
+			});
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(1, accepted.get());
+	}
+
+	@Test(expected = CommunicationException.class)
+	public void testOtherErrorsPropagate() throws Exception
+	{
+		LdapScratchCodes.consume(directory(new CommunicationException("down")), DN, ATTR, "81915571");
+	}
+}
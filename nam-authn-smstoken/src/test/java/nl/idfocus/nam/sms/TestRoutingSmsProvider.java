@@ -0,0 +1,293 @@
+package nl.idfocus.nam.sms;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.idfocus.nam.sms.RoutingSmsProvider.State;
+import nl.idfocus.nam.sms.SmsParameterDesc.SmsParameterType;
+import nl.idfocus.nam.util.HttpTransport;
+
+public class TestRoutingSmsProvider
+{
+	private Properties props;
+	private StubProvider first;
+	private StubProvider second;
+
+	@Before
+	public void setUp()
+	{
+		props = new Properties();
+		props.setProperty(RoutingSmsProvider.PROP_BREAKER_FAILURES, "3");
+		props.setProperty(RoutingSmsProvider.PROP_BREAKER_OPEN, "200");
+		first = new StubProvider("first");
+		second = new StubProvider("second");
+	}
+
+	private RoutingSmsProvider create()
+	{
+		props.setProperty("route1.userName", "one");
+		props.setProperty("route2.userName", "two");
+		RoutingSmsProvider router = new RoutingSmsProvider(Arrays.<SmsProvider>asList(first, second));
+		router.init(new SmsConfig(props, router.getParameters()), false);
+		return router;
+	}
+
+	@Test
+	public void testParametersArePrefixed()
+	{
+		RoutingSmsProvider router = create();
+		List<String> required = new ArrayList<>();
+		for (SmsParameterDesc param : router.getParameters())
+			if (param.isRequired())
+				required.add(param.getName());
+		assertEquals(Arrays.asList("route1.userName", "route2.userName"), required);
+		assertEquals("one", first.config.getStringValue("userName"));
+		assertEquals("two", second.config.getStringValue("userName"));
+	}
+
+	@Test
+	public void testContextIsPrefixed()
+	{
+		RoutingSmsProvider router = create();
+		Map<String, Object> attributes = new HashMap<>();
+		attributes.put("route1.language", "nl");
+		attributes.put("route2.language", "en");
+		assertTrue(router.send("1234", "+31600000000", 1000, new SmsSendContext(new SmsConfig(), "cn=user", attributes)));
+		assertEquals("nl", first.context.getAttribute("language"));
+		assertEquals("cn=user", first.context.getPrincipalDn());
+	}
+
+	@Test
+	public void testFailover()
+	{
+		first.result = false;
+		RoutingSmsProvider router = create();
+		assertTrue(router.send("1234", "+31600000000", 1000));
+		assertEquals(1, first.sends.get());
+		assertEquals(1, second.sends.get());
+		assertEquals(1.0, router.getErrorRate(0), 0.001);
+		assertEquals(0.0, router.getErrorRate(1), 0.001);
+	}
+
+	@Test
+	public void testCircuitOpensAndProbes() throws Exception
+	{
+		first.result = false;
+		props.setProperty(RoutingSmsProvider.PROP_ROUTING, RoutingSmsProvider.ROUTING_COST);
+		RoutingSmsProvider router = create();
+		for (int i = 0; i < 3; i++)
+			assertTrue(router.send("1234", "+31600000000", 1000));
+		assertEquals(State.OPEN, router.getState(0));
+		// The open circuit is skipped
+		router.send("1234", "+31600000000", 1000);
+		assertEquals(3, first.sends.get());
+		// After the open time one probe is let through, and closes the circuit on success
+		Thread.sleep(250);
+		first.result = true;
+		assertTrue(router.send("1234", "+31600000000", 1000));
+		assertEquals(4, first.sends.get());
+		assertEquals(State.CLOSED, router.getState(0));
+	}
+
+	@Test
+	public void testFailedProbeReopens() throws Exception
+	{
+		first.result = false;
+		props.setProperty(RoutingSmsProvider.PROP_ROUTING, RoutingSmsProvider.ROUTING_COST);
+		RoutingSmsProvider router = create();
+		for (int i = 0; i < 3; i++)
+			router.send("1234", "+31600000000", 1000);
+		Thread.sleep(250);
+		router.send("1234", "+31600000000", 1000);
+		assertEquals(4, first.sends.get());
+		assertEquals(State.OPEN, router.getState(0));
+	}
+
+	@Test
+	public void testHealthPrefersFasterProvider()
+	{
+		first.delay = 50;
+		RoutingSmsProvider router = create();
+		for (int i = 0; i < 5; i++)
+			assertTrue(router.send("1234", "+31600000000", 1000));
+		assertEquals(1, first.sends.get());
+		assertEquals(4, second.sends.get());
+	}
+
+	@Test
+	public void testHealthAvoidsProviderThatFailsFast()
+	{
+		first.result = false;
+		second.delay = 20;
+		RoutingSmsProvider router = create();
+		for (int i = 0; i < 5; i++)
+			assertTrue(router.send("1234", "+31600000000", 1000));
+		// Failing without delay does not make the first provider look faster than the healthy one
+		assertEquals(1, first.sends.get());
+		assertEquals(5, second.sends.get());
+	}
+
+	@Test
+	public void testOldFailuresAgeOut()
+	{
+		first.result = false;
+		RoutingSmsProvider router = create();
+		for (int i = 0; i < 5; i++)
+			assertTrue(router.send("1234", "+31600000000", 1000));
+		assertEquals(1, first.sends.get());
+		long now = System.nanoTime();
+		assertSame(second, router.order(now).get(0).getProvider());
+		// Once its failure is old enough, the first provider is tried again
+		long later = now + TimeUnit.MINUTES.toNanos(RoutingSmsProvider.SAMPLE_MINUTES + 1);
+		assertSame(first, router.order(later).get(0).getProvider());
+	}
+
+	@Test
+	public void testBusyTransportIsNotAFailure()
+	{
+		first = new StubProvider("first")
+		{
+			@Override
+			public boolean send(String message, String number, int timeout)
+			{
+				sends.incrementAndGet();
+				// Interrupted while waiting for a connection slot, so the request never leaves this host
+				Thread.currentThread().interrupt();
+				try
+				{
+					new HttpTransport(1000, 1000, 1, null).post("http://localhost:1/", new HttpTransport.Form(), timeout);
+				}
+				catch (IOException e)
+				{
+					Thread.interrupted();
+				}
+				return false;
+			}
+		};
+		RoutingSmsProvider router = create();
+		for (int i = 0; i < 5; i++)
+			assertTrue(router.send("1234", "+31600000000", 1000));
+		assertEquals(5, first.sends.get());
+		assertEquals(5, second.sends.get());
+		assertEquals(State.CLOSED, router.getState(0));
+		assertEquals(0.0, router.getErrorRate(0), 0.001);
+	}
+
+	@Test
+	public void testCostRouting()
+	{
+		props.setProperty(RoutingSmsProvider.PROP_ROUTING, RoutingSmsProvider.ROUTING_COST);
+		props.setProperty("route1.cost", "0.08");
+		props.setProperty("route2.cost", "0.05");
+		RoutingSmsProvider router = create();
+		for (int i = 0; i < 3; i++)
+			assertTrue(router.send("1234", "+31600000000", 1000));
+		assertEquals(0, first.sends.get());
+		assertEquals(3, second.sends.get());
+	}
+
+	@Test
+	public void testHedgedSend()
+	{
+		props.setProperty(RoutingSmsProvider.PROP_ROUTING, RoutingSmsProvider.ROUTING_COST);
+		props.setProperty(RoutingSmsProvider.PROP_HEDGE_DELAY, "50");
+		first.delay = 1000;
+		RoutingSmsProvider router = create();
+		long start = System.currentTimeMillis();
+		assertTrue(router.send("1234", "+31600000000", 2000));
+		assertTrue(System.currentTimeMillis() - start < 800);
+		assertEquals(1, second.sends.get());
+	}
+
+	@Test
+	public void testAllFailed()
+	{
+		first.result = false;
+		second.result = false;
+		RoutingSmsProvider router = create();
+		assertFalse(router.send("1234", "+31600000000", 1000));
+	}
+
+	private static class StubProvider implements SmsProvider
+	{
+		private final String name;
+		final AtomicInteger sends = new AtomicInteger();
+		volatile boolean result = true;
+		volatile long delay;
+		SmsConfig config;
+		volatile SmsSendContext context;
+
+		StubProvider(String name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public void init(SmsConfig config, boolean dbg)
+		{
+			this.config = config;
+		}
+
+		@Override
+		public boolean send(String message, String number, int timeout)
+		{
+			sends.incrementAndGet();
+			try
+			{
+				if (delay > 0)
+					Thread.sleep(delay);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			return result;
+		}
+
+		@Override
+		public boolean send(String message, String number, int timeout, SmsSendContext context)
+		{
+			this.context = context;
+			return send(message, number, timeout);
+		}
+
+		@Override
+		public boolean ready()
+		{
+			return true;
+		}
+
+		@Override
+		public String getName()
+		{
+			return name;
+		}
+
+		@Override
+		public SmsParameterDesc[] getParameters()
+		{
+			return new SmsParameterDesc[] { new SmsParameterDesc("userName", SmsParameterType.STRING) };
+		}
+
+		@Override
+		public boolean needPrincipal()
+		{
+			return false;
+		}
+
+		@Override
+		public void update(SmsConfig config) {}
+	}
+}
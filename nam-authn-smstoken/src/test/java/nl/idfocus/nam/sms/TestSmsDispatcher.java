@@ -0,0 +1,161 @@
+package nl.idfocus.nam.sms;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import nl.idfocus.nam.sms.SmsDispatcher.Status;
+
+public class TestSmsDispatcher
+{
+	@Test
+	public void testSent() throws Exception
+	{
+		StubProvider provider = new StubProvider(true);
+		String id = SmsDispatcher.getShared(2, 10).dispatch(provider, "ABCD1234", "+31600000000", 1000);
+		assertEquals(Status.SENT, await(id));
+		assertEquals("+31600000000", provider.lastNumber);
+		SmsDispatcher.forget(id);
+		assertNull(SmsDispatcher.getStatus(id));
+	}
+
+	@Test
+	public void testFailed() throws Exception
+	{
+		String id = SmsDispatcher.getShared(2, 10).dispatch(new StubProvider(false), "ABCD1234", "+31600000000", 1000);
+		assertEquals(Status.FAILED, await(id));
+	}
+
+	@Test
+	public void testProviderException() throws Exception
+	{
+		StubProvider provider = new StubProvider(true);
+		provider.fail = new IllegalStateException("gateway down");
+		String id = SmsDispatcher.getShared(2, 10).dispatch(provider, "ABCD1234", "+31600000000", 1000);
+		assertEquals(Status.FAILED, await(id));
+	}
+
+	@Test
+	public void testFullQueueFailsImmediately() throws Exception
+	{
+		SmsDispatcher dispatcher = SmsDispatcher.getShared(1, 1);
+		StubProvider slow = new StubProvider(true);
+		slow.block = new CountDownLatch(1);
+		String running = dispatcher.dispatch(slow, "1", "+31600000001", 1000);
+		assertTrue(slow.started.await(5, TimeUnit.SECONDS));
+		String queued = dispatcher.dispatch(slow, "2", "+31600000002", 1000);
+		String rejected = dispatcher.dispatch(slow, "3", "+31600000003", 1000);
+		assertEquals(Status.FAILED, SmsDispatcher.getStatus(rejected));
+		assertEquals(Status.PENDING, SmsDispatcher.getStatus(queued));
+		assertEquals(1, dispatcher.getQueueDepth());
+		slow.block.countDown();
+		assertEquals(Status.SENT, await(running));
+		assertEquals(Status.SENT, await(queued));
+	}
+
+	@Test
+	public void testEvictionKeepsPendingResults() throws Exception
+	{
+		StubProvider slow = new StubProvider(true);
+		slow.block = new CountDownLatch(1);
+		String pending = SmsDispatcher.getShared(1, 2).dispatch(slow, "1", "+31600000001", 1000);
+		assertTrue(slow.started.await(5, TimeUnit.SECONDS));
+		SmsDispatcher dispatcher = SmsDispatcher.getShared(2, SmsDispatcher.MAX_RESULTS);
+		StubProvider fast = new StubProvider(false);
+		String oldest = dispatcher.dispatch(fast, "2", "+31600000002", 1000);
+		assertEquals(Status.FAILED, await(oldest));
+		String newest = null;
+		for (int i = 0; i < SmsDispatcher.MAX_RESULTS; i++)
+			newest = dispatcher.dispatch(fast, "3", "+31600000003", 1000);
+		assertEquals(Status.FAILED, await(newest));
+		assertNull(SmsDispatcher.getStatus(oldest));
+		assertEquals(Status.PENDING, SmsDispatcher.getStatus(pending));
+		slow.block.countDown();
+		assertEquals(Status.SENT, await(pending));
+	}
+
+	@Test
+	public void testUnknownId()
+	{
+		assertNull(SmsDispatcher.getStatus(null));
+		assertNull(SmsDispatcher.getStatus("unknown"));
+	}
+
+	private static Status await(String id) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 5000;
+		Status status = SmsDispatcher.getStatus(id);
+		while (status == Status.PENDING && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+			status = SmsDispatcher.getStatus(id);
+		}
+		return status;
+	}
+
+	private static class StubProvider implements SmsProvider
+	{
+		private final boolean result;
+		final CountDownLatch started = new CountDownLatch(1);
+		volatile CountDownLatch block;
+		volatile RuntimeException fail;
+		volatile String lastNumber;
+
+		StubProvider(boolean result)
+		{
+			this.result = result;
+		}
+
+		@Override
+		public void init(SmsConfig config, boolean dbg) {}
+
+		@Override
+		public boolean send(String message, String number, int timeout)
+		{
+			started.countDown();
+			if (fail != null)
+				throw fail;
+			try
+			{
+				if (block != null)
+					block.await(5, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			lastNumber = number;
+			return result;
+		}
+
+		@Override
+		public boolean ready()
+		{
+			return true;
+		}
+
+		@Override
+		public String getName()
+		{
+			return "Stub";
+		}
+
+		@Override
+		public SmsParameterDesc[] getParameters()
+		{
+			return new SmsParameterDesc[0];
+		}
+
+		@Override
+		public boolean needPrincipal()
+		{
+			return false;
+		}
+
+		@Override
+		public void update(SmsConfig config) {}
+	}
+}
@@ -0,0 +1,181 @@
+package nl.idfocus.nam.sms;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.idfocus.nam.sms.SmsGatewaySimulator.Format;
+import nl.idfocus.nam.sms.SmsGatewaySimulator.Latency;
+import nl.idfocus.nam.sms.SmsGatewaySimulator.Message;
+import nl.idfocus.nam.util.Base64;
+
+public class TestSmsGatewaySimulator
+{
+	private SmsGatewaySimulator simulator;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		simulator = SmsGatewaySimulator.start(42);
+	}
+
+	@After
+	public void tearDown()
+	{
+		simulator.close();
+	}
+
+	private MessageBird messageBird(SmsGatewaySimulator gateway)
+	{
+		SmsConfig conf = new SmsConfig();
+		conf.addParam(MessageBird.PARAM_URL, gateway.getUrl(Format.MESSAGEBIRD));
+		conf.addParam(MessageBird.PARAM_USR, "myUserName");
+		conf.addParam(MessageBird.PARAM_PWD, "myPassword");
+		conf.addParam(MessageBird.PARAM_APP, "IDFocus");
+		MessageBird provider = new MessageBird();
+		provider.init(conf, false);
+		return provider;
+	}
+
+	private SMSCity smsCity(SmsGatewaySimulator gateway)
+	{
+		SmsConfig conf = new SmsConfig();
+		conf.addParam(SMSCity.PARAM_URL, gateway.getUrl(Format.SMSCITY));
+		conf.addParam(SMSCity.PARAM_USR, "myUserName");
+		conf.addParam(SMSCity.PARAM_PWD, "myPassword");
+		conf.addParam(SMSCity.PARAM_SND, Base64.encodeToString("IDFocus".getBytes(), false));
+		SMSCity provider = new SMSCity();
+		provider.init(conf, false);
+		return provider;
+	}
+
+	@Test
+	public void testCapture()
+	{
+		assertTrue(messageBird(simulator).send("Your code is 1234", "31612345678", 2000));
+		assertTrue(smsCity(simulator).send("5678", "31687654321", 2000));
+		List<Message> messages = simulator.getMessages();
+		assertEquals(2, messages.size());
+		assertEquals(Format.MESSAGEBIRD, messages.get(0).getFormat());
+		assertEquals("31612345678", messages.get(0).getDestination());
+		assertEquals("Your code is 1234", messages.get(0).getBody());
+		assertEquals(Format.SMSCITY, messages.get(1).getFormat());
+		assertEquals("IDFocus", messages.get(1).getSender());
+	}
+
+	@Test
+	public void testSmsCityFromModuleProperties()
+	{
+		// Only declared parameters are copied from the module properties
+		Properties props = new Properties();
+		props.setProperty(SMSCity.PARAM_URL, simulator.getUrl(Format.SMSCITY));
+		props.setProperty(SMSCity.PARAM_USR, "myUserName");
+		props.setProperty(SMSCity.PARAM_PWD, "myPassword");
+		props.setProperty(SMSCity.PARAM_SND, Base64.encodeToString("IDFocus".getBytes(), false));
+		SMSCity provider = new SMSCity();
+		provider.init(new SmsConfig(props, provider.getParameters()), false);
+		// The gateway answers with response code 01
+		assertTrue(provider.send("5678", "31687654321", 2000));
+		assertEquals(1, simulator.getMessages().size());
+		assertEquals("31687654321", simulator.getMessages().get(0).getDestination());
+	}
+
+	@Test
+	public void testCredentials()
+	{
+		simulator.setCredentials("myUserName", "other");
+		assertFalse(messageBird(simulator).send("1234", "31612345678", 2000));
+		assertFalse(smsCity(simulator).send("1234", "31612345678", 2000));
+		assertEquals(2, simulator.getFailed());
+		assertTrue(simulator.getMessages().isEmpty());
+	}
+
+	@Test
+	public void testErrorRate()
+	{
+		simulator.setErrorRate(0.5);
+		MessageBird provider = messageBird(simulator);
+		int sent = 0;
+		for (int i = 0; i < 100; i++)
+			if (provider.send("1234", "31612345678", 2000))
+				sent++;
+		assertEquals(sent, simulator.getMessages().size());
+		assertEquals(100 - sent, simulator.getFailed());
+		assertTrue(sent > 30 && sent < 70);
+	}
+
+	@Test
+	public void testSameSeedSameFaults() throws Exception
+	{
+		boolean[][] outcomes = new boolean[2][20];
+		for (boolean[] outcome : outcomes)
+		{
+			try (SmsGatewaySimulator gateway = SmsGatewaySimulator.start(7))
+			{
+				gateway.setErrorRate(0.3);
+				MessageBird provider = messageBird(gateway);
+				for (int i = 0; i < outcome.length; i++)
+					outcome[i] = provider.send("1234", "31612345678", 2000);
+			}
+		}
+		assertTrue(Arrays.equals(outcomes[0], outcomes[1]));
+	}
+
+	@Test
+	public void testLatency()
+	{
+		simulator.setLatency(Latency.fixed(100));
+		long start = System.currentTimeMillis();
+		assertTrue(messageBird(simulator).send("1234", "31612345678", 2000));
+		assertTrue(System.currentTimeMillis() - start >= 100);
+	}
+
+	@Test
+	public void testTimeout()
+	{
+		simulator.setTimeoutRate(1.0, 1000);
+		long start = System.currentTimeMillis();
+		assertFalse(messageBird(simulator).send("1234", "31612345678", 200));
+		assertTrue(System.currentTimeMillis() - start < 900);
+		assertEquals(1, simulator.getTimedOut());
+	}
+
+	@Test
+	public void testThrottling()
+	{
+		simulator.setRateLimit(5);
+		SMSCity provider = smsCity(simulator);
+		int sent = 0;
+		for (int i = 0; i < 10; i++)
+			if (provider.send("1234", "31612345678", 2000))
+				sent++;
+		assertTrue(sent >= 5 && sent < 10);
+		assertEquals(10 - sent, simulator.getThrottled());
+	}
+
+	@Test
+	public void testFailover() throws Exception
+	{
+		try (SmsGatewaySimulator backup = SmsGatewaySimulator.start(43))
+		{
+			simulator.setErrorRate(1.0);
+			SmsConfig conf = new SmsConfig();
+			conf.addParam("route1." + MessageBird.PARAM_URL, simulator.getUrl(Format.MESSAGEBIRD));
+			conf.addParam("route1." + MessageBird.PARAM_USR, "myUserName");
+			conf.addParam("route2." + SMSCity.PARAM_URL, backup.getUrl(Format.SMSCITY));
+			conf.addParam("route2." + SMSCity.PARAM_USR, "myUserName");
+			RoutingSmsProvider router = new RoutingSmsProvider(Arrays.<SmsProvider>asList(new MessageBird(), new SMSCity()));
+			router.init(conf, false);
+			for (int i = 0; i < 5; i++)
+				assertTrue(router.send("1234", "31612345678", 2000));
+			assertEquals(5, backup.awaitMessages(5, 1000).size());
+			assertTrue(simulator.getMessages().isEmpty());
+		}
+	}
+}
@@ -0,0 +1,271 @@
+package nl.idfocus.nam.sms;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.idfocus.nam.sms.SmsParameterDesc.SmsParameterType;
+
+public class TestSmsOutbox
+{
+	private File dir;
+	private List<SmsOutbox> opened;
+	private StubProvider provider;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("outbox").toFile();
+		opened = new ArrayList<>();
+		provider = new StubProvider();
+	}
+
+	@After
+	public void tearDown()
+	{
+		for (SmsOutbox outbox : opened)
+			outbox.close();
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File file : files)
+				file.delete();
+		dir.delete();
+	}
+
+	private SmsOutbox open(long expiryMillis) throws IOException
+	{
+		// Retries run on the test thread, so their outcome can be checked right after retryDue()
+		SmsOutbox outbox = new SmsOutbox(dir, 4096, 0, expiryMillis, Runnable::run);
+		opened.add(outbox);
+		return outbox;
+	}
+
+	private SmsSendContext context()
+	{
+		return new SmsSendContext(new SmsConfig(), "cn=user", Collections.<String, Object>singletonMap("language", "nl"));
+	}
+
+	@Test
+	public void testAcknowledge() throws IOException
+	{
+		SmsOutbox outbox = open(60000);
+		long id = outbox.append("1234", "+31600000000", context());
+		assertTrue(outbox.isPending(id));
+		outbox.acknowledge(id);
+		assertFalse(outbox.isPending(id));
+		assertEquals(0, outbox.getPendingCount());
+	}
+
+	@Test
+	public void testReplayAfterRestart() throws IOException
+	{
+		SmsOutbox outbox = open(60000);
+		long sent = outbox.append("1234", "+31600000000", context());
+		long lost = outbox.append("5678", "+31611111111", context());
+		outbox.acknowledge(sent);
+		outbox.close();
+
+		SmsOutbox restarted = open(60000);
+		assertEquals(1, restarted.getPendingCount());
+		assertTrue(restarted.isPending(lost));
+		// Nothing is sent until there is a provider
+		restarted.retryDue();
+		assertEquals(0, provider.messages.size());
+		restarted.start(provider, new SmsConfig(), 1000);
+		restarted.retryDue();
+		assertEquals(Collections.singletonList("5678:+31611111111"), provider.messages);
+		assertEquals("cn=user", provider.context.getPrincipalDn());
+		assertEquals("nl", provider.context.getStringAttribute("language"));
+		assertEquals(0, restarted.getPendingCount());
+		// New messages do not reuse identifiers
+		assertTrue(restarted.append("9012", "+31600000000", null) > lost);
+	}
+
+	@Test
+	public void testFailedRetryIsKept() throws IOException
+	{
+		provider.result = false;
+		SmsOutbox outbox = open(60000);
+		outbox.start(provider, new SmsConfig(), 1000);
+		long id = outbox.append("1234", "+31600000000", null);
+		// In flight until released by the sender
+		outbox.retryDue();
+		assertEquals(0, provider.messages.size());
+		outbox.release(id);
+		outbox.retryDue();
+		assertEquals(1, provider.messages.size());
+		assertTrue(outbox.isPending(id));
+		// The next attempt is delayed
+		outbox.retryDue();
+		assertEquals(1, provider.messages.size());
+	}
+
+	@Test
+	public void testExpiredNotReplayed() throws Exception
+	{
+		SmsOutbox outbox = open(50);
+		long id = outbox.append("1234", "+31600000000", null);
+		outbox.close();
+		Thread.sleep(100);
+		SmsOutbox restarted = open(50);
+		assertFalse(restarted.isPending(id));
+		assertEquals(1, restarted.getSegmentCount());
+		assertEquals(1, dir.listFiles().length);
+	}
+
+	@Test
+	public void testExpiredDropped() throws Exception
+	{
+		SmsOutbox outbox = open(50);
+		outbox.start(provider, new SmsConfig(), 1000);
+		long id = outbox.append("1234", "+31600000000", null);
+		outbox.release(id);
+		Thread.sleep(100);
+		outbox.retryDue();
+		assertFalse(outbox.isPending(id));
+		assertEquals(0, provider.messages.size());
+	}
+
+	@Test
+	public void testRetryDoesNotWaitForTheGateway() throws Exception
+	{
+		CountDownLatch gateway = new CountDownLatch(1);
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try
+		{
+			SmsOutbox outbox = new SmsOutbox(dir, 4096, 0, 60000, pool);
+			opened.add(outbox);
+			outbox.start(new StubProvider() {
+				@Override
+				public boolean send(String message, String number, int timeout)
+				{
+					try
+					{
+						gateway.await();
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+					return super.send(message, number, timeout);
+				}
+			}, new SmsConfig(), 1000);
+			long id = outbox.append("1234", "+31600000000", null);
+			outbox.release(id);
+			// Returns while the gateway is still busy with the message
+			outbox.retryDue();
+			assertTrue(outbox.isPending(id));
+			outbox.retryDue();
+			gateway.countDown();
+			pool.shutdown();
+			assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+			assertFalse(outbox.isPending(id));
+		}
+		finally
+		{
+			gateway.countDown();
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testAcknowledgedSegmentsAreDeleted() throws IOException
+	{
+		SmsOutbox outbox = open(60000);
+		List<Long> ids = new ArrayList<>();
+		for (int i = 0; i < 500; i++)
+			ids.add(outbox.append(String.format("%08d", i), "+31600000000", context()));
+		assertTrue(outbox.getSegmentCount() > 3);
+		for (long id : ids)
+			outbox.acknowledge(id);
+		assertEquals(1, outbox.getSegmentCount());
+		assertEquals(1, dir.listFiles().length);
+	}
+
+	@Test
+	public void testDamagedRecordIgnored() throws IOException
+	{
+		SmsOutbox outbox = open(60000);
+		long first = outbox.append("1234", "+31600000000", null);
+		long second = outbox.append("5678", "+31600000000", null);
+		outbox.close();
+		// Damage the payload of the last record, as a torn write would
+		File[] files = dir.listFiles();
+		assertEquals(1, files.length);
+		try (RandomAccessFile raf = new RandomAccessFile(files[0], "rw"))
+		{
+			raf.seek(8);
+			int length = raf.readInt();
+			raf.seek(8 + length + 30);
+			raf.write(0xff);
+		}
+		SmsOutbox restarted = open(60000);
+		assertTrue(restarted.isPending(first));
+		assertFalse(restarted.isPending(second));
+	}
+
+	private static class StubProvider implements SmsProvider
+	{
+		final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+		volatile boolean result = true;
+		volatile SmsSendContext context;
+
+		@Override
+		public void init(SmsConfig config, boolean dbg) {}
+
+		@Override
+		public boolean send(String message, String number, int timeout)
+		{
+			messages.add(message + ":" + number);
+			return result;
+		}
+
+		@Override
+		public boolean send(String message, String number, int timeout, SmsSendContext context)
+		{
+			this.context = context;
+			return send(message, number, timeout);
+		}
+
+		@Override
+		public boolean ready()
+		{
+			return true;
+		}
+
+		@Override
+		public String getName()
+		{
+			return "stub";
+		}
+
+		@Override
+		public SmsParameterDesc[] getParameters()
+		{
+			return new SmsParameterDesc[] { new SmsParameterDesc("language", SmsParameterType.ATTRIBUTE) };
+		}
+
+		@Override
+		public boolean needPrincipal()
+		{
+			return true;
+		}
+
+		@Override
+		public void update(SmsConfig config) {}
+	}
+}
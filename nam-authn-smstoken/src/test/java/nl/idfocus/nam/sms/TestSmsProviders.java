@@ -0,0 +1,235 @@
+package nl.idfocus.nam.sms;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.idfocus.nam.util.Base64;
+import nl.idfocus.nam.util.StubGateway;
+
+public class TestSmsProviders
+{
+	private StubGateway gateway;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		gateway = StubGateway.start();
+	}
+
+	@After
+	public void tearDown()
+	{
+		gateway.close();
+	}
+
+	@Test
+	public void testMessageBirdReusesConnection()
+	{
+		SmsConfig conf = new SmsConfig();
+		conf.addParam(MessageBird.PARAM_URL, gateway.getUrl("/api/sms"));
+		conf.addParam(MessageBird.PARAM_USR, "myUserName");
+		conf.addParam(MessageBird.PARAM_PWD, "myPassword");
+		conf.addParam(MessageBird.PARAM_APP, "IDFocus");
+		MessageBird provider = new MessageBird();
+		provider.init(conf, false);
+		assertTrue(provider.send("Your code is 1234", "31612345678", 2000));
+		assertTrue(provider.send("Your code is 5678", "31612345678", 2000));
+		assertTrue(gateway.getLastRequest().contains("destination=31612345678"));
+		assertTrue(gateway.getLastRequest().contains("body=Your+code+is+5678"));
+		assertEquals(1, gateway.getConnections());
+	}
+
+	@Test
+	public void testMessageBirdFailure()
+	{
+		gateway.respond(401, "text/plain", "Unauthorized");
+		SmsConfig conf = new SmsConfig();
+		conf.addParam(MessageBird.PARAM_URL, gateway.getUrl("/api/sms"));
+		conf.addParam(MessageBird.PARAM_USR, "myUserName");
+		conf.addParam(MessageBird.PARAM_PWD, "wrong");
+		conf.addParam(MessageBird.PARAM_APP, "IDFocus");
+		MessageBird provider = new MessageBird();
+		provider.init(conf, false);
+		assertFalse(provider.send("Your code is 1234", "31612345678", 2000));
+	}
+
+	@Test
+	public void testSMSCityResponseCode()
+	{
+		SmsConfig conf = new SmsConfig();
+		conf.addParam(SMSCity.PARAM_URL, gateway.getUrl("/gateway/sms.php"));
+		conf.addParam(SMSCity.PARAM_USR, "myUserName");
+		conf.addParam(SMSCity.PARAM_PWD, "myPassword");
+		conf.addParam(SMSCity.PARAM_SND, Base64.encodeToString("IDFocus".getBytes(), false));
+		SMSCity provider = new SMSCity();
+		provider.init(conf, false);
+		gateway.respond(200, "text/xml", "<response><responseCode>01</responseCode><responseMessage>OK</responseMessage><credits>99</credits></response>");
+		assertTrue(provider.send("1234", "31612345678", 2000));
+		assertTrue(gateway.getLastRequest().contains("sender=IDFocus"));
+		gateway.respond(200, "text/xml", "<response><responseCode>02</responseCode><responseMessage>No credit</responseMessage></response>");
+		assertFalse(provider.send("1234", "31612345678", 2000));
+	}
+
+	@Test
+	public void testLookupBySimpleName() throws Exception
+	{
+		assertTrue(SmsProviders.newInstance("MessageBird") instanceof MessageBird);
+		assertTrue(SmsProviders.newInstance(SMSCity.class.getName()) instanceof SMSCity);
+		assertTrue(SmsProviders.newInstance("MessageBird, SMSCity") instanceof RoutingSmsProvider);
+	}
+
+	@Test(expected = ClassCastException.class)
+	public void testLookupRejectsOtherClass() throws Exception
+	{
+		SmsProviders.newInstance(String.class.getName());
+	}
+
+	@Test
+	public void testSharedPerConfiguration()
+	{
+		SmsConfig conf = new SmsConfig();
+		conf.addParam(MessageBird.PARAM_URL, gateway.getUrl("/api/sms"));
+		SmsConfig same = new SmsConfig();
+		same.addParam(MessageBird.PARAM_URL, gateway.getUrl("/api/sms"));
+		SmsConfig other = new SmsConfig();
+		other.addParam(MessageBird.PARAM_URL, gateway.getUrl("/other"));
+		SmsProvider provider = SmsProviders.getShared("MessageBird", new MessageBird(), conf, false);
+		assertSame(provider, SmsProviders.getShared("MessageBird", new MessageBird(), same, false));
+		assertNotSame(provider, SmsProviders.getShared("MessageBird", new MessageBird(), other, false));
+	}
+
+	@Test
+	public void testSharedWithoutCandidate() throws Exception
+	{
+		SmsConfig conf = new SmsConfig();
+		conf.addParam(MessageBird.PARAM_URL, gateway.getUrl("/shared"));
+		SmsProvider provider = SmsProviders.getShared("MessageBird", conf, false);
+		assertTrue(provider instanceof MessageBird);
+		assertSame(provider, SmsProviders.getShared(MessageBird.class.getSimpleName(), conf, false));
+	}
+
+	@Test
+	public void testParametersAreReadOnce() throws Exception
+	{
+		SmsParameterDesc[] expected = new MessageBird().getParameters();
+		SmsParameterDesc[] params = SmsProviders.getParameters("MessageBird");
+		assertEquals(expected.length, params.length);
+		for (int i = 0; i < params.length; i++)
+			assertEquals(expected[i].getName(), params[i].getName());
+		assertSame(params[0], SmsProviders.getParameters("MessageBird")[0]);
+	}
+
+	@Test
+	public void testCacheKeyHidesCredentials()
+	{
+		SmsConfig conf = new SmsConfig();
+		conf.addParam(MessageBird.PARAM_PWD, "myPassword");
+		SmsConfig other = new SmsConfig();
+		other.addParam(MessageBird.PARAM_PWD, "otherPassword");
+		assertFalse(conf.getCacheKey().contains("myPassword"));
+		assertFalse(conf.getCacheKey().equals(other.getCacheKey()));
+	}
+
+	@Test
+	public void testProvidersWithoutContextAreNotShared() throws Exception
+	{
+		SmsConfig conf = new SmsConfig();
+		String name = LegacyProvider.class.getName();
+		assertFalse(SmsProviders.isShareable(new LegacyProvider()));
+		assertTrue(SmsProviders.isShareable(new MessageBird()));
+		assertFalse(SmsProviders.isShareable(SmsProviders.newInstance("MessageBird, " + name)));
+		assertNotSame(SmsProviders.getShared(name, conf, false), SmsProviders.getShared(name, conf, false));
+	}
+
+	@Test
+	public void testConcurrentSendsWithoutContext() throws Exception
+	{
+		SmsConfig conf = new SmsConfig();
+		LegacyProvider.running.set(0);
+		LegacyProvider.maxRunning.set(0);
+		List<Thread> threads = new ArrayList<>();
+		AtomicInteger sent = new AtomicInteger();
+		for (int i = 0; i < 4; i++)
+		{
+			SmsProvider provider = SmsProviders.getShared(LegacyProvider.class.getName(), conf, false);
+			String number = "3161234567" + i;
+			SmsSendContext context = new SmsSendContext(conf, "cn=user" + i + ",o=org", new HashMap<String, Object>());
+			threads.add(new Thread(() -> {
+				if (provider.send("1234", number, 2000, context))
+					sent.incrementAndGet();
+			}));
+		}
+		long start = System.currentTimeMillis();
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(4, sent.get());
+		assertTrue(LegacyProvider.maxRunning.get() > 1);
+		assertTrue(System.currentTimeMillis() - start < 4 * LegacyProvider.DELAY);
+	}
+
+	/**
+	 * A provider that does not override the send with a context, like providers written before it existed.
+	 */
+	public static class LegacyProvider implements SmsProvider
+	{
+		static final long DELAY = 300;
+		static final AtomicInteger running = new AtomicInteger();
+		static final AtomicInteger maxRunning = new AtomicInteger();
+
+		@Override
+		public void init(SmsConfig config, boolean dbg) {}
+
+		@Override
+		public boolean send(String message, String number, int timeout)
+		{
+			maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+			try
+			{
+				Thread.sleep(DELAY);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			running.decrementAndGet();
+			return true;
+		}
+
+		@Override
+		public boolean ready()
+		{
+			return true;
+		}
+
+		@Override
+		public String getName()
+		{
+			return "Legacy";
+		}
+
+		@Override
+		public SmsParameterDesc[] getParameters()
+		{
+			return new SmsParameterDesc[0];
+		}
+
+		@Override
+		public boolean needPrincipal()
+		{
+			return false;
+		}
+
+		@Override
+		public void update(SmsConfig config) {}
+	}
+}
@@ -0,0 +1,63 @@
+package nl.idfocus.nam.sms.code;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures codes generated per second. <br/>
+ * <code>generate</code> runs on one thread, so its score is the rate per core; <code>generateContended</code> shows
+ * the effect of the shared random generator with 4 threads. <code>validate</code> isolates the word filter.
+ * Run {@link #main(String[])} to include the GC profiler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RandomCodeBenchmark
+{
+	private final char[] chars = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+
+	@Benchmark
+	public String generate()
+	{
+		return new RandomCode(chars, 8).getCode();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public String generateContended()
+	{
+		return new RandomCode(chars, 8).getCode();
+	}
+
+	@Benchmark
+	public boolean validate()
+	{
+		return BadWords.isClean("X7K2QW9P");
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Options opt = new OptionsBuilder()
+				.include(RandomCodeBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(opt).run();
+	}
+}
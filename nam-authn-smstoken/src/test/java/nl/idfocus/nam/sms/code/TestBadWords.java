@@ -0,0 +1,61 @@
+package nl.idfocus.nam.sms.code;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TestBadWords
+{
+	@Test
+	public void testOverlappingWords()
+	{
+		WordMatcher matcher = new WordMatcher(Arrays.asList("he", "she", "his", "hers"));
+		assertTrue(matcher.find("USHERS"));
+		assertTrue(matcher.find("xhisx"));
+		assertTrue(matcher.find("ahe"));
+		assertFalse(matcher.find("HIRE"));
+		assertFalse(matcher.find(""));
+	}
+
+	@Test
+	public void testSuffixOfLongerPrefix()
+	{
+		// After a mismatch following "kloo" the automaton continues from the "oo" prefix of "oots"
+		WordMatcher matcher = new WordMatcher(Arrays.asList("kloot", "oots"));
+		assertTrue(matcher.find("KLOOTS"));
+		assertTrue(matcher.find("KLOOTX"));
+		assertTrue(matcher.find("XLOOTS"));
+		assertFalse(matcher.find("KLOOXT"));
+	}
+
+	@Test
+	public void testEmptyWordsIgnored()
+	{
+		WordMatcher matcher = new WordMatcher(Arrays.asList("", "  ", "tit"));
+		assertFalse(matcher.find("ABC123"));
+		assertTrue(matcher.find("A1TIT"));
+	}
+
+	@Test
+	public void testWordList()
+	{
+		assertFalse(new BadWords().validate("X9DICK20"));
+		assertFalse(BadWords.isClean("7kut1234"));
+		assertTrue(BadWords.isClean("7KU1T234"));
+	}
+
+	@Test
+	public void testGeneratedCodes()
+	{
+		char[] chars = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+		for (int i = 0; i < 1000; i++)
+		{
+			String code = new RandomCode(chars, 8).getCode();
+			assertEquals(8, code.length());
+			assertTrue(code.matches("[0-9A-Z]{8}"));
+			assertTrue(BadWords.isClean(code));
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package nl.idfocus.nam.sms.code;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TestCodePool
+{
+	private static final char[] CHARS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+
+	@Test
+	public void testFilledInBackground() throws Exception
+	{
+		CodePool pool = new CodePool(CHARS, 8, 20, 5, 60000);
+		awaitDepth(pool, 20);
+		Set<String> seen = new HashSet<>();
+		for (int i = 0; i < 10; i++)
+		{
+			String code = pool.take().getCode();
+			assertEquals(8, code.length());
+			assertTrue(BadWords.isClean(code));
+			seen.add(code);
+		}
+		assertEquals(10, seen.size());
+		assertEquals(10, pool.getHits());
+		assertEquals(0, pool.getMisses());
+	}
+
+	@Test
+	public void testMissGeneratesInline() throws Exception
+	{
+		CodePool pool = new CodePool(CHARS, 6, 5, 0, 60000);
+		awaitDepth(pool, 5);
+		for (int i = 0; i < 5; i++)
+			pool.take();
+		assertEquals(6, pool.take().getCode().length());
+		assertEquals(5, pool.getHits());
+		assertEquals(1, pool.getMisses());
+		// The miss refills the pool
+		awaitDepth(pool, 5);
+	}
+
+	@Test
+	public void testRefillAtLowWater() throws Exception
+	{
+		CodePool pool = new CodePool(CHARS, 8, 10, 8, 60000);
+		awaitDepth(pool, 10);
+		for (int i = 0; i < 3; i++)
+			pool.take();
+		awaitDepth(pool, 10);
+		assertEquals(0, pool.getMisses());
+	}
+
+	@Test
+	public void testOldCodesExpire() throws Exception
+	{
+		CodePool pool = new CodePool(CHARS, 8, 5, 2, 50);
+		awaitDepth(pool, 5);
+		Thread.sleep(200);
+		assertTrue(pool.getExpired() >= 5);
+		assertNotNull(pool.take());
+	}
+
+	private static void awaitDepth(CodePool pool, int depth) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 5000;
+		while (pool.getDepth() < depth && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertEquals(depth, pool.getDepth());
+	}
+}
@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
 import java.util.TimeZone;
 import java.util.logging.Level;
@@ -13,15 +14,18 @@ import java.util.logging.Logger;
 
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
-import javax.naming.directory.Attributes;
 import javax.naming.directory.BasicAttribute;
 import javax.servlet.http.Cookie;
 
 import nl.idfocus.nam.totp.Authenticator;
+import nl.idfocus.nam.totp.PendingRegistrations;
+import nl.idfocus.nam.totp.QRImageServlet;
 import nl.idfocus.nam.totp.TOTPConstants;
 import nl.idfocus.nam.totp.TOTPException;
 import nl.idfocus.nam.totp.UserRegistration;
 import nl.idfocus.nam.util.LogFormatter;
+import nl.idfocus.nam.util.PrincipalAttributes;
+import nl.idfocus.nam.util.RateLimiter;
 import nl.idfocus.nam.util.Sha256;
 
 import com.novell.nidp.NIDPConstants;
@@ -42,6 +46,13 @@ import com.novell.nidp.common.authority.ldap.LDAPPrincipal;
  * The settings of this class allow for extensive configuration regarding displayed information, TOTP settings, enrollment and re-enrollment. <br/>
  * Features include storage of the shared secret in NIDP Secret (default), eDirectory Secret Store, PWM PAM Format or encrypted LDAP attribute. <br/>
  * AES encryption is used for secure storage. <br/>
+ * </p><p>
+ * The registration page gets the QR code as a base64 encoded PNG image in <code>totp-qrimage</code>. JSPs written 
+ * for older versions, which received a JPEG image, must change the image source prefix from 
+ * <code>data:image/jpeg;base64,</code> to <code>data:image/png;base64,</code>. <br/>
+ * Alternatively, the JSP can load the image from the URL in <code>totp-qrimage-url</code>, which keeps the secret 
+ * out of the page. This requires registering {@link nl.idfocus.nam.totp.QRImageServlet} in the IdP web.xml; 
+ * setting <code>inlineImage</code> to false then stops adding the inline image.
  * </p>
  * @author IDFocus B.V. (mvreijn@idfocus.nl)
  * @version Tested on NetIQ Access Manager 4.x
@@ -130,6 +141,17 @@ public class TOTPAuth extends LocalAuthenticationClass
 	 * The default setting is specified in {@link #DEF_EXP_TIME} (and in 0, disabling delay).
 	 */
 	private static final String PROP_EXP_TIME       = TOTPConstants.PARAM_EXP_TIME;
+	/**
+	 * By setting this property name on the class or method, the number of code attempts per user within a number of <br/>
+	 * seconds, as <code>count/seconds</code>, may be altered from the default specified in {@link #DEF_LIMIT_USER}. <br/>
+	 * Attempts over the limit are refused before the secret is read from LDAP. An empty value disables the limit.
+	 */
+	private static final String PROP_LIMIT_USER     = TOTPConstants.PARAM_RATE_LIMIT_USER;
+	/**
+	 * By setting this property name on the class or method, the number of code attempts per client IP address <br/>
+	 * may be set. The format is as for {@link #PROP_LIMIT_USER}. The default {@link #DEF_LIMIT_ADDRESS} disables the limit.
+	 */
+	private static final String PROP_LIMIT_ADDRESS  = TOTPConstants.PARAM_RATE_LIMIT_ADDRESS;
 
 	private static final String DEF_DEBUG          = "false";
 	private static final String DEF_INPUT_TOKEN    = "Ecom_Token";
@@ -144,6 +166,8 @@ public class TOTPAuth extends LocalAuthenticationClass
 	private static final String DEF_EXP_COOKIE     = "idftotpauth";
 	private static final String DEF_EXP_ATTRIBUTE  = "description";
 	private static final String DEF_EXP_TIME       = "0";
+	private static final String DEF_LIMIT_USER     = "10/300";
+	private static final String DEF_LIMIT_ADDRESS  = "";
 
 	private final String valueInputToken;
 	private final String valueInputScratchcode;
@@ -157,6 +181,8 @@ public class TOTPAuth extends LocalAuthenticationClass
 	private final String expirationCookieName;
 	private final String expirationAttributeName;
 	private final int    expirationTime;
+	private final RateLimiter userLimiter;
+	private final RateLimiter addressLimiter;
 
 	private static final String PKGBUILD = TOTPAuth.class.getPackage().getImplementationVersion();
 	private NIDPPrincipal localPrincipal;
@@ -197,6 +223,9 @@ public class TOTPAuth extends LocalAuthenticationClass
 		useUserName      = Boolean.parseBoolean( props.getProperty( PROP_USER_NAME, DEF_USER_NAME ) );
 		// Integer value is parsed
 		expirationTime       = getIntValue( PROP_EXP_TIME, props.getProperty( PROP_EXP_TIME, DEF_EXP_TIME ) );
+		// Rate limits are shared by all instances with the same setting
+		userLimiter      = getRateLimiter( "totp-user", PROP_LIMIT_USER, props.getProperty( PROP_LIMIT_USER, DEF_LIMIT_USER ) );
+		addressLimiter   = getRateLimiter( "totp-address", PROP_LIMIT_ADDRESS, props.getProperty( PROP_LIMIT_ADDRESS, DEF_LIMIT_ADDRESS ) );
 		sessionUser = getProperty("findSessionUser");
 		logger.log( loglevel, "Done." );
 	}
@@ -217,6 +246,8 @@ public class TOTPAuth extends LocalAuthenticationClass
 			return NOT_AUTHENTICATED;
 		}
 		logger.log( loglevel, "Logging in: "+localPrincipal.getUserIdentifier() );
+		if ( !isFirstCallAfterPrevMethod() && isCodeSubmitted() && !isAttemptAllowed() )
+			return rejectAttempt();
 		Properties props = createPropertySet();
 		// Load up authenticator
 		Authenticator authn;
@@ -229,6 +260,29 @@ public class TOTPAuth extends LocalAuthenticationClass
 			logger.log( errlevel, "Could not initialize TOTP Authenticator!", e );
 			return NOT_AUTHENTICATED;
 		}
+		try ( PrincipalAttributes prefetched = PrincipalAttributes.prefetch( localPrincipal, getRequiredAttributeNames( authn ) ) )
+		{
+			return processFlows( authn, props );
+		}
+	}
+
+	/**
+	 * Collect the names of all attributes this request may read, so they can be retrieved in a single call.
+	 * @param authn the authenticator, which knows the attributes its secret store still needs for this user
+	 * @return list of attribute names
+	 */
+	private List<String> getRequiredAttributeNames( Authenticator authn )
+	{
+		List<String> names = new ArrayList<>( authn.getStoreAttributeNames() );
+		names.add( reEnrollmentAttribute );
+		names.add( expirationAttributeName );
+		if ( !useUserName )
+			names.add( userNameAttribute );
+		return names;
+	}
+
+	private int processFlows( Authenticator authn, Properties props )
+	{
 		/*
 		 * ********************** Start first flow ********************** 
 		 */
@@ -314,7 +368,8 @@ public class TOTPAuth extends LocalAuthenticationClass
 		{
 			logger.log(dbglevel, "Process registration.");
 			String token = m_Request.getParameter( valueInputToken );
-			UserRegistration reg = (UserRegistration)m_Request.getSession().getAttribute( TOTPConstants.SESSION_ATTR_REG );
+			String handle = (String)m_Request.getSession().getAttribute( TOTPConstants.SESSION_ATTR_REG );
+			UserRegistration reg = PendingRegistrations.get( handle );
 			try
 			{
 				authn.setRegistration( reg );
@@ -323,6 +378,8 @@ public class TOTPAuth extends LocalAuthenticationClass
 					logger.log(dbglevel, "Authentication successful.");
 					authn.persist();
 					logger.log(dbglevel, "Registration saved.");
+					PendingRegistrations.remove( handle );
+					m_Request.getSession().removeAttribute( TOTPConstants.SESSION_ATTR_REG );
 					setPrincipal(localPrincipal);
 					return AUTHENTICATED;
 				}
@@ -336,6 +393,64 @@ public class TOTPAuth extends LocalAuthenticationClass
 		return NOT_AUTHENTICATED;
 	}
 
+	private boolean isCodeSubmitted()
+	{
+		return m_Request.getParameter( valueInputToken ) != null || m_Request.getParameter( valueInputScratchcode ) != null;
+	}
+
+	/**
+	 * Count a code attempt against the limits of the user and the client address. <br/>
+	 * This is checked before the authenticator is created, so a refused attempt causes no LDAP traffic.
+	 * @return true when the code may be checked
+	 */
+	private boolean isAttemptAllowed()
+	{
+		String limited = acquireAttempt( userLimiter, localPrincipal.getUserIdentifier(), addressLimiter, m_Request.getRemoteAddr() );
+		if ( limited == null )
+			return true;
+		logger.log( Level.WARNING, "TOTP rate limit reached for {0}, refusing code of {1}", new Object[] { limited, localPrincipal.getUserIdentifier() } );
+		return false;
+	}
+
+	/**
+	 * Take a permit from both limiters, or from neither. When the address limit refuses, the permit already taken for
+	 * the user is given back, so attempts from a blocked address do not use up the budget of the user.
+	 * @param userLimiter the limiter per user, or null
+	 * @param user the user identifier
+	 * @param addressLimiter the limiter per client address, or null
+	 * @param address the client address, or null when unknown
+	 * @return null when the attempt is allowed, otherwise a description of the limit that refused it
+	 */
+	static String acquireAttempt( RateLimiter userLimiter, String user, RateLimiter addressLimiter, String address )
+	{
+		if ( userLimiter != null && !userLimiter.tryAcquire( user ) )
+			return "user";
+		if ( addressLimiter != null && address != null && !addressLimiter.tryAcquire( address ) )
+		{
+			if ( userLimiter != null )
+				userLimiter.release( user );
+			return "client address "+address;
+		}
+		return null;
+	}
+
+	/**
+	 * Answer a refused attempt from the session alone. A pending registration fails, as it does for a wrong code; <br/>
+	 * otherwise the token page is shown again with an error.
+	 */
+	private int rejectAttempt()
+	{
+		if ( m_Request.getSession().getAttribute( TOTPConstants.SESSION_ATTR_REG ) != null )
+			return NOT_AUTHENTICATED;
+		String userName = (String) m_Request.getSession().getAttribute( TOTPConstants.SESSION_ATTR_USER );
+		if ( userName == null )
+			userName = localPrincipal.getUserIdentifier();
+		Integer delay = (Integer) m_Request.getSession().getAttribute( TOTPConstants.SESSION_ATTR_DELAY );
+		prepareAuthenticationPage( userName, delay == null ? expirationTime : delay );
+		m_PageToShow.addAttribute( TOTPConstants.JSP_ATTR_ERROR, TOTPConstants.ERR_RATE_LIMITED );
+		return SHOW_JSP;
+	}
+
 	private boolean isValidScratchCode(Authenticator authn, String token)
 	{
 		if (token != null && token.matches("\\d+"))
@@ -386,6 +501,7 @@ public class TOTPAuth extends LocalAuthenticationClass
 		m_PageToShow = new PageToShow( inputJspAuthentication );
 		m_PageToShow.addAttribute( TOTPConstants.JSP_ATTR_USER, userName );
 		m_PageToShow.addAttribute( NIDPConstants.ATTR_URL, ( getReturnURL() != null ? getReturnURL() : m_Request.getRequestURL().toString() ) );
+		m_Request.getSession().setAttribute( TOTPConstants.SESSION_ATTR_USER, userName );
 		if ( delay > 0 )
 		{
 			logger.log(dbglevel, "Adding delay {0}.", delay);
@@ -401,13 +517,20 @@ public class TOTPAuth extends LocalAuthenticationClass
 		reg.setOrgName( issuerName );
 		m_PageToShow = new PageToShow( inputJspRegistration );
 		m_PageToShow.addAttribute( NIDPConstants.ATTR_URL, ( getReturnURL() != null ? getReturnURL() : m_Request.getRequestURL().toString() ) );
+		// Replace any registration shown earlier in this session
+		PendingRegistrations.remove( (String)m_Request.getSession().getAttribute( TOTPConstants.SESSION_ATTR_REG ) );
+		String handle = PendingRegistrations.add( reg, Integer.parseInt( props.getProperty( TOTPConstants.PARAM_REG_TTL ) ) );
+		m_Request.getSession().setAttribute( TOTPConstants.SESSION_ATTR_REG, handle );
+		m_PageToShow.addAttribute( TOTPConstants.JSP_ATTR_IMAGE_URL, 
+				m_Request.getContextPath() + props.getProperty( TOTPConstants.PARAM_IMAGE_PATH ) + "?" + QRImageServlet.PARAM_HANDLE + "=" + handle );
+		m_PageToShow.addAttribute( TOTPConstants.JSP_ATTR_SECRET, reg.getSecretKey() );
 		try
 		{
-			String image = reg.getQRImageString();
-			logger.log(dbglevel, "Created QR image.");
-			m_PageToShow.addAttribute( TOTPConstants.JSP_ATTR_IMAGE, image );
-			m_PageToShow.addAttribute( TOTPConstants.JSP_ATTR_SECRET, reg.getSecretKey() );
-			m_Request.getSession().setAttribute( TOTPConstants.SESSION_ATTR_REG, reg );
+			if ( Boolean.parseBoolean( props.getProperty( TOTPConstants.PARAM_IMAGE_INLINE ) ) )
+			{
+				m_PageToShow.addAttribute( TOTPConstants.JSP_ATTR_IMAGE, reg.getQRImageString() );
+				logger.log(dbglevel, "Created QR image.");
+			}
 		} catch (TOTPException e) {
 			// TODO handle error status?
 			logger.log(errlevel, "Error creating QR image: "+e.getMessage()+".");
@@ -587,12 +710,21 @@ public class TOTPAuth extends LocalAuthenticationClass
     	}
     }
 
+    private RateLimiter getRateLimiter( String name, String property, String value )
+    {
+    	try
+    	{
+    		return RateLimiter.getShared( name, value );
+    	} catch (IllegalArgumentException e) {
+    		logger.log(errlevel, "Could not determine rate limit for '"+property+"', limit disabled");
+    		return null;
+    	}
+    }
+
     private Attribute getAttributeFromPrincipal( NIDPPrincipal princ, String attrname )
     {
-		UserAuthority ua = princ.getAuthority();
 		logger.log( dbglevel, "getting attribute {0}.", attrname );
-		Attributes attrs = ua.getAttributes( princ , new String[] { attrname } );
-		Attribute result = attrs.get( attrname );
+		Attribute result = PrincipalAttributes.get( princ, attrname );
 		if ( result == null )
 		{
 			logger.log(dbglevel, "Attribute {0} not found.", attrname);
@@ -675,11 +807,11 @@ public class TOTPAuth extends LocalAuthenticationClass
 				{
 					logger.log( dbglevel, "Need to re-enroll user." );
 					registered = false;
+					authn.invalidateKey();
 					if ( clear )
 					{
-						UserAuthority ua = localPrincipal.getAuthority();
 						try {
-							ua.modifyAttributes( localPrincipal, new String[]{ reEnrollmentAttribute }, new String[] { "false" } );
+							PrincipalAttributes.modify( localPrincipal, new String[]{ reEnrollmentAttribute }, new String[] { "false" } );
 						} catch (NIDPException e) {
 							logger.log(errlevel, "failed to clear re-enrollment attribute: "+e.getMessage());
 						}
@@ -1,20 +1,14 @@
 package nl.idfocus.nam.totp;
 
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-
-import nl.idfocus.nam.totp.store.NIDPStore;
-import nl.idfocus.nam.totp.store.PwmStore;
-import nl.idfocus.nam.totp.store.EdirSecretStore;
 import nl.idfocus.nam.totp.store.ISecretStore;
-import nl.idfocus.nam.totp.store.LdapStore;
+import nl.idfocus.nam.totp.store.SecretStoreRegistry;
 import nl.idfocus.nam.util.Base32;
 import nl.idfocus.nam.util.Base32.DecodingException;
 import nl.idfocus.nam.util.LogFormatter;
@@ -28,35 +22,47 @@ public class Authenticator
 	private static final Level  loglevel = Level.INFO;
 	private static final Level  errlevel = Level.SEVERE;
 
+	/** A new drift this many steps away from the stored one is saved at once */
+	static final int            DRIFT_SAVE_THRESHOLD = 2;
+	private static final int    MAX_UNCONFIRMED_DRIFTS = 4096;
+	/** 
+	 * New drifts seen at one login and not saved yet, keyed on principal hash. Access ordered, guarded by itself. 
+	 */
+	private static final Map<Long, Integer> unconfirmedDrifts = new LinkedHashMap<Long, Integer>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest)
+		{
+			return size() > MAX_UNCONFIRMED_DRIFTS;
+		}
+	};
+
 	private NIDPPrincipal princ;
 	private ISecretStore secretStore;
+	private ReplayLedger replayLedger;
+	private long principalHash;
 	private int windowSize;  // default 3 - max 17 (from google docs)
 	private String secretKey;
+	private byte[] keyBytes;
 	private List<Integer> scratchCodes;
+	private Integer drift;
+	private boolean newRegistration;
 
 	private Authenticator( Properties props ) throws TOTPException
 	{
 		logger.log(loglevel, "Initializing");
 		windowSize = Integer.parseInt( props.getProperty( TOTPConstants.PARAM_WINDOW_SIZE, "3") );
 		secretStore = initializeSecretStore(props);
+		replayLedger = ReplayLedger.getShared( Integer.parseInt( props.getProperty( TOTPConstants.PARAM_REPLAY_CAPACITY, "4096") ) );
 		logger.log(loglevel, "done.");
 	}
 
 	private ISecretStore initializeSecretStore(Properties props) throws TOTPException
 	{
-		ISecretStore store;
-		String storeType = props.getProperty( TOTPConstants.PARAM_STORE_TYPE, TOTPConstants.STORE_NIDP );
-		logger.log(loglevel, "Using {0} secret store type", storeType);
-		if ( storeType.equals(TOTPConstants.STORE_EDIR) )
-			store = new EdirSecretStore();
-		else if ( storeType.equals(TOTPConstants.STORE_LDAP))
-			store = new LdapStore();
-		else if ( storeType.equals(TOTPConstants.STORE_PWM))
-			store = new PwmStore();
-		else
-			store = new NIDPStore();
-		store.init(props);
-		return store;
+		logger.log(dbglevel, "Using {0} secret store type", props.getProperty( TOTPConstants.PARAM_STORE_TYPE, TOTPConstants.STORE_NIDP ));
+		return SecretStoreRegistry.getStore(props);
 	}
 
 	public Authenticator( Properties props, UserRegistration reg ) throws TOTPException
@@ -71,6 +77,15 @@ public class Authenticator
 		this.princ = localPrincipal;
 	}
 
+	/**
+	 * @return the principal attribute names the configured secret store still has to read for this user, 
+	 * which is none when its cache holds everything needed
+	 */
+	public List<String> getStoreAttributeNames()
+	{
+		return princ == null ? secretStore.getAttributeNames() : secretStore.getAttributeNames(princ);
+	}
+
 	public void setLogLevel( Level lvl )
 	{
 		if ( lvl != null )
@@ -93,42 +108,85 @@ public class Authenticator
 		}
 	}
 
+	/**
+	 * Return the decoded secret key: from the pending registration if there is one, otherwise from the secret store.
+	 */
+	private byte[] getKeyBytes() throws TOTPException
+	{
+		if ( keyBytes != null )
+			return keyBytes;
+		if ( secretKey != null )
+		{
+			try
+			{
+				keyBytes = Base32.decode( secretKey );
+				return keyBytes;
+			}
+			catch (DecodingException e)
+			{
+				throw new TOTPException("Invalid secret key", e);
+			}
+		}
+		try
+		{
+			keyBytes = this.secretStore.readKeyFromStore(princ);
+			logger.log(dbglevel, "Retrieved key from secretStore.");
+			return keyBytes;
+		} catch (TOTPException e) {
+			throw new TOTPException("Not registered", e);
+		}
+	}
+
+	/**
+	 * Forget the key of this user, here and in any cache of the secret store. Used when the user must re-enroll.
+	 */
+	public void invalidateKey()
+	{
+		keyBytes = null;
+		if ( princ != null )
+			secretStore.invalidate(princ);
+	}
+
 	/**
 	 * Check the code entered by the user to see if it is valid
-	 * @param secret  The users secret. 
-	 * @param code  The code displayed on the users device
-	 * @param t  The time in msec (System.currentTimeMillis() for example)
-	 * @return
+	 * @param codeStr  The code displayed on the users device
+	 * @param timeMsec  The time in msec (System.currentTimeMillis() for example)
+	 * @return true if the code is valid within the configured window
 	 */
 	public boolean checkCode(String codeStr, long timeMsec) 
 	{
-		if (codeStr == null || codeStr.isEmpty())
+		if (codeStr == null || codeStr.trim().isEmpty())
 			return false;
 		logger.log(dbglevel, ">>> checkCode()");
+		// Users paste codes with spaces around them
+		int code = TOTPEngine.parseCode( codeStr.trim() );
+		if ( code < 0 )
+		{
+			logger.log(dbglevel, "Token is not a valid code." );
+			return false;
+		}
 		try
 		{
-			long code = Long.parseLong( codeStr );
-			logger.log(dbglevel, "Token: "+code);
-			byte[] decodedKey = Base32.decode( getKey() );
-			
+			byte[] decodedKey = getKeyBytes();
 			// convert unix msec time into a 30 second "window" 
 			// this is per the TOTP spec (see the RFC for details)
-			long t = (timeMsec / 1000L) / 30L;
 			// Window is used to check codes generated in the near past.
 			// You can use this value to tune how far you're willing to go.
-		
-			for (int i = -windowSize; i <= windowSize; ++i) 
+			int predicted = getDrift();
+			int offset = TOTPEngine.match( decodedKey, code, TOTPEngine.toTimeStep( timeMsec ), predicted, windowSize );
+			if ( offset != TOTPEngine.NO_MATCH )
 			{
-				logger.log(dbglevel, "Window iteration "+i+"." );
-				long hash = calculateCode(decodedKey, t + i);
-				if (hash == code) 
+				if ( !markUsed( TOTPEngine.toTimeStep( timeMsec ) + offset ) )
 				{
-					logger.log(dbglevel, "Validated token." );
-					return true;
+					logger.log(loglevel, "Rejected token that was already used." );
+					return false;
 				}
+				logger.log(dbglevel, "Validated token at offset {0}.", offset );
+				recordDrift( offset, predicted );
+				return true;
 			}
 		}
-		catch (DecodingException | InvalidKeyException | NoSuchAlgorithmException | NumberFormatException | TOTPException e) {
+		catch (TOTPException e) {
 			logger.log(dbglevel, "Could not validate code: "+e.getMessage(), e );
 		} 
 		// The validation code is invalid.
@@ -137,64 +195,126 @@ public class Authenticator
 	}
 
 	/**
-	 * set the windows size. This is an integer value representing the number of 30 second windows we allow
-	 * The bigger the window, the more tolerant of clock skew we are. 
-	 * 
-	 * @param s window size - must be >=1 and <=17.  Other values are ignored
+	 * Record the accepted time step in the replay ledger.
+	 * @return false when this user already used a code for the same time step
 	 */
-	public void setWindowSize(int s) 
+	private boolean markUsed(long step)
 	{
-		if( s >= 1 && s <= 17 )
-			windowSize = s;
+		if ( replayLedger == null || princ == null )
+			return true;
+		return replayLedger.markUsed( getPrincipalHash(), step );
+	}
+
+	private long getPrincipalHash()
+	{
+		if ( principalHash == 0 )
+			principalHash = ReplayLedger.hash( princ.getUserIdentifier() );
+		return principalHash;
 	}
 
 	/**
-	 * Calculate a TOTP code valid for the given point in time
-	 * @param key the TOTP secret key bytes
-	 * @param t point in time, in milliseconds
-	 * @return valid TOTP code
-	 * @throws NoSuchAlgorithmException
-	 * @throws InvalidKeyException
+	 * @return the clock drift previously observed for this user, 0 when unknown
 	 */
-	private int calculateCode(byte[] key, long t) throws NoSuchAlgorithmException, InvalidKeyException 
+	public int getDrift()
 	{
-		logger.log(dbglevel, ">>> verifyCode()");
-		logger.log(dbglevel, "Code: "+t);
-		byte[] data = new byte[8];
-		long value = t ;
-		for (int i = 8; i-- > 0; value >>>= 8) {
-			data[i] = (byte) value;
+		if ( drift == null )
+		{
+			drift = 0;
+			if ( princ != null )
+			{
+				try
+				{
+					drift = secretStore.readDriftFromStore(princ);
+					logger.log(dbglevel, "Retrieved clock drift {0} from secretStore.", drift);
+				}
+				catch (TOTPException e)
+				{
+					logger.log(dbglevel, "No clock drift available: "+e.getMessage() );
+				}
+			}
 		}
+		return drift;
+	}
 
-		SecretKeySpec signKey = new SecretKeySpec(key, "HmacSHA1");
-		Mac mac = Mac.getInstance("HmacSHA1");
-		mac.init(signKey);
-		byte[] hash = mac.doFinal(data);
-
-		int offset = hash[20 - 1] & 0xF;
+	/**
+	 * Save a changed clock drift so the next verification checks that step first. <br/>
+	 * A drift close to the stored one is only saved once the device shows it at two logins in a row, so a single code 
+	 * typed just before it rolled over does not cause a write. A drift of {@link #DRIFT_SAVE_THRESHOLD} steps or more 
+	 * away from the stored one is saved at once. <br/>
+	 * Failure to save is logged and does not affect the authentication result.
+	 */
+	private void recordDrift(int offset, int predicted)
+	{
+		drift = offset;
+		// A new registration saves the drift together with the key
+		if ( princ == null || newRegistration )
+			return;
+		if ( !isDriftConfirmed( getPrincipalHash(), offset, predicted ) )
+			return;
+		saveDrift( offset );
+	}
 
-		// We're using a long because Java hasn't got unsigned int.
-		long truncatedHash = 0;
-		for (int i = 0; i < 4; ++i) {
-			truncatedHash <<= 8;
-			// We are dealing with signed bytes:
-			// we just keep the first byte.
-			truncatedHash |= (hash[offset + i] & 0xFF);
+	/**
+	 * Decide whether an observed drift should be saved, and remember it when it needs another login to be confirmed.
+	 * @param principal hash of the principal
+	 * @param offset the drift observed at this login
+	 * @param predicted the stored drift
+	 * @return true when the observed drift should be saved
+	 */
+	static boolean isDriftConfirmed(long principal, int offset, int predicted)
+	{
+		synchronized ( unconfirmedDrifts )
+		{
+			if ( offset == predicted )
+			{
+				unconfirmedDrifts.remove( principal );
+				return false;
+			}
+			if ( Math.abs( offset - predicted ) >= DRIFT_SAVE_THRESHOLD )
+			{
+				unconfirmedDrifts.remove( principal );
+				return true;
+			}
+			Integer previous = unconfirmedDrifts.put( principal, offset );
+			if ( previous != null && previous == offset )
+			{
+				unconfirmedDrifts.remove( principal );
+				return true;
+			}
+			return false;
 		}
+	}
 
-		truncatedHash &= 0x7FFFFFFF;
-		truncatedHash %= 1000000;
+	private void saveDrift(int offset)
+	{
+		try
+		{
+			secretStore.writeDriftToStore(princ, offset);
+			logger.log(dbglevel, "Saved clock drift {0} to secretStore.", offset);
+		}
+		catch (TOTPException e)
+		{
+			logger.log(Level.WARNING, "Could not save clock drift: "+e.getMessage() );
+		}
+	}
 
-		return (int) truncatedHash;
+	/**
+	 * set the windows size. This is an integer value representing the number of 30 second windows we allow
+	 * The bigger the window, the more tolerant of clock skew we are. 
+	 * 
+	 * @param s window size - must be >=1 and <=17.  Other values are ignored
+	 */
+	public void setWindowSize(int s) 
+	{
+		if( s >= 1 && s <= 17 )
+			windowSize = s;
 	}
 
 	public boolean isUserRegistered() 
 	{
 		try
 		{
-			if ( secretKey == null )
-				secretKey = this.getKey();
-			if ( secretKey != null )
+			if ( getKeyBytes() != null )
 				return true;
 		} catch (TOTPException e) {
 			logger.log(errlevel, "Exception checking user registration status: "+e.getMessage() );
@@ -207,7 +327,11 @@ public class Authenticator
 		if ( reg != null )
 		{
 			this.secretKey = reg.getSecretKey();
+			this.keyBytes = null;
 			this.scratchCodes = reg.getScratchCodes();
+			// A new device has no known drift yet
+			this.drift = 0;
+			this.newRegistration = true;
 		}
 		else
 			throw new TOTPException("Registration invalid: null");
@@ -225,6 +349,12 @@ public class Authenticator
 			this.secretStore.writeScratchCodesToStore(princ, scratchCodes.toArray(new Integer[scratchCodes.size()]));
 			logger.log(dbglevel, "Successfully saved scratch codes to secretStore." );
 		}
+		if ( newRegistration )
+		{
+			newRegistration = false;
+			if ( princ != null )
+				saveDrift( drift );
+		}
 	}
 
 	public boolean validateScratchCode(Integer scratchCode) throws TOTPException
@@ -0,0 +1,197 @@
+package nl.idfocus.nam.totp;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import nl.idfocus.nam.util.Base32;
+
+/**
+ * Generates random TOTP secret keys and scratch codes. <br/>
+ * Instances are immutable and may be shared between threads; every thread uses its own {@link SecureRandom}.
+ */
+public class KeyMaterialGenerator
+{
+	private static final int SCRATCH_CODE_INVALID = -1;
+
+	private static final ThreadLocal<SecureRandom> random = new ThreadLocal<SecureRandom>()
+	{
+		@Override
+		protected SecureRandom initialValue()
+		{
+			return new SecureRandom();
+		}
+	};
+
+	private final int secretSize;
+	private final int numOfScratchCodes;
+	private final int scratchCodeSize;
+	private final int scratchCodeModulus;
+
+	public KeyMaterialGenerator( Properties props )
+	{
+		this( Integer.parseInt( props.getProperty( TOTPConstants.PARAM_KEY_SIZE,    "10") ),
+			  Integer.parseInt( props.getProperty( TOTPConstants.PARAM_SCRATCH,      "5") ),
+			  Integer.parseInt( props.getProperty( TOTPConstants.PARAM_SCRATCH_SIZE, "8") ) );
+	}
+
+	public KeyMaterialGenerator( int secretSize, int numOfScratchCodes, int scratchCodeSize )
+	{
+		this.secretSize         = secretSize;
+		this.numOfScratchCodes  = numOfScratchCodes;
+		this.scratchCodeSize    = scratchCodeSize;
+		this.scratchCodeModulus = (int) Math.pow(10, scratchCodeSize);
+	}
+
+	/**
+	 * Generate a random secret key and scratch codes. The key must be saved by the server and associated with the 
+	 * users account to verify the code displayed by Google Authenticator. 
+	 * The user must register this secret on their device. 
+	 * @return new key material
+	 */
+	public TOTPKeyMaterial generate()
+	{
+		// Allocating the buffer
+		byte[] buffer = new byte[secretSize + numOfScratchCodes * scratchCodeSize];
+		// Filling the buffer with random numbers.
+		random.get().nextBytes(buffer);
+		// Getting the key and converting it to Base32
+		byte[] newSecretKey = Arrays.copyOf(buffer, secretSize);
+		String keyStr = Base32.encode(newSecretKey);
+		// Generate the list of scratchCodes
+		List<Integer> scratchCodes = calculateScratchCodes(buffer);
+		Arrays.fill(buffer, (byte) 0);
+		Arrays.fill(newSecretKey, (byte) 0);
+		// TODO Calculate the primer code to test activation at time = 0
+		int primerCode = -1;
+		//
+		return new TOTPKeyMaterial(keyStr, scratchCodes, primerCode);
+	}
+
+	/**
+	 * Generate the URI string for registration of a new user secret. <br/>
+	 * This URL must be embedded in a QR code image which can be scanned. 
+	 * @see https://github.com/google/google-authenticator/wiki/Key-Uri-Format
+	 * @param orgName the issuer name
+	 * @param userName the username to be added
+	 * @param key the Base32 secret key
+	 * @return secret key URI string
+	 */
+	public static String toOtpURI( String orgName, String userName, String key )
+	{
+		String org;
+		String usr;
+		try 
+		{
+			org = URLEncoder.encode( orgName, "UTF-8" ).replace( "+", "%20" );
+			usr = URLEncoder.encode( userName, "UTF-8" ).replace( "+", "%20" );
+		} 
+		catch (UnsupportedEncodingException e) 
+		{
+			throw new IllegalStateException(e);
+		}
+		return new StringBuilder("otpauth://totp/")
+			.append( org )
+			.append( ":" )
+			.append( usr )
+			.append( "?" )
+			.append( "secret=" )
+			.append( key )
+			.append( "&" )
+			.append( "issuer=" )
+			.append( org )
+			.toString();
+	}
+
+	private List<Integer> calculateScratchCodes(byte[] buffer)
+	{
+		List<Integer> scratchCodes = new ArrayList<>();
+		while (scratchCodes.size() < numOfScratchCodes)
+		{
+			byte[] scratchCodeBuffer = Arrays.copyOfRange(
+					buffer,
+					secretSize + scratchCodeSize * scratchCodes.size(),
+					secretSize + scratchCodeSize * scratchCodes.size() + scratchCodeSize);
+
+			int scratchCode = calculateScratchCode(scratchCodeBuffer);
+
+			if (scratchCode != SCRATCH_CODE_INVALID)
+			{
+				scratchCodes.add(scratchCode);
+			}
+			else
+			{
+				scratchCodes.add(generateScratchCode());
+			}
+		}
+		return scratchCodes;
+	}
+
+	/**
+	 * This method calculates a scratch code from a random byte buffer of
+	 * suitable size <code>#BYTES_PER_SCRATCH_CODE</code>.
+	 *
+	 * @param scratchCodeBuffer a random byte buffer whose minimum size is
+	 *                          <code>#BYTES_PER_SCRATCH_CODE</code>.
+	 * @return the scratch code.
+	 */
+	private int calculateScratchCode(byte[] scratchCodeBuffer)
+	{
+		if (scratchCodeBuffer.length < scratchCodeSize)
+		{
+			throw new IllegalArgumentException(
+					String.format(
+							"The provided random byte buffer is too small: %d.",
+							scratchCodeBuffer.length));
+		}
+		int scratchCode = 0;
+
+		for (int i = 0; i < scratchCodeSize; ++i)
+		{
+			scratchCode = (scratchCode << 8) + (scratchCodeBuffer[i] & 0xff);
+		}
+		scratchCode = (scratchCode & 0x7FFFFFFF) % scratchCodeModulus;
+		// Accept the scratch code only if it has exactly digits.
+		if (validateScratchCode(scratchCode))
+		{
+			return scratchCode;
+		}
+		else
+		{
+			return SCRATCH_CODE_INVALID;
+		}
+	}
+
+	boolean validateScratchCode(int scratchCode)
+	{
+		return scratchCode >= scratchCodeModulus / 10;
+	}
+
+	/**
+	 * This method creates a new random byte buffer from which a new scratch
+	 * code is generated. This function is invoked if a scratch code generated
+	 * from the main buffer is invalid because it does not satisfy the scratch
+	 * code restrictions.
+	 *
+	 * @return A valid scratch code.
+	 */
+	private int generateScratchCode()
+	{
+		byte[] scratchCodeBuffer = new byte[scratchCodeSize];
+		while (true)
+		{
+			random.get().nextBytes(scratchCodeBuffer);
+
+			int scratchCode = calculateScratchCode(scratchCodeBuffer);
+
+			if (scratchCode != SCRATCH_CODE_INVALID)
+			{
+				return scratchCode;
+			}
+		}
+	}
+}
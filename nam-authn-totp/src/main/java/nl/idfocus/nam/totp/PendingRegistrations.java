@@ -0,0 +1,113 @@
+package nl.idfocus.nam.totp;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds registrations between showing the QR code and the user confirming it with a first code. <br/>
+ * <p>
+ * Each registration is stored under a random, URL-safe handle. Only the handle is put in the HTTP session and in 
+ * the image URL, so the secret key is not replicated with the session. Registrations expire after the configured 
+ * time to live, and at most {@link #MAX_PENDING} are held. 
+ * </p><p>
+ * Registrations live in the memory of the node that created them. When a session fails over to another node, the 
+ * registration is not found there and its confirmation fails like a wrong code does. The user starts over and is 
+ * shown a new registration at the next login.
+ * </p>
+ */
+public final class PendingRegistrations
+{
+	public static final int MAX_PENDING = 10000;
+
+	private static final int HANDLE_BYTES = 16;
+	private static final SecureRandom random = new SecureRandom();
+	private static final Map<String, Entry> pending = new ConcurrentHashMap<>();
+
+	private PendingRegistrations()
+	{
+	}
+
+	/**
+	 * Store a registration.
+	 * @param reg the new registration
+	 * @param ttlSeconds time in seconds until the registration expires
+	 * @return the opaque handle of the registration
+	 */
+	public static String add(UserRegistration reg, int ttlSeconds)
+	{
+		if (pending.size() >= MAX_PENDING)
+			evict();
+		byte[] bytes = new byte[HANDLE_BYTES];
+		random.nextBytes(bytes);
+		String handle = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+		pending.put(handle, new Entry(reg, System.nanoTime() + TimeUnit.SECONDS.toNanos(ttlSeconds)));
+		return handle;
+	}
+
+	/**
+	 * @param handle the handle returned by {@link #add(UserRegistration, int)}
+	 * @return the registration, or null when it does not exist or has expired
+	 */
+	public static UserRegistration get(String handle)
+	{
+		Entry entry = handle == null ? null : pending.get(handle);
+		if (entry == null)
+			return null;
+		if (entry.isExpired(System.nanoTime()))
+		{
+			pending.remove(handle, entry);
+			return null;
+		}
+		return entry.registration;
+	}
+
+	/**
+	 * Remove a registration once it has been saved or abandoned.
+	 */
+	public static void remove(String handle)
+	{
+		if (handle != null)
+			pending.remove(handle);
+	}
+
+	static int size()
+	{
+		return pending.size();
+	}
+
+	/**
+	 * Drop expired registrations; when none have expired, drop arbitrary ones to make room.
+	 */
+	private static void evict()
+	{
+		long now = System.nanoTime();
+		pending.values().removeIf(entry -> entry.isExpired(now));
+		Iterator<String> handles = pending.keySet().iterator();
+		while (pending.size() >= MAX_PENDING && handles.hasNext())
+		{
+			handles.next();
+			handles.remove();
+		}
+	}
+
+	private static final class Entry
+	{
+		private final UserRegistration registration;
+		private final long expires;
+
+		Entry(UserRegistration registration, long expires)
+		{
+			this.registration = registration;
+			this.expires = expires;
+		}
+
+		boolean isExpired(long now)
+		{
+			return now - expires >= 0;
+		}
+	}
+}
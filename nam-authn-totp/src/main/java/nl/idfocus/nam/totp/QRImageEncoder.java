@@ -0,0 +1,196 @@
+package nl.idfocus.nam.totp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+/**
+ * Renders QR codes as PNG or SVG without AWT or ImageIO. <br/>
+ * The PNG is a 1-bit grayscale image written without an intermediate bitmap; a 200 pixel registration code is
+ * well under 1 KB. The SVG draws one rectangle per run of dark modules and scales without loss.
+ */
+public final class QRImageEncoder
+{
+	public static final String PNG_CONTENT_TYPE = "image/png";
+	public static final String SVG_CONTENT_TYPE = "image/svg+xml";
+
+	private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+	private static final int PNG_BIT_DEPTH  = 1;
+	private static final int PNG_GRAYSCALE  = 0;
+	private static final int PNG_FILTER_NONE = 0;
+
+	private QRImageEncoder()
+	{
+	}
+
+	/**
+	 * Encode the text as a QR code with low error correction.
+	 * @param text the text to encode, usually an otpauth URI
+	 * @param size the requested width and height in pixels, or 0 for one pixel per module
+	 * @return the module matrix including the quiet zone
+	 * @throws TOTPException when the text cannot be encoded
+	 */
+	public static BitMatrix encode(String text, int size) throws TOTPException
+	{
+		Map<EncodeHintType, Object> hints = new EnumMap<>(EncodeHintType.class);
+		hints.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.L);
+		try
+		{
+			return new QRCodeWriter().encode(text, BarcodeFormat.QR_CODE, size, size, hints);
+		}
+		catch (WriterException | IllegalArgumentException e)
+		{
+			throw new TOTPException("failed to encode QR image: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Write the matrix as a black and white PNG image, one pixel per matrix bit.
+	 * @param matrix the matrix to draw
+	 * @param out the destination; not closed
+	 */
+	public static void writePng(BitMatrix matrix, OutputStream out) throws IOException
+	{
+		int width = matrix.getWidth();
+		int height = matrix.getHeight();
+		DataOutputStream data = new DataOutputStream(out);
+		data.write(PNG_SIGNATURE);
+
+		ChunkBuffer header = new ChunkBuffer(13);
+		header.writeInt(width);
+		header.writeInt(height);
+		header.write(PNG_BIT_DEPTH);
+		header.write(PNG_GRAYSCALE);
+		header.write(0); // deflate compression
+		header.write(0); // adaptive filtering
+		header.write(0); // no interlace
+		writeChunk(data, "IHDR", header);
+
+		int rowBytes = (width + 7) / 8;
+		ChunkBuffer pixels = new ChunkBuffer(height * (rowBytes + 1) / 8 + 64);
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try (DeflaterOutputStream zip = new DeflaterOutputStream(pixels, deflater, 512))
+		{
+			byte[] row = new byte[rowBytes + 1];
+			row[0] = PNG_FILTER_NONE;
+			for (int y = 0; y < height; y++)
+			{
+				packRow(matrix, y, width, row);
+				zip.write(row);
+			}
+		}
+		finally
+		{
+			deflater.end();
+		}
+		writeChunk(data, "IDAT", pixels);
+		writeChunk(data, "IEND", new ChunkBuffer(0));
+		data.flush();
+	}
+
+	/**
+	 * Pack a matrix row into bytes after the filter type byte. A set bit is a dark module, which is 0 in grayscale.
+	 */
+	private static void packRow(BitMatrix matrix, int y, int width, byte[] row)
+	{
+		int x = 0;
+		for (int i = 1; i < row.length; i++)
+		{
+			int value = 0;
+			for (int bit = 7; bit >= 0; bit--, x++)
+			{
+				if (x >= width || !matrix.get(x, y))
+					value |= 1 << bit;
+			}
+			row[i] = (byte) value;
+		}
+	}
+
+	private static void writeChunk(DataOutputStream out, String type, ChunkBuffer content) throws IOException
+	{
+		byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(content.buffer(), 0, content.size());
+		out.writeInt(content.size());
+		out.write(typeBytes);
+		out.write(content.buffer(), 0, content.size());
+		out.writeInt((int) crc.getValue());
+	}
+
+	/**
+	 * Write the matrix as an SVG image of the given display size.
+	 * @param matrix the matrix to draw, preferably with one bit per module
+	 * @param size the displayed width and height in pixels
+	 * @param out the destination; not closed
+	 */
+	public static void writeSvg(BitMatrix matrix, int size, Writer out) throws IOException
+	{
+		int width = matrix.getWidth();
+		int height = matrix.getHeight();
+		StringBuilder svg = new StringBuilder(4096);
+		svg.append("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"").append(size)
+			.append("\" height=\"").append(size)
+			.append("\" viewBox=\"0 0 ").append(width).append(' ').append(height)
+			.append("\" shape-rendering=\"crispEdges\"><rect width=\"100%\" height=\"100%\" fill=\"#fff\"/><path d=\"");
+		for (int y = 0; y < height; y++)
+		{
+			int x = 0;
+			while (x < width)
+			{
+				if (!matrix.get(x, y))
+				{
+					x++;
+					continue;
+				}
+				int start = x;
+				while (x < width && matrix.get(x, y))
+					x++;
+				svg.append('M').append(start).append(' ').append(y)
+					.append('h').append(x - start).append("v1h-").append(x - start).append('z');
+			}
+		}
+		svg.append("\"/></svg>");
+		out.write(svg.toString());
+		out.flush();
+	}
+
+	/**
+	 * Byte buffer that exposes its array, so chunk content is not copied for the CRC and the write.
+	 */
+	private static final class ChunkBuffer extends ByteArrayOutputStream
+	{
+		ChunkBuffer(int size)
+		{
+			super(Math.max(size, 16));
+		}
+
+		byte[] buffer()
+		{
+			return buf;
+		}
+
+		void writeInt(int value)
+		{
+			write(value >>> 24);
+			write(value >>> 16);
+			write(value >>> 8);
+			write(value);
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package nl.idfocus.nam.totp;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import nl.idfocus.nam.util.LogFormatter;
+
+/**
+ * Serves the QR code of a pending TOTP registration as PNG, or as SVG with <code>format=svg</code>. <br/>
+ * The registration is identified by the opaque handle in parameter <code>h</code>, which must also be the handle 
+ * stored in the caller's session. The response is never cached, as the image holds the secret key. <br/>
+ * Register the servlet in the IdP web.xml, matching the path configured in {@link TOTPConstants#PARAM_IMAGE_PATH}:
+ * <pre>
+ *     &lt;servlet>
+ *         &lt;servlet-name>TOTPQRImage&lt;/servlet-name>
+ *         &lt;servlet-class>nl.idfocus.nam.totp.QRImageServlet&lt;/servlet-class>
+ *     &lt;/servlet>
+ *     &lt;servlet-mapping>
+ *         &lt;servlet-name>TOTPQRImage&lt;/servlet-name>
+ *         &lt;url-pattern>/totpqr&lt;/url-pattern>
+ *     &lt;/servlet-mapping>
+ * </pre>
+ */
+public class QRImageServlet extends HttpServlet
+{
+	private static final long serialVersionUID = 1L;
+	private static final Logger logger = LogFormatter.getConsoleLogger( QRImageServlet.class.getName() );
+
+	public static final String PARAM_HANDLE = "h";
+	public static final String PARAM_FORMAT = "format";
+	public static final String FORMAT_SVG   = "svg";
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+	{
+		String handle = request.getParameter( PARAM_HANDLE );
+		HttpSession session = request.getSession( false );
+		if ( handle == null || session == null || !handle.equals( session.getAttribute( TOTPConstants.SESSION_ATTR_REG ) ) )
+		{
+			response.sendError( HttpServletResponse.SC_NOT_FOUND );
+			return;
+		}
+		UserRegistration reg = PendingRegistrations.get( handle );
+		if ( reg == null )
+		{
+			response.sendError( HttpServletResponse.SC_NOT_FOUND );
+			return;
+		}
+		// The image holds the secret key, so it must not be kept by the browser or any proxy
+		response.setHeader( "Cache-Control", "no-store" );
+		response.setHeader( "Pragma", "no-cache" );
+		response.setHeader( "X-Content-Type-Options", "nosniff" );
+		try
+		{
+			if ( FORMAT_SVG.equalsIgnoreCase( request.getParameter( PARAM_FORMAT ) ) )
+			{
+				response.setContentType( QRImageEncoder.SVG_CONTENT_TYPE );
+				reg.writeQRImageSvg( response.getWriter() );
+			}
+			else
+			{
+				response.setContentType( QRImageEncoder.PNG_CONTENT_TYPE );
+				reg.writeQRImage( response.getOutputStream() );
+			}
+		}
+		catch (TOTPException e)
+		{
+			logger.log( Level.SEVERE, "Error creating QR image: "+e.getMessage() );
+			response.sendError( HttpServletResponse.SC_INTERNAL_SERVER_ERROR );
+		}
+	}
+}
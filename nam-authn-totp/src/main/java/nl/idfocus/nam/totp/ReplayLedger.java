@@ -0,0 +1,175 @@
+package nl.idfocus.nam.totp;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nl.idfocus.nam.util.LogFormatter;
+
+/**
+ * Remembers which TOTP time steps were accepted for which user, so a code cannot be used twice (RFC 6238 section 5.2). <br/>
+ * <p>
+ * Every accepted time step has its own bucket: a fixed-size open addressing table of 64-bit principal hashes, filled
+ * with compare-and-set. Buckets live in a ring that covers every step that can still be accepted, considering the
+ * maximum window and clock drift. A bucket is replaced as a whole when its slot in the ring is needed for a newer step,
+ * so expiry costs nothing per entry and memory is bounded by the ring size times the bucket capacity.
+ * </p><p>
+ * When a bucket is full, further codes for that step are accepted without being recorded. Replay protection degrades,
+ * but logins are never refused because of load.
+ * </p>
+ */
+public final class ReplayLedger
+{
+	private static final Logger logger = LogFormatter.getConsoleLogger( ReplayLedger.class.getName() );
+
+	/**
+	 * The maximum window size (from google docs), see {@link Authenticator#setWindowSize(int)}.
+	 */
+	private static final int MAX_WINDOW = 17;
+	/**
+	 * Number of buckets: every step from <code>now - range</code> to <code>now + range</code>, plus one spare.
+	 */
+	static final int RING_SIZE = 2 * ( TOTPEngine.MAX_DRIFT + MAX_WINDOW ) + 2;
+	private static final long EMPTY = 0L;
+	private static final long SEED  = new SecureRandom().nextLong();
+
+	private static final ConcurrentMap<Integer, ReplayLedger> shared = new ConcurrentHashMap<>();
+
+	private final int capacity;
+	private final AtomicReferenceArray<Bucket> ring = new AtomicReferenceArray<>( RING_SIZE );
+
+	/**
+	 * @param capacity maximum number of users recorded per time step
+	 */
+	ReplayLedger( int capacity )
+	{
+		if ( capacity < 1 )
+			throw new IllegalArgumentException( "Capacity must be positive" );
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Return the ledger shared by all authenticators with the same capacity.
+	 * @param capacity maximum number of users recorded per time step
+	 * @return the ledger, or null when capacity is 0 or less, which disables replay detection
+	 */
+	public static ReplayLedger getShared( int capacity )
+	{
+		if ( capacity < 1 )
+			return null;
+		return shared.computeIfAbsent( capacity, ReplayLedger::new );
+	}
+
+	/**
+	 * Hash a principal identifier to a non-zero 64-bit value. The hash is seeded per JVM, so collisions cannot be
+	 * prepared in advance.
+	 * @param userIdentifier the principal DN
+	 * @return the principal hash
+	 */
+	public static long hash( String userIdentifier )
+	{
+		long h = SEED;
+		for ( int i = 0; i < userIdentifier.length(); i++ )
+		{
+			h ^= userIdentifier.charAt( i );
+			h *= 0x100000001b3L;
+		}
+		// Final mix from MurmurHash3, spreads the bits over the table index
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h == EMPTY ? 1L : h;
+	}
+
+	/**
+	 * Record that the user had a code accepted for the given time step.
+	 * @param principalHash the result of {@link #hash(String)}
+	 * @param step the accepted time step, including any offset
+	 * @return true when this is the first use, false when the step was already used by this user
+	 */
+	public boolean markUsed( long principalHash, long step )
+	{
+		Bucket bucket = bucketFor( step );
+		return bucket == null || bucket.add( principalHash );
+	}
+
+	private Bucket bucketFor( long step )
+	{
+		int index = (int) Math.floorMod( step, (long) RING_SIZE );
+		while ( true )
+		{
+			Bucket current = ring.get( index );
+			if ( current != null && current.step == step )
+				return current;
+			// A newer step already took this slot, the requested step is out of range
+			if ( current != null && current.step > step )
+				return null;
+			Bucket replacement = new Bucket( step, capacity );
+			if ( ring.compareAndSet( index, current, replacement ) )
+				return replacement;
+		}
+	}
+
+	/**
+	 * @return number of users recorded for the given step
+	 */
+	int size( long step )
+	{
+		Bucket bucket = ring.get( (int) Math.floorMod( step, (long) RING_SIZE ) );
+		return bucket != null && bucket.step == step ? bucket.count.get() : 0;
+	}
+
+	private static final class Bucket
+	{
+		private final long step;
+		private final int limit;
+		private final AtomicLongArray slots;
+		private final AtomicInteger count = new AtomicInteger();
+		private final AtomicBoolean overflowLogged = new AtomicBoolean();
+
+		Bucket( long step, int limit )
+		{
+			this.step = step;
+			this.limit = limit;
+			// Keep the load factor at or below one half for short probe sequences
+			this.slots = new AtomicLongArray( Integer.highestOneBit( Math.max( 2, limit * 2 - 1 ) ) << 1 );
+		}
+
+		boolean add( long hash )
+		{
+			int mask = slots.length() - 1;
+			int index = (int) hash & mask;
+			for ( int probes = 0; probes <= mask; probes++, index = ( index + 1 ) & mask )
+			{
+				long slot = slots.get( index );
+				if ( slot == hash )
+					return false;
+				if ( slot != EMPTY )
+					continue;
+				if ( count.incrementAndGet() > limit )
+				{
+					count.decrementAndGet();
+					break;
+				}
+				if ( slots.compareAndSet( index, EMPTY, hash ) )
+					return true;
+				// Lost the slot to another thread, which may have added the same user
+				count.decrementAndGet();
+				if ( slots.get( index ) == hash )
+					return false;
+			}
+			if ( overflowLogged.compareAndSet( false, true ) )
+				logger.log( Level.WARNING, "Replay ledger is full for time step {0}, codes are accepted without recording. Consider a larger {1}.",
+						new Object[] { Long.toString( step ), TOTPConstants.PARAM_REPLAY_CAPACITY } );
+			return true;
+		}
+	}
+}
@@ -10,7 +10,21 @@ public class TOTPConstants
 	public static final String PARAM_SCRATCH_SIZE = "scratchCodeSize";
 	public static final String PARAM_STORE_TYPE   = "storeType";
     public static final String PARAM_IMAGE_SIZE   = "imageSize";
+	/**
+	 * Path of the {@link QRImageServlet} below the IdP context, passed to the registration page in 
+	 * {@link #JSP_ATTR_IMAGE_URL}. Only works when the servlet is registered in the IdP web.xml.
+	 */
+	public static final String PARAM_IMAGE_PATH   = "imagePath";
+	/**
+	 * When true (the default), the registration page also gets the QR image itself in {@link #JSP_ATTR_IMAGE}, as a 
+	 * base64 encoded PNG. Set to false once the JSP uses {@link #JSP_ATTR_IMAGE_URL}.
+	 */
+	public static final String PARAM_IMAGE_INLINE = "inlineImage";
+	public static final String PARAM_REG_TTL      = "registrationTTL";
     public static final String PARAM_PBE_KEY      = "pbeKey";
+	public static final String PARAM_KEY_CACHE_SIZE = "keyCacheSize";
+	public static final String PARAM_KEY_CACHE_TTL  = "keyCacheTTL";
+	public static final String PARAM_REPLAY_CAPACITY = "replayCapacity";
 
 	public static final String PARAM_INPUT_TOKEN    = "inputToken";
 	public static final String PARAM_INPUT_BACKUP   = "inputScratchcode";
@@ -25,6 +39,8 @@ public class TOTPConstants
 	public static final String PARAM_EXP_COOKIE     = "expirationCookie";
 	public static final String PARAM_EXP_ATTRIBUTE  = "expirationAttribute";
 	public static final String PARAM_EXP_TIME       = "expirationTime";
+	public static final String PARAM_RATE_LIMIT_USER    = "totpRateLimitUser";
+	public static final String PARAM_RATE_LIMIT_ADDRESS = "totpRateLimitAddress";
 
 	public static final String STORE_EDIR = "EDIR";
 	public static final String STORE_NIDP = "NIDP";
@@ -32,6 +48,7 @@ public class TOTPConstants
 	public static final String STORE_PWM  = "PWM";
 
 	public static final String JSP_ATTR_IMAGE   = "totp-qrimage";
+	public static final String JSP_ATTR_IMAGE_URL = "totp-qrimage-url";
 	public static final String JSP_ATTR_SECRET  = "totp-secret";
 	public static final String JSP_ATTR_USER    = "totp-username";
 	public static final String JSP_ATTR_DELAY   = "totp-delay";
@@ -39,8 +56,10 @@ public class TOTPConstants
 
 	public static final String SESSION_ATTR_REG   = "totp-registration";
 	public static final String SESSION_ATTR_DELAY = "totp-delay";
+	public static final String SESSION_ATTR_USER  = "totp-username";
 
 	public static final String ERR_CODE_INVALID = "totp.code.invalid";
+	public static final String ERR_RATE_LIMITED = "totp.code.limited";
 	
 	public static Properties getDefaults()
 	{
@@ -50,7 +69,13 @@ public class TOTPConstants
 		props.setProperty(PARAM_SCRATCH_SIZE, "8");
 		props.setProperty(PARAM_WINDOW_SIZE,  "3");
 		props.setProperty(PARAM_IMAGE_SIZE, "200");
+		props.setProperty(PARAM_IMAGE_PATH,   "/totpqr");
+		props.setProperty(PARAM_IMAGE_INLINE, "true");
+		props.setProperty(PARAM_REG_TTL,      "600");
 		props.setProperty(PARAM_STORE_TYPE,   STORE_NIDP );
+		props.setProperty(PARAM_KEY_CACHE_SIZE, "10000");
+		props.setProperty(PARAM_KEY_CACHE_TTL,  "120");
+		props.setProperty(PARAM_REPLAY_CAPACITY, "4096");
 		return props;
 	}
 }
@@ -0,0 +1,209 @@
+package nl.idfocus.nam.totp;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Reusable HMAC-SHA1 TOTP calculation and verification (RFC 6238 with 30 second steps and 6 digits). <br/>
+ * Every thread keeps its own {@link Mac} and scratch buffers, so a verification only initializes the Mac with the key 
+ * once and does not allocate per time step. <br/>
+ * Codes are compared without data-dependent branches. When the predicted step misses, the full window is evaluated 
+ * so response time does not reveal which other step (if any) matched.
+ */
+public final class TOTPEngine
+{
+	public static final String ALGORITHM   = "HmacSHA1";
+	public static final long   STEP_MSEC   = 30000L;
+	public static final int    CODE_DIGITS = 6;
+
+	/**
+	 * Returned by {@link #match(byte[], int, long, int, int)} when no step matched.
+	 */
+	public static final int    NO_MATCH    = Integer.MIN_VALUE;
+	/**
+	 * Largest clock drift (in steps) that is accepted as a prediction, the maximum window from the google docs.
+	 */
+	public static final int    MAX_DRIFT   = 17;
+
+	private static final int   CODE_MODULO = 1000000;
+	private static final int   HASH_LENGTH = 20;
+
+	private static final ThreadLocal<Worker> workers = new ThreadLocal<Worker>()
+	{
+		@Override
+		protected Worker initialValue()
+		{
+			return new Worker();
+		}
+	};
+
+	private TOTPEngine()
+	{
+	}
+
+	/**
+	 * Convert a point in time to a TOTP time step.
+	 * @param timeMsec time in milliseconds since the epoch
+	 * @return the time step
+	 */
+	public static long toTimeStep(long timeMsec)
+	{
+		return timeMsec / STEP_MSEC;
+	}
+
+	/**
+	 * Check a code against all time steps in <code>step - window</code> to <code>step + window</code>.
+	 * @param key the decoded secret key
+	 * @param code the code entered by the user
+	 * @param step the current time step, see {@link #toTimeStep(long)}
+	 * @param window number of steps to allow on either side of the current one
+	 * @return true when the code matches any step in the window
+	 * @throws TOTPException when the key cannot be used for HMAC-SHA1
+	 */
+	public static boolean verify(byte[] key, int code, long step, int window) throws TOTPException
+	{
+		return match(key, code, step, 0, window) != NO_MATCH;
+	}
+
+	/**
+	 * Find the step offset at which a code matches. <br/>
+	 * The predicted offset (the drift observed for this user earlier) is checked first, so a device with a stable 
+	 * clock costs a single HMAC. Only when that misses is the window around the current step searched. A prediction 
+	 * outside the window is ignored, so a stored drift never accepts a code the window would reject.
+	 * @param key the decoded secret key
+	 * @param code the code entered by the user
+	 * @param step the current time step, see {@link #toTimeStep(long)}
+	 * @param predicted the expected offset from the current step, ignored when outside the window or larger than {@link #MAX_DRIFT}
+	 * @param window number of steps to allow on either side of the current one
+	 * @return the offset from <code>step</code> that matched, or {@link #NO_MATCH}
+	 * @throws TOTPException when the key cannot be used for HMAC-SHA1
+	 */
+	public static int match(byte[] key, int code, long step, int predicted, int window) throws TOTPException
+	{
+		Worker worker = workers.get();
+		worker.init(key);
+		int limit = Math.min( window, MAX_DRIFT );
+		if ( predicted < -limit || predicted > limit )
+			predicted = 0;
+		if ( equal(worker.calculate(step + predicted), code) != 0 )
+			return predicted;
+		int match = 0;
+		int offset = 0;
+		for (int i = -window; i <= window; ++i)
+		{
+			if ( i == predicted )
+				continue;
+			int eq = equal(worker.calculate(step + i), code);
+			match |= eq;
+			// Select i when eq == 1 without branching
+			offset = (offset & (eq - 1)) | (i & -eq);
+		}
+		return match != 0 ? offset : NO_MATCH;
+	}
+
+	/**
+	 * Calculate the code for a single time step.
+	 * @param key the decoded secret key
+	 * @param step time step, see {@link #toTimeStep(long)}
+	 * @return the TOTP code
+	 * @throws TOTPException when the key cannot be used for HMAC-SHA1
+	 */
+	public static int generate(byte[] key, long step) throws TOTPException
+	{
+		Worker worker = workers.get();
+		worker.init(key);
+		return worker.calculate(step);
+	}
+
+	/**
+	 * Parse a user supplied code. Only strings of exactly {@link #CODE_DIGITS} decimal digits are accepted.
+	 * @param codeStr the code as entered
+	 * @return the numeric code, or -1 when the value is not a valid code
+	 */
+	public static int parseCode(String codeStr)
+	{
+		if (codeStr == null || codeStr.length() != CODE_DIGITS)
+			return -1;
+		int result = 0;
+		for (int i = 0; i < CODE_DIGITS; ++i)
+		{
+			char c = codeStr.charAt(i);
+			if (c < '0' || c > '9')
+				return -1;
+			result = result * 10 + (c - '0');
+		}
+		return result;
+	}
+
+	/**
+	 * @return 1 when both values are equal, 0 otherwise, without branching on the values
+	 */
+	static int equal(int a, int b)
+	{
+		int diff = a ^ b;
+		return ((diff | -diff) >>> 31) ^ 1;
+	}
+
+	/**
+	 * Per-thread Mac instance with reusable counter and hash buffers.
+	 */
+	private static final class Worker
+	{
+		private final Mac    mac;
+		private final byte[] counter = new byte[8];
+		private final byte[] hash    = new byte[HASH_LENGTH];
+
+		Worker()
+		{
+			try
+			{
+				mac = Mac.getInstance(ALGORITHM);
+			}
+			catch (NoSuchAlgorithmException e)
+			{
+				throw new IllegalStateException(ALGORITHM + " is not available", e);
+			}
+		}
+
+		void init(byte[] key) throws TOTPException
+		{
+			try
+			{
+				mac.init(new SecretKeySpec(key, ALGORITHM));
+			}
+			catch (InvalidKeyException | IllegalArgumentException e)
+			{
+				throw new TOTPException("Invalid TOTP key", e);
+			}
+		}
+
+		int calculate(long step) throws TOTPException
+		{
+			long value = step;
+			for (int i = 8; i-- > 0; value >>>= 8)
+			{
+				counter[i] = (byte) value;
+			}
+			try
+			{
+				mac.update(counter, 0, counter.length);
+				mac.doFinal(hash, 0);
+			}
+			catch (ShortBufferException e)
+			{
+				throw new TOTPException("Could not calculate TOTP hash", e);
+			}
+			// Dynamic truncation as described in RFC 4226
+			int offset = hash[HASH_LENGTH - 1] & 0xF;
+			int truncatedHash = ((hash[offset] & 0x7F) << 24)
+					| ((hash[offset + 1] & 0xFF) << 16)
+					| ((hash[offset + 2] & 0xFF) << 8)
+					| (hash[offset + 3] & 0xFF);
+			return truncatedHash % CODE_MODULO;
+		}
+	}
+}
@@ -0,0 +1,322 @@
+package nl.idfocus.nam.totp.enroll;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import com.novell.nidp.NIDPPrincipal;
+import com.novell.nidp.common.authority.ldap.LDAPPrincipal;
+
+import nl.idfocus.nam.totp.KeyMaterialGenerator;
+import nl.idfocus.nam.totp.TOTPConstants;
+import nl.idfocus.nam.totp.TOTPException;
+import nl.idfocus.nam.totp.TOTPKeyMaterial;
+import nl.idfocus.nam.totp.store.ISecretStore;
+import nl.idfocus.nam.totp.store.KeyMaterialWriteException;
+import nl.idfocus.nam.totp.store.SecretStoreRegistry;
+import nl.idfocus.nam.util.LogFormatter;
+
+/**
+ * Pre-provisions TOTP secrets and scratch codes for a large number of users. <br/>
+ * <p>
+ * Users are read from the input in batches of {@link #PROP_BATCH_SIZE}. Users that already have a secret are left 
+ * alone unless {@link #PROP_FORCE} is set. For the others, key material is generated in parallel on a fork/join pool 
+ * and written with {@link ISecretStore#writeKeyMaterialToStore(Map)}; at most {@link #PROP_CONCURRENCY} batches are 
+ * written at the same time. Only a bounded number of batches is held in memory, the rest of the input is read as 
+ * capacity becomes available. 
+ * </p><p>
+ * The otpauth URIs of a batch are passed to the {@link EnrollmentOutput} before the key material is stored, so no 
+ * stored key is ever missing from the output. When all users of the batch were stored, the batch is recorded in the 
+ * {@link EnrollmentCheckpoint}. Otherwise the users that were not stored are logged, their output entries must be 
+ * discarded, and a resumed run enrolls them again while skipping the users that were stored.
+ * </p>
+ */
+public class BulkEnrollment
+{
+	private static final Logger logger = LogFormatter.getConsoleLogger( BulkEnrollment.class.getName() );
+
+	/**
+	 * Number of users per batch. The default is specified in {@link #DEF_BATCH_SIZE}
+	 */
+	public static final String PROP_BATCH_SIZE  = "enrollBatchSize";
+	/**
+	 * Number of batches written concurrently. The default is specified in {@link #DEF_CONCURRENCY}
+	 */
+	public static final String PROP_CONCURRENCY = "enrollConcurrency";
+	/**
+	 * Parallelism of the key generation pool. Defaults to the number of processors.
+	 */
+	public static final String PROP_PARALLELISM = "enrollParallelism";
+	/**
+	 * Replace the secret of users that are already enrolled. The default is specified in {@link #DEF_FORCE}
+	 */
+	public static final String PROP_FORCE       = "enrollForce";
+
+	private static final String DEF_BATCH_SIZE  = "100";
+	private static final String DEF_CONCURRENCY = "4";
+	private static final String DEF_FORCE       = "false";
+
+	/**
+	 * Resolves a user identifier from the input to a principal.
+	 */
+	public interface PrincipalResolver
+	{
+		public NIDPPrincipal resolve(String userId) throws TOTPException;
+	}
+
+	private final ISecretStore store;
+	private final KeyMaterialGenerator generator;
+	private final String issuerName;
+	private final int batchSize;
+	private final int concurrency;
+	private final int parallelism;
+	private final boolean force;
+
+	/**
+	 * Create a bulk enrollment using the secret store configured in the given properties.
+	 */
+	public BulkEnrollment( Properties props ) throws TOTPException
+	{
+		this( props, SecretStoreRegistry.getStore( withDefaults( props ) ) );
+	}
+
+	public BulkEnrollment( Properties props, ISecretStore store )
+	{
+		Properties effective = withDefaults( props );
+		this.store = store;
+		this.generator = new KeyMaterialGenerator( effective );
+		this.issuerName = effective.getProperty( TOTPConstants.PARAM_ISSUER_NAME, "NetIQ Access Manager" );
+		this.batchSize = Integer.parseInt( effective.getProperty( PROP_BATCH_SIZE, DEF_BATCH_SIZE ) );
+		this.concurrency = Integer.parseInt( effective.getProperty( PROP_CONCURRENCY, DEF_CONCURRENCY ) );
+		this.parallelism = Integer.parseInt( effective.getProperty( PROP_PARALLELISM, 
+				Integer.toString( Runtime.getRuntime().availableProcessors() ) ) );
+		this.force = Boolean.parseBoolean( effective.getProperty( PROP_FORCE, DEF_FORCE ) );
+		if ( batchSize < 1 || concurrency < 1 || parallelism < 1 )
+			throw new IllegalArgumentException( "Batch size, concurrency and parallelism must be positive" );
+	}
+
+	/**
+	 * Enroll all users from the input.
+	 * @param userIds user identifiers, always in the same order for a resumed run
+	 * @param resolver resolves identifiers to principals
+	 * @param output receives the otpauth URI of every enrolled user
+	 * @param checkpointFile file to record progress in, or null
+	 * @return counters for the run
+	 * @throws TOTPException when the checkpoint cannot be loaded
+	 * @throws InterruptedException when the run is interrupted; completed batches remain in the checkpoint
+	 */
+	public Result run( Iterator<String> userIds, PrincipalResolver resolver, EnrollmentOutput output, Path checkpointFile ) 
+			throws TOTPException, InterruptedException
+	{
+		EnrollmentCheckpoint checkpoint = EnrollmentCheckpoint.load( checkpointFile, batchSize );
+		Result result = new Result();
+		ForkJoinPool keyPool = new ForkJoinPool( parallelism );
+		ExecutorService writers = Executors.newFixedThreadPool( concurrency );
+		// One batch waiting per writer limits the input held in memory
+		Semaphore capacity = new Semaphore( concurrency * 2 );
+		long batchNumber = 0;
+		try
+		{
+			while ( userIds.hasNext() )
+			{
+				List<String> batch = new ArrayList<>( batchSize );
+				while ( userIds.hasNext() && batch.size() < batchSize )
+					batch.add( userIds.next() );
+				final long current = batchNumber++;
+				if ( checkpoint.isCompleted( current ) )
+				{
+					result.skipped.addAndGet( batch.size() );
+					continue;
+				}
+				capacity.acquire();
+				writers.execute( () -> {
+					try
+					{
+						processBatch( current, batch, resolver, keyPool, output, checkpoint, result );
+					}
+					finally
+					{
+						capacity.release();
+					}
+				});
+			}
+		}
+		finally
+		{
+			writers.shutdown();
+			writers.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+			keyPool.shutdown();
+		}
+		logger.log( Level.INFO, "Bulk enrollment done: {0}", result );
+		return result;
+	}
+
+	private void processBatch( long number, List<String> userIds, PrincipalResolver resolver, ForkJoinPool keyPool, 
+			EnrollmentOutput output, EnrollmentCheckpoint checkpoint, Result result )
+	{
+		try
+		{
+			List<NIDPPrincipal> principals = new ArrayList<>( userIds.size() );
+			for ( String userId : userIds )
+			{
+				NIDPPrincipal princ = resolver.resolve( userId );
+				if ( !force && isEnrolled( princ ) )
+					result.existing.incrementAndGet();
+				else
+					principals.add( princ );
+			}
+			List<TOTPKeyMaterial> materials = keyPool.submit( () -> principals.parallelStream()
+					.map( p -> generator.generate() )
+					.collect( Collectors.toList() ) ).get();
+			Map<NIDPPrincipal, TOTPKeyMaterial> entries = new LinkedHashMap<>();
+			for ( int i = 0; i < principals.size(); i++ )
+				entries.put( principals.get( i ), materials.get( i ) );
+			synchronized ( output )
+			{
+				for ( Map.Entry<NIDPPrincipal, TOTPKeyMaterial> entry : entries.entrySet() )
+				{
+					NIDPPrincipal princ = entry.getKey();
+					String uri = KeyMaterialGenerator.toOtpURI( issuerName, getUserName( princ ), entry.getValue().getKey() );
+					output.write( princ.getUserIdentifier(), uri, entry.getValue() );
+				}
+				output.flush();
+			}
+			try
+			{
+				store.writeKeyMaterialToStore( entries );
+			}
+			catch ( KeyMaterialWriteException e )
+			{
+				List<String> notStored = new ArrayList<>();
+				for ( NIDPPrincipal princ : entries.keySet() )
+				{
+					if ( !e.getWritten().contains( princ ) )
+						notStored.add( princ.getUserIdentifier() );
+				}
+				logger.log( Level.SEVERE, "Batch " + number + " failed: " + e.getMessage() 
+						+ ". The output for these users is not valid: " + notStored, e );
+				result.enrolled.addAndGet( e.getWritten().size() );
+				result.failedBatches.incrementAndGet();
+				result.failed.addAndGet( notStored.size() );
+				return;
+			}
+			checkpoint.complete( number );
+			result.enrolled.addAndGet( entries.size() );
+		}
+		catch ( TOTPException | IOException | ExecutionException | RuntimeException e )
+		{
+			logger.log( Level.SEVERE, "Batch " + number + " failed: " + e.getMessage(), e );
+			result.failedBatches.incrementAndGet();
+			result.failed.addAndGet( userIds.size() );
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			result.failedBatches.incrementAndGet();
+			result.failed.addAndGet( userIds.size() );
+		}
+	}
+
+	/**
+	 * @return true when the store has a secret for the principal
+	 */
+	private boolean isEnrolled( NIDPPrincipal princ )
+	{
+		try
+		{
+			String secret = store.readSecretFromStore( princ );
+			return secret != null && !secret.isEmpty();
+		}
+		catch ( TOTPException e )
+		{
+			// Stores report a missing secret as an error
+			return false;
+		}
+	}
+
+	private static String getUserName( NIDPPrincipal princ )
+	{
+		if ( princ instanceof LDAPPrincipal && ((LDAPPrincipal) princ).getUserName() != null )
+			return ((LDAPPrincipal) princ).getUserName();
+		return princ.getUserIdentifier();
+	}
+
+	private static Properties withDefaults( Properties props )
+	{
+		Properties result = new Properties();
+		result.putAll( TOTPConstants.getDefaults() );
+		result.putAll( props );
+		return result;
+	}
+
+	/**
+	 * Counters of a bulk enrollment run.
+	 */
+	public static class Result
+	{
+		private final AtomicLong enrolled      = new AtomicLong();
+		private final AtomicLong skipped       = new AtomicLong();
+		private final AtomicLong existing      = new AtomicLong();
+		private final AtomicLong failed        = new AtomicLong();
+		private final AtomicLong failedBatches = new AtomicLong();
+
+		/**
+		 * @return users enrolled in this run
+		 */
+		public long getEnrolled()
+		{
+			return enrolled.get();
+		}
+
+		/**
+		 * @return users skipped because their batch was completed by an earlier run
+		 */
+		public long getSkipped()
+		{
+			return skipped.get();
+		}
+
+		/**
+		 * @return users left alone because they already had a secret
+		 */
+		public long getExisting()
+		{
+			return existing.get();
+		}
+
+		/**
+		 * @return users whose key material was not stored
+		 */
+		public long getFailed()
+		{
+			return failed.get();
+		}
+
+		public long getFailedBatches()
+		{
+			return failedBatches.get();
+		}
+
+		@Override
+		public String toString()
+		{
+			return "enrolled=" + getEnrolled() + ", skipped=" + getSkipped() + ", existing=" + getExisting() 
+					+ ", failed=" + getFailed() + " (" + getFailedBatches() + " batches)";
+		}
+	}
+}
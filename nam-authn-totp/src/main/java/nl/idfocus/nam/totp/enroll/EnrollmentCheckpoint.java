@@ -0,0 +1,120 @@
+package nl.idfocus.nam.totp.enroll;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import nl.idfocus.nam.totp.TOTPException;
+
+/**
+ * Records which batches of a bulk run, such as {@link BulkEnrollment}, have completed, so an interrupted run can 
+ * resume. <br/>
+ * Batches are numbered in input order. The file holds the number of leading batches that are all complete, plus 
+ * the completed batches after that point. It is rewritten atomically after every batch. <br/>
+ * A resumed run must use the same input order and batch size.
+ */
+public class EnrollmentCheckpoint
+{
+	private static final String KEY_BATCH_SIZE = "batchSize";
+	private static final String KEY_WATERMARK  = "completedBefore";
+	private static final String KEY_COMPLETED  = "completed";
+
+	private final Path file;
+	private final int batchSize;
+	private final TreeSet<Long> completed = new TreeSet<>();
+	private long watermark;
+
+	private EnrollmentCheckpoint(Path file, int batchSize)
+	{
+		this.file = file;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Load the checkpoint from file, or start a new one when the file does not exist.
+	 * @param file checkpoint file, or null to keep progress in memory only
+	 * @param batchSize the batch size of the run
+	 * @return the checkpoint
+	 * @throws TOTPException when the file belongs to a run with another batch size, or cannot be read
+	 */
+	public static EnrollmentCheckpoint load(Path file, int batchSize) throws TOTPException
+	{
+		EnrollmentCheckpoint result = new EnrollmentCheckpoint(file, batchSize);
+		if (file == null || !Files.exists(file))
+			return result;
+		Properties props = new Properties();
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+		{
+			props.load(reader);
+			int storedSize = Integer.parseInt(props.getProperty(KEY_BATCH_SIZE, "0"));
+			if (storedSize != batchSize)
+				throw new TOTPException("Checkpoint " + file + " was written with batch size " + storedSize + ", not " + batchSize);
+			result.watermark = Long.parseLong(props.getProperty(KEY_WATERMARK, "0"));
+			for (String value : props.getProperty(KEY_COMPLETED, "").split(","))
+			{
+				if (!value.trim().isEmpty())
+					result.completed.add(Long.parseLong(value.trim()));
+			}
+		}
+		catch (IOException | NumberFormatException e)
+		{
+			throw new TOTPException("Could not read checkpoint " + file + ": " + e.getMessage(), e);
+		}
+		return result;
+	}
+
+	public synchronized boolean isCompleted(long batch)
+	{
+		return batch < watermark || completed.contains(batch);
+	}
+
+	/**
+	 * @return the number of leading batches that are all complete
+	 */
+	public synchronized long getWatermark()
+	{
+		return watermark;
+	}
+
+	/**
+	 * Mark a batch as complete and save the checkpoint.
+	 * @param batch the batch number
+	 * @throws IOException when the checkpoint could not be saved
+	 */
+	public synchronized void complete(long batch) throws IOException
+	{
+		completed.add(batch);
+		while (completed.remove(watermark))
+			watermark++;
+		save();
+	}
+
+	private void save() throws IOException
+	{
+		if (file == null)
+			return;
+		StringBuilder list = new StringBuilder();
+		for (Long batch : completed)
+		{
+			if (list.length() > 0)
+				list.append(',');
+			list.append(batch);
+		}
+		Properties props = new Properties();
+		props.setProperty(KEY_BATCH_SIZE, Integer.toString(batchSize));
+		props.setProperty(KEY_WATERMARK, Long.toString(watermark));
+		props.setProperty(KEY_COMPLETED, list.toString());
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8))
+		{
+			props.store(writer, "TOTP bulk enrollment checkpoint");
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,27 @@
+package nl.idfocus.nam.totp.enroll;
+
+import java.io.IOException;
+
+import nl.idfocus.nam.totp.TOTPKeyMaterial;
+
+/**
+ * Receives the result of every enrolled user from {@link BulkEnrollment}. <br/>
+ * Calls are made one batch at a time, never concurrently. The values include the secret key, so the destination 
+ * must be protected accordingly.
+ */
+public interface EnrollmentOutput
+{
+	/**
+	 * @param userId the principal identifier (DN)
+	 * @param otpUri the otpauth URI to register on the user's device
+	 * @param material the generated key material
+	 * @throws IOException when the result could not be written
+	 */
+	public void write(String userId, String otpUri, TOTPKeyMaterial material) throws IOException;
+
+	/**
+	 * Called after each batch, before its key material is stored. An entry is only valid once the store write of 
+	 * its batch succeeded; users that could not be stored are logged by {@link BulkEnrollment}.
+	 */
+	public void flush() throws IOException;
+}
@@ -0,0 +1,43 @@
+package nl.idfocus.nam.totp.enroll;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import nl.idfocus.nam.totp.TOTPKeyMaterial;
+
+/**
+ * Writes one tab separated line per user: identifier, otpauth URI and the space separated scratch codes.
+ */
+public class OtpUriOutput implements EnrollmentOutput
+{
+	private final Writer writer;
+
+	public OtpUriOutput(Writer writer)
+	{
+		this.writer = writer;
+	}
+
+	@Override
+	public void write(String userId, String otpUri, TOTPKeyMaterial material) throws IOException
+	{
+		writer.write(userId);
+		writer.write('\t');
+		writer.write(otpUri);
+		writer.write('\t');
+		boolean first = true;
+		for (Integer code : material.getScratchCodes())
+		{
+			if (!first)
+				writer.write(' ');
+			writer.write(code.toString());
+			first = false;
+		}
+		writer.write('\n');
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		writer.flush();
+	}
+}
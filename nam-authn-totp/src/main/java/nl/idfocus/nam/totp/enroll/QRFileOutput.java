@@ -0,0 +1,67 @@
+package nl.idfocus.nam.totp.enroll;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.google.zxing.common.BitMatrix;
+
+import nl.idfocus.nam.totp.QRImageEncoder;
+import nl.idfocus.nam.totp.TOTPException;
+import nl.idfocus.nam.totp.TOTPKeyMaterial;
+import nl.idfocus.nam.util.Sha256;
+
+/**
+ * Writes a PNG QR code per user into a directory. <br/>
+ * Files are named after the SHA-256 hash of the user identifier; <code>manifest.txt</code> in the same directory 
+ * maps every identifier to its file. The images are drawn by {@link QRImageEncoder}, as on the registration page.
+ */
+public class QRFileOutput implements EnrollmentOutput
+{
+	public static final String MANIFEST = "manifest.txt";
+
+	private final Path directory;
+	private final int size;
+	private final Writer manifest;
+
+	public QRFileOutput(Path directory, int size) throws IOException
+	{
+		this.directory = Files.createDirectories(directory);
+		this.size = size;
+		this.manifest = Files.newBufferedWriter(directory.resolve(MANIFEST), StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+
+	@Override
+	public void write(String userId, String otpUri, TOTPKeyMaterial material) throws IOException
+	{
+		String fileName = Sha256.toHashString(userId) + ".png";
+		BitMatrix matrix;
+		try
+		{
+			matrix = QRImageEncoder.encode(otpUri, size);
+		}
+		catch (TOTPException e)
+		{
+			throw new IOException("failed to encode QR image for " + userId + ": " + e.getMessage(), e);
+		}
+		try (OutputStream out = Files.newOutputStream(directory.resolve(fileName)))
+		{
+			QRImageEncoder.writePng(matrix, out);
+		}
+		manifest.write(userId);
+		manifest.write('\t');
+		manifest.write(fileName);
+		manifest.write('\n');
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		manifest.flush();
+	}
+}
@@ -0,0 +1,80 @@
+package nl.idfocus.nam.totp.migrate;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verification report of a {@link StoreMigration} run. <br/>
+ * Writes one tab separated line per user with the outcome and, for problems, a reason. Never contains secrets.
+ */
+public class MigrationReport
+{
+	public enum Status
+	{
+		/** Copied to the target store and read back identically */
+		VERIFIED,
+		/** The source store has no secret for the user */
+		NOT_REGISTERED,
+		/** Copied, but the target store returns different values */
+		MISMATCH,
+		/** Reading or writing failed */
+		FAILED
+	}
+
+	private final Writer writer;
+	private final Map<Status, AtomicLong> counts = new EnumMap<>(Status.class);
+
+	/**
+	 * @param writer destination of the report lines, or null to only keep counts
+	 */
+	public MigrationReport(Writer writer)
+	{
+		this.writer = writer;
+		for (Status status : Status.values())
+			counts.put(status, new AtomicLong());
+	}
+
+	void record(String userId, Status status, String reason) throws IOException
+	{
+		counts.get(status).incrementAndGet();
+		if (writer == null)
+			return;
+		synchronized (writer)
+		{
+			writer.write(status.name());
+			writer.write('\t');
+			writer.write(userId);
+			if (reason != null)
+			{
+				writer.write('\t');
+				writer.write(reason);
+			}
+			writer.write('\n');
+		}
+	}
+
+	void flush() throws IOException
+	{
+		if (writer != null)
+		{
+			synchronized (writer)
+			{
+				writer.flush();
+			}
+		}
+	}
+
+	public long getCount(Status status)
+	{
+		return counts.get(status).get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return counts.toString();
+	}
+}
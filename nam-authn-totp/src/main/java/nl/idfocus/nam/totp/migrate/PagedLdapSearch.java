@@ -0,0 +1,137 @@
+package nl.idfocus.nam.totp.migrate;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+import nl.idfocus.nam.totp.TOTPException;
+
+/**
+ * Streams the DNs of all entries matching a filter, using the LDAP simple paged results control. <br/>
+ * Only one page is held in memory. No attributes are requested, the DN is all the migration needs. <br/>
+ * Errors while fetching a page are thrown from {@link #hasNext()} as an {@link IllegalStateException}.
+ */
+public class PagedLdapSearch implements Iterator<String>, AutoCloseable
+{
+	private final LdapContext ctx;
+	private final String base;
+	private final String filter;
+	private final int pageSize;
+	private final SearchControls controls;
+	private final ArrayDeque<String> page = new ArrayDeque<>();
+	private byte[] cookie;
+	private boolean lastPage;
+
+	/**
+	 * @param ctx the connection to search with; closed by {@link #close()}
+	 * @param base the search base
+	 * @param filter the LDAP filter, for example <code>(objectClass=inetOrgPerson)</code>
+	 * @param pageSize the number of entries per page
+	 */
+	public PagedLdapSearch(LdapContext ctx, String base, String filter, int pageSize)
+	{
+		this.ctx = ctx;
+		this.base = base;
+		this.filter = filter;
+		this.pageSize = pageSize;
+		this.controls = new SearchControls();
+		controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+		controls.setReturningAttributes(new String[0]);
+	}
+
+	/**
+	 * Open a simple-bind connection to the given directory.
+	 * @param url the LDAP URL, for example <code>ldaps://edir.example.com:636</code>
+	 * @param bindDn the DN to bind as
+	 * @param password the password of the bind DN
+	 * @return the connection
+	 * @throws TOTPException when the connection could not be made
+	 */
+	public static LdapContext connect(String url, String bindDn, String password) throws TOTPException
+	{
+		Hashtable<String, Object> env = new Hashtable<>();
+		env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+		env.put(Context.PROVIDER_URL, url);
+		env.put(Context.SECURITY_AUTHENTICATION, "simple");
+		env.put(Context.SECURITY_PRINCIPAL, bindDn);
+		env.put(Context.SECURITY_CREDENTIALS, password);
+		try
+		{
+			return new InitialLdapContext(env, null);
+		}
+		catch (NamingException e)
+		{
+			throw new TOTPException("Could not connect to " + url + ": " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		while (page.isEmpty() && !lastPage)
+		{
+			try
+			{
+				fetchPage();
+			}
+			catch (NamingException | IOException e)
+			{
+				throw new IllegalStateException("Paged search below " + base + " failed: " + e.getMessage(), e);
+			}
+		}
+		return !page.isEmpty();
+	}
+
+	@Override
+	public String next()
+	{
+		if (!hasNext())
+			throw new NoSuchElementException();
+		return page.poll();
+	}
+
+	private void fetchPage() throws NamingException, IOException
+	{
+		ctx.setRequestControls(new Control[] { new PagedResultsControl(pageSize, cookie, Control.CRITICAL) });
+		NamingEnumeration<SearchResult> results = ctx.search(base, filter, controls);
+		try
+		{
+			while (results.hasMore())
+				page.add(results.next().getNameInNamespace());
+		}
+		finally
+		{
+			results.close();
+		}
+		cookie = null;
+		Control[] response = ctx.getResponseControls();
+		if (response != null)
+		{
+			for (Control control : response)
+			{
+				if (control instanceof PagedResultsResponseControl)
+					cookie = ((PagedResultsResponseControl) control).getCookie();
+			}
+		}
+		lastPage = cookie == null || cookie.length == 0;
+	}
+
+	@Override
+	public void close() throws NamingException
+	{
+		ctx.close();
+	}
+}
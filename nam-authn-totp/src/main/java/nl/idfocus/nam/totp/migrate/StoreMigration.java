@@ -0,0 +1,318 @@
+package nl.idfocus.nam.totp.migrate;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.novell.nidp.NIDPPrincipal;
+
+import nl.idfocus.nam.totp.TOTPConstants;
+import nl.idfocus.nam.totp.TOTPException;
+import nl.idfocus.nam.totp.TOTPKeyMaterial;
+import nl.idfocus.nam.totp.enroll.BulkEnrollment.PrincipalResolver;
+import nl.idfocus.nam.totp.enroll.EnrollmentCheckpoint;
+import nl.idfocus.nam.totp.migrate.MigrationReport.Status;
+import nl.idfocus.nam.totp.store.ISecretStore;
+import nl.idfocus.nam.totp.store.KeyMaterialWriteException;
+import nl.idfocus.nam.totp.store.SecretStoreRegistry;
+import nl.idfocus.nam.util.LogFormatter;
+
+/**
+ * Copies TOTP registrations from one secret store to another, so users do not have to enroll again. <br/>
+ * <p>
+ * Users are typically streamed from a {@link PagedLdapSearch}. They are processed in batches of 
+ * {@link #PROP_BATCH_SIZE}: the secret, scratch codes and clock drift are read from the source store, the batch is 
+ * written with {@link ISecretStore#writeKeyMaterialToStore(Map)} and every user is read back from the target to 
+ * verify the secret and scratch codes. The clock drift is copied when the target supports it, but not verified. 
+ * At most {@link #PROP_CONCURRENCY} batches run at the same time and no more than {@link #PROP_RATE} users per 
+ * second are read, so the directory is not saturated.
+ * </p><p>
+ * Outcomes are written to a {@link MigrationReport}. A batch in which every user was verified or had no 
+ * registration is recorded in the {@link EnrollmentCheckpoint}; other batches are retried by a resumed run.
+ * </p>
+ */
+public class StoreMigration
+{
+	private static final Logger logger = LogFormatter.getConsoleLogger(StoreMigration.class.getName());
+
+	/**
+	 * Number of users per batch. The default is specified in {@link #DEF_BATCH_SIZE}
+	 */
+	public static final String PROP_BATCH_SIZE  = "migrateBatchSize";
+	/**
+	 * Number of batches migrated concurrently. The default is specified in {@link #DEF_CONCURRENCY}
+	 */
+	public static final String PROP_CONCURRENCY = "migrateConcurrency";
+	/**
+	 * Maximum number of users read per second, 0 for no limit. The default is specified in {@link #DEF_RATE}
+	 */
+	public static final String PROP_RATE        = "migrateRate";
+
+	private static final String DEF_BATCH_SIZE  = "100";
+	private static final String DEF_CONCURRENCY = "4";
+	private static final String DEF_RATE        = "50";
+
+	private final ISecretStore source;
+	private final ISecretStore target;
+	private final int batchSize;
+	private final int concurrency;
+	private final Throttle throttle;
+
+	public StoreMigration(ISecretStore source, ISecretStore target, Properties props)
+	{
+		this.source = source;
+		this.target = target;
+		this.batchSize = Integer.parseInt(props.getProperty(PROP_BATCH_SIZE, DEF_BATCH_SIZE));
+		this.concurrency = Integer.parseInt(props.getProperty(PROP_CONCURRENCY, DEF_CONCURRENCY));
+		this.throttle = new Throttle(Integer.parseInt(props.getProperty(PROP_RATE, DEF_RATE)));
+		if (batchSize < 1 || concurrency < 1)
+			throw new IllegalArgumentException("Batch size and concurrency must be positive");
+	}
+
+	/**
+	 * Create a migration between two configured secret stores. The key cache is disabled for both, as every key 
+	 * is read only once.
+	 * @param sourceProps the module properties of the store to read from
+	 * @param targetProps the module properties of the store to write to
+	 * @param props the migration properties
+	 */
+	public static StoreMigration create(Properties sourceProps, Properties targetProps, Properties props) throws TOTPException
+	{
+		return new StoreMigration(SecretStoreRegistry.getStore(withoutCache(sourceProps)), 
+				SecretStoreRegistry.getStore(withoutCache(targetProps)), props);
+	}
+
+	private static Properties withoutCache(Properties props)
+	{
+		Properties result = new Properties();
+		result.putAll(TOTPConstants.getDefaults());
+		result.putAll(props);
+		result.setProperty(TOTPConstants.PARAM_KEY_CACHE_TTL, "0");
+		return result;
+	}
+
+	/**
+	 * Migrate all users from the input.
+	 * @param userIds user identifiers, always in the same order for a resumed run
+	 * @param resolver resolves identifiers to principals
+	 * @param report receives the outcome for every user
+	 * @param checkpointFile file to record progress in, or null
+	 * @throws TOTPException when the checkpoint cannot be loaded or the input fails
+	 * @throws InterruptedException when the run is interrupted; completed batches remain in the checkpoint
+	 */
+	public void run(Iterator<String> userIds, PrincipalResolver resolver, MigrationReport report, Path checkpointFile) 
+			throws TOTPException, InterruptedException
+	{
+		EnrollmentCheckpoint checkpoint = EnrollmentCheckpoint.load(checkpointFile, batchSize);
+		ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+		Semaphore capacity = new Semaphore(concurrency * 2);
+		long batchNumber = 0;
+		try
+		{
+			while (userIds.hasNext())
+			{
+				List<String> batch = new ArrayList<>(batchSize);
+				while (userIds.hasNext() && batch.size() < batchSize)
+					batch.add(userIds.next());
+				final long current = batchNumber++;
+				if (checkpoint.isCompleted(current))
+					continue;
+				capacity.acquire();
+				workers.execute(() -> {
+					try
+					{
+						migrateBatch(current, batch, resolver, report, checkpoint);
+					}
+					finally
+					{
+						capacity.release();
+					}
+				});
+			}
+		}
+		catch (IllegalStateException e)
+		{
+			throw new TOTPException("Reading users failed after " + batchNumber + " batches: " + e.getMessage(), e);
+		}
+		finally
+		{
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		logger.log(Level.INFO, "Migration done: {0}", report);
+	}
+
+	private void migrateBatch(long number, List<String> userIds, PrincipalResolver resolver, MigrationReport report, 
+			EnrollmentCheckpoint checkpoint)
+	{
+		boolean complete = true;
+		try
+		{
+			Map<NIDPPrincipal, TOTPKeyMaterial> batch = new LinkedHashMap<>();
+			Map<NIDPPrincipal, Integer> drifts = new LinkedHashMap<>();
+			for (String userId : userIds)
+			{
+				try
+				{
+					throttle.acquire();
+					NIDPPrincipal princ = resolver.resolve(userId);
+					String secret = source.readSecretFromStore(princ);
+					if (secret == null || secret.isEmpty())
+					{
+						report.record(userId, Status.NOT_REGISTERED, null);
+						continue;
+					}
+					batch.put(princ, new TOTPKeyMaterial(secret, source.readScratchCodesFromStore(princ), 0));
+					drifts.put(princ, readDrift(princ));
+				}
+				catch (TOTPException e)
+				{
+					report.record(userId, Status.FAILED, "read: " + e.getMessage());
+					complete = false;
+				}
+			}
+			if (batch.isEmpty())
+				return;
+			Set<NIDPPrincipal> written = batch.keySet();
+			try
+			{
+				target.writeKeyMaterialToStore(batch);
+			}
+			catch (KeyMaterialWriteException e)
+			{
+				// The users that were written are verified as usual
+				logger.log(Level.SEVERE, "Writing batch " + number + " failed for " + (batch.size() - e.getWritten().size()) 
+						+ " users: " + e.getMessage(), e);
+				written = e.getWritten();
+				for (NIDPPrincipal princ : batch.keySet())
+				{
+					if (!written.contains(princ))
+						report.record(princ.getUserIdentifier(), Status.FAILED, "write: " + e.getMessage());
+				}
+				complete = false;
+			}
+			catch (TOTPException e)
+			{
+				logger.log(Level.SEVERE, "Writing batch " + number + " failed: " + e.getMessage(), e);
+				for (NIDPPrincipal princ : batch.keySet())
+					report.record(princ.getUserIdentifier(), Status.FAILED, "write: " + e.getMessage());
+				complete = false;
+				return;
+			}
+			for (Map.Entry<NIDPPrincipal, TOTPKeyMaterial> entry : batch.entrySet())
+			{
+				if (!written.contains(entry.getKey()))
+					continue;
+				writeDrift(entry.getKey(), drifts.get(entry.getKey()));
+				complete &= verify(entry.getKey(), entry.getValue(), report);
+			}
+		}
+		catch (IOException | RuntimeException e)
+		{
+			logger.log(Level.SEVERE, "Batch " + number + " failed: " + e.getMessage(), e);
+			complete = false;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			complete = false;
+		}
+		finally
+		{
+			finishBatch(number, complete, report, checkpoint);
+		}
+	}
+
+	/**
+	 * The drift only speeds up verification, a user without one is migrated anyway.
+	 */
+	private int readDrift(NIDPPrincipal princ)
+	{
+		try
+		{
+			return source.readDriftFromStore(princ);
+		}
+		catch (TOTPException e)
+		{
+			logger.log(Level.FINE, "No clock drift for {0}: {1}", new Object[] { princ.getUserIdentifier(), e.getMessage() });
+			return 0;
+		}
+	}
+
+	/**
+	 * The drift is not verified either, a user whose drift could not be copied is migrated anyway.
+	 */
+	private void writeDrift(NIDPPrincipal princ, int drift)
+	{
+		if (drift == 0)
+			return;
+		try
+		{
+			target.writeDriftToStore(princ, drift);
+		}
+		catch (TOTPException e)
+		{
+			logger.log(Level.WARNING, "Could not copy clock drift for {0}: {1}", new Object[] { princ.getUserIdentifier(), e.getMessage() });
+		}
+	}
+
+	private boolean verify(NIDPPrincipal princ, TOTPKeyMaterial expected, MigrationReport report) throws IOException
+	{
+		String userId = princ.getUserIdentifier();
+		try
+		{
+			target.invalidate(princ);
+			if (!expected.getKey().equals(target.readSecretFromStore(princ)))
+				report.record(userId, Status.MISMATCH, "secret key differs");
+			else if (!sameCodes(expected.getScratchCodes(), target.readScratchCodesFromStore(princ)))
+				report.record(userId, Status.MISMATCH, "scratch codes differ");
+			else
+			{
+				report.record(userId, Status.VERIFIED, null);
+				return true;
+			}
+		}
+		catch (TOTPException e)
+		{
+			report.record(userId, Status.FAILED, "verify: " + e.getMessage());
+		}
+		return false;
+	}
+
+	private static boolean sameCodes(List<Integer> expected, List<Integer> actual)
+	{
+		if (expected == null || actual == null)
+			return expected == actual;
+		List<Integer> left = new ArrayList<>(expected);
+		List<Integer> right = new ArrayList<>(actual);
+		left.sort(null);
+		right.sort(null);
+		return left.equals(right);
+	}
+
+	private void finishBatch(long number, boolean complete, MigrationReport report, EnrollmentCheckpoint checkpoint)
+	{
+		try
+		{
+			report.flush();
+			if (complete)
+				checkpoint.complete(number);
+		}
+		catch (IOException e)
+		{
+			logger.log(Level.SEVERE, "Could not record batch " + number + ": " + e.getMessage(), e);
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package nl.idfocus.nam.totp.migrate;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spaces out operations so that no more than the given number per second are started, across all threads. <br/>
+ * Each caller reserves the next free slot with a single compare-and-set and sleeps until it arrives. Unlike the 
+ * keyed {@link nl.idfocus.nam.util.RateLimiter}, which refuses events over a limit, this makes the caller wait.
+ */
+class Throttle
+{
+	private final long intervalNanos;
+	private final AtomicLong nextSlot = new AtomicLong(System.nanoTime());
+
+	/**
+	 * @param perSecond maximum operations per second, 0 or less for no limit
+	 */
+	Throttle(int perSecond)
+	{
+		this.intervalNanos = perSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / perSecond : 0;
+	}
+
+	void acquire() throws InterruptedException
+	{
+		if (intervalNanos == 0)
+			return;
+		long now = System.nanoTime();
+		long slot;
+		long next;
+		do
+		{
+			slot = nextSlot.get();
+			// Do not save up unused slots while idle
+			next = Math.max(slot, now) + intervalNanos;
+		}
+		while (!nextSlot.compareAndSet(slot, next));
+		long wait = next - intervalNanos - now;
+		if (wait > 0)
+			TimeUnit.NANOSECONDS.sleep(wait);
+	}
+}
@@ -0,0 +1,343 @@
+package nl.idfocus.nam.totp.store;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.novell.nidp.NIDPPrincipal;
+
+import nl.idfocus.nam.totp.TOTPConstants;
+import nl.idfocus.nam.totp.TOTPException;
+import nl.idfocus.nam.totp.TOTPKeyMaterial;
+import nl.idfocus.nam.util.LogFormatter;
+
+/**
+ * Keeps decoded secret keys in memory for a short while, in front of another {@link ISecretStore}. <br/>
+ * Entries are keyed by principal DN and expire after {@link TOTPConstants#PARAM_KEY_CACHE_TTL} seconds; at most 
+ * {@link TOTPConstants#PARAM_KEY_CACHE_SIZE} entries are held, the least recently used entry is dropped first. 
+ * Writing a secret or scratch codes, or an explicit {@link #invalidate(NIDPPrincipal)}, removes the entry. Removed key 
+ * bytes are overwritten with zeroes. <br/>
+ * The clock drift of a principal is kept in the same entry, so a login with a cached key does not read the drift from 
+ * the wrapped store either. Writing the drift updates the cached value and leaves the key cached. <br/>
+ * A key read from the wrapped store is only cached when no invalidation of the same principal happened during the 
+ * read, so a read that races a write cannot cache the old key. <br/>
+ * A size or TTL of 0 disables caching.
+ */
+public class CachingSecretStore implements ISecretStore
+{
+	private static final Logger logger = LogFormatter.getConsoleLogger( CachingSecretStore.class.getName() );
+
+	private static final int STAMP_STRIPES = 64;
+
+	private final ISecretStore delegate;
+	/** Access ordered, guarded by itself */
+	private final Map<String, CachedKey> cache = new LinkedHashMap<String, CachedKey>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedKey> eldest)
+		{
+			if ( size() <= maxEntries )
+				return false;
+			eldest.getValue().wipe();
+			return true;
+		}
+	};
+	/** Invalidation counters per stripe of principals, guarded by the cache */
+	private final long[] stamps = new long[STAMP_STRIPES];
+	private volatile int  maxEntries;
+	private long ttlMillis;
+
+	public CachingSecretStore(ISecretStore delegate)
+	{
+		this.delegate = delegate;
+	}
+
+	/**
+	 * Read the cache settings and initialize the wrapped store.
+	 */
+	@Override
+	public void init(Properties props) throws TOTPException
+	{
+		try
+		{
+			maxEntries = Integer.parseInt( props.getProperty( TOTPConstants.PARAM_KEY_CACHE_SIZE, "0" ) );
+			ttlMillis = TimeUnit.SECONDS.toMillis( Long.parseLong( props.getProperty( TOTPConstants.PARAM_KEY_CACHE_TTL, "0" ) ) );
+		}
+		catch (NumberFormatException e)
+		{
+			throw new TOTPException("Invalid key cache setting: " + e.getMessage(), e);
+		}
+		delegate.init(props);
+	}
+
+	/**
+	 * @return the wrapped store
+	 */
+	public ISecretStore getDelegate()
+	{
+		return delegate;
+	}
+
+	/**
+	 * @return the number of keys currently cached
+	 */
+	public int size()
+	{
+		synchronized (cache)
+		{
+			return cache.size();
+		}
+	}
+
+	@Override
+	public byte[] readKeyFromStore(NIDPPrincipal princ) throws TOTPException
+	{
+		if ( !isEnabled() )
+			return delegate.readKeyFromStore(princ);
+		String dn = princ.getUserIdentifier();
+		long now = System.currentTimeMillis();
+		CachedKey entry;
+		long stamp;
+		synchronized (cache)
+		{
+			entry = cache.get(dn);
+			stamp = stamps[stripe(dn)];
+		}
+		if ( entry != null )
+		{
+			byte[] result = entry.copy(now);
+			if ( result != null )
+				return result;
+			// Expired or wiped
+			remove(dn, entry);
+		}
+		byte[] key = delegate.readKeyFromStore(princ);
+		if ( key != null )
+		{
+			CachedKey created = new CachedKey(key, now + ttlMillis);
+			CachedKey previous;
+			synchronized (cache)
+			{
+				// Written or invalidated while we were reading, the key may be stale
+				if ( stamps[stripe(dn)] != stamp )
+					return key;
+				previous = cache.put(dn, created);
+			}
+			if ( previous != null )
+				previous.wipe();
+		}
+		return key;
+	}
+
+	@Override
+	public String readSecretFromStore(NIDPPrincipal princ) throws TOTPException
+	{
+		return delegate.readSecretFromStore(princ);
+	}
+
+	@Override
+	public void writeSecretToStore(NIDPPrincipal princ, String secretValue) throws TOTPException
+	{
+		try
+		{
+			delegate.writeSecretToStore(princ, secretValue);
+		}
+		finally
+		{
+			invalidate(princ);
+		}
+	}
+
+	@Override
+	public void writeScratchCodesToStore(NIDPPrincipal princ, Integer... secretValue) throws TOTPException
+	{
+		try
+		{
+			delegate.writeScratchCodesToStore(princ, secretValue);
+		}
+		finally
+		{
+			invalidate(princ);
+		}
+	}
+
+	@Override
+	public void writeKeyMaterialToStore(Map<NIDPPrincipal, TOTPKeyMaterial> batch) throws TOTPException
+	{
+		try
+		{
+			delegate.writeKeyMaterialToStore(batch);
+		}
+		finally
+		{
+			for (NIDPPrincipal princ : batch.keySet())
+				invalidate(princ);
+		}
+	}
+
+	@Override
+	public List<Integer> readScratchCodesFromStore(NIDPPrincipal princ) throws TOTPException
+	{
+		return delegate.readScratchCodesFromStore(princ);
+	}
+
+	@Override
+	public List<String> getAttributeNames()
+	{
+		return delegate.getAttributeNames();
+	}
+
+	/**
+	 * A principal whose key and drift are both cached needs nothing from the wrapped store to log in. The scratch 
+	 * codes are not cached, but they are only read when the user enters one.
+	 */
+	@Override
+	public List<String> getAttributeNames(NIDPPrincipal princ)
+	{
+		if ( isEnabled() )
+		{
+			CachedKey entry;
+			synchronized (cache)
+			{
+				entry = cache.get(princ.getUserIdentifier());
+			}
+			if ( entry != null && entry.getDrift(System.currentTimeMillis()) != null )
+				return Collections.emptyList();
+		}
+		return delegate.getAttributeNames(princ);
+	}
+
+	@Override
+	public void invalidate(NIDPPrincipal princ)
+	{
+		String dn = princ.getUserIdentifier();
+		CachedKey entry;
+		synchronized (cache)
+		{
+			stamps[stripe(dn)]++;
+			entry = cache.remove(dn);
+		}
+		if ( entry != null )
+		{
+			logger.log(Level.FINE, "Removed cached key for {0}", princ.getUserIdentifier());
+			entry.wipe();
+		}
+		delegate.invalidate(princ);
+	}
+
+	@Override
+	public int readDriftFromStore(NIDPPrincipal princ) throws TOTPException
+	{
+		if ( !isEnabled() )
+			return delegate.readDriftFromStore(princ);
+		CachedKey entry;
+		synchronized (cache)
+		{
+			entry = cache.get(princ.getUserIdentifier());
+		}
+		if ( entry == null )
+			return delegate.readDriftFromStore(princ);
+		Integer cached = entry.getDrift(System.currentTimeMillis());
+		if ( cached != null )
+			return cached;
+		int drift = delegate.readDriftFromStore(princ);
+		// A drift written while we were reading takes precedence
+		entry.setDriftIfAbsent(drift);
+		return drift;
+	}
+
+	@Override
+	public void writeDriftToStore(NIDPPrincipal princ, int drift) throws TOTPException
+	{
+		delegate.writeDriftToStore(princ, drift);
+		CachedKey entry;
+		synchronized (cache)
+		{
+			entry = cache.get(princ.getUserIdentifier());
+		}
+		if ( entry != null )
+			entry.setDrift(drift);
+	}
+
+	private boolean isEnabled()
+	{
+		return maxEntries > 0 && ttlMillis > 0;
+	}
+
+	private void remove(String dn, CachedKey entry)
+	{
+		boolean removed;
+		synchronized (cache)
+		{
+			removed = cache.remove(dn, entry);
+		}
+		if ( removed )
+			entry.wipe();
+	}
+
+	private static int stripe(String dn)
+	{
+		return (dn.hashCode() & Integer.MAX_VALUE) % STAMP_STRIPES;
+	}
+
+	/**
+	 * Key bytes and clock drift with an expiry time. Copies are handed out, and the bytes are zeroed when the entry is wiped.
+	 */
+	private static final class CachedKey
+	{
+		private final byte[] key;
+		private final long   expires;
+		private boolean      wiped;
+		private Integer      drift;
+
+		CachedKey(byte[] key, long expires)
+		{
+			this.key = Arrays.copyOf(key, key.length);
+			this.expires = expires;
+		}
+
+		boolean isExpired(long now)
+		{
+			return now >= expires;
+		}
+
+		synchronized byte[] copy(long now)
+		{
+			if ( wiped || isExpired(now) )
+				return null;
+			return Arrays.copyOf(key, key.length);
+		}
+
+		synchronized Integer getDrift(long now)
+		{
+			if ( wiped || isExpired(now) )
+				return null;
+			return drift;
+		}
+
+		synchronized void setDrift(int drift)
+		{
+			this.drift = drift;
+		}
+
+		synchronized void setDriftIfAbsent(int drift)
+		{
+			if ( this.drift == null )
+				this.drift = drift;
+		}
+
+		synchronized void wipe()
+		{
+			Arrays.fill(key, (byte) 0);
+			wiped = true;
+		}
+	}
+}
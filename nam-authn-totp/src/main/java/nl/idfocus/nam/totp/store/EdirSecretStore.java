@@ -1,21 +1,14 @@
 package nl.idfocus.nam.totp.store;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.UnsupportedEncodingException;
-import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Properties;
 
+import javax.naming.CommunicationException;
 import javax.naming.NamingException;
 import javax.naming.ldap.LdapContext;
 
-import com.novell.nam.common.ldap.jndi.JNDIUserStoreReplica;
-import com.novell.nam.common.ldap.jndi.JNDIUserStoreReplicaConnection;
 import com.novell.nidp.NIDPPrincipal;
 import com.novell.nidp.common.authority.UserAuthority;
 import com.novell.nidp.common.authority.ldap.LDAPUserAuthority;
@@ -24,14 +17,13 @@ import com.novell.security.sso.Secret;
 import com.novell.security.sso.SecretStore;
 
 import nl.idfocus.nam.totp.TOTPException;
-import nl.idfocus.nam.util.Base64;
+import nl.idfocus.nam.util.LdapContextPool;
 
 public class EdirSecretStore implements ISecretStore 
 {
 	public static final String SECRET_NAME  = "\\\\IDFocus\\TOTPSecretKey";
 	public static final String SCRATCH_NAME = "\\\\IDFocus\\TOTPScratchCodes";
-
-	private LdapContext userContext;
+	public static final String DRIFT_NAME   = "\\\\IDFocus\\TOTPClockDrift";
 
 	@Override
 	public void init(Properties prop) 
@@ -42,103 +34,192 @@ public class EdirSecretStore implements ISecretStore
 	@Override
 	public void writeSecretToStore(NIDPPrincipal princ, String secretValue) throws TOTPException 
 	{
-		Secret secret = getSecretHandle(princ, SECRET_NAME);
+		UserHandle handle = getLdapHandleForPrincipal(princ.getAuthority(), princ.getUserIdentifier());
 		try
 		{
+			Secret secret = getSecretHandle(princ, handle.getContext(), SECRET_NAME);
 			secret.setValue(secretValue.getBytes());
 		}
 		catch (SSException e)
 		{
+			handle.invalidate(e);
 			throw new TOTPException("Could not write secret key for "+princ.getUserIdentifier(), e);
 		}
 		finally
 		{
-			closeLdapHandle();
+			handle.close();
 		}
 	}
 
 	@Override
 	public String readSecretFromStore(NIDPPrincipal princ) throws TOTPException 
 	{
-		Secret secret = getSecretHandle(princ, SECRET_NAME);
+		UserHandle handle = getLdapHandleForPrincipal(princ.getAuthority(), princ.getUserIdentifier());
 		try
 		{
+			Secret secret = getSecretHandle(princ, handle.getContext(), SECRET_NAME);
 			return new String(secret.getValue(),"UTF-8");
 		}
 		catch (SSException | UnsupportedEncodingException e)
 		{
+			handle.invalidate(e);
 			throw new TOTPException("Could not read secret key for "+princ.getUserIdentifier(), e);
 		}
 		finally
 		{
-			closeLdapHandle();
+			handle.close();
 		}
 	}
 
 	@Override
 	public void writeScratchCodesToStore(NIDPPrincipal princ, Integer... secretValue) throws TOTPException 
 	{
-		Secret scratchCodes = getSecretHandle(princ, SCRATCH_NAME);
-		String deflatedValue = deflateArray(secretValue);
+		UserHandle handle = getLdapHandleForPrincipal(princ.getAuthority(), princ.getUserIdentifier());
+		String deflatedValue = ScratchCodeCodec.encode(secretValue);
 		try
 		{
+			Secret scratchCodes = getSecretHandle(princ, handle.getContext(), SCRATCH_NAME);
 			scratchCodes.setValue(deflatedValue.getBytes());
 		}
 		catch (SSException e)
 		{
+			handle.invalidate(e);
 			throw new TOTPException("Could not write scratch codes for "+princ.getUserIdentifier(), e);
 		}
 		finally
 		{
-			closeLdapHandle();
+			handle.close();
 		}
 	}
 
 	@Override
 	public List<Integer> readScratchCodesFromStore(NIDPPrincipal princ) throws TOTPException
 	{
-		Secret scratchCodes = getSecretHandle(princ, SCRATCH_NAME);
+		UserHandle handle = getLdapHandleForPrincipal(princ.getAuthority(), princ.getUserIdentifier());
 		try
 		{
+			Secret scratchCodes = getSecretHandle(princ, handle.getContext(), SCRATCH_NAME);
 			String deflatedValue = new String(scratchCodes.getValue(),"UTF-8");
-			return inflateArray(deflatedValue);
+			return ScratchCodeCodec.decode(deflatedValue);
 		}
 		catch (UnsupportedEncodingException | SSException e)
 		{
+			handle.invalidate(e);
 			throw new TOTPException("Could not read scratch codes for "+princ.getUserIdentifier(), e);
 		}
 		finally
 		{
-			closeLdapHandle();
+			handle.close();
+		}
+	}
+
+	@Override
+	public int readDriftFromStore(NIDPPrincipal princ) throws TOTPException
+	{
+		UserHandle handle = getLdapHandleForPrincipal(princ.getAuthority(), princ.getUserIdentifier());
+		try
+		{
+			Secret drift = getSecretHandle(princ, handle.getContext(), DRIFT_NAME);
+			byte[] value = drift.getValue();
+			if ( value == null || value.length == 0 )
+				return 0;
+			return Integer.parseInt(new String(value,"UTF-8"));
+		}
+		catch (UnsupportedEncodingException | SSException | NumberFormatException e)
+		{
+			handle.invalidate(e);
+			throw new TOTPException("Could not read clock drift for "+princ.getUserIdentifier(), e);
+		}
+		finally
+		{
+			handle.close();
 		}
 	}
 
-	private Secret getSecretHandle(NIDPPrincipal princ, String secretName) throws TOTPException
+	@Override
+	public void writeDriftToStore(NIDPPrincipal princ, int drift) throws TOTPException
+	{
+		UserHandle handle = getLdapHandleForPrincipal(princ.getAuthority(), princ.getUserIdentifier());
+		try
+		{
+			Secret secret = getSecretHandle(princ, handle.getContext(), DRIFT_NAME);
+			secret.setValue(Integer.toString(drift).getBytes());
+		}
+		catch (SSException e)
+		{
+			handle.invalidate(e);
+			throw new TOTPException("Could not write clock drift for "+princ.getUserIdentifier(), e);
+		}
+		finally
+		{
+			handle.close();
+		}
+	}
+
+	private Secret getSecretHandle(NIDPPrincipal princ, LdapContext userContext, String secretName) throws TOTPException, SSException
 	{
-		userContext = getLdapHandleForPrincipal(princ.getAuthority(), princ.getUserIdentifier());
 		SecretStore store = getSecretStoreForUser(princ.getUserIdentifier(), userContext);
 		return store.getSecret(secretName);
 	}
 
-	private LdapContext getLdapHandleForPrincipal(UserAuthority authority, String userDn) throws TOTPException
+	private UserHandle getLdapHandleForPrincipal(UserAuthority authority, String userDn) throws TOTPException
 	{
+		LdapContextPool.Lease lease = null;
 		try
 		{
 			LDAPUserAuthority lua = (LDAPUserAuthority)authority;
-			JNDIUserStoreReplica rep = lua.getStore().getUserStoreReplicas()[0];
-			JNDIUserStoreReplicaConnection conn = rep.getAdminConnection();
-			LdapContext localCtx = (LdapContext)conn.getDirContext();
-			return (LdapContext)localCtx.lookup(userDn);
+			LdapContextPool pool = LdapContextPool.forStore(lua.getStore());
+			if (pool == null)
+				throw new TOTPException("No replicas configured for the user store of "+userDn);
+			lease = pool.borrow();
+			return new UserHandle(lease, (LdapContext)lease.getContext().lookup(userDn));
+		}
+		catch (TOTPException e)
+		{
+			throw e;
 		}
 		catch (Exception e)
 		{
+			if (lease != null)
+			{
+				if (e instanceof CommunicationException)
+					lease.invalidate();
+				lease.close();
+			}
 			throw new TOTPException("Could not create LDAP handle for "+userDn, e);
 		}
 	}
 
-	private void closeLdapHandle()
+	/**
+	 * The context of a user entry on a pooled admin connection. Closing it returns the connection to the pool.
+	 */
+	private static final class UserHandle
 	{
-		if(userContext != null)
+		private final LdapContextPool.Lease lease;
+		private final LdapContext userContext;
+
+		UserHandle(LdapContextPool.Lease lease, LdapContext userContext)
+		{
+			this.lease = lease;
+			this.userContext = userContext;
+		}
+
+		LdapContext getContext()
+		{
+			return userContext;
+		}
+
+		/**
+		 * Close the connection instead of returning it to the pool. SecretStore reports a broken connection as an
+		 * {@link SSException}, so any failure other than a bad value discards the connection.
+		 */
+		void invalidate(Exception e)
+		{
+			if (!(e instanceof UnsupportedEncodingException || e instanceof NumberFormatException))
+				lease.invalidate();
+		}
+
+		void close()
 		{
 			try
 			{
@@ -146,16 +227,13 @@ public class EdirSecretStore implements ISecretStore
 			}
 			catch (NamingException e)
 			{
-				// Noop
-			}
-			finally
-			{
-				userContext = null;				
+				// Noop, the connection itself stays open
 			}
+			lease.close();
 		}
 	}
 
-	private SecretStore getSecretStoreForUser(String userDn, LdapContext userHandle) throws TOTPException
+	private SecretStore getSecretStoreForUser(String userDn, LdapContext userHandle) throws TOTPException, SSException
 	{
         Hashtable<String,Object> ssEnvironment = new Hashtable<>();
         ssEnvironment.put(SecretStore.SECRET_STORE, "com.novell.security.sso.ldap.jndi.JNDISecretStore");
@@ -166,37 +244,9 @@ public class EdirSecretStore implements ISecretStore
 		{
 			return SecretStore.getInstance(ssEnvironment);
 		}
-		catch (ClassNotFoundException | IllegalArgumentException | SSException e)
+		catch (ClassNotFoundException | IllegalArgumentException e)
 		{
 			throw new TOTPException("Could not access SecretStore for "+userDn, e);
 		}
 	}
-
-	private String deflateArray(Integer[] value) throws TOTPException
-	{
-	    ByteArrayOutputStream out = new ByteArrayOutputStream();
-	    try
-	    {
-	    	new ObjectOutputStream(out).writeObject(value);
-	    }
-	    catch (IOException e)
-	    {
-	    	throw new TOTPException("Could not serialize integer value list", e);
-	    }
-	    return Base64.encodeToString(out.toByteArray(),false);
-	}
-
-	private List<Integer> inflateArray(String value) throws TOTPException
-	{
-	    ByteArrayInputStream in = new ByteArrayInputStream(Base64.decode(value.getBytes()));
-		try
-		{
-			Integer[] original = (Integer[]) new ObjectInputStream(in).readObject();
-		    return Arrays.asList(original);
-		}
-		catch (ClassNotFoundException | IOException e)
-		{
-	    	throw new TOTPException("Could not deserialize integer value list", e);
-		}
-	}
 }
@@ -1,12 +1,24 @@
 package nl.idfocus.nam.totp.store;
 
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import com.novell.nidp.NIDPPrincipal;
 
 import nl.idfocus.nam.totp.TOTPException;
+import nl.idfocus.nam.totp.TOTPKeyMaterial;
+import nl.idfocus.nam.util.Base32;
+import nl.idfocus.nam.util.Base32.DecodingException;
 
+/**
+ * Storage backend for TOTP secret keys and scratch codes. <br/>
+ * Instances are obtained through {@link SecretStoreRegistry} and shared between concurrent requests, 
+ * so implementations must not keep per-request state after {@link #init(Properties)} has completed.
+ */
 public interface ISecretStore
 {
 
@@ -16,8 +28,102 @@ public interface ISecretStore
 
 	public String readSecretFromStore(NIDPPrincipal princ) throws TOTPException;
 
+	/**
+	 * Read the secret key and decode it to the raw key bytes used for HMAC calculation.
+	 */
+	public default byte[] readKeyFromStore(NIDPPrincipal princ) throws TOTPException
+	{
+		String secret = readSecretFromStore(princ);
+		if ( secret == null )
+			return null;
+		try
+		{
+			return Base32.decode(secret);
+		}
+		catch (DecodingException e)
+		{
+			throw new TOTPException("Could not decode secret key", e);
+		}
+	}
+
 	public void writeScratchCodesToStore(NIDPPrincipal princ, Integer... secretValue) throws TOTPException;
 
 	public List<Integer> readScratchCodesFromStore(NIDPPrincipal princ) throws TOTPException;
 
+	/**
+	 * Write new key material for a number of principals, e.g. for bulk enrollment. <br/>
+	 * The default implementation writes each entry through {@link #writeSecretToStore(NIDPPrincipal, String)} and 
+	 * {@link #writeScratchCodesToStore(NIDPPrincipal, Integer...)}. Stores may override this with a cheaper path. 
+	 * An entry that fails does not stop the others; entries that were written stay written.
+	 * @param batch key material per principal
+	 * @throws KeyMaterialWriteException when any entry could not be written, listing the entries that were
+	 */
+	public default void writeKeyMaterialToStore(Map<NIDPPrincipal, TOTPKeyMaterial> batch) throws TOTPException
+	{
+		Set<NIDPPrincipal> written = new LinkedHashSet<>();
+		TOTPException failure = null;
+		for (Map.Entry<NIDPPrincipal, TOTPKeyMaterial> entry : batch.entrySet())
+		{
+			List<Integer> codes = entry.getValue().getScratchCodes();
+			try
+			{
+				writeSecretToStore(entry.getKey(), entry.getValue().getKey());
+				writeScratchCodesToStore(entry.getKey(), codes.toArray(new Integer[codes.size()]));
+				written.add(entry.getKey());
+			}
+			catch (TOTPException e)
+			{
+				if (failure == null)
+					failure = e;
+			}
+		}
+		if (failure != null)
+			throw new KeyMaterialWriteException("failed to save key material for " + (batch.size() - written.size()) 
+					+ " of " + batch.size() + " users: " + failure.getMessage(), failure, written);
+	}
+
+	/**
+	 * @return the principal attribute names this store reads, so callers can prefetch them
+	 */
+	public default List<String> getAttributeNames()
+	{
+		return Collections.emptyList();
+	}
+
+	/**
+	 * @param princ the principal about to be authenticated
+	 * @return the principal attribute names this store still has to read for this principal, so callers only 
+	 * prefetch what is not cached
+	 */
+	public default List<String> getAttributeNames(NIDPPrincipal princ)
+	{
+		return getAttributeNames();
+	}
+
+	/**
+	 * Drop any state cached for this principal, forcing the next read to go to the backing store.
+	 */
+	public default void invalidate(NIDPPrincipal princ)
+	{
+		// Nothing cached by default
+	}
+
+	/**
+	 * Read the clock drift (in 30 second steps) observed for this user's device. <br/>
+	 * Stores that cannot hold the drift return 0.
+	 */
+	public default int readDriftFromStore(NIDPPrincipal princ) throws TOTPException
+	{
+		return 0;
+	}
+
+	/**
+	 * Save the clock drift (in 30 second steps) observed for this user's device. <br/>
+	 * Stores that cannot hold the drift ignore the value.
+	 */
+	public default void writeDriftToStore(NIDPPrincipal princ, int drift) throws TOTPException
+	{
+		// Not supported by default
+	}
+
 }
@@ -0,0 +1,40 @@
+package nl.idfocus.nam.totp.store;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import com.novell.nidp.NIDPPrincipal;
+
+import nl.idfocus.nam.totp.TOTPException;
+
+/**
+ * Thrown by {@link ISecretStore#writeKeyMaterialToStore(java.util.Map)} when the key material of some principals
+ * in a batch could not be written. <br/>
+ * Lists the principals that were written, so the caller can tell them apart from the ones that were not.
+ */
+public class KeyMaterialWriteException extends TOTPException
+{
+	private static final long serialVersionUID = 4411906318220431627L;
+
+	private final Set<NIDPPrincipal> written;
+
+	/**
+	 * @param msg the error message
+	 * @param e the first failure in the batch
+	 * @param written the principals whose key material was written
+	 */
+	public KeyMaterialWriteException(String msg, Exception e, Set<NIDPPrincipal> written)
+	{
+		super(msg, e);
+		this.written = Collections.unmodifiableSet(new LinkedHashSet<>(written));
+	}
+
+	/**
+	 * @return the principals whose key material was written, in batch order
+	 */
+	public Set<NIDPPrincipal> getWritten()
+	{
+		return written;
+	}
+}
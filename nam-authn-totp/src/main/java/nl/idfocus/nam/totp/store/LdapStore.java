@@ -8,8 +8,13 @@ import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -23,13 +28,13 @@ import javax.crypto.spec.SecretKeySpec;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
-import javax.naming.directory.Attributes;
 
 import com.novell.nidp.NIDPException;
 import com.novell.nidp.NIDPPrincipal;
-import com.novell.nidp.common.authority.UserAuthority;
 
 import nl.idfocus.nam.totp.TOTPException;
+import nl.idfocus.nam.totp.TOTPKeyMaterial;
+import nl.idfocus.nam.util.PrincipalAttributes;
 import nl.idfocus.nam.util.Base64;
 
 public class LdapStore implements ISecretStore
@@ -37,19 +42,25 @@ public class LdapStore implements ISecretStore
 	public static final String	PROP_ENCRYPTION_KEY			= "encryptionKeyValue";
 	public static final String	PROP_KEY_ATTRIBUTE_NAME		= "secretKeyAttribute";
 	public static final String	PROP_SCRATCH_ATTRIBUTE_NAME	= "scratchCodeAttribute";
+	/**
+	 * Optional attribute that holds the observed clock drift in plain text. When empty, drift is not persisted.
+	 */
+	public static final String	PROP_DRIFT_ATTRIBUTE_NAME	= "driftAttribute";
 
 	private static final String	INIT_VECTOR					= "Vot4Du7gIj9nAb6T";
 	private static final String	KEY_SALT					= "6d-49Hk5";
 	private String				attrNameSecretKey;
 	private String				attrNameScratchCodes;
-	private Cipher				encoder;
-	private Cipher				decoder;
+	private String				attrNameDrift;
+	private SecretKey			cipherKey;
+	private byte[]				ivBytes;
 
 	@Override
 	public void init(Properties props) throws TOTPException
 	{
 		attrNameSecretKey = props.getProperty(PROP_KEY_ATTRIBUTE_NAME, "l");
 		attrNameScratchCodes = props.getProperty(PROP_SCRATCH_ATTRIBUTE_NAME, "description");
+		attrNameDrift = props.getProperty(PROP_DRIFT_ATTRIBUTE_NAME, "");
 		String keyValue = props.getProperty(PROP_ENCRYPTION_KEY);
 		initializeCiphersWithKey(keyValue);
 	}
@@ -58,10 +69,9 @@ public class LdapStore implements ISecretStore
 	public void writeSecretToStore(NIDPPrincipal princ, String secretValue) throws TOTPException
 	{
 		String ciphertext = encodeValue(secretValue);
-		UserAuthority ua = princ.getAuthority();
 		try
 		{
-			ua.modifyAttributes(princ, new String[] { attrNameSecretKey },
+			PrincipalAttributes.modify(princ, new String[] { attrNameSecretKey },
 					new String[] { ciphertext });
 		}
 		catch (NIDPException e)
@@ -75,6 +85,8 @@ public class LdapStore implements ISecretStore
 	public String readSecretFromStore(NIDPPrincipal princ) throws TOTPException
 	{
 		Attribute attr = readAttributeFromPrincipal(princ, attrNameSecretKey);
+		if (attr == null)
+			throw new TOTPException("no secret key stored in " + attrNameSecretKey);
 		try
 		{
 			return decodeValue((String) attr.get());
@@ -85,21 +97,18 @@ public class LdapStore implements ISecretStore
 		}
 	}
 
+	/**
+	 * All codes are written as a single encrypted {@link ScratchCodeCodec} value.
+	 */
 	@Override
 	public void writeScratchCodesToStore(NIDPPrincipal princ, Integer... secretValue)
 			throws TOTPException
 	{
-		List<String> result = new ArrayList<>();
-		for (Integer value : secretValue)
-		{
-			String ciphertext = encodeValue(Integer.toString(value));
-			result.add(ciphertext);
-		}
-		UserAuthority ua = princ.getAuthority();
+		String ciphertext = encodeValue(ScratchCodeCodec.encode(secretValue));
 		try
 		{
-			ua.modifyAttributes(princ, new String[] { attrNameScratchCodes },
-					result.toArray(new String[result.size()]));
+			PrincipalAttributes.modify(princ, new String[] { attrNameScratchCodes },
+					new String[] { ciphertext });
 		}
 		catch (NIDPException e)
 		{
@@ -119,7 +128,11 @@ public class LdapStore implements ISecretStore
 			while (values.hasMore())
 			{
 				String decoded = decodeValue((String) values.next());
-				result.add(Integer.parseInt(decoded));
+				// Older versions stored every code as a separate value
+				if (ScratchCodeCodec.isEncoded(decoded))
+					result.addAll(ScratchCodeCodec.decode(decoded));
+				else
+					result.add(Integer.parseInt(decoded));
 			}
 		}
 		catch (NamingException | NumberFormatException | TOTPException e)
@@ -129,12 +142,92 @@ public class LdapStore implements ISecretStore
 		return result;
 	}
 
+	/**
+	 * Encrypts the whole batch with a single cipher instance before writing. Every principal gets the secret, the 
+	 * scratch codes and a reset of any recorded drift, each written as its own single valued attribute. A principal 
+	 * only counts as written when all of its attributes were.
+	 */
+	@Override
+	public void writeKeyMaterialToStore(Map<NIDPPrincipal, TOTPKeyMaterial> batch) throws TOTPException
+	{
+		Cipher encoder = initializeCrypto(cipherKey, ivBytes, Cipher.ENCRYPT_MODE);
+		Map<NIDPPrincipal, String[]> encrypted = new LinkedHashMap<>();
+		for (Map.Entry<NIDPPrincipal, TOTPKeyMaterial> entry : batch.entrySet())
+		{
+			List<Integer> codes = entry.getValue().getScratchCodes();
+			encrypted.put(entry.getKey(), new String[] { encodeValue(entry.getValue().getKey(), encoder),
+					encodeValue(ScratchCodeCodec.encode(codes.toArray(new Integer[codes.size()])), encoder) });
+		}
+		Set<NIDPPrincipal> written = new LinkedHashSet<>();
+		NIDPException failure = null;
+		for (Map.Entry<NIDPPrincipal, String[]> entry : encrypted.entrySet())
+		{
+			try
+			{
+				PrincipalAttributes.modify(entry.getKey(), new String[] { attrNameSecretKey }, new String[] { entry.getValue()[0] });
+				PrincipalAttributes.modify(entry.getKey(), new String[] { attrNameScratchCodes }, new String[] { entry.getValue()[1] });
+				if (!attrNameDrift.isEmpty())
+					PrincipalAttributes.modify(entry.getKey(), new String[] { attrNameDrift }, new String[] { "0" });
+				written.add(entry.getKey());
+			}
+			catch (NIDPException e)
+			{
+				if (failure == null)
+					failure = e;
+			}
+		}
+		if (failure != null)
+			throw new KeyMaterialWriteException("failed to save key material for " + (batch.size() - written.size()) 
+					+ " of " + batch.size() + " users: " + failure.getMessage(), failure, written);
+	}
+
+	@Override
+	public List<String> getAttributeNames()
+	{
+		return Arrays.asList(attrNameSecretKey, attrNameScratchCodes, attrNameDrift);
+	}
+
+	@Override
+	public int readDriftFromStore(NIDPPrincipal princ) throws TOTPException
+	{
+		if (attrNameDrift.isEmpty())
+			return 0;
+		Attribute attr = readAttributeFromPrincipal(princ, attrNameDrift);
+		try
+		{
+			if (attr == null || attr.get() == null)
+				return 0;
+			return Integer.parseInt((String) attr.get());
+		}
+		catch (NamingException | NumberFormatException e)
+		{
+			throw new TOTPException("failed to read clock drift: " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void writeDriftToStore(NIDPPrincipal princ, int drift) throws TOTPException
+	{
+		if (attrNameDrift.isEmpty())
+			return;
+		try
+		{
+			PrincipalAttributes.modify(princ, new String[] { attrNameDrift },
+					new String[] { Integer.toString(drift) });
+		}
+		catch (NIDPException e)
+		{
+			throw new TOTPException(
+					"failed to save clock drift in " + attrNameDrift + ": " + e.getMessage(), e);
+		}
+	}
+
 	private String decodeValue(String value) throws TOTPException
 	{
 		try
 		{
 			byte[] ciphertext = Base64.decode(value);
-			byte[] plaintext = decoder.doFinal(ciphertext);
+			byte[] plaintext = initializeCrypto(cipherKey, ivBytes, Cipher.DECRYPT_MODE).doFinal(ciphertext);
 			return new String(plaintext, "UTF-8");
 		}
 		catch (IllegalBlockSizeException | BadPaddingException | UnsupportedEncodingException e)
@@ -144,6 +237,11 @@ public class LdapStore implements ISecretStore
 	}
 
 	private String encodeValue(String plaintext) throws TOTPException
+	{
+		return encodeValue(plaintext, initializeCrypto(cipherKey, ivBytes, Cipher.ENCRYPT_MODE));
+	}
+
+	private String encodeValue(String plaintext, Cipher encoder) throws TOTPException
 	{
 		try
 		{
@@ -160,9 +258,7 @@ public class LdapStore implements ISecretStore
 	{
 		try
 		{
-			UserAuthority ua = princ.getAuthority();
-			Attributes attrs = ua.getAttributes(princ, new String[] { attrName });
-			return attrs.get(attrName);
+			return PrincipalAttributes.get(princ, attrName);
 		}
 		catch (NullPointerException e)
 		{
@@ -170,17 +266,26 @@ public class LdapStore implements ISecretStore
 		}
 	}
 
+	/**
+	 * Derive the AES key from the configured value. This is the expensive part of the store and is only done once 
+	 * per instance; {@link SecretStoreRegistry} makes sure instances are shared between requests. <br/>
+	 * Cipher objects are not thread-safe, so a fresh one is initialized for every operation using the derived key.
+	 * @param keyValue the configured encryption key value
+	 * @throws TOTPException
+	 */
 	private void initializeCiphersWithKey(String keyValue) throws TOTPException
 	{
+		if (keyValue == null)
+			throw new TOTPException("No value configured for " + PROP_ENCRYPTION_KEY);
 		try
 		{
 			SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
 			KeySpec spec = new PBEKeySpec(keyValue.toCharArray(), KEY_SALT.getBytes(), 65536, 128);
 			SecretKey tmp = factory.generateSecret(spec);
-			SecretKey key = new SecretKeySpec(tmp.getEncoded(), "AES");
-			byte[] ivBytes = INIT_VECTOR.getBytes("UTF-8");
-			encoder = initializeCrypto(key, ivBytes, Cipher.ENCRYPT_MODE);
-			decoder = initializeCrypto(key, ivBytes, Cipher.DECRYPT_MODE);
+			cipherKey = new SecretKeySpec(tmp.getEncoded(), "AES");
+			ivBytes = INIT_VECTOR.getBytes("UTF-8");
+			// Fail early on an unusable key
+			initializeCrypto(cipherKey, ivBytes, Cipher.ENCRYPT_MODE);
 		}
 		catch (UnsupportedEncodingException | InvalidKeySpecException | NoSuchAlgorithmException e)
 		{
@@ -1,11 +1,5 @@
 package nl.idfocus.nam.totp.store;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.Properties;
@@ -14,13 +8,13 @@ import com.novell.nidp.NIDPPrincipal;
 import com.novell.nidp.common.util.sharedsecret.WSCSSUtil;
 
 import nl.idfocus.nam.totp.TOTPException;
-import nl.idfocus.nam.util.Base64;
 
 public class NIDPStore implements ISecretStore 
 {
 	public static final String SECRET_NAME  = "IDFTOTPSecretKey";
 	public static final String SECRET_TYPE  = "IDFTOTPSecretEntry";
 	public static final String SCRATCH_NAME = "IDFTOTPScratchCodes";
+	public static final String DRIFT_NAME   = "IDFTOTPClockDrift";
 
 	@Override
 	public void init(Properties prop) 
@@ -63,7 +57,7 @@ public class NIDPStore implements ISecretStore
 	@Override
 	public void writeScratchCodesToStore(NIDPPrincipal princ, Integer... secretValues) throws TOTPException 
 	{
-		String secretValue = deflateArray(secretValues);
+		String secretValue = ScratchCodeCodec.encode(secretValues);
 		boolean saved = false;
 		// Locale?
 		try 
@@ -86,7 +80,7 @@ public class NIDPStore implements ISecretStore
 		try
 		{
 			String rawValue = WSCSSUtil.readSSecretValue(SCRATCH_NAME, SECRET_TYPE, princ);
-			return inflateArray(rawValue);
+			return ScratchCodeCodec.decode(rawValue);
 		}
 		catch (Exception e)
 		{
@@ -94,31 +88,37 @@ public class NIDPStore implements ISecretStore
 		}
 	}
 
-	private String deflateArray(Integer[] value) throws TOTPException
+	@Override
+	public int readDriftFromStore(NIDPPrincipal princ) throws TOTPException
 	{
-	    ByteArrayOutputStream out = new ByteArrayOutputStream();
-	    try
-	    {
-	    	new ObjectOutputStream(out).writeObject(value);
-	    }
-	    catch (IOException e)
-	    {
-	    	throw new TOTPException("Could not serialize integer value list", e);
-	    }
-	    return Base64.encodeToString(out.toByteArray(),false);
+		try
+		{
+			String rawValue = WSCSSUtil.readSSecretValue(DRIFT_NAME, SECRET_TYPE, princ);
+			if ( rawValue == null || rawValue.isEmpty() )
+				return 0;
+			return Integer.parseInt(rawValue);
+		}
+		catch (Exception e)
+		{
+			throw new TOTPException("Failed to read clock drift from NIDP store.", e);
+		}
 	}
 
-	private List<Integer> inflateArray(String value) throws TOTPException
+	@Override
+	public void writeDriftToStore(NIDPPrincipal princ, int drift) throws TOTPException
 	{
-	    ByteArrayInputStream in = new ByteArrayInputStream(Base64.decode(value.getBytes()));
-		try
+		boolean saved = false;
+		try 
 		{
-			Integer[] original = (Integer[]) new ObjectInputStream(in).readObject();
-		    return Arrays.asList(original);
+			saved = WSCSSUtil.writeSecret( DRIFT_NAME, new String[]{ SECRET_TYPE }, new String[] { Integer.toString(drift) }, princ, Locale.getDefault() );
 		}
-		catch (ClassNotFoundException | IOException e)
+		catch (Exception e)
+		{
+			throw new TOTPException("Exception writing "+DRIFT_NAME+" to NIDP store.",e);
+		}
+		if( !saved )
 		{
-	    	throw new TOTPException("Could not deserialize integer value list", e);
+			throw new TOTPException("failed to save secret "+DRIFT_NAME);
 		}
 	}
 }
@@ -2,23 +2,27 @@ package nl.idfocus.nam.totp.store;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
-import javax.naming.directory.Attributes;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.novell.nidp.NIDPException;
 import com.novell.nidp.NIDPPrincipal;
-import com.novell.nidp.common.authority.UserAuthority;
 
 import nl.idfocus.nam.totp.TOTPException;
+import nl.idfocus.nam.totp.TOTPKeyMaterial;
+import nl.idfocus.nam.util.PrincipalAttributes;
 import nl.idfocus.nam.util.LogFormatter;
 
 public class PwmStore implements ISecretStore
@@ -38,6 +42,7 @@ public class PwmStore implements ISecretStore
 	private static final String	LINE_END					= "\\r\\n";
 	private static final String	PAM_OPTION_START			= "\" ";
 	private static final String	PAM_OPTION_TOTP				= "TOTP_AUTH";
+	private static final String	PAM_OPTION_SKEW				= "TIME_SKEW ";
 
 	private String				storageFormat;
 	private String				storageAttribute;
@@ -55,7 +60,7 @@ public class PwmStore implements ISecretStore
 		List<Integer> scratchCodes = readScratchCodesFromStore(princ);
 		String value;
 		if (FORMAT_PAM.equals(storageFormat))
-			value = generatePAMStorageValue(secretValue, scratchCodes);
+			value = generatePAMStorageValue(secretValue, scratchCodes, readDriftFromStore(princ));
 		else
 			value = generateJSONStorageValue(secretValue, scratchCodes);
 		writeValueToStore(princ, storageAttribute, value);
@@ -86,7 +91,7 @@ public class PwmStore implements ISecretStore
 		String key = readSecretFromStore(princ);
 		String value;
 		if (FORMAT_PAM.equals(storageFormat))
-			value = generatePAMStorageValue(key, scratchCodes);
+			value = generatePAMStorageValue(key, scratchCodes, readDriftFromStore(princ));
 		else
 			value = generateJSONStorageValue(key, scratchCodes);
 		writeValueToStore(princ, storageAttribute, value);
@@ -109,13 +114,79 @@ public class PwmStore implements ISecretStore
 		}
 	}
 
+	/**
+	 * New key material replaces the whole value, so no existing value needs to be read first 
+	 * and every principal takes a single modification.
+	 */
+	@Override
+	public void writeKeyMaterialToStore(Map<NIDPPrincipal, TOTPKeyMaterial> batch) throws TOTPException
+	{
+		Set<NIDPPrincipal> written = new LinkedHashSet<>();
+		TOTPException failure = null;
+		for (Map.Entry<NIDPPrincipal, TOTPKeyMaterial> entry : batch.entrySet())
+		{
+			TOTPKeyMaterial material = entry.getValue();
+			String value;
+			if (FORMAT_PAM.equals(storageFormat))
+				value = generatePAMStorageValue(material.getKey(), material.getScratchCodes(), 0);
+			else
+				value = generateJSONStorageValue(material.getKey(), material.getScratchCodes());
+			try
+			{
+				writeValueToStore(entry.getKey(), storageAttribute, value);
+				written.add(entry.getKey());
+			}
+			catch (TOTPException e)
+			{
+				if (failure == null)
+					failure = e;
+			}
+		}
+		if (failure != null)
+			throw new KeyMaterialWriteException("failed to save key material for " + (batch.size() - written.size()) 
+					+ " of " + batch.size() + " users: " + failure.getMessage(), failure, written);
+	}
+
+	@Override
+	public List<String> getAttributeNames()
+	{
+		return Collections.singletonList(storageAttribute);
+	}
+
+	/**
+	 * The drift is kept in the <code>TIME_SKEW</code> option of the PAM format. It is not supported for JSON.
+	 */
+	@Override
+	public int readDriftFromStore(NIDPPrincipal princ) throws TOTPException
+	{
+		if (!FORMAT_PAM.equals(storageFormat))
+			return 0;
+		Attribute attr = readAttributeFromPrincipal(princ, storageAttribute);
+		try
+		{
+			return attr == null ? 0 : retrieveDriftFromPAMValue((String) attr.get());
+		}
+		catch (NamingException e)
+		{
+			throw new TOTPException("failed to read clock drift: " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void writeDriftToStore(NIDPPrincipal princ, int drift) throws TOTPException
+	{
+		if (!FORMAT_PAM.equals(storageFormat))
+			return;
+		String key = readSecretFromStore(princ);
+		List<Integer> scratchCodes = readScratchCodesFromStore(princ);
+		writeValueToStore(princ, storageAttribute, generatePAMStorageValue(key, scratchCodes, drift));
+	}
+
 	private Attribute readAttributeFromPrincipal(NIDPPrincipal princ, String attrName) throws TOTPException
 	{
 		try
 		{
-			UserAuthority ua = princ.getAuthority();
-			Attributes attrs = ua.getAttributes(princ, new String[] { attrName });
-			return attrs.get(attrName);
+			return PrincipalAttributes.get(princ, attrName);
 		}
 		catch (NullPointerException e)
 		{
@@ -125,10 +196,9 @@ public class PwmStore implements ISecretStore
 
 	private void writeValueToStore(NIDPPrincipal princ, String attribute, String value) throws TOTPException
 	{
-		UserAuthority ua = princ.getAuthority();
 		try
 		{
-			ua.modifyAttributes(princ, new String[] { attribute }, new String[] { value });
+			PrincipalAttributes.modify(princ, new String[] { attribute }, new String[] { value });
 		}
 		catch (NIDPException e)
 		{
@@ -137,11 +207,13 @@ public class PwmStore implements ISecretStore
 		}
 	}
 
-	private String generatePAMStorageValue(String key, List<Integer> scratchCodes)
+	private String generatePAMStorageValue(String key, List<Integer> scratchCodes, int drift)
 	{
 		StringBuilder result = new StringBuilder();
 		result.append(key).append(LINE_END).append(PAM_OPTION_START).append(PAM_OPTION_TOTP)
 				.append(LINE_END);
+		if (drift != 0)
+			result.append(PAM_OPTION_START).append(PAM_OPTION_SKEW).append(drift).append(LINE_END);
 		for (Integer code : scratchCodes)
 		{
 			result.append(code.toString()).append(LINE_END);
@@ -168,14 +240,37 @@ public class PwmStore implements ISecretStore
 		{
 			if (value.startsWith(PAM_OPTION_START))
 				continue;
-			if (seenKey && value.matches("\\d+"))
-				result.add(Integer.parseInt(value));
+			int code = ScratchCodeCodec.parseDecimal(value);
+			if (seenKey && code >= 0)
+				result.add(code);
 			if (!seenKey)
 				seenKey = true;
 		}
 		return result;
 	}
 
+	private int retrieveDriftFromPAMValue(String pamValue)
+	{
+		if (pamValue == null || pamValue.isEmpty())
+			return 0;
+		String prefix = PAM_OPTION_START + PAM_OPTION_SKEW;
+		for (String value : pamValue.split(LINE_END))
+		{
+			if (value.startsWith(prefix))
+			{
+				try
+				{
+					return Integer.parseInt(value.substring(prefix.length()).trim());
+				}
+				catch (NumberFormatException e)
+				{
+					logger.log(Level.WARNING, "Ignoring invalid PAM time skew value: " + value);
+				}
+			}
+		}
+		return 0;
+	}
+
 	private String generateJSONStorageValue(String key, List<Integer> scratchCodes)
 	{
 		// TODO
@@ -0,0 +1,194 @@
+package nl.idfocus.nam.totp.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.idfocus.nam.totp.TOTPException;
+import nl.idfocus.nam.util.Base64;
+
+/**
+ * Compact text representation of a list of scratch codes, shared by the secret stores. <br/>
+ * The encoded form is Base64 over a format tag byte, followed by the number of codes and the codes themselves, 
+ * all as unsigned variable-length integers (7 bits per byte, least significant group first). Five 8-digit codes 
+ * take 22 bytes, against 162 bytes for the serialized <code>Integer[]</code> used before. <br/>
+ * {@link #decode(String)} also reads the legacy Java serialization format, restricted to integer arrays, so 
+ * existing values are converted the next time the codes are written.
+ */
+public final class ScratchCodeCodec
+{
+	/**
+	 * Format tag for varint-packed codes.
+	 */
+	public static final byte FORMAT_VARINT = 0x01;
+
+	/**
+	 * First two bytes of a Java serialization stream.
+	 */
+	private static final byte STREAM_MAGIC_0 = (byte) 0xAC;
+	private static final byte STREAM_MAGIC_1 = (byte) 0xED;
+
+	private ScratchCodeCodec()
+	{
+	}
+
+	/**
+	 * Encode the given codes. Negative codes are not supported.
+	 * @param codes the scratch codes
+	 * @return Base64 encoded value
+	 */
+	public static String encode(Integer... codes)
+	{
+		// Tag, count and at most 5 bytes per value
+		byte[] buffer = new byte[1 + 5 * (codes.length + 1)];
+		int pos = 0;
+		buffer[pos++] = FORMAT_VARINT;
+		pos = writeVarint(buffer, pos, codes.length);
+		for (Integer code : codes)
+		{
+			if (code == null || code < 0)
+				throw new IllegalArgumentException("Invalid scratch code: " + code);
+			pos = writeVarint(buffer, pos, code);
+		}
+		byte[] result = new byte[pos];
+		System.arraycopy(buffer, 0, result, 0, pos);
+		return Base64.encodeToString(result, false);
+	}
+
+	/**
+	 * Decode a value written by {@link #encode(Integer...)} or by the legacy serialization format.
+	 * @param value the stored value
+	 * @return a modifiable list of codes, empty when the value is empty
+	 * @throws TOTPException when the value cannot be decoded
+	 */
+	public static List<Integer> decode(String value) throws TOTPException
+	{
+		byte[] data = Base64.decode(value);
+		if (data == null)
+			throw new TOTPException("Invalid scratch code encoding");
+		if (data.length == 0)
+			return new ArrayList<>();
+		if (data[0] == FORMAT_VARINT)
+			return decodeVarint(data);
+		if (data.length > 1 && data[0] == STREAM_MAGIC_0 && data[1] == STREAM_MAGIC_1)
+			return decodeLegacy(data);
+		throw new TOTPException("Unknown scratch code format " + data[0]);
+	}
+
+	/**
+	 * @return true if the value starts with a known format tag (as opposed to e.g. a single decimal code)
+	 */
+	public static boolean isEncoded(String value)
+	{
+		// Base64 of the FORMAT_VARINT tag always starts with 'A'; decimal codes never do
+		return value != null && !value.isEmpty() && value.charAt(0) == 'A';
+	}
+
+	/**
+	 * Parse a decimal scratch code without regular expressions or exceptions.
+	 * @param value the text to parse
+	 * @return the code, or -1 when the value is not a non-negative integer that fits in an int
+	 */
+	public static int parseDecimal(CharSequence value)
+	{
+		int length = value == null ? 0 : value.length();
+		if (length == 0 || length > 10)
+			return -1;
+		long result = 0;
+		for (int i = 0; i < length; ++i)
+		{
+			char c = value.charAt(i);
+			if (c < '0' || c > '9')
+				return -1;
+			result = result * 10 + (c - '0');
+		}
+		return result > Integer.MAX_VALUE ? -1 : (int) result;
+	}
+
+	private static List<Integer> decodeVarint(byte[] data) throws TOTPException
+	{
+		int[] pos = { 1 };
+		int count = readVarint(data, pos);
+		// Every code takes at least one byte
+		if (count > data.length - pos[0])
+			throw new TOTPException("Invalid scratch code count " + count);
+		List<Integer> result = new ArrayList<>(count);
+		for (int i = 0; i < count; ++i)
+		{
+			result.add(readVarint(data, pos));
+		}
+		return result;
+	}
+
+	private static List<Integer> decodeLegacy(byte[] data) throws TOTPException
+	{
+		try (ObjectInputStream in = new IntegerArrayInputStream(new ByteArrayInputStream(data)))
+		{
+			Integer[] original = (Integer[]) in.readObject();
+			List<Integer> result = new ArrayList<>(original.length);
+			for (Integer code : original)
+				result.add(code);
+			return result;
+		}
+		catch (ClassNotFoundException | IOException | ClassCastException e)
+		{
+			throw new TOTPException("Could not deserialize integer value list", e);
+		}
+	}
+
+	private static int writeVarint(byte[] buffer, int pos, int value)
+	{
+		int remaining = value;
+		while ((remaining & ~0x7F) != 0)
+		{
+			buffer[pos++] = (byte) ((remaining & 0x7F) | 0x80);
+			remaining >>>= 7;
+		}
+		buffer[pos++] = (byte) remaining;
+		return pos;
+	}
+
+	private static int readVarint(byte[] data, int[] pos) throws TOTPException
+	{
+		int result = 0;
+		for (int shift = 0; shift < 32; shift += 7)
+		{
+			if (pos[0] >= data.length)
+				throw new TOTPException("Truncated scratch code value");
+			byte b = data[pos[0]++];
+			result |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				if (result < 0)
+					throw new TOTPException("Invalid scratch code value");
+				return result;
+			}
+		}
+		throw new TOTPException("Invalid scratch code value");
+	}
+
+	/**
+	 * Only allows the classes that make up a serialized <code>Integer[]</code>.
+	 */
+	private static final class IntegerArrayInputStream extends ObjectInputStream
+	{
+		IntegerArrayInputStream(InputStream in) throws IOException
+		{
+			super(in);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException
+		{
+			String name = desc.getName();
+			if ("[Ljava.lang.Integer;".equals(name) || "java.lang.Integer".equals(name) || "java.lang.Number".equals(name))
+				return super.resolveClass(desc);
+			throw new InvalidClassException(name, "Unexpected class in scratch code value");
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package nl.idfocus.nam.totp.store;
+
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nl.idfocus.nam.totp.TOTPConstants;
+import nl.idfocus.nam.totp.TOTPException;
+import nl.idfocus.nam.util.LogFormatter;
+import nl.idfocus.nam.util.Sha256;
+
+/**
+ * Process-wide registry of initialized {@link ISecretStore} instances. <br/>
+ * Stores are keyed by their effective configuration: the store type, the attribute names and format it uses 
+ * and a fingerprint of the encryption key. Initialization (including key derivation for the {@link LdapStore}) 
+ * therefore happens once per configuration instead of once per request. <br/>
+ * Every store is wrapped in a {@link CachingSecretStore}.
+ */
+public final class SecretStoreRegistry
+{
+	private static final Logger logger = LogFormatter.getConsoleLogger( SecretStoreRegistry.class.getName() );
+
+	private static final ConcurrentMap<String, ISecretStore> stores = new ConcurrentHashMap<>();
+
+	private SecretStoreRegistry()
+	{
+	}
+
+	/**
+	 * Return the shared store for the given configuration, creating and initializing it when needed.
+	 * @param props the effective TOTP properties, including any defaults
+	 * @return an initialized, thread-safe secret store
+	 * @throws TOTPException when the store could not be initialized
+	 */
+	public static ISecretStore getStore(Properties props) throws TOTPException
+	{
+		String key = createStoreKey(props);
+		ISecretStore store = stores.get(key);
+		if ( store != null )
+			return store;
+		try
+		{
+			return stores.computeIfAbsent(key, k -> createStore(props));
+		}
+		catch (StoreInitializationException e)
+		{
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * @return the number of distinct store configurations currently registered
+	 */
+	public static int size()
+	{
+		return stores.size();
+	}
+
+	/**
+	 * Remove all registered stores, forcing re-initialization on next use.
+	 */
+	public static void clear()
+	{
+		stores.clear();
+	}
+
+	private static ISecretStore createStore(Properties props)
+	{
+		ISecretStore store;
+		String storeType = props.getProperty( TOTPConstants.PARAM_STORE_TYPE, TOTPConstants.STORE_NIDP );
+		logger.log(Level.INFO, "Initializing {0} secret store type", storeType);
+		if ( storeType.equals(TOTPConstants.STORE_EDIR) )
+			store = new EdirSecretStore();
+		else if ( storeType.equals(TOTPConstants.STORE_LDAP))
+			store = new LdapStore();
+		else if ( storeType.equals(TOTPConstants.STORE_PWM))
+			store = new PwmStore();
+		else
+			store = new NIDPStore();
+		store = new CachingSecretStore(store);
+		try
+		{
+			store.init(props);
+		}
+		catch (TOTPException e)
+		{
+			throw new StoreInitializationException(e);
+		}
+		return store;
+	}
+
+	/**
+	 * The key only contains a hash of the encryption key, so the plaintext value is not retained in the map.
+	 */
+	private static String createStoreKey(Properties props)
+	{
+		String encryptionKey = props.getProperty( LdapStore.PROP_ENCRYPTION_KEY );
+		return new StringBuilder()
+				.append( props.getProperty( TOTPConstants.PARAM_STORE_TYPE, TOTPConstants.STORE_NIDP ) ).append( '|' )
+				.append( props.getProperty( LdapStore.PROP_KEY_ATTRIBUTE_NAME, "" ) ).append( '|' )
+				.append( props.getProperty( LdapStore.PROP_SCRATCH_ATTRIBUTE_NAME, "" ) ).append( '|' )
+				.append( props.getProperty( LdapStore.PROP_DRIFT_ATTRIBUTE_NAME, "" ) ).append( '|' )
+				.append( props.getProperty( PwmStore.PROP_STORAGE_FORMAT_NAME, "" ) ).append( '|' )
+				.append( props.getProperty( TOTPConstants.PARAM_KEY_CACHE_SIZE, "" ) ).append( '|' )
+				.append( props.getProperty( TOTPConstants.PARAM_KEY_CACHE_TTL, "" ) ).append( '|' )
+				.append( encryptionKey == null ? "" : Sha256.toHashString( encryptionKey ) )
+				.toString();
+	}
+
+	private static class StoreInitializationException extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+
+		StoreInitializationException(TOTPException cause)
+		{
+			super(cause);
+		}
+
+		@Override
+		public synchronized TOTPException getCause()
+		{
+			return (TOTPException) super.getCause();
+		}
+	}
+}
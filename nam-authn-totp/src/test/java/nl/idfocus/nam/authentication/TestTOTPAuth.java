@@ -18,6 +18,7 @@ import com.novell.nidp.logging.NIDPLog;
 import nl.idfocus.nam.totp.TOTPConstants;
 import nl.idfocus.nam.totp.store.LdapStore;
 import nl.idfocus.nam.util.MockNIDP;
+import nl.idfocus.nam.util.RateLimiter;
 
 public class TestTOTPAuth
 {
@@ -103,6 +104,19 @@ public class TestTOTPAuth
         assertEquals( LocalAuthenticationClass.AUTHENTICATED, newClass.authenticate() );
 	}
 
+	@Test
+	public void testRefusedAddressKeepsUserBudget() throws Exception
+	{
+		RateLimiter users = RateLimiter.getShared( "test-totp-user", 2, 60000 );
+		RateLimiter addresses = RateLimiter.getShared( "test-totp-address", 1, 60000 );
+		assertNull( TOTPAuth.acquireAttempt( users, "user", addresses, "192.0.2.1" ) );
+		// The address is used up, which must not cost the user an attempt
+		for ( int i = 0; i < 5; i++ )
+			assertEquals( "client address 192.0.2.1", TOTPAuth.acquireAttempt( users, "user", addresses, "192.0.2.1" ) );
+		assertNull( TOTPAuth.acquireAttempt( users, "user", addresses, "192.0.2.2" ) );
+		assertEquals( "user", TOTPAuth.acquireAttempt( users, "user", addresses, "192.0.2.3" ) );
+	}
+
 	private Properties getRandstadProperties()
 	{
 		Properties props = new Properties();
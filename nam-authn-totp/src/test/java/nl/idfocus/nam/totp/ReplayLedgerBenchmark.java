@@ -0,0 +1,88 @@
+package nl.idfocus.nam.totp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import nl.idfocus.nam.util.Base32;
+
+/**
+ * Measures what the replay ledger adds to an accepted code. <br/>
+ * <code>checkCode</code> compares a successful match without and with recording the step; <code>markUsed</code> 
+ * isolates the ledger with 4 threads and a new user per call, rolling over to the next step every 
+ * 2048 users. Run {@link #main(String[])} to include the GC profiler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplayLedgerBenchmark
+{
+	private ReplayLedger ledger;
+	private byte[] key;
+	private long step;
+	private int code;
+
+	@State(Scope.Thread)
+	public static class Users
+	{
+		final long thread = Thread.currentThread().getId() << 48;
+		long counter;
+	}
+
+	@Setup
+	public void setUp() throws Exception
+	{
+		ledger = new ReplayLedger(4096);
+		key = Base32.decode("TTLRB6ULNFYBTUZB");
+		step = TOTPEngine.toTimeStep(System.currentTimeMillis());
+		code = TOTPEngine.generate(key, step);
+	}
+
+	@Benchmark
+	public int checkCodeWithoutLedger() throws TOTPException
+	{
+		return TOTPEngine.match(key, code, step, 0, 3);
+	}
+
+	@Benchmark
+	public boolean checkCodeWithLedger(Users users) throws TOTPException
+	{
+		int offset = TOTPEngine.match(key, code, step, 0, 3);
+		long count = ++users.counter;
+		return offset != TOTPEngine.NO_MATCH && ledger.markUsed(users.thread | count, step + (count >>> 11));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean markUsed(Users users)
+	{
+		long count = ++users.counter;
+		return ledger.markUsed(users.thread | count, step + (count >>> 11));
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Options opt = new OptionsBuilder()
+				.include(ReplayLedgerBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(opt).run();
+	}
+}
@@ -0,0 +1,93 @@
+package nl.idfocus.nam.totp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import nl.idfocus.nam.totp.store.ScratchCodeCodec;
+import nl.idfocus.nam.util.Base64;
+
+/**
+ * Compares the scratch code codec with the Java serialization format it replaces. <br/>
+ * {@link #main(String[])} prints the stored size of both formats before running the benchmarks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScratchCodeCodecBenchmark
+{
+	private static final Integer[] CODES = new Integer[] { 78636072, 81915571, 52984984, 34278800, 88440605 };
+
+	private String encoded;
+	private String serialized;
+
+	@Setup
+	public void setUp() throws Exception
+	{
+		encoded = ScratchCodeCodec.encode(CODES);
+		serialized = serialize(CODES);
+	}
+
+	@Benchmark
+	public String encodeCodec()
+	{
+		return ScratchCodeCodec.encode(CODES);
+	}
+
+	@Benchmark
+	public List<Integer> decodeCodec() throws TOTPException
+	{
+		return ScratchCodeCodec.decode(encoded);
+	}
+
+	@Benchmark
+	public String encodeSerialized() throws Exception
+	{
+		return serialize(CODES);
+	}
+
+	@Benchmark
+	public Object decodeSerialized() throws Exception
+	{
+		return new ObjectInputStream(new ByteArrayInputStream(Base64.decode(serialized))).readObject();
+	}
+
+	private static String serialize(Integer[] value) throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new ObjectOutputStream(out).writeObject(value);
+		return Base64.encodeToString(out.toByteArray(), false);
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		System.out.println("Stored size codec:      " + ScratchCodeCodec.encode(CODES).length() + " chars");
+		System.out.println("Stored size serialized: " + serialize(CODES).length() + " chars");
+		Options opt = new OptionsBuilder()
+				.include(ScratchCodeCodecBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(opt).run();
+	}
+}
@@ -0,0 +1,85 @@
+package nl.idfocus.nam.totp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import nl.idfocus.nam.util.Base32;
+
+/**
+ * Measures the cost of a single TOTP check over the full window. <br/>
+ * Run {@link #main(String[])} to include the GC profiler, which reports the allocation rate per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TOTPEngineBenchmark
+{
+	@Param({ "3", "17" })
+	private int windowSize;
+
+	private byte[] key;
+	private long step;
+
+	@Setup
+	public void setUp() throws Exception
+	{
+		key = Base32.decode("TTLRB6ULNFYBTUZB");
+		step = TOTPEngine.toTimeStep(System.currentTimeMillis());
+	}
+
+	/**
+	 * Worst case: the code does not match, so every step in the window is calculated.
+	 */
+	@Benchmark
+	public boolean verifyMiss() throws TOTPException
+	{
+		return TOTPEngine.verify(key, 1000000, step, windowSize);
+	}
+
+	/**
+	 * The pre-existing approach: a Mac lookup, key spec and buffers for every step.
+	 */
+	@Benchmark
+	public boolean legacyMiss() throws Exception
+	{
+		boolean result = false;
+		for (int i = -windowSize; i <= windowSize; ++i)
+		{
+			byte[] data = new byte[8];
+			long value = step + i;
+			for (int j = 8; j-- > 0; value >>>= 8)
+				data[j] = (byte) value;
+			javax.crypto.Mac mac = javax.crypto.Mac.getInstance("HmacSHA1");
+			mac.init(new javax.crypto.spec.SecretKeySpec(key, "HmacSHA1"));
+			result |= mac.doFinal(data)[0] == 0;
+		}
+		return result;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Options opt = new OptionsBuilder()
+				.include(TOTPEngineBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(opt).run();
+	}
+}
@@ -0,0 +1,37 @@
+package nl.idfocus.nam.totp;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestAuthenticator
+{
+	@Test
+	public void testDriftIsSavedWhenSeenTwice()
+	{
+		long user = ReplayLedger.hash("cn=twice");
+		assertFalse(Authenticator.isDriftConfirmed(user, 1, 0));
+		assertTrue(Authenticator.isDriftConfirmed(user, 1, 0));
+		// Confirmed drifts start over
+		assertFalse(Authenticator.isDriftConfirmed(user, -1, 0));
+	}
+
+	@Test
+	public void testDriftMustHoldAtConsecutiveLogins()
+	{
+		long user = ReplayLedger.hash("cn=consecutive");
+		assertFalse(Authenticator.isDriftConfirmed(user, 1, 0));
+		assertFalse(Authenticator.isDriftConfirmed(user, 0, 0));
+		assertFalse(Authenticator.isDriftConfirmed(user, 1, 0));
+		assertFalse(Authenticator.isDriftConfirmed(user, -1, 0));
+		assertTrue(Authenticator.isDriftConfirmed(user, -1, 0));
+	}
+
+	@Test
+	public void testLargeDriftIsSavedAtOnce()
+	{
+		long user = ReplayLedger.hash("cn=large");
+		assertTrue(Authenticator.isDriftConfirmed(user, Authenticator.DRIFT_SAVE_THRESHOLD, 0));
+		assertTrue(Authenticator.isDriftConfirmed(user, -3, 1));
+	}
+}
@@ -0,0 +1,180 @@
+package nl.idfocus.nam.totp;
+
+import static org.junit.Assert.*;
+
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.novell.nidp.NIDPPrincipal;
+
+import nl.idfocus.nam.totp.enroll.BulkEnrollment;
+import nl.idfocus.nam.totp.enroll.OtpUriOutput;
+import nl.idfocus.nam.totp.store.ISecretStore;
+import nl.idfocus.nam.util.MockNIDP;
+
+public class TestBulkEnrollment
+{
+	private MapStore store;
+	private Properties props;
+	private List<String> users;
+
+	@Before
+	public void setUp() throws Exception 
+	{
+		store = new MapStore();
+		props = new Properties();
+		props.setProperty(BulkEnrollment.PROP_BATCH_SIZE, "10");
+		props.setProperty(BulkEnrollment.PROP_CONCURRENCY, "3");
+		props.setProperty(BulkEnrollment.PROP_PARALLELISM, "2");
+		users = new ArrayList<>();
+		for (int i = 0; i < 95; i++)
+			users.add("cn=user" + i + ",o=test");
+	}
+
+	@Test
+	public void testEnrollAll() throws Exception
+	{
+		StringWriter out = new StringWriter();
+		BulkEnrollment.Result result = new BulkEnrollment(props, store).run(users.iterator(), 
+				TestBulkEnrollment::principal, new OtpUriOutput(out), null);
+		assertEquals(95, result.getEnrolled());
+		assertEquals(0, result.getFailed());
+		assertEquals(95, store.secrets.size());
+		String[] lines = out.toString().split("\n");
+		assertEquals(95, lines.length);
+		String[] fields = lines[0].split("\t");
+		assertEquals(3, fields.length);
+		assertTrue(fields[1].startsWith("otpauth://totp/"));
+		assertTrue(fields[1].contains("secret=" + store.secrets.get(fields[0])));
+	}
+
+	@Test
+	public void testResumeFromCheckpoint() throws Exception
+	{
+		Path dir = Files.createTempDirectory("enroll");
+		Path checkpoint = dir.resolve("checkpoint.properties");
+		store.failOn = "cn=user42,o=test";
+		BulkEnrollment.Result first = new BulkEnrollment(props, store).run(users.iterator(), 
+				TestBulkEnrollment::principal, new OtpUriOutput(new StringWriter()), checkpoint);
+		assertEquals(1, first.getFailedBatches());
+		assertEquals(10, first.getFailed());
+		assertEquals(85, first.getEnrolled());
+
+		store.failOn = null;
+		store.secrets.clear();
+		BulkEnrollment.Result second = new BulkEnrollment(props, store).run(users.iterator(), 
+				TestBulkEnrollment::principal, new OtpUriOutput(new StringWriter()), checkpoint);
+		assertEquals(10, second.getEnrolled());
+		assertEquals(85, second.getSkipped());
+		assertTrue(store.secrets.containsKey("cn=user42,o=test"));
+		assertEquals(10, store.secrets.size());
+	}
+
+	@Test
+	public void testExistingUsersAreSkipped() throws Exception
+	{
+		store.secrets.put("cn=user3,o=test", "TTLRB6ULNFYBTUZB");
+		StringWriter out = new StringWriter();
+		BulkEnrollment.Result result = new BulkEnrollment(props, store).run(users.iterator(), 
+				TestBulkEnrollment::principal, new OtpUriOutput(out), null);
+		assertEquals(94, result.getEnrolled());
+		assertEquals(1, result.getExisting());
+		assertEquals("TTLRB6ULNFYBTUZB", store.secrets.get("cn=user3,o=test"));
+		assertFalse(out.toString().contains("cn=user3,o=test"));
+
+		props.setProperty(BulkEnrollment.PROP_FORCE, "true");
+		result = new BulkEnrollment(props, store).run(users.iterator(), 
+				TestBulkEnrollment::principal, new OtpUriOutput(new StringWriter()), null);
+		assertEquals(95, result.getEnrolled());
+		assertFalse("TTLRB6ULNFYBTUZB".equals(store.secrets.get("cn=user3,o=test")));
+	}
+
+	@Test
+	public void testPartialBatchKeepsStoredUsers() throws Exception
+	{
+		Path dir = Files.createTempDirectory("enroll");
+		Path checkpoint = dir.resolve("checkpoint.properties");
+		store.rejectUser = "cn=user42,o=test";
+		StringWriter out = new StringWriter();
+		BulkEnrollment.Result first = new BulkEnrollment(props, store).run(users.iterator(), 
+				TestBulkEnrollment::principal, new OtpUriOutput(out), checkpoint);
+		assertEquals(1, first.getFailedBatches());
+		assertEquals(1, first.getFailed());
+		assertEquals(94, first.getEnrolled());
+		// Every stored key was written to the output
+		for (Map.Entry<String, String> entry : store.secrets.entrySet())
+			assertTrue(out.toString().contains("secret=" + entry.getValue()));
+		String stored = store.secrets.get("cn=user41,o=test");
+
+		store.rejectUser = null;
+		BulkEnrollment.Result second = new BulkEnrollment(props, store).run(users.iterator(), 
+				TestBulkEnrollment::principal, new OtpUriOutput(new StringWriter()), checkpoint);
+		assertEquals(1, second.getEnrolled());
+		assertEquals(9, second.getExisting());
+		assertEquals(stored, store.secrets.get("cn=user41,o=test"));
+		assertEquals(95, store.secrets.size());
+	}
+
+	private static NIDPPrincipal principal(String userId)
+	{
+		NIDPPrincipal princ = MockNIDP.getPrincipal();
+		org.mockito.BDDMockito.given(princ.getUserIdentifier()).willReturn(userId);
+		return princ;
+	}
+
+	/**
+	 * In-memory store that can fail the batch containing a given user.
+	 */
+	private static class MapStore implements ISecretStore
+	{
+		final Map<String, String> secrets = new ConcurrentHashMap<>();
+		volatile String failOn;
+		volatile String rejectUser;
+
+		@Override
+		public void init(Properties props) {}
+
+		@Override
+		public void writeSecretToStore(NIDPPrincipal princ, String secretValue) throws TOTPException
+		{
+			if (princ.getUserIdentifier().equals(rejectUser))
+				throw new TOTPException("Simulated rejection");
+			secrets.put(princ.getUserIdentifier(), secretValue);
+		}
+
+		@Override
+		public String readSecretFromStore(NIDPPrincipal princ)
+		{
+			return secrets.get(princ.getUserIdentifier());
+		}
+
+		@Override
+		public void writeScratchCodesToStore(NIDPPrincipal princ, Integer... secretValue) {}
+
+		@Override
+		public List<Integer> readScratchCodesFromStore(NIDPPrincipal princ)
+		{
+			return new ArrayList<>();
+		}
+
+		@Override
+		public void writeKeyMaterialToStore(Map<NIDPPrincipal, TOTPKeyMaterial> batch) throws TOTPException
+		{
+			for (NIDPPrincipal princ : batch.keySet())
+			{
+				if (princ.getUserIdentifier().equals(failOn))
+					throw new TOTPException("Simulated failure");
+			}
+			ISecretStore.super.writeKeyMaterialToStore(batch);
+		}
+	}
+}
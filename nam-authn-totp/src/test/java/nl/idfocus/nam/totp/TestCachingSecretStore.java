@@ -0,0 +1,214 @@
+package nl.idfocus.nam.totp;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.novell.nidp.NIDPPrincipal;
+
+import nl.idfocus.nam.totp.store.CachingSecretStore;
+import nl.idfocus.nam.totp.store.ISecretStore;
+import nl.idfocus.nam.util.MockNIDP;
+
+public class TestCachingSecretStore
+{
+	private CountingStore backend;
+	private CachingSecretStore store;
+	private Properties props;
+	private NIDPPrincipal princ;
+
+	@Before
+	public void setUp() throws Exception 
+	{
+		backend = new CountingStore();
+		store = new CachingSecretStore(backend);
+		props = new Properties();
+		props.setProperty(TOTPConstants.PARAM_KEY_CACHE_SIZE, "2");
+		props.setProperty(TOTPConstants.PARAM_KEY_CACHE_TTL, "60");
+		store.init(props);
+		princ = MockNIDP.getPrincipal();
+	}
+
+	@Test
+	public void testKeyIsCached() throws Exception
+	{
+		byte[] first = store.readKeyFromStore(princ);
+		byte[] second = store.readKeyFromStore(princ);
+		assertArrayEquals(first, second);
+		assertEquals(1, backend.reads);
+		// Callers get a copy, changing it does not affect the cache
+		Arrays.fill(first, (byte) 0);
+		assertArrayEquals(second, store.readKeyFromStore(princ));
+	}
+
+	@Test
+	public void testWriteInvalidates() throws Exception
+	{
+		store.readKeyFromStore(princ);
+		store.writeSecretToStore(princ, "TTLRB6ULNFYBTUZB");
+		store.readKeyFromStore(princ);
+		store.writeScratchCodesToStore(princ, 12345678);
+		store.readKeyFromStore(princ);
+		assertEquals(3, backend.reads);
+	}
+
+	@Test
+	public void testExplicitInvalidate() throws Exception
+	{
+		store.readKeyFromStore(princ);
+		store.invalidate(princ);
+		assertEquals(0, store.size());
+		store.readKeyFromStore(princ);
+		assertEquals(2, backend.reads);
+	}
+
+	@Test
+	public void testSizeBound() throws Exception
+	{
+		for (String user : new String[] { "cn=a", "cn=b", "cn=c", "cn=d" })
+		{
+			NIDPPrincipal other = MockNIDP.getPrincipal();
+			org.mockito.BDDMockito.given(other.getUserIdentifier()).willReturn(user);
+			store.readKeyFromStore(other);
+		}
+		assertTrue(store.size() <= 2);
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted() throws Exception
+	{
+		NIDPPrincipal a = principal("cn=a");
+		NIDPPrincipal b = principal("cn=b");
+		store.readKeyFromStore(a);
+		store.readKeyFromStore(b);
+		store.readKeyFromStore(a);
+		store.readKeyFromStore(principal("cn=c"));
+		assertEquals(3, backend.reads);
+		store.readKeyFromStore(a);
+		assertEquals(3, backend.reads);
+		store.readKeyFromStore(b);
+		assertEquals(4, backend.reads);
+	}
+
+	@Test
+	public void testInvalidateDuringReadIsNotCached() throws Exception
+	{
+		// A write that completes while the old key is being read
+		backend.duringRead = () -> store.invalidate(princ);
+		store.readKeyFromStore(princ);
+		assertEquals(0, store.size());
+		backend.duringRead = null;
+		store.readKeyFromStore(princ);
+		assertEquals(1, store.size());
+	}
+
+	@Test
+	public void testDriftIsCachedWithKey() throws Exception
+	{
+		backend.drift = 1;
+		store.readKeyFromStore(princ);
+		assertEquals(1, store.readDriftFromStore(princ));
+		assertEquals(1, store.readDriftFromStore(princ));
+		assertEquals(1, backend.driftReads);
+		// A written drift is cached without dropping the key
+		store.writeDriftToStore(princ, -1);
+		assertEquals(-1, store.readDriftFromStore(princ));
+		store.readKeyFromStore(princ);
+		assertEquals(1, backend.driftReads);
+		assertEquals(1, backend.reads);
+		// A new secret drops the drift with the key
+		store.writeSecretToStore(princ, "TTLRB6ULNFYBTUZB");
+		store.readDriftFromStore(princ);
+		assertEquals(2, backend.driftReads);
+	}
+
+	@Test
+	public void testWarmPrincipalNeedsNoAttributes() throws Exception
+	{
+		assertEquals(backend.getAttributeNames(), store.getAttributeNames(princ));
+		store.readKeyFromStore(princ);
+		// The drift is not cached yet
+		assertEquals(backend.getAttributeNames(), store.getAttributeNames(princ));
+		store.readDriftFromStore(princ);
+		assertTrue(store.getAttributeNames(princ).isEmpty());
+		store.invalidate(princ);
+		assertEquals(backend.getAttributeNames(), store.getAttributeNames(princ));
+	}
+
+	@Test
+	public void testDisabled() throws Exception
+	{
+		props.setProperty(TOTPConstants.PARAM_KEY_CACHE_TTL, "0");
+		store.init(props);
+		store.readKeyFromStore(princ);
+		store.readKeyFromStore(princ);
+		assertEquals(2, backend.reads);
+		assertEquals(0, store.size());
+	}
+
+	private static NIDPPrincipal principal(String dn)
+	{
+		NIDPPrincipal other = MockNIDP.getPrincipal();
+		org.mockito.BDDMockito.given(other.getUserIdentifier()).willReturn(dn);
+		return other;
+	}
+
+	/**
+	 * Minimal in-memory store that counts secret reads.
+	 */
+	private static class CountingStore implements ISecretStore
+	{
+		int reads;
+		int driftReads;
+		int drift;
+		Runnable duringRead;
+
+		@Override
+		public void init(Properties props) {}
+
+		@Override
+		public void writeSecretToStore(NIDPPrincipal princ, String secretValue) {}
+
+		@Override
+		public String readSecretFromStore(NIDPPrincipal princ)
+		{
+			reads++;
+			if (duringRead != null)
+				duringRead.run();
+			return "TTLRB6ULNFYBTUZB";
+		}
+
+		@Override
+		public void writeScratchCodesToStore(NIDPPrincipal princ, Integer... secretValue) {}
+
+		@Override
+		public List<Integer> readScratchCodesFromStore(NIDPPrincipal princ)
+		{
+			return Arrays.asList(12345678);
+		}
+
+		@Override
+		public List<String> getAttributeNames()
+		{
+			return Arrays.asList("secret", "codes", "drift");
+		}
+
+		@Override
+		public int readDriftFromStore(NIDPPrincipal princ)
+		{
+			driftReads++;
+			return drift;
+		}
+
+		@Override
+		public void writeDriftToStore(NIDPPrincipal princ, int drift)
+		{
+			this.drift = drift;
+		}
+	}
+}
@@ -1,7 +1,14 @@
 package nl.idfocus.nam.totp;
 
 import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.aryEq;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
 
@@ -76,6 +83,22 @@ public class TestLdapStore
 		store.writeScratchCodesToStore(princ, codes);
 	}
 
+	@Test
+	public void testLdapStoreWriteKeyMaterialPerAttribute() throws Exception
+	{
+		props.setProperty(LdapStore.PROP_DRIFT_ATTRIBUTE_NAME, "totpClockDrift");
+		ISecretStore store = new LdapStore();
+		store.init( props );
+		NIDPPrincipal princ = MockNIDP.getPrincipal();
+		store.writeKeyMaterialToStore(Collections.singletonMap(princ, 
+				new TOTPKeyMaterial("TTLRB6ULNFYBTUZB", Arrays.asList(78636072, 81915571), 0)));
+		// One name with one value per call, never several names in one call
+		verify(princ.getAuthority()).modifyAttributes(eq(princ), aryEq(new String[] { "totpSecretKey" }), any(String[].class));
+		verify(princ.getAuthority()).modifyAttributes(eq(princ), aryEq(new String[] { "totpScratchCodes" }), any(String[].class));
+		verify(princ.getAuthority()).modifyAttributes(eq(princ), aryEq(new String[] { "totpClockDrift" }), aryEq(new String[] { "0" }));
+		verify(princ.getAuthority(), times(3)).modifyAttributes(eq(princ), any(String[].class), any(String[].class));
+	}
+
 	@Test
 	public void testLdapStoreReadKey() throws Exception
 	{
@@ -0,0 +1,43 @@
+package nl.idfocus.nam.totp;
+
+import static org.junit.Assert.*;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class TestPendingRegistrations
+{
+	@Test
+	public void testAddGetRemove()
+	{
+		UserRegistration reg = new UserRegistration(new Properties());
+		String handle = PendingRegistrations.add(reg, 60);
+		assertEquals(22, handle.length());
+		assertTrue(handle.matches("[A-Za-z0-9_-]+"));
+		assertSame(reg, PendingRegistrations.get(handle));
+		assertTrue(PendingRegistrations.getRemainingSeconds(handle) > 50);
+		PendingRegistrations.remove(handle);
+		assertNull(PendingRegistrations.get(handle));
+	}
+
+	@Test
+	public void testExpired()
+	{
+		String handle = PendingRegistrations.add(new UserRegistration(new Properties()), 0);
+		assertNull(PendingRegistrations.get(handle));
+		assertNull(PendingRegistrations.get(null));
+		assertNull(PendingRegistrations.get("unknown"));
+	}
+
+	@Test
+	public void testHandlesAreUnique()
+	{
+		UserRegistration reg = new UserRegistration(new Properties());
+		String first = PendingRegistrations.add(reg, 60);
+		String second = PendingRegistrations.add(reg, 60);
+		assertNotEquals(first, second);
+		PendingRegistrations.remove(first);
+		PendingRegistrations.remove(second);
+	}
+}
@@ -94,4 +94,13 @@ public class TestPwmStore
 		NIDPPrincipal princ = MockNIDP.getPrincipal();
 		store.writeSecretToStore(princ, "TTLRB6ULNFYBTUZB");
 	}
+
+	@Test
+	public void testPwmStoreReadDrift() throws Exception
+	{
+		ISecretStore store = new PwmStore();
+		store.init( props );
+		NIDPPrincipal princ = MockNIDP.getPrincipal();
+		assertEquals(0, store.readDriftFromStore(princ));
+	}
 }
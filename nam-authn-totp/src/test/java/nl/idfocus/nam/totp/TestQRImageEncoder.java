@@ -0,0 +1,71 @@
+package nl.idfocus.nam.totp;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.Properties;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import com.google.zxing.common.BitMatrix;
+
+public class TestQRImageEncoder
+{
+	@Test
+	public void testPngPixels() throws Exception
+	{
+		// Odd width, so the last byte of every row is padded
+		BitMatrix matrix = new BitMatrix(13, 11);
+		matrix.set(0, 0);
+		matrix.set(12, 0);
+		matrix.set(7, 5);
+		matrix.set(8, 5);
+		matrix.set(12, 10);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		QRImageEncoder.writePng(matrix, out);
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(13, image.getWidth());
+		assertEquals(11, image.getHeight());
+		for (int y = 0; y < 11; y++)
+		{
+			for (int x = 0; x < 13; x++)
+			{
+				int gray = image.getRGB(x, y) & 0xFF;
+				assertEquals("pixel " + x + "," + y, matrix.get(x, y) ? 0 : 255, gray);
+			}
+		}
+	}
+
+	@Test
+	public void testRegistrationImageIsSmall() throws Exception
+	{
+		UserRegistration reg = new UserRegistration(new Properties());
+		reg.setUserName("user");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		reg.writeQRImage(out);
+		assertTrue("PNG of " + out.size() + " bytes", out.size() < 1024);
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(200, image.getWidth());
+	}
+
+	@Test
+	public void testSvg() throws Exception
+	{
+		BitMatrix matrix = new BitMatrix(5, 5);
+		matrix.set(1, 1);
+		matrix.set(2, 1);
+		matrix.set(3, 3);
+		StringWriter out = new StringWriter();
+		QRImageEncoder.writeSvg(matrix, 200, out);
+		String svg = out.toString();
+		assertTrue(svg.startsWith("<svg "));
+		assertTrue(svg.contains("viewBox=\"0 0 5 5\""));
+		assertTrue(svg.contains("M1 1h2v1h-2z"));
+		assertTrue(svg.contains("M3 3h1v1h-1z"));
+	}
+}
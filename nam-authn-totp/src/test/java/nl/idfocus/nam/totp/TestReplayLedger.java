@@ -0,0 +1,94 @@
+package nl.idfocus.nam.totp;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class TestReplayLedger
+{
+	private static final long STEP = 56666666L;
+
+	@Test
+	public void testRejectsSecondUse()
+	{
+		ReplayLedger ledger = new ReplayLedger(16);
+		long user = ReplayLedger.hash("cn=user,o=test");
+		assertTrue(ledger.markUsed(user, STEP));
+		assertFalse(ledger.markUsed(user, STEP));
+		assertTrue(ledger.markUsed(user, STEP + 1));
+		assertTrue(ledger.markUsed(ReplayLedger.hash("cn=other,o=test"), STEP));
+		assertEquals(2, ledger.size(STEP));
+	}
+
+	@Test
+	public void testHash()
+	{
+		assertEquals(ReplayLedger.hash("cn=user,o=test"), ReplayLedger.hash("cn=user,o=test"));
+		assertNotEquals(ReplayLedger.hash("cn=user,o=test"), ReplayLedger.hash("cn=user,o=tesu"));
+		assertNotEquals(0L, ReplayLedger.hash(""));
+	}
+
+	@Test
+	public void testBucketReplacedByNewerStep()
+	{
+		ReplayLedger ledger = new ReplayLedger(16);
+		long user = ReplayLedger.hash("cn=user,o=test");
+		assertTrue(ledger.markUsed(user, STEP));
+		long later = STEP + ReplayLedger.RING_SIZE;
+		assertTrue(ledger.markUsed(user, later));
+		assertEquals(0, ledger.size(STEP));
+		// Steps older than the ring are out of range and not recorded
+		assertTrue(ledger.markUsed(user, STEP));
+		assertEquals(1, ledger.size(later));
+	}
+
+	@Test
+	public void testFullBucketAcceptsWithoutRecording()
+	{
+		ReplayLedger ledger = new ReplayLedger(2);
+		for (int i = 0; i < 5; i++)
+			assertTrue(ledger.markUsed(ReplayLedger.hash("cn=user" + i), STEP));
+		assertEquals(2, ledger.size(STEP));
+		assertFalse(ledger.markUsed(ReplayLedger.hash("cn=user0"), STEP));
+	}
+
+	@Test
+	public void testConcurrentUseAcceptedOnce() throws Exception
+	{
+		ReplayLedger ledger = new ReplayLedger(4096);
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try
+		{
+			for (int round = 0; round < 200; round++)
+			{
+				long user = ReplayLedger.hash("cn=user" + round);
+				long step = STEP + round % 3;
+				List<Callable<Boolean>> tasks = new ArrayList<>();
+				for (int i = 0; i < 8; i++)
+					tasks.add(() -> ledger.markUsed(user, step));
+				int accepted = 0;
+				for (Future<Boolean> result : pool.invokeAll(tasks))
+					accepted += result.get() ? 1 : 0;
+				assertEquals(1, accepted);
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testSharedLedger()
+	{
+		assertNull(ReplayLedger.getShared(0));
+		assertSame(ReplayLedger.getShared(100), ReplayLedger.getShared(100));
+	}
+}
@@ -0,0 +1,82 @@
+package nl.idfocus.nam.totp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import nl.idfocus.nam.totp.store.ScratchCodeCodec;
+import nl.idfocus.nam.util.Base64;
+
+public class TestScratchCodeCodec
+{
+	private static final Integer[] CODES = new Integer[] { 78636072, 81915571, 52984984, 34278800, 88440605 };
+
+	@Test
+	public void testRoundTrip() throws Exception
+	{
+		String encoded = ScratchCodeCodec.encode(CODES);
+		assertTrue(ScratchCodeCodec.isEncoded(encoded));
+		assertEquals(Arrays.asList(CODES), ScratchCodeCodec.decode(encoded));
+		assertEquals(32, encoded.length());
+	}
+
+	@Test
+	public void testEmpty() throws Exception
+	{
+		assertTrue(ScratchCodeCodec.decode(ScratchCodeCodec.encode()).isEmpty());
+		assertTrue(ScratchCodeCodec.decode("").isEmpty());
+	}
+
+	@Test
+	public void testDecodedListIsModifiable() throws Exception
+	{
+		List<Integer> codes = ScratchCodeCodec.decode(ScratchCodeCodec.encode(CODES));
+		assertTrue(codes.remove(Integer.valueOf(81915571)));
+		assertEquals(4, codes.size());
+	}
+
+	@Test
+	public void testLegacyFormat() throws Exception
+	{
+		String legacy = serialize(CODES);
+		assertFalse(ScratchCodeCodec.isEncoded(legacy));
+		List<Integer> codes = ScratchCodeCodec.decode(legacy);
+		assertEquals(Arrays.asList(CODES), codes);
+		codes.remove(0);
+	}
+
+	@Test(expected = TOTPException.class)
+	public void testLegacyFormatRejectsOtherClasses() throws Exception
+	{
+		ScratchCodeCodec.decode(serialize(new Date()));
+	}
+
+	@Test(expected = TOTPException.class)
+	public void testTruncatedValue() throws Exception
+	{
+		ScratchCodeCodec.decode(Base64.encodeToString(new byte[] { ScratchCodeCodec.FORMAT_VARINT, 2, (byte) 0x81 }, false));
+	}
+
+	@Test
+	public void testParseDecimal() throws Exception
+	{
+		assertEquals(81915571, ScratchCodeCodec.parseDecimal("81915571"));
+		assertEquals(-1, ScratchCodeCodec.parseDecimal("\" TOTP_AUTH"));
+		assertEquals(-1, ScratchCodeCodec.parseDecimal(""));
+		assertEquals(-1, ScratchCodeCodec.parseDecimal("2147483648"));
+	}
+
+	private static String serialize(Serializable value) throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new ObjectOutputStream(out).writeObject(value);
+		return Base64.encodeToString(out.toByteArray(), false);
+	}
+}
@@ -0,0 +1,98 @@
+package nl.idfocus.nam.totp;
+
+import static org.junit.Assert.*;
+
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.novell.nidp.NIDPPrincipal;
+
+import nl.idfocus.nam.totp.store.CachingSecretStore;
+import nl.idfocus.nam.totp.store.ISecretStore;
+import nl.idfocus.nam.totp.store.LdapStore;
+import nl.idfocus.nam.totp.store.PwmStore;
+import nl.idfocus.nam.totp.store.SecretStoreRegistry;
+import nl.idfocus.nam.util.MockNIDP;
+
+public class TestSecretStoreRegistry
+{
+
+	private Properties props;
+
+	@Before
+	public void setUp() throws Exception 
+	{
+		SecretStoreRegistry.clear();
+		props = new Properties();
+		props.putAll(TOTPConstants.getDefaults());
+		props.setProperty(TOTPConstants.PARAM_STORE_TYPE, TOTPConstants.STORE_LDAP);
+		props.setProperty(LdapStore.PROP_ENCRYPTION_KEY, "mijnsleutel");
+		props.setProperty(LdapStore.PROP_KEY_ATTRIBUTE_NAME, "totpSecretKey");
+		props.setProperty(LdapStore.PROP_SCRATCH_ATTRIBUTE_NAME, "totpScratchCodes");
+	}
+
+	@After
+	public void tearDown() throws Exception 
+	{
+		SecretStoreRegistry.clear();
+	}
+
+	@Test
+	public void testSameConfigurationSharesStore() throws Exception
+	{
+		ISecretStore first = SecretStoreRegistry.getStore(props);
+		Properties copy = new Properties();
+		copy.putAll(props);
+		ISecretStore second = SecretStoreRegistry.getStore(copy);
+		assertSame(first, second);
+		assertTrue(((CachingSecretStore) first).getDelegate() instanceof LdapStore);
+		assertEquals(1, SecretStoreRegistry.size());
+	}
+
+	@Test
+	public void testDifferentKeyCreatesNewStore() throws Exception
+	{
+		ISecretStore first = SecretStoreRegistry.getStore(props);
+		props.setProperty(LdapStore.PROP_ENCRYPTION_KEY, "anderesleutel");
+		ISecretStore second = SecretStoreRegistry.getStore(props);
+		assertNotSame(first, second);
+		assertEquals(2, SecretStoreRegistry.size());
+	}
+
+	@Test
+	public void testDifferentTypeCreatesNewStore() throws Exception
+	{
+		ISecretStore first = SecretStoreRegistry.getStore(props);
+		props.setProperty(TOTPConstants.PARAM_STORE_TYPE, TOTPConstants.STORE_PWM);
+		props.setProperty(PwmStore.PROP_STORAGE_ATTRIBUTE_NAME, "totpSecretValuePam");
+		ISecretStore second = SecretStoreRegistry.getStore(props);
+		assertNotSame(first, second);
+		assertTrue(((CachingSecretStore) second).getDelegate() instanceof PwmStore);
+	}
+
+	@Test
+	public void testSharedStoreReadsKey() throws Exception
+	{
+		NIDPPrincipal princ = MockNIDP.getPrincipal();
+		assertEquals("TTLRB6ULNFYBTUZB", SecretStoreRegistry.getStore(props).readSecretFromStore(princ));
+		assertEquals("TTLRB6ULNFYBTUZB", SecretStoreRegistry.getStore(props).readSecretFromStore(princ));
+	}
+
+	@Test
+	public void testFailedInitializationIsNotRegistered() throws Exception
+	{
+		props.remove(LdapStore.PROP_ENCRYPTION_KEY);
+		try
+		{
+			SecretStoreRegistry.getStore(props);
+			fail("Expected exception during initialization");
+		}
+		catch (TOTPException e)
+		{
+			assertEquals(0, SecretStoreRegistry.size());
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package nl.idfocus.nam.totp;
+
+import static org.junit.Assert.*;
+
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.novell.nidp.NIDPPrincipal;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+
+import nl.idfocus.nam.totp.migrate.MigrationReport;
+import nl.idfocus.nam.totp.migrate.MigrationReport.Status;
+import nl.idfocus.nam.totp.migrate.PagedLdapSearch;
+import nl.idfocus.nam.totp.migrate.StoreMigration;
+import nl.idfocus.nam.totp.store.ISecretStore;
+import nl.idfocus.nam.util.MockNIDP;
+
+public class TestStoreMigration
+{
+	private static final int USERS = 25;
+	private static final int REGISTERED = 20;
+
+	private InMemoryDirectoryServer directory;
+	private MapStore source;
+	private MapStore target;
+	private Properties props;
+
+	@Before
+	public void setUp() throws Exception 
+	{
+		InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig("o=test");
+		config.addAdditionalBindCredentials("cn=admin", "secret");
+		directory = new InMemoryDirectoryServer(config);
+		directory.add("dn: o=test", "objectClass: top", "objectClass: organization", "o: test");
+		source = new MapStore();
+		for (int i = 0; i < USERS; i++)
+		{
+			String cn = "user" + i;
+			directory.add("dn: cn=" + cn + ",o=test", "objectClass: top", "objectClass: person", "cn: " + cn, "sn: " + cn);
+			if (i < REGISTERED)
+			{
+				source.secrets.put("cn=" + cn + ",o=test", "TTLRB6ULNFYBTUZ" + (char) ('A' + i));
+				source.codes.put("cn=" + cn + ",o=test", Arrays.asList(10000000 + i, 20000000 + i));
+			}
+		}
+		directory.startListening();
+		target = new MapStore();
+		props = new Properties();
+		props.setProperty(StoreMigration.PROP_BATCH_SIZE, "10");
+		props.setProperty(StoreMigration.PROP_CONCURRENCY, "2");
+		props.setProperty(StoreMigration.PROP_RATE, "0");
+	}
+
+	@After
+	public void tearDown()
+	{
+		directory.shutDown(true);
+	}
+
+	@Test
+	public void testMigrateFromPagedSearch() throws Exception
+	{
+		StringWriter out = new StringWriter();
+		MigrationReport report = new MigrationReport(out);
+		try (PagedLdapSearch users = search())
+		{
+			new StoreMigration(source, target, props).run(users, TestStoreMigration::principal, report, null);
+		}
+		assertEquals(REGISTERED, report.getCount(Status.VERIFIED));
+		assertEquals(USERS - REGISTERED, report.getCount(Status.NOT_REGISTERED));
+		assertEquals(0, report.getCount(Status.FAILED));
+		assertEquals(source.secrets, target.secrets);
+		assertEquals(source.codes, target.codes);
+		assertEquals(USERS, out.toString().split("\n").length);
+	}
+
+	@Test
+	public void testResumeRetriesFailedBatch() throws Exception
+	{
+		Path checkpoint = Files.createTempDirectory("migrate").resolve("checkpoint.properties");
+		target.failOn = "cn=user3,o=test";
+		MigrationReport first = new MigrationReport(null);
+		try (PagedLdapSearch users = search())
+		{
+			new StoreMigration(source, target, props).run(users, TestStoreMigration::principal, first, checkpoint);
+		}
+		// Only the user that could not be written fails, the rest of its batch is verified
+		assertEquals(1, first.getCount(Status.FAILED));
+		assertEquals(REGISTERED - 1, first.getCount(Status.VERIFIED));
+
+		target.failOn = null;
+		target.writes = 0;
+		MigrationReport second = new MigrationReport(null);
+		try (PagedLdapSearch users = search())
+		{
+			new StoreMigration(source, target, props).run(users, TestStoreMigration::principal, second, checkpoint);
+		}
+		assertEquals(0, second.getCount(Status.FAILED));
+		// The incomplete batch is retried as a whole
+		assertTrue(second.getCount(Status.VERIFIED) > 1);
+		assertEquals(second.getCount(Status.VERIFIED), target.writes);
+		assertEquals(source.secrets, target.secrets);
+	}
+
+	private PagedLdapSearch search() throws TOTPException
+	{
+		String url = "ldap://localhost:" + directory.getListenPort();
+		return new PagedLdapSearch(PagedLdapSearch.connect(url, "cn=admin", "secret"), "o=test", "(objectClass=person)", 7);
+	}
+
+	private static NIDPPrincipal principal(String userId)
+	{
+		NIDPPrincipal princ = MockNIDP.getPrincipal();
+		org.mockito.BDDMockito.given(princ.getUserIdentifier()).willReturn(userId.toLowerCase());
+		return princ;
+	}
+
+	/**
+	 * In-memory store that can fail the batch containing a given user.
+	 */
+	private static class MapStore implements ISecretStore
+	{
+		final Map<String, String> secrets = new ConcurrentHashMap<>();
+		final Map<String, List<Integer>> codes = new ConcurrentHashMap<>();
+		volatile String failOn;
+		volatile int writes;
+
+		@Override
+		public void init(Properties props) {}
+
+		@Override
+		public void writeSecretToStore(NIDPPrincipal princ, String secretValue) throws TOTPException
+		{
+			if (princ.getUserIdentifier().equals(failOn))
+				throw new TOTPException("Simulated failure");
+			synchronized (this)
+			{
+				writes++;
+			}
+			secrets.put(princ.getUserIdentifier(), secretValue);
+		}
+
+		@Override
+		public String readSecretFromStore(NIDPPrincipal princ)
+		{
+			return secrets.get(princ.getUserIdentifier());
+		}
+
+		@Override
+		public void writeScratchCodesToStore(NIDPPrincipal princ, Integer... secretValue)
+		{
+			codes.put(princ.getUserIdentifier(), new ArrayList<>(Arrays.asList(secretValue)));
+		}
+
+		@Override
+		public List<Integer> readScratchCodesFromStore(NIDPPrincipal princ)
+		{
+			return codes.get(princ.getUserIdentifier());
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package nl.idfocus.nam.totp;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestTOTPEngine
+{
+	/**
+	 * The SHA1 seed from the RFC 6238 test vectors.
+	 */
+	private byte[] key;
+
+	@Before
+	public void setUp() throws Exception 
+	{
+		key = "12345678901234567890".getBytes("US-ASCII");
+	}
+
+	@Test
+	public void testGenerateRfcVectors() throws Exception
+	{
+		// RFC 6238 appendix B lists 8 digit values, we use the last 6
+		assertEquals(287082, TOTPEngine.generate(key, TOTPEngine.toTimeStep(59000L)));
+		assertEquals(81804, TOTPEngine.generate(key, TOTPEngine.toTimeStep(1111111109000L)));
+		assertEquals(50471, TOTPEngine.generate(key, TOTPEngine.toTimeStep(1111111111000L)));
+		assertEquals(5924, TOTPEngine.generate(key, TOTPEngine.toTimeStep(1234567890000L)));
+		assertEquals(279037, TOTPEngine.generate(key, TOTPEngine.toTimeStep(2000000000000L)));
+	}
+
+	@Test
+	public void testVerifyWindow() throws Exception
+	{
+		long step = TOTPEngine.toTimeStep(59000L);
+		assertTrue(TOTPEngine.verify(key, 287082, step, 0));
+		assertTrue(TOTPEngine.verify(key, 287082, step + 3, 3));
+		assertTrue(TOTPEngine.verify(key, 287082, step - 3, 3));
+		assertFalse(TOTPEngine.verify(key, 287082, step + 4, 3));
+	}
+
+	@Test
+	public void testMatchOffset() throws Exception
+	{
+		long step = TOTPEngine.toTimeStep(59000L);
+		assertEquals(0, TOTPEngine.match(key, 287082, step, 0, 3));
+		assertEquals(-2, TOTPEngine.match(key, 287082, step + 2, 0, 3));
+		assertEquals(2, TOTPEngine.match(key, 287082, step - 2, -1, 3));
+		assertEquals(TOTPEngine.NO_MATCH, TOTPEngine.match(key, 287082, step + 4, 0, 3));
+	}
+
+	@Test
+	public void testMatchPredictedOutsideWindow() throws Exception
+	{
+		long step = TOTPEngine.toTimeStep(59000L);
+		// A known drift does not widen a smaller window
+		assertEquals(TOTPEngine.NO_MATCH, TOTPEngine.match(key, 287082, step + 5, -5, 1));
+		assertEquals(TOTPEngine.NO_MATCH, TOTPEngine.match(key, 287082, step + 5, 0, 1));
+		assertEquals(-5, TOTPEngine.match(key, 287082, step + 5, -5, 5));
+		assertEquals(TOTPEngine.NO_MATCH, TOTPEngine.match(key, 287082, step + 20, -20, 1));
+	}
+
+	@Test
+	public void testParseCode() throws Exception
+	{
+		assertEquals(81804, TOTPEngine.parseCode("081804"));
+		assertEquals(-1, TOTPEngine.parseCode("81804"));
+		assertEquals(-1, TOTPEngine.parseCode("08180a"));
+		assertEquals(-1, TOTPEngine.parseCode(null));
+	}
+
+	@Test
+	public void testEqual() throws Exception
+	{
+		assertEquals(1, TOTPEngine.equal(5924, 5924));
+		assertEquals(0, TOTPEngine.equal(5924, 5925));
+		assertEquals(0, TOTPEngine.equal(0, Integer.MIN_VALUE));
+	}
+}
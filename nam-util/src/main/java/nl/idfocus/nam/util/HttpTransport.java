@@ -0,0 +1,324 @@
+package nl.idfocus.nam.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * HTTP client for short request/response exchanges with external gateways, such as SMS providers. <br/>
+ * <p>
+ * Connections are kept alive and reused per host by the JDK connection cache: the response is always read to the end
+ * and the connection is never disconnected after a normal exchange. All HTTPS requests of a transport use the same
+ * socket factory, so TLS sessions are resumed and cached connections match. The JDK keeps at most
+ * <code>http.maxConnections</code> (default 5) idle connections per host, so a per host limit above that value
+ * causes extra handshakes under load.
+ * </p><p>
+ * Every request has a total deadline that covers waiting for a slot, connecting, sending and reading. When it expires
+ * the connection is closed and a {@link SocketTimeoutException} is thrown. A request that never got a slot did not
+ * reach the host; {@link #getLocalFailures()} lets callers tell such a failure apart from a failure of the host.
+ * </p>
+ */
+public final class HttpTransport
+{
+	public static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded; charset=UTF-8";
+
+	/** Responses larger than this are not read, gateways send a status line or a small document */
+	private static final int MAX_RESPONSE_SIZE = 64 * 1024;
+
+	private static final ConcurrentMap<String, HttpTransport> shared = new ConcurrentHashMap<>();
+	private static final ScheduledThreadPoolExecutor deadlines = createDeadlineTimer();
+	/** Number of requests per thread that failed waiting for a slot, see {@link #getLocalFailures()} */
+	private static final ThreadLocal<int[]> localFailures = ThreadLocal.withInitial(() -> new int[1]);
+
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final int maxPerHost;
+	private final SSLSocketFactory sslSocketFactory;
+	private final ConcurrentMap<String, Semaphore> hosts = new ConcurrentHashMap<>();
+
+	/**
+	 * @param connectTimeout maximum time in milliseconds to establish a connection
+	 * @param readTimeout maximum time in milliseconds to wait for data from the server
+	 * @param maxPerHost maximum number of concurrent requests to one host
+	 * @param sslSocketFactory the factory for HTTPS connections, or null for the JVM default
+	 */
+	public HttpTransport(int connectTimeout, int readTimeout, int maxPerHost, SSLSocketFactory sslSocketFactory)
+	{
+		if (connectTimeout < 1 || readTimeout < 1 || maxPerHost < 1)
+			throw new IllegalArgumentException("Timeouts and concurrency must be positive");
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.maxPerHost = maxPerHost;
+		this.sslSocketFactory = sslSocketFactory == null ? HttpsURLConnection.getDefaultSSLSocketFactory() : sslSocketFactory;
+	}
+
+	/**
+	 * Return the transport shared by all callers with the same settings, using the default TLS configuration.
+	 * @param connectTimeout maximum time in milliseconds to establish a connection
+	 * @param readTimeout maximum time in milliseconds to wait for data from the server
+	 * @param maxPerHost maximum number of concurrent requests to one host
+	 * @return the transport
+	 */
+	public static HttpTransport getShared(int connectTimeout, int readTimeout, int maxPerHost)
+	{
+		return shared.computeIfAbsent(connectTimeout + ":" + readTimeout + ":" + maxPerHost,
+				key -> new HttpTransport(connectTimeout, readTimeout, maxPerHost, null));
+	}
+
+	/**
+	 * Count the requests of the calling thread that failed before reaching the host, because no slot for the host
+	 * became free within the deadline or the wait was interrupted. A caller that compares the count before and after
+	 * a call can tell local congestion from a failure of the host.
+	 * @return the number of such requests made by the calling thread so far
+	 */
+	public static int getLocalFailures()
+	{
+		return localFailures.get()[0];
+	}
+
+	private static ScheduledThreadPoolExecutor createDeadlineTimer()
+	{
+		ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, task -> {
+			Thread thread = new Thread(task, "http-deadline");
+			thread.setDaemon(true);
+			return thread;
+		});
+		timer.setRemoveOnCancelPolicy(true);
+		return timer;
+	}
+
+	/**
+	 * Post a form to the given URL.
+	 * @param url the target URL
+	 * @param form the form fields
+	 * @param deadline total time in milliseconds for the request, 0 or less for only the connect and read timeouts
+	 * @return the response, also for status codes other than 2xx
+	 * @throws IOException when the request fails or the deadline expires
+	 */
+	public Response post(String url, Form form, int deadline) throws IOException
+	{
+		return post(url, FORM_CONTENT_TYPE, form.getBytes(), deadline);
+	}
+
+	/**
+	 * Post a body to the given URL.
+	 * @param url the target URL
+	 * @param contentType the content type of the body
+	 * @param body the request body
+	 * @param deadline total time in milliseconds for the request, 0 or less for only the connect and read timeouts
+	 * @return the response, also for status codes other than 2xx
+	 * @throws IOException when the request fails or the deadline expires
+	 */
+	public Response post(String url, String contentType, byte[] body, int deadline) throws IOException
+	{
+		URL target = new URL(url);
+		long expires = deadline > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadline) : Long.MAX_VALUE;
+		Semaphore slots = hosts.computeIfAbsent(hostKey(target), key -> new Semaphore(maxPerHost));
+		int maxWait = (int) Math.min(Integer.MAX_VALUE, (long) connectTimeout + readTimeout);
+		try
+		{
+			if (!slots.tryAcquire(remaining(expires, maxWait), TimeUnit.MILLISECONDS))
+			{
+				localFailures.get()[0]++;
+				throw new SocketTimeoutException("No free connection to " + target.getHost() + " within deadline");
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			localFailures.get()[0]++;
+			throw new IOException("Interrupted waiting for a connection to " + target.getHost(), e);
+		}
+		try
+		{
+			return exchange(target, contentType, body, expires);
+		}
+		finally
+		{
+			slots.release();
+		}
+	}
+
+	private Response exchange(URL target, String contentType, byte[] body, long expires) throws IOException
+	{
+		HttpURLConnection conn = (HttpURLConnection) target.openConnection();
+		if (conn instanceof HttpsURLConnection)
+			((HttpsURLConnection) conn).setSSLSocketFactory(sslSocketFactory);
+		conn.setConnectTimeout(remaining(expires, connectTimeout));
+		conn.setReadTimeout(remaining(expires, readTimeout));
+		conn.setUseCaches(false);
+		conn.setDoOutput(true);
+		conn.setRequestMethod("POST");
+		conn.setRequestProperty("Content-Type", contentType);
+		conn.setFixedLengthStreamingMode(body.length);
+
+		AtomicBoolean expired = new AtomicBoolean();
+		ScheduledFuture<?> watchdog = expires == Long.MAX_VALUE ? null : deadlines.schedule(() -> {
+			expired.set(true);
+			conn.disconnect();
+		}, remaining(expires, Integer.MAX_VALUE), TimeUnit.MILLISECONDS);
+		try
+		{
+			try (OutputStream out = conn.getOutputStream())
+			{
+				out.write(body);
+			}
+			int status = conn.getResponseCode();
+			InputStream in = status >= HttpURLConnection.HTTP_BAD_REQUEST ? conn.getErrorStream() : conn.getInputStream();
+			return new Response(status, readFully(in));
+		}
+		catch (IOException e)
+		{
+			if (expired.get())
+				throw new SocketTimeoutException("Request to " + target.getHost() + " exceeded its deadline");
+			// Not reusable after a failure
+			conn.disconnect();
+			throw e;
+		}
+		finally
+		{
+			if (watchdog != null)
+				watchdog.cancel(false);
+		}
+	}
+
+	/**
+	 * Read the stream to the end and close it, which returns the connection to the keep-alive cache.
+	 */
+	private static byte[] readFully(InputStream in) throws IOException
+	{
+		if (in == null)
+			return new byte[0];
+		try (InputStream stream = in)
+		{
+			ByteArrayOutputStream content = new ByteArrayOutputStream(256);
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = stream.read(buffer)) != -1)
+			{
+				if (content.size() + read > MAX_RESPONSE_SIZE)
+					throw new IOException("Response exceeds " + MAX_RESPONSE_SIZE + " bytes");
+				content.write(buffer, 0, read);
+			}
+			return content.toByteArray();
+		}
+	}
+
+	private static int remaining(long expires, int limit)
+	{
+		if (expires == Long.MAX_VALUE)
+			return limit;
+		long left = TimeUnit.NANOSECONDS.toMillis(expires - System.nanoTime());
+		if (left < 1)
+			return 1;
+		return (int) Math.min(left, limit);
+	}
+
+	private static String hostKey(URL url)
+	{
+		int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+		return url.getProtocol() + "://" + url.getHost().toLowerCase() + ":" + port;
+	}
+
+	/**
+	 * @return number of requests to the given URL's host that may start now
+	 */
+	int getAvailableSlots(String url) throws IOException
+	{
+		Semaphore slots = hosts.get(hostKey(new URL(url)));
+		return slots == null ? maxPerHost : slots.availablePermits();
+	}
+
+	/**
+	 * URL encoded form body, fields are added in order. Fields with a null value are left out.
+	 */
+	public static final class Form
+	{
+		private final StringBuilder content = new StringBuilder(256);
+
+		public Form add(String name, String value)
+		{
+			if (value == null)
+				return this;
+			if (content.length() > 0)
+				content.append('&');
+			content.append(encode(name)).append('=').append(encode(value));
+			return this;
+		}
+
+		public byte[] getBytes()
+		{
+			return content.toString().getBytes(StandardCharsets.US_ASCII);
+		}
+
+		@Override
+		public String toString()
+		{
+			return content.toString();
+		}
+
+		private static String encode(String value)
+		{
+			try
+			{
+				return URLEncoder.encode(value, "UTF-8");
+			}
+			catch (UnsupportedEncodingException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * Status and body of a completed request.
+	 */
+	public static final class Response
+	{
+		private final int status;
+		private final byte[] body;
+
+		Response(int status, byte[] body)
+		{
+			this.status = status;
+			this.body = body;
+		}
+
+		public int getStatus()
+		{
+			return status;
+		}
+
+		public boolean isSuccess()
+		{
+			return status >= 200 && status < 300;
+		}
+
+		public byte[] getBody()
+		{
+			return body;
+		}
+
+		public String getBodyAsString()
+		{
+			return new String(body, StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,437 @@
+package nl.idfocus.nam.util;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+import com.novell.nam.common.ldap.jndi.JNDIUserStore;
+import com.novell.nam.common.ldap.jndi.JNDIUserStoreReplica;
+import com.novell.nidp.common.util.net.client.NIDP_SSLSocketFactory;
+
+/**
+ * Shares admin connections to the replicas of a user store, so a lookup reuses a bound LDAP connection instead of
+ * opening a new TLS session and bind every time. <br/>
+ * <p>
+ * Each replica has its own pool of connections, shared by every store that uses the same replica and admin account.
+ * A connection that was idle for a while is checked with a read of the root DSE before it is handed out; one that
+ * was idle longer than the maximum is closed. Replicas are tried in the order of the user store. A replica that
+ * cannot be reached is skipped for a back-off period that doubles with every failure in a row. When all connections
+ * of the reachable replicas are in use, a borrower takes the first one that comes free on any of them, waiting up to
+ * the borrow timeout.
+ * </p><p>
+ * Like NAM itself, a replica is reached over <code>ldaps</code> when it is configured for SSL, and over plain
+ * <code>ldap</code> otherwise, on the port of the replica. When the admin password of a store changes, the pools of
+ * the old password are closed: idle connections at once, borrowed ones when they are returned.
+ * </p><p>
+ * A borrowed connection is used by one thread at a time and must be returned by closing its {@link Lease}, never by
+ * closing the context itself. A lease that saw the connection fail should be invalidated first.
+ * </p>
+ */
+public final class LdapContextPool
+{
+	private static final Logger logger = LogFormatter.getConsoleLogger(LdapContextPool.class.getName());
+
+	static final int DEF_MAX_SIZE = 8;
+	static final long DEF_MAX_IDLE = TimeUnit.MINUTES.toMillis(5);
+	static final long DEF_VALIDATE_AFTER = TimeUnit.SECONDS.toMillis(10);
+	static final long DEF_BORROW_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+	static final long DEF_MIN_BACKOFF = TimeUnit.SECONDS.toMillis(1);
+	static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(1);
+	private static final long CONNECT_TIMEOUT = TimeUnit.SECONDS.toMillis(3);
+	private static final long READ_TIMEOUT = TimeUnit.SECONDS.toMillis(15);
+
+	private static final ConcurrentMap<String, Replica> replicas = new ConcurrentHashMap<>();
+	private static final ConcurrentMap<String, LdapContextPool> stores = new ConcurrentHashMap<>();
+
+	/** How long a waiting borrower waits on one busy replica before it looks at the next */
+	private static final long POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(20);
+
+	private final List<Replica> order;
+	private final long borrowTimeout;
+	private final String account;
+
+	/**
+	 * @param order the replicas in the order to try them
+	 * @param borrowTimeoutMillis the longest time to wait for a connection
+	 */
+	LdapContextPool(List<Replica> order, long borrowTimeoutMillis)
+	{
+		this(order, borrowTimeoutMillis, "");
+	}
+
+	private LdapContextPool(List<Replica> order, long borrowTimeoutMillis, String account)
+	{
+		if (order.isEmpty() || borrowTimeoutMillis < 0)
+			throw new IllegalArgumentException("Invalid LDAP pool settings");
+		this.order = new ArrayList<>(order);
+		this.borrowTimeout = TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis);
+		this.account = account;
+	}
+
+	/**
+	 * Return the pool for the admin connections to a user store, shared by all modules.
+	 * @param store the user store
+	 * @return the pool, or null when the store has no replicas
+	 */
+	public static LdapContextPool forStore(JNDIUserStore store)
+	{
+		JNDIUserStoreReplica[] list = store == null ? null : store.getUserStoreReplicas();
+		if (list == null || list.length == 0)
+			return null;
+		List<String> urls = new ArrayList<>();
+		for (JNDIUserStoreReplica replica : list)
+			urls.add((replica.isSSL() ? "ldaps://" : "ldap://") + replica.getHost() + ":" + replica.getPort());
+		String bindName = store.getAdminUsername();
+		String bindPwd = store.getAdminPassword();
+		return forAccount(urls, bindName, bindPwd, url -> () -> connect(url, bindName, bindPwd));
+	}
+
+	/**
+	 * Return the pool for an admin account on a list of replicas, closing the pools of an earlier password.
+	 * @param urls the replica URLs in the order to try them
+	 * @param bindName the admin DN
+	 * @param bindPwd the admin password
+	 * @param connectors opens connections to a replica URL
+	 * @return the shared pool
+	 */
+	static LdapContextPool forAccount(List<String> urls, String bindName, String bindPwd, Function<String, Connector> connectors)
+	{
+		String account = Sha256.toHashString(String.valueOf(bindPwd));
+		String key = bindName + "|" + urls;
+		LdapContextPool pool = stores.get(key);
+		if (pool != null && pool.account.equals(account))
+			return pool;
+		pool = stores.compute(key, (k, old) -> {
+			if (old != null && old.account.equals(account))
+				return old;
+			List<Replica> order = new ArrayList<>();
+			for (String url : urls)
+			{
+				order.add(replicas.computeIfAbsent(url + "|" + bindName + "|" + account, r -> new Replica(url, connectors.apply(url),
+						DEF_MAX_SIZE, DEF_MAX_IDLE, DEF_VALIDATE_AFTER, DEF_MIN_BACKOFF)));
+			}
+			return new LdapContextPool(order, DEF_BORROW_TIMEOUT, account);
+		});
+		// The connections of an old password are of no more use on these replicas
+		for (String url : urls)
+			retireOthers(url + "|" + bindName + "|", account);
+		return pool;
+	}
+
+	private static void retireOthers(String prefix, String account)
+	{
+		for (Map.Entry<String, Replica> entry : replicas.entrySet())
+		{
+			if (entry.getKey().startsWith(prefix) && !entry.getKey().equals(prefix + account)
+					&& replicas.remove(entry.getKey(), entry.getValue()))
+			{
+				logger.log(Level.INFO, "Closing LDAP connections to " + entry.getValue().url + " made with an old admin password");
+				entry.getValue().retire();
+			}
+		}
+	}
+
+	/**
+	 * Borrow a connection from the first replica that has one to spare. When all are in use, take the first one that
+	 * comes free on any reachable replica, waiting up to the borrow timeout.
+	 * @return the lease of the connection, to be closed after use
+	 * @throws ServiceUnavailableException when no replica can be reached
+	 * @throws NamingException when no connection came free in time
+	 */
+	public Lease borrow() throws NamingException
+	{
+		long deadline = System.nanoTime() + borrowTimeout;
+		NamingException failure = null;
+		for (Replica replica : order)
+		{
+			if (!replica.isAvailable() || !replica.permits.tryAcquire())
+				continue;
+			try
+			{
+				return replica.take();
+			}
+			catch (NamingException e)
+			{
+				failure = e;
+			}
+		}
+		// The reachable replicas are busy, wait on each of them in turn until one has a connection to spare
+		boolean reachable = true;
+		while (reachable)
+		{
+			reachable = false;
+			for (Replica replica : order)
+			{
+				if (!replica.isAvailable())
+					continue;
+				reachable = true;
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0)
+					throw new NamingException("No LDAP connection came free within " + TimeUnit.NANOSECONDS.toMillis(borrowTimeout) + " ms");
+				try
+				{
+					if (!replica.permits.tryAcquire(Math.min(remaining, POLL_INTERVAL), TimeUnit.NANOSECONDS))
+						continue;
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new NamingException("Interrupted while waiting for an LDAP connection to " + replica.url);
+				}
+				try
+				{
+					return replica.take();
+				}
+				catch (NamingException e)
+				{
+					failure = e;
+				}
+			}
+		}
+		ServiceUnavailableException e = new ServiceUnavailableException("No replica of the user store can be reached");
+		e.setRootCause(failure);
+		throw e;
+	}
+
+	private static LdapContext connect(String url, String bindName, String bindPwd) throws NamingException
+	{
+		Hashtable<String,String> env = new Hashtable<>();
+		env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+		env.put(Context.PROVIDER_URL, url);
+		if (url.startsWith("ldaps:"))
+		{
+			env.put(Context.SECURITY_PROTOCOL, "ssl");
+			env.put("java.naming.ldap.factory.socket", NIDP_SSLSocketFactory.class.getName());
+		}
+		env.put(Context.SECURITY_AUTHENTICATION, "simple");
+		env.put(Context.SECURITY_PRINCIPAL, bindName);
+		env.put(Context.SECURITY_CREDENTIALS, bindPwd);
+		env.put("com.sun.jndi.ldap.connect.timeout", Long.toString(CONNECT_TIMEOUT));
+		env.put("com.sun.jndi.ldap.read.timeout", Long.toString(READ_TIMEOUT));
+		return new InitialLdapContext(env, null);
+	}
+
+	private static void close(LdapContext context)
+	{
+		try
+		{
+			context.close();
+		}
+		catch (NamingException e)
+		{
+			logger.log(Level.FINE, "Error closing LDAP connection: " + e.getExplanation());
+		}
+	}
+
+	/**
+	 * Opens a new bound connection to a replica.
+	 */
+	interface Connector
+	{
+		LdapContext connect() throws NamingException;
+	}
+
+	/**
+	 * The connections to one replica.
+	 */
+	static final class Replica
+	{
+		private final String url;
+		private final Connector connector;
+		private final long maxIdle;
+		private final long validateAfter;
+		private final long minBackoff;
+		private final Semaphore permits;
+		/** Most recently returned first, so the oldest connections go idle and are closed */
+		private final Deque<Idle> idle = new ConcurrentLinkedDeque<>();
+		private final AtomicInteger failures = new AtomicInteger();
+		private volatile long retryAt;
+		private volatile boolean retired;
+
+		Replica(String url, Connector connector, int maxSize, long maxIdleMillis, long validateAfterMillis, long minBackoffMillis)
+		{
+			if (maxSize < 1 || maxIdleMillis < 0 || validateAfterMillis < 0 || minBackoffMillis < 1)
+				throw new IllegalArgumentException("Invalid LDAP pool settings for " + url);
+			this.url = url;
+			this.connector = connector;
+			this.maxIdle = TimeUnit.MILLISECONDS.toNanos(maxIdleMillis);
+			this.validateAfter = TimeUnit.MILLISECONDS.toNanos(validateAfterMillis);
+			this.minBackoff = minBackoffMillis;
+			this.permits = new Semaphore(maxSize, true);
+		}
+
+		/**
+		 * @return false while the replica is backing off after a failure
+		 */
+		boolean isAvailable()
+		{
+			return failures.get() == 0 || System.nanoTime() - retryAt >= 0;
+		}
+
+		/**
+		 * Close the idle connections, and the borrowed ones when they are returned.
+		 */
+		void retire()
+		{
+			retired = true;
+			Idle entry;
+			while ((entry = idle.pollFirst()) != null)
+				close(entry.context);
+		}
+
+		/**
+		 * @return the number of connections kept for reuse
+		 */
+		int getIdleCount()
+		{
+			return idle.size();
+		}
+
+		/**
+		 * Hand out an idle connection that is still healthy, or open a new one. The caller holds a permit, which is
+		 * released again when this fails.
+		 */
+		private Lease take() throws NamingException
+		{
+			try
+			{
+				Idle entry;
+				while ((entry = idle.pollFirst()) != null)
+				{
+					long idleFor = System.nanoTime() - entry.since;
+					if (idleFor > maxIdle)
+						close(entry.context);
+					else if (idleFor < validateAfter || isHealthy(entry.context))
+						return new Lease(this, entry.context);
+					else
+						close(entry.context);
+				}
+				LdapContext context = connector.connect();
+				failures.set(0);
+				return new Lease(this, context);
+			}
+			catch (NamingException | RuntimeException e)
+			{
+				permits.release();
+				long backoff = Math.min(MAX_BACKOFF, minBackoff << Math.min(20, failures.getAndIncrement()));
+				retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+				logger.log(Level.WARNING, "Could not connect to " + url + ", skipping it for " + backoff + " ms: " + e.getMessage());
+				if (e instanceof NamingException)
+					throw (NamingException)e;
+				NamingException wrapped = new NamingException("Could not connect to " + url);
+				wrapped.setRootCause(e);
+				throw wrapped;
+			}
+		}
+
+		private boolean isHealthy(LdapContext context)
+		{
+			try
+			{
+				context.getAttributes("", new String[] { "1.1" });
+				return true;
+			}
+			catch (NamingException | RuntimeException e)
+			{
+				logger.log(Level.FINE, "Dropping broken LDAP connection to " + url + ": " + e.getMessage());
+				return false;
+			}
+		}
+
+		private void release(LdapContext context, boolean broken)
+		{
+			long now = System.nanoTime();
+			if (broken || retired)
+				close(context);
+			else
+			{
+				Idle entry = new Idle(context, now);
+				idle.offerFirst(entry);
+				// A retire that ran meanwhile has missed this one
+				if (retired && idle.removeFirstOccurrence(entry))
+					close(context);
+			}
+			permits.release();
+			// Close connections that nobody needed for too long
+			Idle oldest;
+			while ((oldest = idle.peekLast()) != null && now - oldest.since > maxIdle)
+			{
+				if (idle.removeLastOccurrence(oldest))
+					close(oldest.context);
+			}
+		}
+	}
+
+	private static final class Idle
+	{
+		private final LdapContext context;
+		private final long since;
+
+		Idle(LdapContext context, long since)
+		{
+			this.context = context;
+			this.since = since;
+		}
+	}
+
+	/**
+	 * A borrowed connection. Closing the lease returns the connection to its pool.
+	 */
+	public static final class Lease implements AutoCloseable
+	{
+		private final Replica replica;
+		private LdapContext context;
+		private boolean broken;
+
+		private Lease(Replica replica, LdapContext context)
+		{
+			this.replica = replica;
+			this.context = context;
+		}
+
+		/**
+		 * @return the bound connection; do not close it
+		 */
+		public LdapContext getContext()
+		{
+			if (context == null)
+				throw new IllegalStateException("The LDAP connection was already returned");
+			return context;
+		}
+
+		/**
+		 * Close the connection when the lease is closed, instead of returning it to the pool.
+		 */
+		public void invalidate()
+		{
+			broken = true;
+		}
+
+		@Override
+		public void close()
+		{
+			if (context == null)
+				return;
+			LdapContext returned = context;
+			context = null;
+			replica.release(returned, broken);
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package nl.idfocus.nam.util;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+
+import com.novell.nidp.NIDPException;
+import com.novell.nidp.NIDPPrincipal;
+import com.novell.nidp.common.authority.UserAuthority;
+
+/**
+ * Request-scoped cache of principal attributes. <br/>
+ * An authentication class collects every attribute name it (and its helpers) will need and fetches them with a 
+ * single {@link UserAuthority#getAttributes(NIDPPrincipal, String[])} call through {@link #prefetch(NIDPPrincipal, Collection)}. 
+ * Until the returned scope is closed, {@link #get(NIDPPrincipal, String)} serves those attributes from memory on the 
+ * current thread. Attribute names are case insensitive, as in LDAP. <br/>
+ * Outside a prefetch scope, or for another principal, every call goes straight to the user authority.
+ */
+public final class PrincipalAttributes implements AutoCloseable
+{
+	private static final Logger LOGGER = LogFormatter.getConsoleLogger(PrincipalAttributes.class.getName());
+
+	private static final ThreadLocal<PrincipalAttributes> current = new ThreadLocal<>();
+
+	private final NIDPPrincipal			principal;
+	private final Attributes			attributes;
+	private final Set<String>			known;
+	private final PrincipalAttributes	previous;
+
+	private PrincipalAttributes(NIDPPrincipal principal, PrincipalAttributes previous)
+	{
+		this.principal = principal;
+		this.attributes = new BasicAttributes(true);
+		this.known = new HashSet<>();
+		this.previous = previous;
+	}
+
+	/**
+	 * Fetch the given attributes in a single round trip and bind them to the current thread.
+	 * @param princ the principal to read from
+	 * @param names attribute names to fetch, empty or null names are skipped
+	 * @return the prefetch scope, to be closed when the request is done
+	 */
+	public static PrincipalAttributes prefetch(NIDPPrincipal princ, Collection<String> names)
+	{
+		PrincipalAttributes scope = new PrincipalAttributes(princ, current.get());
+		for (String name : names)
+		{
+			if (name != null && !name.isEmpty())
+				scope.known.add(normalize(name));
+		}
+		if (!scope.known.isEmpty())
+		{
+			String[] request = scope.known.toArray(new String[scope.known.size()]);
+			LOGGER.log(Level.FINE, "Prefetching {0} attributes for {1}", new Object[] { request.length, princ.getUserIdentifier() });
+			scope.store(princ.getAuthority().getAttributes(princ, request));
+		}
+		current.set(scope);
+		return scope;
+	}
+
+	/**
+	 * Read a single attribute, from the current prefetch scope when possible.
+	 * @param princ the principal to read from
+	 * @param name the attribute name
+	 * @return the attribute, or null when the principal does not have it
+	 */
+	public static Attribute get(NIDPPrincipal princ, String name)
+	{
+		PrincipalAttributes scope = current.get();
+		if (scope != null && scope.principal == princ)
+		{
+			if (!scope.known.contains(normalize(name)))
+			{
+				LOGGER.log(Level.FINE, "Attribute {0} was not prefetched", name);
+				scope.known.add(normalize(name));
+				scope.store(princ.getAuthority().getAttributes(princ, new String[] { name }));
+			}
+			return scope.attributes.get(name);
+		}
+		Attributes attrs = princ.getAuthority().getAttributes(princ, new String[] { name });
+		return attrs == null ? null : attrs.get(name);
+	}
+
+	/**
+	 * Modify attributes on the principal and keep the current prefetch scope in line with the change.
+	 * @see UserAuthority#modifyAttributes(NIDPPrincipal, String[], String[])
+	 */
+	public static void modify(NIDPPrincipal princ, String[] names, String[] values) throws NIDPException
+	{
+		princ.getAuthority().modifyAttributes(princ, names, values);
+		PrincipalAttributes scope = current.get();
+		if (scope != null && scope.principal == princ)
+		{
+			if (names.length == 1)
+			{
+				// A single attribute is replaced with all given values
+				Attribute attr = new BasicAttribute(names[0]);
+				for (String value : values)
+					attr.add(value);
+				scope.attributes.put(attr);
+				scope.known.add(normalize(names[0]));
+			}
+			else
+			{
+				for (String name : names)
+				{
+					scope.attributes.remove(name);
+					scope.known.remove(normalize(name));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove this scope from the current thread, restoring any enclosing scope.
+	 */
+	@Override
+	public void close()
+	{
+		if (previous == null)
+			current.remove();
+		else
+			current.set(previous);
+	}
+
+	private void store(Attributes fetched)
+	{
+		if (fetched == null)
+			return;
+		try
+		{
+			NamingEnumeration<? extends Attribute> all = fetched.getAll();
+			while (all.hasMore())
+			{
+				attributes.put(all.next());
+			}
+		}
+		catch (NamingException e)
+		{
+			LOGGER.log(Level.WARNING, "Could not read prefetched attributes: " + e.getMessage());
+		}
+	}
+
+	private static String normalize(String name)
+	{
+		return name.toLowerCase(Locale.ROOT);
+	}
+}
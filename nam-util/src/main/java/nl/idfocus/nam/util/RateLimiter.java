@@ -0,0 +1,210 @@
+package nl.idfocus.nam.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how often an event may happen per key, such as SMS sends per user or code attempts per client address. <br/>
+ * <p>
+ * A limit of <i>n</i> events per period is a token bucket holding <i>n</i> tokens, refilled at <i>n</i> per period.
+ * It is kept as one theoretical arrival time per key (the generic cell rate algorithm) and updated with
+ * compare-and-set, so checking a limit takes no locks. Keys are spread over independent stripes, each holding at most
+ * its share of the maximum number of keys. A key whose bucket has filled up again carries no information and is
+ * evicted during a sweep of its stripe, which runs at most once per period on the request path.
+ * </p><p>
+ * When a stripe is full of keys that are still limited, new keys are allowed without being tracked, so a flood of
+ * keys cannot lock out other users. An eviction that races with a request may allow one extra event for that key.
+ * </p>
+ */
+public final class RateLimiter
+{
+	private static final int STRIPES = 16;
+	static final int DEF_MAX_KEYS = 100000;
+
+	private static final ConcurrentMap<String, RateLimiter> shared = new ConcurrentHashMap<>();
+
+	private final int permits;
+	private final long period;
+	private final long interval;
+	private final long tolerance;
+	private final int maxKeysPerStripe;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	private final AtomicLong untracked = new AtomicLong();
+
+	/**
+	 * @param permits number of events allowed per period, and the largest burst
+	 * @param periodMillis the period in milliseconds
+	 * @param maxKeys maximum number of keys tracked
+	 */
+	RateLimiter(int permits, long periodMillis, int maxKeys)
+	{
+		if (permits < 1 || periodMillis < 1 || maxKeys < STRIPES)
+			throw new IllegalArgumentException("Invalid rate limit settings");
+		this.permits = permits;
+		this.period = TimeUnit.MILLISECONDS.toNanos(periodMillis);
+		this.interval = period / permits;
+		this.tolerance = interval * (permits - 1);
+		this.maxKeysPerStripe = maxKeys / STRIPES;
+		long now = System.nanoTime();
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new Stripe(now);
+	}
+
+	/**
+	 * Return the limiter shared by all modules with the same name and limit.
+	 * @param name the name of the limited event and key type, such as <code>sms-user</code>
+	 * @param spec the limit as <code>count/seconds</code>, such as <code>5/300</code> for 5 events per 5 minutes
+	 * @return the limiter, or null when the spec is null or empty, which disables the limit
+	 * @throws IllegalArgumentException when the spec is not valid
+	 */
+	public static RateLimiter getShared(String name, String spec)
+	{
+		if (spec == null || spec.trim().isEmpty())
+			return null;
+		String[] parts = spec.trim().split("/");
+		try
+		{
+			if (parts.length != 2)
+				throw new NumberFormatException(spec);
+			int permits = Integer.parseInt(parts[0].trim());
+			long seconds = Long.parseLong(parts[1].trim());
+			return getShared(name, permits, TimeUnit.SECONDS.toMillis(seconds));
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Invalid rate limit '" + spec + "' for " + name + ", expected count/seconds", e);
+		}
+	}
+
+	/**
+	 * Return the limiter shared by all modules with the same name and limit.
+	 * @param name the name of the limited event and key type
+	 * @param permits number of events allowed per period
+	 * @param periodMillis the period in milliseconds
+	 * @return the limiter
+	 */
+	public static RateLimiter getShared(String name, int permits, long periodMillis)
+	{
+		return shared.computeIfAbsent(name + ":" + permits + "/" + periodMillis,
+				key -> new RateLimiter(permits, periodMillis, DEF_MAX_KEYS));
+	}
+
+	/**
+	 * Count an event for the key, if the limit allows it.
+	 * @param key the user, address or number the event is for
+	 * @return true when the event is allowed, false when the key is over its limit
+	 */
+	public boolean tryAcquire(String key)
+	{
+		return tryAcquire(key, System.nanoTime());
+	}
+
+	boolean tryAcquire(String key, long now)
+	{
+		Stripe stripe = stripes[spread(key.hashCode()) & (STRIPES - 1)];
+		stripe.sweepIfDue(now, period);
+		AtomicLong arrival = stripe.buckets.get(key);
+		if (arrival == null)
+		{
+			if (stripe.buckets.size() >= maxKeysPerStripe)
+			{
+				// A full stripe is swept at most once per token interval, so a flood of keys cannot make every request scan it
+				stripe.sweepIfDue(now, interval);
+				if (stripe.buckets.size() >= maxKeysPerStripe)
+				{
+					untracked.incrementAndGet();
+					return true;
+				}
+			}
+			// The first event takes one token from a full bucket
+			arrival = stripe.buckets.putIfAbsent(key, new AtomicLong(now + interval));
+			if (arrival == null)
+				return true;
+		}
+		while (true)
+		{
+			long current = arrival.get();
+			long base = current - now > 0 ? current : now;
+			if (base - now > tolerance)
+				return false;
+			if (arrival.compareAndSet(current, base + interval))
+				return true;
+		}
+	}
+
+	/**
+	 * Give back an event counted by {@link #tryAcquire(String)} that did not happen after all, for instance because
+	 * another limit refused it.
+	 * @param key the user, address or number the event was counted for
+	 */
+	public void release(String key)
+	{
+		AtomicLong arrival = stripes[spread(key.hashCode()) & (STRIPES - 1)].buckets.get(key);
+		// A time in the past means a full bucket, so giving back more than was taken has no effect
+		if (arrival != null)
+			arrival.addAndGet(-interval);
+	}
+
+	/**
+	 * @return number of events allowed per period
+	 */
+	public int getPermits()
+	{
+		return permits;
+	}
+
+	/**
+	 * @return number of keys tracked
+	 */
+	public int size()
+	{
+		int size = 0;
+		for (Stripe stripe : stripes)
+			size += stripe.buckets.size();
+		return size;
+	}
+
+	/**
+	 * @return number of events allowed without tracking because a stripe was full
+	 */
+	public long getUntracked()
+	{
+		return untracked.get();
+	}
+
+	private static int spread(int h)
+	{
+		return h ^ (h >>> 16);
+	}
+
+	private final class Stripe
+	{
+		private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+		private final AtomicLong lastSweep;
+
+		Stripe(long now)
+		{
+			lastSweep = new AtomicLong(now);
+		}
+
+		void sweepIfDue(long now, long gap)
+		{
+			long last = lastSweep.get();
+			if (now - last > gap && lastSweep.compareAndSet(last, now))
+				sweep(now);
+		}
+
+		/**
+		 * Remove the keys whose bucket is full again.
+		 */
+		void sweep(long now)
+		{
+			buckets.forEach((key, arrival) -> {
+				if (arrival.get() - now <= 0)
+					buckets.remove(key, arrival);
+			});
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package nl.idfocus.nam.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP gateway for tests of HTTP clients and SMS providers. <br/>
+ * Answers every request with the configured status and body after an optional delay, and counts requests,
+ * TCP connections and concurrent requests.
+ */
+public class StubGateway implements AutoCloseable
+{
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicInteger maxActive = new AtomicInteger();
+
+	private volatile int status = 200;
+	private volatile String responseBody = "OK";
+	private volatile String contentType = "text/plain";
+	private volatile long delay;
+	private volatile String lastRequest;
+
+	private StubGateway() throws IOException
+	{
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 50);
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+		server.start();
+	}
+
+	/**
+	 * Start a gateway on a free port of the loopback interface.
+	 */
+	public static StubGateway start() throws IOException
+	{
+		return new StubGateway();
+	}
+
+	public String getUrl(String path)
+	{
+		return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+	}
+
+	public void respond(int status, String contentType, String body)
+	{
+		this.status = status;
+		this.contentType = contentType;
+		this.responseBody = body;
+	}
+
+	public void setDelay(long millis)
+	{
+		this.delay = millis;
+	}
+
+	public int getRequests()
+	{
+		return requests.get();
+	}
+
+	public int getConnections()
+	{
+		return connections.size();
+	}
+
+	public int getMaxConcurrent()
+	{
+		return maxActive.get();
+	}
+
+	public String getLastRequest()
+	{
+		return lastRequest;
+	}
+
+	private void handle(HttpExchange exchange) throws IOException
+	{
+		connections.add(exchange.getRemoteAddress());
+		int current = active.incrementAndGet();
+		maxActive.accumulateAndGet(current, Math::max);
+		try
+		{
+			lastRequest = readBody(exchange.getRequestBody());
+			requests.incrementAndGet();
+			if (delay > 0)
+				Thread.sleep(delay);
+			byte[] body = responseBody.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", contentType);
+			exchange.sendResponseHeaders(status, body.length);
+			try (OutputStream out = exchange.getResponseBody())
+			{
+				out.write(body);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			active.decrementAndGet();
+			exchange.close();
+		}
+	}
+
+	private static String readBody(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+		while ((read = in.read(buffer)) != -1)
+			content.write(buffer, 0, read);
+		return new String(content.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public void close()
+	{
+		server.stop(0);
+		executor.shutdownNow();
+	}
+}
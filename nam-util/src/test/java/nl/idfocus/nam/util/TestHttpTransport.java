@@ -0,0 +1,151 @@
+package nl.idfocus.nam.util;
+
+import static org.junit.Assert.*;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestHttpTransport
+{
+	private StubGateway gateway;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		gateway = StubGateway.start();
+	}
+
+	@After
+	public void tearDown()
+	{
+		gateway.close();
+	}
+
+	@Test
+	public void testConnectionIsReused() throws Exception
+	{
+		HttpTransport transport = new HttpTransport(1000, 2000, 2, null);
+		for (int i = 0; i < 5; i++)
+		{
+			HttpTransport.Response response = transport.post(gateway.getUrl("/api/sms"), new HttpTransport.Form().add("body", "code " + i), 2000);
+			assertEquals(200, response.getStatus());
+			assertEquals("OK", response.getBodyAsString());
+		}
+		assertEquals(5, gateway.getRequests());
+		assertEquals(1, gateway.getConnections());
+		assertEquals("body=code+4", gateway.getLastRequest());
+	}
+
+	@Test
+	public void testErrorResponseIsReturned() throws Exception
+	{
+		gateway.respond(503, "text/plain", "try later");
+		HttpTransport transport = new HttpTransport(1000, 2000, 2, null);
+		HttpTransport.Response response = transport.post(gateway.getUrl("/"), new HttpTransport.Form(), 2000);
+		assertEquals(503, response.getStatus());
+		assertFalse(response.isSuccess());
+		assertEquals("try later", response.getBodyAsString());
+		// The error body was read, so the connection can be used again
+		transport.post(gateway.getUrl("/"), new HttpTransport.Form(), 2000);
+		assertEquals(1, gateway.getConnections());
+	}
+
+	@Test
+	public void testTotalDeadline() throws Exception
+	{
+		gateway.setDelay(2000);
+		HttpTransport transport = new HttpTransport(1000, 5000, 2, null);
+		int localFailures = HttpTransport.getLocalFailures();
+		long start = System.nanoTime();
+		try
+		{
+			transport.post(gateway.getUrl("/"), new HttpTransport.Form(), 300);
+			fail("Deadline not enforced");
+		}
+		catch (SocketTimeoutException e)
+		{
+			assertTrue((System.nanoTime() - start) / 1000000 < 1500);
+		}
+		// The host was reached, so this is not a local failure
+		assertEquals(localFailures, HttpTransport.getLocalFailures());
+	}
+
+	@Test
+	public void testConcurrencyPerHost() throws Exception
+	{
+		gateway.setDelay(100);
+		HttpTransport transport = new HttpTransport(1000, 2000, 2, null);
+		ExecutorService pool = Executors.newFixedThreadPool(6);
+		try
+		{
+			List<Future<HttpTransport.Response>> results = new ArrayList<>();
+			for (int i = 0; i < 6; i++)
+				results.add(pool.submit(() -> transport.post(gateway.getUrl("/"), new HttpTransport.Form(), 5000)));
+			for (Future<HttpTransport.Response> result : results)
+				assertEquals(200, result.get().getStatus());
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+		assertEquals(6, gateway.getRequests());
+		assertTrue(gateway.getMaxConcurrent() <= 2);
+		assertEquals(2, transport.getAvailableSlots(gateway.getUrl("/")));
+	}
+
+	@Test
+	public void testSlotWaitCountsTowardsDeadline() throws Exception
+	{
+		gateway.setDelay(1000);
+		HttpTransport transport = new HttpTransport(1000, 2000, 1, null);
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try
+		{
+			Future<HttpTransport.Response> busy = pool.submit(() -> transport.post(gateway.getUrl("/"), new HttpTransport.Form(), 5000));
+			while (transport.getAvailableSlots(gateway.getUrl("/")) > 0)
+				Thread.sleep(5);
+			int localFailures = HttpTransport.getLocalFailures();
+			try
+			{
+				transport.post(gateway.getUrl("/"), new HttpTransport.Form(), 200);
+				fail("Waited beyond the deadline");
+			}
+			catch (SocketTimeoutException e)
+			{
+				assertEquals(1, gateway.getRequests());
+			}
+			// The request never reached the host
+			assertEquals(localFailures + 1, HttpTransport.getLocalFailures());
+			assertEquals(200, busy.get().getStatus());
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testFormEncoding()
+	{
+		HttpTransport.Form form = new HttpTransport.Form()
+				.add("body", "Your code: A&B=1")
+				.add("reference", null)
+				.add("sender", "IDFocus");
+		assertEquals("body=Your+code%3A+A%26B%3D1&sender=IDFocus", form.toString());
+	}
+
+	@Test
+	public void testSharedInstance()
+	{
+		assertSame(HttpTransport.getShared(1000, 2000, 3), HttpTransport.getShared(1000, 2000, 3));
+		assertNotSame(HttpTransport.getShared(1000, 2000, 3), HttpTransport.getShared(1000, 2000, 4));
+	}
+}
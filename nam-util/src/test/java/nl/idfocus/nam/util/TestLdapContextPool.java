@@ -0,0 +1,321 @@
+package nl.idfocus.nam.util;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.ldap.LdapContext;
+
+import org.junit.Test;
+
+import nl.idfocus.nam.util.LdapContextPool.Lease;
+import nl.idfocus.nam.util.LdapContextPool.Replica;
+
+public class TestLdapContextPool
+{
+	/**
+	 * A replica that hands out fake connections, counts them, and can be taken down.
+	 */
+	private static class FakeServer
+	{
+		private final AtomicInteger opened = new AtomicInteger();
+		private final AtomicInteger closed = new AtomicInteger();
+		private final AtomicBoolean down = new AtomicBoolean();
+		private final AtomicBoolean dropConnections = new AtomicBoolean();
+
+		LdapContext connect() throws NamingException
+		{
+			if (down.get())
+				throw new CommunicationException("Connection refused");
+			opened.incrementAndGet();
+			AtomicBoolean open = new AtomicBoolean(true);
+			return (LdapContext)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { LdapContext.class }, (proxy, method, args) -> {
+				switch (method.getName())
+				{
+					case "close":
+						if (open.getAndSet(false))
+							closed.incrementAndGet();
+						return null;
+					case "getAttributes":
+						if (!open.get() || dropConnections.get())
+							throw new CommunicationException("Connection closed");
+						return new BasicAttributes();
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "equals":
+						return proxy == args[0];
+					case "toString":
+						return "FakeContext";
+					default:
+						throw new UnsupportedOperationException(method.getName());
+				}
+			});
+		}
+	}
+
+	private static Replica replica(FakeServer server, int maxSize, long maxIdle, long validateAfter)
+	{
+		return new Replica("ldap://fake:636", server::connect, maxSize, maxIdle, validateAfter, 50);
+	}
+
+	@Test
+	public void testConnectionIsReused() throws Exception
+	{
+		FakeServer server = new FakeServer();
+		LdapContextPool pool = new LdapContextPool(Arrays.asList(replica(server, 2, 60000, 60000)), 1000);
+		LdapContext first;
+		try (Lease lease = pool.borrow())
+		{
+			first = lease.getContext();
+		}
+		try (Lease lease = pool.borrow())
+		{
+			assertSame(first, lease.getContext());
+		}
+		assertEquals(1, server.opened.get());
+		assertEquals(0, server.closed.get());
+	}
+
+	@Test
+	public void testConcurrentBorrowersGetOwnConnections() throws Exception
+	{
+		FakeServer server = new FakeServer();
+		LdapContextPool pool = new LdapContextPool(Arrays.asList(replica(server, 2, 60000, 60000)), 1000);
+		try (Lease first = pool.borrow(); Lease second = pool.borrow())
+		{
+			assertNotSame(first.getContext(), second.getContext());
+		}
+		assertEquals(2, server.opened.get());
+	}
+
+	@Test
+	public void testBorrowTimesOutWhenPoolIsExhausted() throws Exception
+	{
+		FakeServer server = new FakeServer();
+		LdapContextPool pool = new LdapContextPool(Arrays.asList(replica(server, 1, 60000, 60000)), 100);
+		try (Lease lease = pool.borrow())
+		{
+			long start = System.nanoTime();
+			try
+			{
+				pool.borrow();
+				fail("Borrowed more connections than the maximum");
+			}
+			catch (NamingException e)
+			{
+				assertFalse(e instanceof ServiceUnavailableException);
+			}
+			assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 90);
+		}
+	}
+
+	@Test
+	public void testWaitingBorrowerGetsReturnedConnection() throws Exception
+	{
+		FakeServer server = new FakeServer();
+		LdapContextPool pool = new LdapContextPool(Arrays.asList(replica(server, 1, 60000, 60000)), 2000);
+		Lease lease = pool.borrow();
+		LdapContext context = lease.getContext();
+		CountDownLatch waiting = new CountDownLatch(1);
+		AtomicReference<LdapContext> borrowed = new AtomicReference<>();
+		Thread borrower = new Thread(() -> {
+			waiting.countDown();
+			try (Lease other = pool.borrow())
+			{
+				borrowed.set(other.getContext());
+			}
+			catch (NamingException e)
+			{
+				// Leaves borrowed empty
+			}
+		});
+		borrower.start();
+		waiting.await();
+		Thread.sleep(50);
+		lease.close();
+		borrower.join(2000);
+		assertSame(context, borrowed.get());
+		assertEquals(1, server.opened.get());
+	}
+
+	@Test
+	public void testFailoverAndBackoff() throws Exception
+	{
+		FakeServer primary = new FakeServer();
+		FakeServer secondary = new FakeServer();
+		primary.down.set(true);
+		Replica slowRetry = new Replica("ldap://primary:636", primary::connect, 2, 60000, 60000, 500);
+		LdapContextPool pool = new LdapContextPool(Arrays.asList(slowRetry, replica(secondary, 2, 60000, 60000)), 1000);
+		try (Lease lease = pool.borrow())
+		{
+			assertNotNull(lease.getContext());
+		}
+		assertEquals(1, secondary.opened.get());
+		// The primary is skipped while it backs off, then tried again
+		primary.down.set(false);
+		try (Lease lease = pool.borrow())
+		{
+			assertEquals(0, primary.opened.get());
+		}
+		Thread.sleep(600);
+		try (Lease lease = pool.borrow())
+		{
+			assertEquals(1, primary.opened.get());
+		}
+	}
+
+	@Test
+	public void testAllReplicasDown() throws Exception
+	{
+		FakeServer primary = new FakeServer();
+		FakeServer secondary = new FakeServer();
+		primary.down.set(true);
+		secondary.down.set(true);
+		LdapContextPool pool = new LdapContextPool(Arrays.asList(replica(primary, 2, 60000, 60000), replica(secondary, 2, 60000, 60000)), 1000);
+		for (int i = 0; i < 2; i++)
+		{
+			long start = System.nanoTime();
+			try
+			{
+				pool.borrow();
+				fail("Borrowed from a replica that is down");
+			}
+			catch (ServiceUnavailableException e)
+			{
+				// Fails right away instead of waiting for the borrow timeout
+				assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500);
+			}
+		}
+	}
+
+	@Test
+	public void testBrokenIdleConnectionIsReplaced() throws Exception
+	{
+		FakeServer server = new FakeServer();
+		LdapContextPool pool = new LdapContextPool(Arrays.asList(replica(server, 2, 60000, 0)), 1000);
+		LdapContext first;
+		try (Lease lease = pool.borrow())
+		{
+			first = lease.getContext();
+		}
+		server.dropConnections.set(true);
+		try (Lease lease = pool.borrow())
+		{
+			assertNotSame(first, lease.getContext());
+		}
+		assertEquals(2, server.opened.get());
+		assertEquals(1, server.closed.get());
+	}
+
+	@Test
+	public void testIdleConnectionsAreClosed() throws Exception
+	{
+		FakeServer server = new FakeServer();
+		Replica replica = replica(server, 4, 50, 60000);
+		LdapContextPool pool = new LdapContextPool(Arrays.asList(replica), 1000);
+		List<Lease> leases = new ArrayList<>();
+		for (int i = 0; i < 3; i++)
+			leases.add(pool.borrow());
+		for (Lease lease : leases)
+			lease.close();
+		assertEquals(3, replica.getIdleCount());
+		Thread.sleep(100);
+		try (Lease lease = pool.borrow())
+		{
+			assertEquals(4, server.opened.get());
+		}
+		assertEquals(3, server.closed.get());
+		assertEquals(1, replica.getIdleCount());
+	}
+
+	@Test
+	public void testInvalidatedConnectionIsClosed() throws Exception
+	{
+		FakeServer server = new FakeServer();
+		Replica replica = replica(server, 2, 60000, 60000);
+		LdapContextPool pool = new LdapContextPool(Arrays.asList(replica), 1000);
+		Lease lease = pool.borrow();
+		lease.invalidate();
+		lease.close();
+		// Closing twice returns nothing twice
+		lease.close();
+		assertEquals(1, server.closed.get());
+		assertEquals(0, replica.getIdleCount());
+		try (Lease other = pool.borrow(); Lease third = pool.borrow())
+		{
+			assertEquals(3, server.opened.get());
+		}
+	}
+
+	@Test
+	public void testWaitingBorrowerTakesAnyReplica() throws Exception
+	{
+		FakeServer primary = new FakeServer();
+		FakeServer secondary = new FakeServer();
+		LdapContextPool pool = new LdapContextPool(Arrays.asList(replica(primary, 1, 60000, 60000), replica(secondary, 1, 60000, 60000)), 1000);
+		Lease first = pool.borrow();
+		Lease second = pool.borrow();
+		LdapContext context = second.getContext();
+		// Only the second replica gets a connection back, the first stays busy past the timeout
+		Thread returner = new Thread(() -> {
+			try
+			{
+				Thread.sleep(100);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			second.close();
+		});
+		returner.start();
+		long start = System.nanoTime();
+		try (Lease lease = pool.borrow())
+		{
+			assertSame(context, lease.getContext());
+		}
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 900);
+		returner.join();
+		first.close();
+	}
+
+	@Test
+	public void testPasswordChangeClosesOldConnections() throws Exception
+	{
+		FakeServer server = new FakeServer();
+		List<String> urls = Arrays.asList("ldaps://password-change:636");
+		LdapContextPool pool = LdapContextPool.forAccount(urls, "cn=admin,o=org", "old", url -> server::connect);
+		assertSame(pool, LdapContextPool.forAccount(urls, "cn=admin,o=org", "old", url -> server::connect));
+		try (Lease lease = pool.borrow())
+		{
+			assertNotNull(lease.getContext());
+		}
+		Lease borrowed = pool.borrow();
+		Lease other = pool.borrow();
+		other.close();
+		assertEquals(2, server.opened.get());
+		LdapContextPool changed = LdapContextPool.forAccount(urls, "cn=admin,o=org", "new", url -> server::connect);
+		assertNotSame(pool, changed);
+		// The idle connection is closed at once, the borrowed one when it comes back
+		assertEquals(1, server.closed.get());
+		borrowed.close();
+		assertEquals(2, server.closed.get());
+		try (Lease lease = changed.borrow())
+		{
+			assertEquals(3, server.opened.get());
+		}
+		assertSame(changed, LdapContextPool.forAccount(urls, "cn=admin,o=org", "new", url -> server::connect));
+	}
+}
@@ -0,0 +1,67 @@
+package nl.idfocus.nam.util;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.novell.nidp.NIDPPrincipal;
+import com.novell.nidp.common.authority.UserAuthority;
+
+public class TestPrincipalAttributes
+{
+	private NIDPPrincipal princ;
+	private UserAuthority authority;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		princ = MockNIDP.getPrincipal();
+		authority = princ.getAuthority();
+	}
+
+	@Test
+	public void testPrefetchSingleRoundTrip() throws Exception
+	{
+		try (PrincipalAttributes prefetched = PrincipalAttributes.prefetch(princ, Arrays.asList("mobile", "smsExpiration", "", null)))
+		{
+			assertEquals("0612345678", PrincipalAttributes.get(princ, "mobile").get());
+			assertEquals("30", PrincipalAttributes.get(princ, "SMSEXPIRATION").get());
+		}
+		verify(authority, times(1)).getAttributes(any(NIDPPrincipal.class), any(String[].class));
+	}
+
+	@Test
+	public void testNotPrefetchedIsFetchedOnce() throws Exception
+	{
+		try (PrincipalAttributes prefetched = PrincipalAttributes.prefetch(princ, Arrays.asList("mobile")))
+		{
+			assertEquals("mockito", PrincipalAttributes.get(princ, "cn").get());
+			assertEquals("mockito", PrincipalAttributes.get(princ, "cn").get());
+		}
+		verify(authority, times(2)).getAttributes(any(NIDPPrincipal.class), any(String[].class));
+	}
+
+	@Test
+	public void testModifyUpdatesScope() throws Exception
+	{
+		try (PrincipalAttributes prefetched = PrincipalAttributes.prefetch(princ, Arrays.asList("smsExpiration")))
+		{
+			PrincipalAttributes.modify(princ, new String[] { "smsExpiration" }, new String[] { "10" });
+			assertEquals("10", PrincipalAttributes.get(princ, "smsExpiration").get());
+		}
+	}
+
+	@Test
+	public void testNoScopeAfterClose() throws Exception
+	{
+		PrincipalAttributes.prefetch(princ, Arrays.asList("mobile")).close();
+		PrincipalAttributes.get(princ, "mobile");
+		verify(authority, times(2)).getAttributes(any(NIDPPrincipal.class), any(String[].class));
+	}
+}
@@ -0,0 +1,115 @@
+package nl.idfocus.nam.util;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestRateLimiter
+{
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	@Test
+	public void testBurstThenReject()
+	{
+		RateLimiter limiter = new RateLimiter(3, 60000, RateLimiter.DEF_MAX_KEYS);
+		long now = System.nanoTime();
+		assertTrue(limiter.tryAcquire("user", now));
+		assertTrue(limiter.tryAcquire("user", now));
+		assertTrue(limiter.tryAcquire("user", now));
+		assertFalse(limiter.tryAcquire("user", now));
+		assertFalse(limiter.tryAcquire("user", now + SECOND));
+	}
+
+	@Test
+	public void testRefill()
+	{
+		RateLimiter limiter = new RateLimiter(2, 10000, RateLimiter.DEF_MAX_KEYS);
+		long now = System.nanoTime();
+		assertTrue(limiter.tryAcquire("user", now));
+		assertTrue(limiter.tryAcquire("user", now));
+		assertFalse(limiter.tryAcquire("user", now));
+		// One token comes back every 5 seconds
+		assertTrue(limiter.tryAcquire("user", now + 5 * SECOND));
+		assertFalse(limiter.tryAcquire("user", now + 5 * SECOND));
+		assertTrue(limiter.tryAcquire("user", now + 20 * SECOND));
+		assertTrue(limiter.tryAcquire("user", now + 20 * SECOND));
+		assertFalse(limiter.tryAcquire("user", now + 20 * SECOND));
+	}
+
+	@Test
+	public void testRelease()
+	{
+		RateLimiter limiter = new RateLimiter(1, 60000, RateLimiter.DEF_MAX_KEYS);
+		assertTrue(limiter.tryAcquire("user"));
+		limiter.release("user");
+		assertTrue(limiter.tryAcquire("user"));
+		assertFalse(limiter.tryAcquire("user"));
+		// Unknown keys are ignored
+		limiter.release("other");
+		assertEquals(1, limiter.size());
+	}
+
+	@Test
+	public void testKeysAreIndependent()
+	{
+		RateLimiter limiter = new RateLimiter(1, 60000, RateLimiter.DEF_MAX_KEYS);
+		long now = System.nanoTime();
+		assertTrue(limiter.tryAcquire("alice", now));
+		assertFalse(limiter.tryAcquire("alice", now));
+		assertTrue(limiter.tryAcquire("bob", now));
+		assertEquals(2, limiter.size());
+	}
+
+	@Test
+	public void testIdleKeysAreEvicted()
+	{
+		RateLimiter limiter = new RateLimiter(5, 1000, RateLimiter.DEF_MAX_KEYS);
+		long now = System.nanoTime();
+		for (int i = 0; i < 1000; i++)
+			assertTrue(limiter.tryAcquire("user" + i, now));
+		assertEquals(1000, limiter.size());
+		// Every stripe is swept once its period has passed
+		long later = now + 2 * SECOND;
+		for (int i = 0; i < 1000; i++)
+			assertTrue(limiter.tryAcquire("other" + i, later));
+		assertEquals(1000, limiter.size());
+	}
+
+	@Test
+	public void testFullLimiterFailsOpen()
+	{
+		RateLimiter limiter = new RateLimiter(1, 60000, 16);
+		long now = System.nanoTime();
+		for (int i = 0; i < 200; i++)
+			assertTrue(limiter.tryAcquire("user" + i, now));
+		assertTrue(limiter.size() <= 16);
+		assertTrue(limiter.getUntracked() > 0);
+		assertEquals(200, limiter.size() + limiter.getUntracked());
+	}
+
+	@Test
+	public void testSpec()
+	{
+		assertNull(RateLimiter.getShared("test-spec", null));
+		assertNull(RateLimiter.getShared("test-spec", " "));
+		RateLimiter limiter = RateLimiter.getShared("test-spec", " 5 / 300 ");
+		assertEquals(5, limiter.getPermits());
+		assertSame(limiter, RateLimiter.getShared("test-spec", "5/300"));
+		assertNotSame(limiter, RateLimiter.getShared("test-spec", "5/60"));
+		assertNotSame(limiter, RateLimiter.getShared("test-other", "5/300"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidSpec()
+	{
+		RateLimiter.getShared("test-spec", "five per minute");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testZeroPermits()
+	{
+		RateLimiter.getShared("test-spec", "0/60");
+	}
+}